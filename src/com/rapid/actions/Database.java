@@ -25,13 +25,15 @@ in a file named "COPYING".  If not, see <http://www.gnu.org/licenses/>.
 
 package com.rapid.actions;
 
-import java.sql.Date;
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.net.URLEncoder;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Statement;
-import java.sql.Timestamp;
-import java.sql.Types;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -39,6 +41,13 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -56,12 +65,16 @@ import com.rapid.core.Control;
 import com.rapid.core.Page;
 import com.rapid.core.Page.Variables;
 import com.rapid.core.Parameter;
+import com.rapid.data.ColumnReader;
 import com.rapid.data.ConnectionAdapter;
 import com.rapid.data.DataFactory;
 import com.rapid.data.DataFactory.Parameters;
+import com.rapid.data.DataFactory.QueryCancelledException;
 import com.rapid.data.DatabaseConnection;
+import com.rapid.data.Paging;
 import com.rapid.data.SQLiteDataFactory;
 import com.rapid.server.ActionCache;
+import com.rapid.server.QueryCoalescer;
 import com.rapid.server.RapidHttpServlet;
 import com.rapid.server.RapidRequest;
 
@@ -106,6 +119,131 @@ public class Database extends Action {
 
 	}
 
+	// passes everything on to the writer it wraps, counting the characters so streamed responses can be logged like the others
+	private static class CountingWriter extends FilterWriter {
+
+		private long _count;
+
+		public CountingWriter(Writer writer) {
+			super(writer);
+		}
+
+		public long getCount() { return _count; }
+
+		@Override
+		public void write(int c) throws IOException {
+			super.write(c);
+			_count ++;
+		}
+
+		@Override
+		public void write(char[] chars, int offset, int length) throws IOException {
+			super.write(chars, offset, length);
+			_count += length;
+		}
+
+		@Override
+		public void write(String string, int offset, int length) throws IOException {
+			super.write(string, offset, length);
+			_count += length;
+		}
+
+	}
+
+	// what doStreamAction and doExportCSV do with the rows of their query, as writeRows reads them and keeps count
+	private static abstract class RowWriter {
+
+		private long _rowCount;
+		private boolean _truncated;
+		private long _totalCount = -1;
+
+		public long getRowCount() { return _rowCount; }
+		public boolean isTruncated() { return _truncated; }
+		public long getTotalCount() { return _totalCount; }
+
+		// called with the meta data of each result set before its rows
+		public void start(ResultSetMetaData rsmd) throws Exception {}
+
+		// writes a row of the result set, with a reader for each column
+		public abstract void write(ResultSet rs, ColumnReader[] readers) throws Exception;
+
+	}
+
+	// runs a child query on its own data factory, for running child queries at the same time
+	private static class ChildQuery implements Callable<JSONObject> {
+
+		private Database _childDatabaseAction;
+		private RapidRequest _rapidRequest;
+		private JSONObject _jsonChildAction;
+		private Application _application;
+		private ConnectionAdapter _connectionAdapter;
+		private boolean _sqlite;
+		private int _queryTimeout;
+
+		public ChildQuery(Database childDatabaseAction, RapidRequest rapidRequest, JSONObject jsonChildAction, Application application, ConnectionAdapter connectionAdapter, boolean sqlite, int queryTimeout) {
+			_childDatabaseAction = childDatabaseAction;
+			_rapidRequest = rapidRequest;
+			_jsonChildAction = jsonChildAction;
+			_application = application;
+			_connectionAdapter = connectionAdapter;
+			_sqlite = sqlite;
+			_queryTimeout = queryTimeout;
+		}
+
+		@Override
+		public JSONObject call() throws Exception {
+
+			// placeholder for data factory
+			DataFactory df = null;
+
+			// if this is sqlite
+			if (_sqlite) {
+				// instantiate a SQLite data factory with autocommit = false;
+				df = new SQLiteDataFactory(_connectionAdapter, false);
+			} else {
+				// instantiate a data factory with autocommit = false;
+				df = new DataFactory(_connectionAdapter, false);
+			}
+
+			// use the parent's query timeout
+			df.setQueryTimeout(_queryTimeout);
+
+			try {
+
+				// run the query
+				JSONObject jsonChildData = _childDatabaseAction.doQuery(_rapidRequest, _jsonChildAction, _application, df);
+
+				// commit the data factory transaction
+				df.commit();
+
+				return jsonChildData;
+
+			} finally {
+
+				// close the data factory
+				df.close();
+
+			}
+
+		}
+
+	}
+
+	// public static finals
+
+	// default most rows a database action reads before flagging the data as truncated, 0 for no limit, can be set with the databaseMaxRows context parameter or the action's maxRows property
+	public static final int MAX_ROWS = 0;
+	// default number of seconds a database action's queries can run for, 0 for no limit, can be set with the databaseQueryTimeout context parameter, the database connection's queryTimeout, or the action's queryTimeout property
+	public static final int QUERY_TIMEOUT = 0;
+	// default number of seconds after which the query watchdog cancels a request's queries, 0 for no limit, can be set with the databaseRequestTimeout context parameter
+	public static final int REQUEST_TIMEOUT = 0;
+	// default number of threads shared by all database actions running child queries at the same time, can be set with the databaseChildThreads context parameter
+	public static final int CHILD_THREADS = 10;
+	// default number of child queries a request can run at the same time, can be set with the databaseChildConcurrency context parameter
+	public static final int CHILD_CONCURRENCY = 4;
+	// default number of seconds to wait for all of a request's child queries, can be set with the databaseChildTimeout context parameter
+	public static final int CHILD_TIMEOUT = 30;
+
 	// static variables
 	private static Logger _logger = LogManager.getLogger(Database.class);
 
@@ -445,8 +583,36 @@ public class Database extends Action {
 			// close the js function to get the input data
 			js += ");\n";
 
-			// drop in the query variable used to collect the inputs, and hold the sequence
-			js += "var query = { data: data, sequence: sequence };\n";
+			// drop in the query variable used to collect the inputs, and hold the sequence, and any window of rows set with setDatabaseActionPaging if this action has paging
+			if (Boolean.parseBoolean(getProperty("paging"))) {
+				js += "var query = { data: data, sequence: sequence, paging: _databaseActionPaging['" + getId() + "'] };\n";
+			} else {
+				js += "var query = { data: data, sequence: sequence };\n";
+			}
+
+			// if this action exports its rows as a csv file, and can, download it and go straight on to any success actions
+			if (Boolean.parseBoolean(getProperty("exportCSV")) && (_childDatabaseActions == null || _childDatabaseActions.size() == 0)) {
+
+				// get any file name
+				String exportFilename = getProperty("exportFilename");
+				if (exportFilename == null || exportFilename.trim().length() == 0) exportFilename = getId();
+
+				// post the query to the export
+				js += "exportDatabaseActionCSV('~?a=" + application.getId() + "&v=" + application.getVersion() + "&p=" + page.getId() + "&act=" + getId() + "&export=csv&filename=" + URLEncoder.encode(exportFilename.trim(), "UTF-8") + (Boolean.parseBoolean(getProperty("exportGzip")) ? "&gzip=true" : "") + "', JSON.stringify(query));\n";
+
+				// add any success actions
+				if (_successActions != null) {
+					for (Action action : _successActions) {
+						js += action.getJavaScriptWithHeader(rapidRequest, application, page, control, jsonDetails).trim() + "\n";
+					}
+				}
+
+				// add any success check end
+				js += getSuccessCheckSuccess(successCheck, "");
+
+				return js;
+
+			}
 
 			// assume no child queries
 			boolean childQueries = false;
@@ -663,145 +829,524 @@ public class Database extends Action {
 	}
 
 
-	public JSONObject doQuery(RapidRequest rapidRequest, JSONObject jsonAction, Application application, DataFactory df) throws Exception {
+	// gets a whole number from the web.xml context parameters, or the default if it's not there or not a number
+	private int getIntParameter(ServletContext context, String name, int defaultValue) {
+		// get the parameter
+		String value = context.getInitParameter(name);
+		// if we got one
+		if (value != null) {
+			try {
+				return Integer.parseInt(value.trim());
+			} catch (NumberFormatException ex) {
+				_logger.error(name + " " + value + " is not a number, using " + defaultValue);
+			}
+		}
+		return defaultValue;
+	}
 
-		// place holder for the object we're going to return
-		JSONObject jsonData = null;
+	// runs the child queries one after another with our data factory, returning their data in the same order
+	private JSONObject[] getChildData(RapidRequest rapidRequest, JSONArray jsonChildQueries, Application application, DataFactory df) throws Exception {
+
+		// make an array for the data
+		JSONObject[] jsonChildDatas = new JSONObject[jsonChildQueries.length()];
+
+		// loop
+		for (int i = 0; i < jsonChildQueries.length(); i++) {
+			// fetch the data
+			JSONObject jsonChildAction = jsonChildQueries.getJSONObject(i);
+			// read the index (the position of the child this related to
+			int index = jsonChildAction.getInt("index");
+			// get the relevant child action
+			Database childDatabaseAction = _childDatabaseActions.get(index);
+			// get the resultant child data
+			jsonChildDatas[i] = childDatabaseAction.doQuery(rapidRequest, jsonChildAction, application, df);
+		}
 
-		// get the rapidServlet
-		RapidHttpServlet rapidServlet = rapidRequest.getRapidServlet();
+		return jsonChildDatas;
 
-		ServletContext context = rapidServlet.getServletContext();
+	}
 
-		// retrieve the sql
-		String sql = _query.getSQL();
+	// runs the child queries at the same time on the shared executor, up to databaseChildConcurrency for this request and each with its own data factory, returning their data in the same order
+	private JSONObject[] getChildDataParallel(RapidRequest rapidRequest, JSONArray jsonChildQueries, Application application, DataFactory df) throws Exception {
 
-		// only if there is some sql is it worth going further
-		if (sql != null) {
+		// get the servlet context
+		ServletContext context = rapidRequest.getRapidServlet().getServletContext();
 
-			// merge in any application parameters
-			sql = application.insertParameters(context, sql);
+		// get the executor
+		ExecutorService executor = (ExecutorService) context.getAttribute("databaseChildExecutor");
+
+		// if there isn't one do them one after the other
+		if (executor == null) return getChildData(rapidRequest, jsonChildQueries, application, df);
+
+		// get how many we can run at once, and how long we'll wait for them all in total
+		int concurrency = Math.max(1, getIntParameter(context, "databaseChildConcurrency", CHILD_CONCURRENCY));
+		int timeout = getIntParameter(context, "databaseChildTimeout", CHILD_TIMEOUT);
+
+		// the number of child queries
+		int count = jsonChildQueries.length();
+
+		// make an array for the data
+		JSONObject[] jsonChildDatas = new JSONObject[count];
+
+		// the completion service gives us each child as it finishes
+		CompletionService<JSONObject> completionService = new ExecutorCompletionService<>(executor);
+
+		// the position of each child we've submitted
+		Map<Future<JSONObject>, Integer> positions = new HashMap<>();
+
+		// when we'll give up
+		long deadline = System.currentTimeMillis() + timeout * 1000L;
+
+		try {
+
+			// submit as many as we can run at once
+			int submitted = 0;
+			while (submitted < count && submitted < concurrency) {
+				positions.put(completionService.submit(getChildQuery(rapidRequest, jsonChildQueries.getJSONObject(submitted), application, df)), submitted);
+				submitted ++;
+			}
+
+			// wait for each to finish
+			for (int completed = 0; completed < count; completed ++) {
+
+				// how long we have left
+				long wait = deadline - System.currentTimeMillis();
+
+				// wait for the next one, if we have time
+				Future<JSONObject> future = wait > 0 ? completionService.poll(wait, TimeUnit.MILLISECONDS) : null;
+
+				// if none finished in time give up
+				if (future == null) throw new SQLException("Child database queries did not finish within " + timeout + " seconds");
+
+				try {
+					// put the data at the child's position
+					jsonChildDatas[positions.get(future)] = future.get();
+				} catch (ExecutionException ex) {
+					// throw what went wrong in the child
+					if (ex.getCause() instanceof Exception) throw (Exception) ex.getCause();
+					throw ex;
+				}
+
+				// submit the next one, if there is one
+				if (submitted < count) {
+					positions.put(completionService.submit(getChildQuery(rapidRequest, jsonChildQueries.getJSONObject(submitted), application, df)), submitted);
+					submitted ++;
+				}
+
+			}
+
+		} finally {
 
-			// get any json inputs
-			JSONObject jsonInputData = jsonAction.optJSONObject("data");
+			// stop any still running, if there was an error or time out
+			for (Future<JSONObject> future : positions.keySet()) future.cancel(true);
 
-			// initialise the parameters list - there is a parameters object in the list for each row, allowing for multi-row queries
-			ArrayList<Parameters> parametersList = new ArrayList<>();
+		}
+
+		return jsonChildDatas;
 
-			// populate the parameters from the inputs collection (we do this first as we use them as the cache key due to getting values from the session)
-			if (_query.getInputs() == null) {
+	}
 
-				// just add an empty parameters member if no inputs
-				parametersList.add(new Parameters());
+	// makes a task that runs a child query on its own data factory, using the same database as ours
+	private ChildQuery getChildQuery(RapidRequest rapidRequest, JSONObject jsonChildAction, Application application, DataFactory df) throws JSONException {
+		// get the relevant child action from the index (the position of the child this related to)
+		Database childDatabaseAction = _childDatabaseActions.get(jsonChildAction.getInt("index"));
+		// make the task
+		return new ChildQuery(childDatabaseAction, rapidRequest, jsonChildAction, application, df.getConnectionAdapter(), df instanceof SQLiteDataFactory, df.getQueryTimeout());
+	}
+
+	// a parent or child value as the string used to match them when merging child rows, or null for values that never match
+	private static String getMergeString(Object value) {
+		// check the value type
+		if (value == null) {
+			return null;
+		} else if (value.getClass() == String.class) {
+			return (String) value;
+		} else if (value.getClass() == Integer.class) {
+			return Integer.toString((Integer) value);
+		} else if (value.getClass() == Long.class) {
+			return Long.toString((Long) value);
+		} else if (value.getClass() == Double.class) {
+			return Double.toString((Double) value);
+		} else if (value.getClass() == Boolean.class) {
+			return Boolean.toString((Boolean) value);
+		}
+		// any other type doesn't match
+		return null;
+	}
+
+	// the window of rows the client asked for, if this action has paging, otherwise null
+	private Paging getPaging(JSONObject jsonAction) throws JSONException, SQLException {
+		// only if this action has paging
+		if (!Boolean.parseBoolean(getProperty("paging"))) return null;
+		// get the paging the client sent
+		JSONObject jsonPaging = jsonAction.optJSONObject("paging");
+		// if there wasn't any, or no page size, there's no window and all rows are fetched as before
+		if (jsonPaging == null || jsonPaging.optInt("pageSize") <= 0) return null;
+		// get any key, which makes this a keyset
+		String key = getProperty("pagingKey");
+		if (key != null && key.trim().length() == 0) key = null;
+		// get the key value the rows are after, if this isn't the first page of a keyset
+		Object after = jsonPaging.opt("after");
+		if (after == JSONObject.NULL) after = null;
+		// make the paging
+		return new Paging(jsonPaging.optInt("page", 1), jsonPaging.getInt("pageSize"), key == null ? null : key.trim(), after, jsonPaging.optBoolean("totalCount"));
+	}
+
+	// the most rows this action will read before stopping and flagging the data as truncated, 0 for no limit
+	private int getMaxRows(ServletContext context) {
+		// look for one set on the action
+		String maxRows = getProperty("maxRows");
+		if (maxRows != null && maxRows.trim().length() > 0) {
+			try {
+				return Integer.parseInt(maxRows.trim());
+			} catch (NumberFormatException ex) {
+				_logger.error("Database action " + getId() + " maxRows " + maxRows + " is not a number, using databaseMaxRows");
+			}
+		}
+		// use the one from the web.xml, or the default
+		return getIntParameter(context, "databaseMaxRows", MAX_ROWS);
+	}
+
+	// the query timeout in seconds from the action, or its database connection, or the web.xml, 0 for no limit
+	private int getQueryTimeout(ServletContext context, DatabaseConnection databaseConnection) {
+		// look for one set on the action
+		String queryTimeout = getProperty("queryTimeout");
+		if (queryTimeout != null && queryTimeout.trim().length() > 0) {
+			try {
+				return Integer.parseInt(queryTimeout.trim());
+			} catch (NumberFormatException ex) {
+				_logger.error("Database action " + getId() + " queryTimeout " + queryTimeout + " is not a number, using the database connection's");
+			}
+		}
+		// use the database connection's, if it has one
+		if (databaseConnection.getQueryTimeout() > 0) return databaseConnection.getQueryTimeout();
+		// use the one from the web.xml, or the default
+		return getIntParameter(context, "databaseQueryTimeout", QUERY_TIMEOUT);
+	}
+
+	// sets the time after which the query watchdog cancels the request's queries from the web.xml, if it hasn't been set already
+	private void setDeadline(RapidRequest rapidRequest, ServletContext context) {
+		if (rapidRequest.getDeadline() == 0) {
+			int requestTimeout = getIntParameter(context, "databaseRequestTimeout", REQUEST_TIMEOUT);
+			if (requestTimeout > 0) rapidRequest.setDeadline(System.currentTimeMillis() + requestTimeout * 1000L);
+		}
+	}
+
+	// the seconds a shared result is kept for requests arriving just after, 0 to only share with requests arriving whilst it runs
+	private int getCoalesceTTL() {
+		// look for one set on the action
+		String coalesceTTL = getProperty("coalesceTTL");
+		if (coalesceTTL != null && coalesceTTL.trim().length() > 0) {
+			try {
+				return Integer.parseInt(coalesceTTL.trim());
+			} catch (NumberFormatException ex) {
+				_logger.error("Database action " + getId() + " coalesceTTL " + coalesceTTL + " is not a number, using 0");
+			}
+		}
+		return 0;
+	}
 
+	// the key for sharing this query's result with other requests running it at the same time, or null if it can't be shared - only read only selects with coalesce set, and no child queries as their inputs are their own
+	private String getCoalesceKey(RapidRequest rapidRequest, JSONObject jsonAction, Application application, ServletContext context) throws JSONException, SQLException {
+
+		// only if this action has coalesce
+		if (!Boolean.parseBoolean(getProperty("coalesce"))) return null;
+
+		// not if there are child database actions
+		if (_childDatabaseActions != null && _childDatabaseActions.size() > 0) return null;
+
+		// merge in any application parameters, as in doQuery, as some can change
+		String sql = application.insertParameters(context, _query.getSQL());
+
+		// clean the sql for checking, as in doQuery
+		String sqlCheck = sql.trim().replace(" ", "").toLowerCase();
+
+		// only selects
+		if (!sqlCheck.startsWith("select") && !sqlCheck.startsWith("with")) return null;
+
+		// start with the application, action, and sql
+		StringBuilder key = new StringBuilder();
+		key.append(application.getId()).append('|').append(application.getVersion()).append('|').append(getId()).append('|').append(sql);
+
+		// add every input value, each quoted so they can't run together - these include any taken from the user's session, like their user name, so users only share when those are the same
+		for (Parameters parameters : getParametersList(rapidRequest, jsonAction, application, context, sql)) {
+			key.append('|');
+			for (com.rapid.data.DataFactory.Parameter parameter : parameters) key.append(parameter.getType()).append(JSONObject.quote(parameter.toString()));
+		}
+
+		// add any window of rows
+		Paging paging = getPaging(jsonAction);
+		if (paging != null) key.append('|').append(paging.toString());
+
+		return key.toString();
+
+	}
+
+	// counts all of the rows the sql would return, without the window, for a total count
+	private long getTotalCount(RapidRequest rapidRequest, DataFactory df, String sql, Parameters parameters) throws Exception {
+		// assume none
+		long totalCount = 0;
+		// get the count
+		ResultSet rs = df.getPreparedResultSet(rapidRequest, Paging.getCountSQL(sql), parameters);
+		// check we got one
+		if (rs != null) {
+			// read it
+			if (rs.next()) totalCount = rs.getLong(1);
+			// close the record set
+			rs.close();
+		}
+		return totalCount;
+	}
+
+	// adds to each parent row the child rows whose mapped fields have the same values, or a null cell if there aren't any, indexing the child rows once so it's a hash join
+	public static void mergeChildRows(JSONArray jsonRows, JSONArray jsonChildFields, JSONArray jsonChildRows, Map<Integer,Integer> fieldsMap) throws JSONException {
+		// an object with a null value for when there is no match
+		Object nullObject = null;
+		// the parent field positions that must match, in a fixed order for the keys
+		List<Integer> parentPositions = new ArrayList<>(fieldsMap.keySet());
+		// index the child rows by their matching values, once, keeping their order
+		Map<List<String>, JSONArray> childRowsIndex = new HashMap<>();
+		// loop the child rows
+		for (int k = 0; k < jsonChildRows.length(); k++) {
+			// get the child row
+			JSONArray jsonChildRow = jsonChildRows.getJSONArray(k);
+			// the key of its matching values
+			List<String> key = new ArrayList<>(parentPositions.size());
+			// loop the matching fields
+			for (Integer l : parentPositions) {
+				// child value
+				Object childValue = null;
+				// get child value if present
+				if (jsonChildRow.length() > l) childValue = jsonChildRow.opt(fieldsMap.get(l));
+				// get the value as a string
+				String childString = getMergeString(childValue);
+				// a null can't match anything so there's no key for this row
+				if (childString == null) {
+					key = null;
+					break;
+				}
+				// add to the key
+				key.add(childString);
+			}
+			// if all values were present
+			if (key != null) {
+				// get the rows we have for this key
+				JSONArray jsonChildRowsSubset = childRowsIndex.get(key);
+				// if there aren't any yet make and add them
+				if (jsonChildRowsSubset == null) {
+					jsonChildRowsSubset = new JSONArray();
+					childRowsIndex.put(key, jsonChildRowsSubset);
+				}
+				// add this row to the subset
+				jsonChildRowsSubset.put(jsonChildRow);
+			}
+		} // child row loop
+		// loop the parent rows
+		for (int j = 0; j < jsonRows.length(); j++) {
+			// get the parent row
+			JSONArray jsonRow = jsonRows.getJSONArray(j);
+			// the key of its matching values
+			List<String> key = new ArrayList<>(parentPositions.size());
+			// loop the matching fields
+			for (Integer l : parentPositions) {
+				// parent value
+				Object parentValue = null;
+				// get the value if there are enough
+				if (jsonRow.length() > l) parentValue = jsonRow.opt(l);
+				// get the value as a string
+				String parentString = getMergeString(parentValue);
+				// a null can't match anything so there's no key for this row
+				if (parentString == null) {
+					key = null;
+					break;
+				}
+				// add to the key
+				key.add(parentString);
+			}
+			// look up the child rows with the same values
+			JSONArray jsonChildRowsSubset = key == null ? null : childRowsIndex.get(key);
+			// if our child subset has rows in it
+			if (jsonChildRowsSubset != null) {
+				// create a new childSubset object
+				JSONObject jsonChildDataSubset = new JSONObject();
+				// add the fields
+				jsonChildDataSubset.put("fields", jsonChildFields);
+				// add the subset of rows
+				jsonChildDataSubset.put("rows", jsonChildRowsSubset);
+				// add the child database action data subset
+				jsonRow.put(jsonChildDataSubset);
 			} else {
+				// add an empty cell
+				jsonRow.put(nullObject);
+			}
+		} // parent row loop
+	}
 
-				// if there is input data
-				if (jsonInputData != null) {
-
-					// get any input fields
-					JSONArray jsonFields = jsonInputData.optJSONArray("fields");
-					// get any input rows
-					JSONArray jsonRows = jsonInputData.optJSONArray("rows");
-
-					// if we have fields and rows
-					if (jsonFields != null && jsonRows != null) {
-
-						// if we haven't mapped the parameters yet to deal with ? followed by a number or name, this is expensive, so we'll do it once and cache it
-						if (_parameterMap == null) {
-
-							// retain the original inputs
-							List<Parameter> originalInputs = _query.getInputs();
-							// if null make an empty list
-							if (originalInputs == null) originalInputs = new ArrayList<>();
-							// a list of input names which will include the field
-							List<String> inputNames = new ArrayList<>();
-							// loop the original inputs
-							for (int i = 0; i < originalInputs.size(); i++) {
-								// get this input
-								Parameter input = originalInputs.get(i);
-								// make its name its id
-								String inputName = input.getItemId();
-								// if it has a field add that on
-								if (!input.getField().isEmpty()) inputName += "." + input.getField();
-								// add this to our input names list
-								inputNames.add(inputName);
-							}
+	// reads a column of the current row with its reader, escaping any text for XSS if required
+	private Object readColumn(ColumnReader reader, ResultSet rs) throws SQLException {
+		// read the value
+		Object value = reader.read(rs);
+		// escape any text for XSS, if required (the default for new actions)
+		if (value != null && reader.isText() && _query.getAvoidXSS()) value = escapeXSS((String) value);
+		// return the value
+		return value;
+	}
+
+	// makes the parameters list from the inputs - there is a parameters object in the list for each row, allowing for multi-row queries
+	private ArrayList<Parameters> getParametersList(RapidRequest rapidRequest, JSONObject jsonAction, Application application, ServletContext context, String sql) throws JSONException, SQLException {
 
-							// the parameter map we are making - it'll be size of the mapped parameters but hold the index back to the original ones - we'll use it below to populate each data row for the parameters list
-							_parameterMap = getParameterMap(sql, inputNames, application, context);
+		// get any json inputs
+		JSONObject jsonInputData = jsonAction.optJSONObject("data");
 
+		// initialise the parameters list - there is a parameters object in the list for each row, allowing for multi-row queries
+		ArrayList<Parameters> parametersList = new ArrayList<>();
+
+		// populate the parameters from the inputs collection (we do this first as we use them as the cache key due to getting values from the session)
+		if (_query.getInputs() == null) {
+
+			// just add an empty parameters member if no inputs
+			parametersList.add(new Parameters());
+
+		} else {
+
+			// if there is input data
+			if (jsonInputData != null) {
+
+				// get any input fields
+				JSONArray jsonFields = jsonInputData.optJSONArray("fields");
+				// get any input rows
+				JSONArray jsonRows = jsonInputData.optJSONArray("rows");
+
+				// if we have fields and rows
+				if (jsonFields != null && jsonRows != null) {
+
+					// if we haven't mapped the parameters yet to deal with ? followed by a number or name, this is expensive, so we'll do it once and cache it
+					if (_parameterMap == null) {
+
+						// retain the original inputs
+						List<Parameter> originalInputs = _query.getInputs();
+						// if null make an empty list
+						if (originalInputs == null) originalInputs = new ArrayList<>();
+						// a list of input names which will include the field
+						List<String> inputNames = new ArrayList<>();
+						// loop the original inputs
+						for (int i = 0; i < originalInputs.size(); i++) {
+							// get this input
+							Parameter input = originalInputs.get(i);
+							// make its name its id
+							String inputName = input.getItemId();
+							// if it has a field add that on
+							if (!input.getField().isEmpty()) inputName += "." + input.getField();
+							// add this to our input names list
+							inputNames.add(inputName);
 						}
 
-						// loop the input rows (only the top row if not multirow)
-						for (int i = 0; i < jsonRows.length() && (_query.getMultiRow() || i == 0); i ++) {
-
-							// get this jsonRow
-							JSONArray jsonRow = jsonRows.getJSONArray(i);
-							// make the parameters for this row
-							Parameters parameters = new Parameters();
-
-							// loop the query inputs
-							for (Parameter input : _query.getInputs()) {
-								// get the input id
-								String id = input.getItemId();
-								// get the input field
-								String field = input.getField();
-								// add field to id if present
-								if (field != null && !"".equals(field)) id += "." + field;
-								// retain the value
-								String value = null;
-								// if it looks like a control, or a system value (bit of extra safety checking)
-								if (id.indexOf("_C") > 0 || id.indexOf("System.") == 0) {
-									// check special cases
-									switch (id) {
-										case "System.device" :
-											// get the device from the request
-											value = rapidRequest.getDevice();
-											break;
-										case "System.user name" :
-											// get the user name from the session (don't trust the front end)
-											value = rapidRequest.getUserName();
-											break;
-										default :
-											// get the value from the json inputs
+						// the parameter map we are making - it'll be size of the mapped parameters but hold the index back to the original ones - we'll use it below to populate each data row for the parameters list
+						_parameterMap = getParameterMap(sql, inputNames, application, context);
+
+					}
+
+					// loop the input rows (only the top row if not multirow)
+					for (int i = 0; i < jsonRows.length() && (_query.getMultiRow() || i == 0); i ++) {
+
+						// get this jsonRow
+						JSONArray jsonRow = jsonRows.getJSONArray(i);
+						// make the parameters for this row
+						Parameters parameters = new Parameters();
+
+						// loop the query inputs
+						for (Parameter input : _query.getInputs()) {
+							// get the input id
+							String id = input.getItemId();
+							// get the input field
+							String field = input.getField();
+							// add field to id if present
+							if (field != null && !"".equals(field)) id += "." + field;
+							// retain the value
+							String value = null;
+							// if it looks like a control, or a system value (bit of extra safety checking)
+							if (id.indexOf("_C") > 0 || id.indexOf("System.") == 0) {
+								// check special cases
+								switch (id) {
+									case "System.device" :
+										// get the device from the request
+										value = rapidRequest.getDevice();
+										break;
+									case "System.user name" :
+										// get the user name from the session (don't trust the front end)
+										value = rapidRequest.getUserName();
+										break;
+									default :
+										// get the value from the json inputs
+										value = getJsonInputValue(jsonFields, jsonRow, id);
+								}
+							} else {
+								// didn't look like a control so check page parameters
+								if (rapidRequest.getPage() != null) {
+									// get page variables
+									Variables pageVariables = rapidRequest.getPage().getVariables();
+									// check for page parameters
+									if (pageVariables != null) {
+										// if this is one
+										if (pageVariables.contains(id)) {
+											// get the value
 											value = getJsonInputValue(jsonFields, jsonRow, id);
-									}
-								} else {
-									// didn't look like a control so check page parameters
-									if (rapidRequest.getPage() != null) {
-										// get page variables
-										Variables pageVariables = rapidRequest.getPage().getVariables();
-										// check for page parameters
-										if (pageVariables != null) {
-											// if this is one
-											if (pageVariables.contains(id)) {
-												// get the value
-												value = getJsonInputValue(jsonFields, jsonRow, id);
-											}
 										}
 									}
 								}
-								// if still null try the session
-								if (value == null) value = (String) rapidRequest.getSessionAttribute(input.getItemId());
-
-								// add the parameter
-								parameters.add(value);
 							}
+							// if still null try the session
+							if (value == null) value = (String) rapidRequest.getSessionAttribute(input.getItemId());
+
+							// add the parameter
+							parameters.add(value);
+						}
 
-							// map any parameters (also checks if we need to)
-							parameters = mapParameters(_parameterMap, parameters);
+						// map any parameters (also checks if we need to)
+						parameters = mapParameters(_parameterMap, parameters);
 
-							// add the parameters to the list
-							parametersList.add(parameters);
+						// add the parameters to the list
+						parametersList.add(parameters);
 
-						} // row loop
+					} // row loop
 
-					} // input fields and rows check
+				} // input fields and rows check
+
+			} // input data check
+
+		} // query inputs check
+
+		return parametersList;
+
+	}
+
+	public JSONObject doQuery(RapidRequest rapidRequest, JSONObject jsonAction, Application application, DataFactory df) throws Exception {
+
+		// place holder for the object we're going to return
+		JSONObject jsonData = null;
+
+		// get the rapidServlet
+		RapidHttpServlet rapidServlet = rapidRequest.getRapidServlet();
+
+		ServletContext context = rapidServlet.getServletContext();
+
+		// retrieve the sql
+		String sql = _query.getSQL();
+
+		// only if there is some sql is it worth going further
+		if (sql != null) {
+
+			// merge in any application parameters
+			sql = application.insertParameters(context, sql);
 
-				} // input data check
+			// get the parameters from the inputs (we do this first as we use them as the cache key due to getting values from the session)
+			ArrayList<Parameters> parametersList = getParametersList(rapidRequest, jsonAction, application, context, sql);
 
-			} // query inputs check
+			// get any window of rows the client asked for
+			Paging paging = getPaging(jsonAction);
+
+			// the key for the action cache, the parameters and any window
+			String cacheKey = paging == null ? parametersList.toString() : parametersList.toString() + paging.toString();
 
 			// placeholder for the action cache
 			ActionCache actionCache = rapidRequest.getRapidServlet().getActionCache();
@@ -813,7 +1358,7 @@ public class Database extends Action {
 				_logger.debug("Database action cache found");
 
 				// attempt to fetch data from the cache
-				jsonData = actionCache.get(application.getId(), getId(), parametersList.toString());
+				jsonData = actionCache.get(application.getId(), getId(), cacheKey);
 
 			}
 
@@ -838,6 +1383,10 @@ public class Database extends Action {
 					// clean the sql for checking - it has been trimmed already (declare is the longest we're looking for so far)
 					String sqlCheck = sql.replace(" ", "").toLowerCase();
 
+					// whether we stopped reading at the most rows, and the total number of rows if the client asked for it
+					boolean truncated = false;
+					long totalCount = -1;
+
 					// if it is more than 7 characters just trim it as "declare" is the longest we check for next - some parent statements are empty!
 					if (sqlCheck.length() > 7) sqlCheck = sqlCheck.substring(0, 7);
 
@@ -850,18 +1399,56 @@ public class Database extends Action {
 						// got fields indicator
 						boolean gotFields = false;
 
+						// the most rows we'll read
+						int maxRows = getMaxRows(context);
+
+						// the dialect for any paging, and the sql that fetches just the window, if we know how to for the dialect
+						String dialect = null;
+						String pagedSQL = null;
+
+						// only page selects with a single set of inputs - exec's can return several result sets and multi-row inputs several queries
+						if (paging != null && !sqlCheck.startsWith("exec") && parametersList.size() == 1) {
+							// get the dialect from the connection
+							dialect = Paging.getDialect(df.getConnectionString());
+							// get the sql
+							pagedSQL = paging.getSQL(sql, dialect);
+							// a keyset can only be done by the database
+							if (pagedSQL == null && paging.getKey() != null) throw new SQLException("Paging with a key is not available for database " + df.getConnectionString());
+						} else {
+							// no paging
+							paging = null;
+						}
+
 						// loop the parameterList getting a result set for each parameters (input row)
 						for (Parameters parameters : parametersList) {
 
+							// rows to skip, and the most to read, if the window can't be done by the database
+							int skip = 0;
+							int limit = 0;
+
+							// placeholder for the result set
+							ResultSet rs = null;
+
 							// get the result set!
-							ResultSet rs = df.getPreparedResultSet(rapidRequest, sql, parameters);
+							if (pagedSQL == null) {
+								// if we're paging we need to do the window ourselves
+								if (paging != null) {
+									skip = paging.getOffset();
+									limit = paging.getPageSize();
+								}
+								// get all of the rows
+								rs = df.getPreparedResultSet(rapidRequest, sql, parameters);
+							} else {
+								// get the window of rows
+								rs = df.getPreparedResultSet(rapidRequest, pagedSQL, paging.getParameters(parameters, dialect));
+							}
 
 							// check we got one
 							if (rs != null) {
 
 								// date formatters we might need but only want to fetch / initialise once
-								SimpleDateFormat localDateFormatter = null;
-								SimpleDateFormat localDateTimeFormatter = null;
+								SimpleDateFormat localDateFormatter = rapidServlet.getLocalDateFormatter();
+								SimpleDateFormat localDateTimeFormatter = rapidServlet.getLocalDateTimeFormatter();
 
 								// assume results
 								boolean gotResults = true;
@@ -873,85 +1460,54 @@ public class Database extends Action {
 									// get this resultset's meta data for the field names
 									ResultSetMetaData rsmd = rs.getMetaData();
 
+									// get a reader for each column, according to its type, which SQLite can change from row to row
+									ColumnReader[] readers = ColumnReader.getReaders(rsmd, localDateFormatter, localDateTimeFormatter, df instanceof SQLiteDataFactory);
+
+									// the rows we read from this result set, for the sql statistics
+									int resultRows = 0;
+
 									// loop the result set
 									while (rs.next()) {
 
+										// skip any rows before the window
+										if (skip > 0) {
+											skip --;
+											continue;
+										}
+
+										// stop at the end of the window
+										if (limit > 0 && jsonRows.length() >= limit) break;
+
+										// if there's a row past the most we'll read, stop and remember the data is truncated
+										if (maxRows > 0 && jsonRows.length() >= maxRows) {
+											truncated = true;
+											break;
+										}
+
 										// initialise the row
 										JSONArray jsonRow = new JSONArray();
 
 										// loop the columns
-										for (int i = 0; i < rsmd.getColumnCount(); i++) {
+										for (int i = 0; i < readers.length; i++) {
 											// add the field name to the fields collection if not done yet
 											if (!gotFields) jsonFields.put(rsmd.getColumnLabel(i + 1));
-											// get the value as a string
-											String value = rs.getString(i + 1);
-											// check for null
-											if (value == null) {
-												// put null
-												jsonRow.put(value);
-											} else {
-												// get the column type
-												int columnType = rsmd.getColumnType(i + 1);
-												// add the data to the row according to it's type
-												switch (columnType) {
-												case (Types.NUMERIC) :
-													jsonRow.put(rs.getDouble(i + 1));
-												break;
-												case (Types.INTEGER) :
-													jsonRow.put(rs.getInt(i + 1));
-												break;
-												case (Types.BIGINT) :
-													jsonRow.put(rs.getLong(i + 1));
-												break;
-												case (Types.FLOAT) :
-													jsonRow.put(rs.getFloat(i + 1));
-												break;
-												case (Types.DOUBLE) : case (Types.DECIMAL) :
-													jsonRow.put(rs.getDouble(i + 1));
-												break;
-												case (Types.DATE) :
-													Date date = rs.getDate(i + 1);
-													if (date == null) {
-														jsonRow.put(date);
-													} else {
-														if (localDateFormatter == null) localDateFormatter = rapidRequest.getRapidServlet().getLocalDateFormatter();
-														jsonRow.put(localDateFormatter.format(date));
-													}
-												break;
-												case (Types.TIMESTAMP) :
-													Timestamp timeStamp = rs.getTimestamp(i + 1);
-													if (timeStamp == null) {
-														jsonRow.put(timeStamp);
-													} else {
-														// check for 0 millseconds past midnight - a truncated date time (time zone offset is in minutes, multiplied by the number of millis in a minute modulus with number of millis in a day)
-														if ((timeStamp.getTime() - timeStamp.getTimezoneOffset() * 60000) % 86400000L == 0) {
-															// if so show just date
-															if (localDateFormatter == null) localDateFormatter = rapidRequest.getRapidServlet().getLocalDateFormatter();
-															jsonRow.put(localDateFormatter.format(timeStamp));
-														} else {
-															// show date and time
-															if (localDateTimeFormatter == null) localDateTimeFormatter = rapidRequest.getRapidServlet().getLocalDateTimeFormatter();
-															jsonRow.put(localDateTimeFormatter.format(timeStamp));
-														}
-													}
-												break;
-												default :
-													// escape an XSS, if required (the default for new actions)
-													if (_query.getAvoidXSS()) value = escapeXSS(value);
-													// put the value in the result
-													jsonRow.put(value);
-												}
-											}
+											// add the value to the row
+											jsonRow.put(readColumn(readers[i], rs));
 										}
 										// add the row to the rows collection
 										jsonRows.put(jsonRow);
 										// remember we now have our fields
 										gotFields = true;
+										// count the row
+										resultRows ++;
 
 									}
 									// close the record set
 									rs.close();
 
+									// add the rows we read to the sql statistics
+									df.addResultRows(resultRows);
+
 									// look for any more results
 									gotResults = st.getMoreResults();
 
@@ -969,6 +1525,9 @@ public class Database extends Action {
 
 							} // check rs
 
+							// if the client wants the total count
+							if (paging != null && paging.getTotalCount()) totalCount = getTotalCount(rapidRequest, df, sql, parameters);
+
 						} // parameters list loop - not sure whether this ever called
 
 					} else if (sqlCheck.startsWith("call") || sqlCheck.startsWith("{call")) {
@@ -1005,10 +1564,11 @@ public class Database extends Action {
 						// sql check
 						if (sql.length() > 0) {
 
-							// perform update for all incoming parameters (one parameters collection for each row)
-							for (Parameters parameters : parametersList) {
-								rows += df.getPreparedUpdate(rapidRequest, sql, parameters);
-							}
+							// the number of rows to send to the database at a time, if there are several
+							int batchSize = getIntParameter(context, "databaseBatchSize", DataFactory.BATCH_SIZE);
+
+							// perform update for all incoming parameters (one parameters collection for each row), batched when there is more than one
+							rows = df.getPreparedBatchUpdate(rapidRequest, sql, parametersList, batchSize);
 
 							// add a psuedo field
 							jsonFields.put("rows");
@@ -1028,6 +1588,10 @@ public class Database extends Action {
 					jsonData.put("fields", jsonFields);
 					// add the rows to the data object
 					jsonData.put("rows", jsonRows);
+					// add whether the rows were truncated, if they were
+					if (truncated) jsonData.put("truncated", true);
+					// add the total count, if asked for
+					if (totalCount >= 0) jsonData.put("totalCount", totalCount);
 
 					// check for any child database actions
 					if (_childDatabaseActions != null) {
@@ -1056,16 +1620,19 @@ public class Database extends Action {
 							JSONArray jsonChildQueries = jsonAction.optJSONArray("childQueries");
 							// if there was some
 							if (jsonChildQueries != null) {
+								// get the resultant child data, in the same order as the child queries
+								JSONObject[] jsonChildDatas = null;
+								// if asked for, and there's more than one, run them at the same time, otherwise one after the other in our transaction
+								if (Boolean.parseBoolean(getProperty("parallelChildren")) && jsonChildQueries.length() > 1) {
+									jsonChildDatas = getChildDataParallel(rapidRequest, jsonChildQueries, application, df);
+								} else {
+									jsonChildDatas = getChildData(rapidRequest, jsonChildQueries, application, df);
+								}
+
 								// loop
 								for (int i = 0; i < jsonChildQueries.length(); i++) {
-									// fetch the data
-									JSONObject jsonChildAction = jsonChildQueries.getJSONObject(i);
-									// read the index (the position of the child this related to
-									int index = jsonChildAction.getInt("index");
-									// get the relevant child action
-									Database childDatabaseAction = _childDatabaseActions.get(index);
 									// get the resultant child data
-									JSONObject jsonChildData = childDatabaseAction.doQuery(rapidRequest, jsonChildAction, application, df);
+									JSONObject jsonChildData = jsonChildDatas[i];
 
 									// prepare the merge child field name
 									String childFieldName = "childAction" + (i + 1);
@@ -1101,90 +1668,10 @@ public class Database extends Action {
 
 										// if matching fields exists and not all columns are matched (stops simple queries like for drop down lookups merging)
 										if (fieldsMap.size() > 0 && fieldsMap.size() != jsonFields.length() - i - 1) {
-											// an object with a null value for when there is no match
-											Object nullObject = null;
 											// get the child rows
 											JSONArray jsonChildRows = jsonChildData.getJSONArray("rows");
-											// if we had some
-											if (jsonChildRows != null) {
-												// loop the parent rows
-												for (int j = 0; j < jsonRows.length(); j++) {
-													// get the parent row
-													JSONArray jsonRow = jsonRows.getJSONArray(j);
-													// make a new rows collection for the child subset
-													JSONArray jsonChildRowsSubset = new JSONArray();
-													// loop the child rows
-													for (int k =0; k < jsonChildRows.length(); k++) {
-														// get the child row
-														JSONArray jsonChildRow = jsonChildRows.getJSONArray(k);
-														// assume no matches
-														int matches = 0;
-														// loop the fields map
-														for (Integer l: fieldsMap.keySet()) {
-															// parent value
-															Object parentValue = null;
-															// get the value if there are enough
-															if (jsonRow.length() > l) parentValue = jsonRow.get(l);
-															// child value
-															Object childValue = null;
-															// get child value if present
-															if (jsonChildRow.length() > l) childValue= jsonChildRow.opt(fieldsMap.get(l));
-															// non null check
-															if (parentValue != null && childValue != null) {
-																// a string we will concert the child value to
-																String parentString = null;
-																// check the parent value type
-																if (parentValue.getClass() == String.class) {
-																	parentString = (String) parentValue;
-																} else if (parentValue.getClass() == Integer.class) {
-																	parentString = Integer.toString((Integer) parentValue);
-																} else if (parentValue.getClass() == Long.class) {
-																	parentString = Long.toString((Long) parentValue);
-																} else if (parentValue.getClass() == Double.class) {
-																	parentString = Double.toString((Double) parentValue);
-																} else if (parentValue.getClass() == Boolean.class) {
-																	parentString = Boolean.toString((Boolean) parentValue);
-																}
-																// a string we will convert the child value to
-																String childString = null;
-																// check the parent value type
-																if (childValue.getClass() == String.class) {
-																	childString = (String) childValue;
-																} else if (childValue.getClass() == Integer.class) {
-																	childString = Integer.toString((Integer) childValue);
-																} else if (childValue.getClass() == Long.class) {
-																	childString = Long.toString((Long) childValue);
-																} else if (childValue.getClass() == Double.class) {
-																	childString = Double.toString((Double) childValue);
-																} else if (childValue.getClass() == Boolean.class) {
-																	childString = Boolean.toString((Boolean) childValue);
-																}
-																// non null check
-																if (parentString != null && childString != null) {
-																	// do the match!
-																	if (parentString.equals(childString)) matches++;
-																}
-															} // values non null
-														} // field map loop
-														// if we got some matches for all the fields add this row to the subset
-														if (matches == fieldsMap.size()) jsonChildRowsSubset.put(jsonChildRow);
-													} // child row loop
-													// if our child subset has rows in it
-													if (jsonChildRowsSubset.length() > 0) {
-														// create a new childSubset object
-														JSONObject jsonChildDataSubset = new JSONObject();
-														// add the fields
-														jsonChildDataSubset.put("fields", jsonChildFields);
-														// add the subset of rows
-														jsonChildDataSubset.put("rows", jsonChildRowsSubset);
-														// add the child database action data subset
-														jsonRow.put(jsonChildDataSubset);
-													} else {
-														// add an empty cell
-														jsonRow.put(nullObject);
-													}
-												} // parent row loop
-											} // jsonChildRows null check
+											// if we had some, add the matching subset of them to each parent row
+											if (jsonChildRows != null) mergeChildRows(jsonRows, jsonChildFields, jsonChildRows, fieldsMap);
 
 										} else {
 
@@ -1214,12 +1701,22 @@ public class Database extends Action {
 					} // _childDatabaseActions not null
 
 					// cache if in use
-					if (actionCache != null) actionCache.put(application.getId(), getId(), parametersList.toString(), jsonData);
+					if (actionCache != null) actionCache.put(application.getId(), getId(), cacheKey, jsonData);
 
 				} catch (Exception ex) {
 
-					// log the error
-					_logger.error(ex);
+					// if the query was cancelled throw that instead, so it can be told apart
+					if (ex instanceof SQLException) {
+						SQLException cancelledException = df.getCancelledException((SQLException) ex);
+						if (cancelledException != null) ex = cancelledException;
+					}
+
+					// log the error, cancelled queries as warnings
+					if (ex instanceof QueryCancelledException) {
+						_logger.warn("Database action " + getId() + " " + ex.getMessage());
+					} else {
+						_logger.error(ex);
+					}
 
 					// close the data factory and silently fail
 					try { df.close(); } catch (Exception ex2) {}
@@ -1280,8 +1777,39 @@ public class Database extends Action {
 				df = new DataFactory(ca, false);
 			}
 
-			// use the reusable do query function (so child database actions can use it as well)
-			jsonData = doQuery(rapidRequest, jsonAction, application, df);
+			// set the query timeout, and the request's deadline if there isn't one yet
+			df.setQueryTimeout(getQueryTimeout(rapidRequest.getRapidServlet().getServletContext(), databaseConnection));
+			setDeadline(rapidRequest, rapidRequest.getRapidServlet().getServletContext());
+
+			// get the query coalescer the context listener made
+			QueryCoalescer queryCoalescer = (QueryCoalescer) rapidRequest.getRapidServlet().getServletContext().getAttribute("queryCoalescer");
+
+			// get the key for sharing this query with other requests, if it can be
+			String coalesceKey = queryCoalescer == null ? null : getCoalesceKey(rapidRequest, jsonAction, application, rapidRequest.getRapidServlet().getServletContext());
+
+			// if it can be shared
+			if (coalesceKey != null) {
+
+				// final copies for the execution
+				final RapidRequest coalesceRequest = rapidRequest;
+				final JSONObject coalesceAction = jsonAction;
+				final Application coalesceApplication = application;
+				final DataFactory coalesceDataFactory = df;
+
+				// run the query, or wait for another request running it with the same inputs and share its result
+				jsonData = queryCoalescer.execute(coalesceKey, getCoalesceTTL(), rapidRequest.getDeadline(), new QueryCoalescer.Execution() {
+					@Override
+					public JSONObject execute() throws Exception {
+						return doQuery(coalesceRequest, coalesceAction, coalesceApplication, coalesceDataFactory);
+					}
+				});
+
+			} else {
+
+				// use the reusable do query function (so child database actions can use it as well)
+				jsonData = doQuery(rapidRequest, jsonAction, application, df);
+
+			}
 
 			// commit the data factory transaction
 			df.commit();
@@ -1300,6 +1828,379 @@ public class Database extends Action {
 
 	}
 
+	// queries are streamed unless turned off, or something needs the whole result first - child queries merge into its rows, and the action cache stores it
+	@Override
+	public boolean canStreamAction(RapidRequest rapidRequest, JSONObject jsonAction) {
+
+		// fetch the application
+		Application application = rapidRequest.getApplication();
+
+		// only if there is a query object with sql, application, and page, and connection - as in doAction
+		if (_query == null || _query.getSQL() == null || application == null || rapidRequest.getPage() == null || application.getDatabaseConnections() == null || application.getDatabaseConnections().size() <= _query.getDatabaseConnectionIndex()) return false;
+
+		// not if streaming has been turned off in the web.xml
+		if ("false".equalsIgnoreCase(rapidRequest.getRapidServlet().getServletContext().getInitParameter("databaseStreaming"))) return false;
+
+		// not if there are child database actions as their data is merged into our rows
+		if (_childDatabaseActions != null && _childDatabaseActions.size() > 0) return false;
+
+		// not if there is an action cache as it stores the whole result
+		if (rapidRequest.getRapidServlet().getActionCache() != null) return false;
+
+		// not if its result is shared with other requests, which needs the whole result
+		if (Boolean.parseBoolean(getProperty("coalesce"))) return false;
+
+		// clean the sql for checking, as in doQuery
+		String sqlCheck = _query.getSQL().trim().replace(" ", "").toLowerCase();
+
+		// only selects - exec can return several result sets of which only the last is sent, and updates just send the rows affected
+		return sqlCheck.startsWith("select") || sqlCheck.startsWith("with");
+
+	}
+
+	// writes the same {"fields":[...],"rows":[...],"sequence":n} as doAction straight to the writer as the result set is read, so large results are never held in memory
+	@Override
+	public long doStreamAction(RapidRequest rapidRequest, JSONObject jsonAction, Writer writer) throws Exception {
+
+		_logger.trace("Database action streamed : " + jsonAction);
+
+		// fetch in the sequence
+		int sequence = jsonAction.optInt("sequence", 1);
+
+		// count what we write for the logs
+		final CountingWriter out = new CountingWriter(writer);
+
+		// write each row as json as it's read - the fields are only sent from the first row, as in doQuery
+		RowWriter rowWriter = new RowWriter() {
+
+			// the meta data of the result set being read, for the field names
+			private ResultSetMetaData _rsmd;
+
+			@Override
+			public void start(ResultSetMetaData rsmd) {
+				_rsmd = rsmd;
+			}
+
+			@Override
+			public void write(ResultSet rs, ColumnReader[] readers) throws Exception {
+
+				// if this is the first row
+				if (getRowCount() == 0) {
+					// open the object and fields
+					out.write("{\"fields\":[");
+					// loop the columns writing the field names
+					for (int i = 0; i < readers.length; i++) {
+						if (i > 0) out.write(',');
+						out.write(JSONObject.quote(_rsmd.getColumnLabel(i + 1)));
+					}
+					// close the fields and open the rows
+					out.write("],\"rows\":[");
+				} else {
+					// separate from the previous row
+					out.write(',');
+				}
+
+				// open the row
+				out.write('[');
+				// loop the columns
+				for (int i = 0; i < readers.length; i++) {
+					if (i > 0) out.write(',');
+					// write the value according to it's type, exactly as JSONArray would
+					out.write(JSONObject.valueToString(readColumn(readers[i], rs)));
+				}
+				// close the row
+				out.write(']');
+
+			}
+
+		};
+
+		// read the rows, with any paging and the most rows as in doQuery
+		writeRows(rapidRequest, jsonAction, writer, rowWriter, true);
+
+		// if there were no rows we still need the empty fields and rows
+		if (rowWriter.getRowCount() == 0) out.write("{\"fields\":[],\"rows\":[");
+
+		// close the rows
+		out.write("]");
+
+		// add whether the rows were truncated, if they were, and the total count, if asked for, as in doQuery
+		if (rowWriter.isTruncated()) out.write(",\"truncated\":true");
+		if (rowWriter.getTotalCount() >= 0) out.write(",\"totalCount\":" + rowWriter.getTotalCount());
+
+		// add the sequence
+		out.write(",\"sequence\":" + sequence + "}");
+
+		// flush anything the writer holds
+		out.flush();
+
+		return out.getCount();
+
+	}
+
+	// whether the query can be exported as csv - only if set to, only selects, and not with child queries as their data is merged into the rows
+	public boolean canExportCSV(RapidRequest rapidRequest) {
+
+		// only if the action has been set to export
+		if (!Boolean.parseBoolean(getProperty("exportCSV"))) return false;
+
+		// fetch the application
+		Application application = rapidRequest.getApplication();
+
+		// only if there is a query object with sql, application, and connection - as in doAction
+		if (_query == null || _query.getSQL() == null || application == null || application.getDatabaseConnections() == null || application.getDatabaseConnections().size() <= _query.getDatabaseConnectionIndex()) return false;
+
+		// not if there are child database actions
+		if (_childDatabaseActions != null && _childDatabaseActions.size() > 0) return false;
+
+		// clean the sql for checking, as in doQuery
+		String sqlCheck = _query.getSQL().trim().replace(" ", "").toLowerCase();
+
+		// only selects
+		return sqlCheck.startsWith("select") || sqlCheck.startsWith("with");
+
+	}
+
+	// writes the rows of the query for the inputs in the action as RFC-4180 csv, a row at a time as they're read so any number of rows can be exported, and returns the number of characters written
+	public long doExportCSV(RapidRequest rapidRequest, JSONObject jsonAction, Writer writer) throws Exception {
+
+		_logger.trace("Database action exported : " + jsonAction);
+
+		// count what we write for the logs
+		final CountingWriter out = new CountingWriter(writer);
+
+		// write each row as csv as it's read, after a header from the first result set
+		RowWriter rowWriter = new RowWriter() {
+
+			// whether we've written the header
+			private boolean _gotHeader;
+
+			@Override
+			public void start(ResultSetMetaData rsmd) throws Exception {
+				// if this is the first result set
+				if (!_gotHeader) {
+					// loop the columns writing the field names
+					for (int i = 0; i < rsmd.getColumnCount(); i++) {
+						if (i > 0) out.write(',');
+						writeCSVValue(out, rsmd.getColumnLabel(i + 1), true);
+					}
+					// end the header
+					out.write("\r\n");
+					// remember we have it
+					_gotHeader = true;
+				}
+			}
+
+			@Override
+			public void write(ResultSet rs, ColumnReader[] readers) throws Exception {
+				// loop the columns
+				for (int i = 0; i < readers.length; i++) {
+					if (i > 0) out.write(',');
+					// read the value as it is - the csv is not html so isn't escaped for XSS
+					Object value = readers[i].read(rs);
+					// nulls are empty, and numbers are never taken as formulas
+					if (value != null) writeCSVValue(out, value.toString(), !(value instanceof Number));
+				}
+				// end the row
+				out.write("\r\n");
+			}
+
+		};
+
+		// read all of the rows
+		writeRows(rapidRequest, jsonAction, writer, rowWriter, false);
+
+		_logger.debug("Database action " + getId() + " exported " + rowWriter.getRowCount() + " rows");
+
+		// flush anything the writer holds
+		out.flush();
+
+		return out.getCount();
+
+	}
+
+	// runs the query for each set of inputs in the action on its own data factory, giving each row to the row writer as it's read, for doStreamAction and doExportCSV - with any paging and the most rows if limited
+	private void writeRows(RapidRequest rapidRequest, JSONObject jsonAction, Writer writer, RowWriter rowWriter, boolean limited) throws Exception {
+
+		// get the rapidServlet
+		RapidHttpServlet rapidServlet = rapidRequest.getRapidServlet();
+
+		ServletContext context = rapidServlet.getServletContext();
+
+		// fetch the application
+		Application application = rapidRequest.getApplication();
+
+		// get the relevant connection
+		DatabaseConnection databaseConnection = application.getDatabaseConnections().get(_query.getDatabaseConnectionIndex());
+
+		// get the connection adapter
+		ConnectionAdapter ca = databaseConnection.getConnectionAdapter(context, application);
+
+		// placeholder for data factory
+		DataFactory df = null;
+
+		// if this is sqlite
+		if (databaseConnection.getConnectionString().toLowerCase().contains("sqlite")) {
+			// instantiate a SQLite data factory with autocommit = false;
+			df = new SQLiteDataFactory(ca, false);
+		} else {
+			// instantiate a data factory with autocommit = false;
+			df = new DataFactory(ca, false);
+		}
+
+		// set the query timeout, and the request's deadline if there isn't one yet
+		df.setQueryTimeout(getQueryTimeout(context, databaseConnection));
+		setDeadline(rapidRequest, context);
+
+		try {
+
+			// merge in any application parameters
+			String sql = application.insertParameters(context, _query.getSQL());
+
+			// get the parameters from the inputs, exactly as for the action
+			ArrayList<Parameters> parametersList = getParametersList(rapidRequest, jsonAction, application, context, sql);
+
+			// remove any numbers/names after ?'s in the sql so it makes sense to jdbc, and trim
+			sql = unspecifySqlSlots(sql).trim();
+
+			// if select set readonly to true (makes for faster querying) - but not for SQLite as it throws an exception if done after the connection is established
+			if (sql.toLowerCase().startsWith("select") && !df.getConnectionAdapter().getConnectionString().toLowerCase().contains("sqlite")) df.setReadOnly(true);
+
+			// fetch the rows from the database in blocks, rather than all at once or one at a time
+			int fetchSize = Math.max(1, getIntParameter(context, "databaseFetchSize", DataFactory.FETCH_SIZE));
+			df.setFetchSize(fetchSize);
+
+			// date formatters we might need but only want to fetch / initialise once
+			SimpleDateFormat localDateFormatter = rapidServlet.getLocalDateFormatter();
+			SimpleDateFormat localDateTimeFormatter = rapidServlet.getLocalDateTimeFormatter();
+
+			// the most rows we'll read, if limited
+			int maxRows = limited ? getMaxRows(context) : 0;
+
+			// get any window of rows the client asked for, if limited, and only for a single set of inputs as in doQuery
+			Paging paging = limited && parametersList.size() == 1 ? getPaging(jsonAction) : null;
+
+			// the dialect for any paging, and the sql that fetches just the window, if we know how to for the dialect
+			String dialect = null;
+			String pagedSQL = null;
+
+			// if we're paging
+			if (paging != null) {
+				// get the dialect from the connection
+				dialect = Paging.getDialect(df.getConnectionString());
+				// get the sql
+				pagedSQL = paging.getSQL(sql, dialect);
+				// a keyset can only be done by the database
+				if (pagedSQL == null && paging.getKey() != null) throw new SQLException("Paging with a key is not available for database " + df.getConnectionString());
+			}
+
+			// loop the parameterList getting a result set for each parameters (input row)
+			for (Parameters parameters : parametersList) {
+
+				// rows to skip, and the most to read, if the window can't be done by the database
+				int skip = 0;
+				int limit = 0;
+
+				// placeholder for the result set
+				ResultSet rs = null;
+
+				// get the result set - any sql errors are thrown here, before anything has been written for the first
+				if (pagedSQL == null) {
+					// if we're paging we need to do the window ourselves
+					if (paging != null) {
+						skip = paging.getOffset();
+						limit = paging.getPageSize();
+					}
+					// get all of the rows
+					rs = df.getPreparedResultSet(rapidRequest, sql, parameters);
+				} else {
+					// get the window of rows
+					rs = df.getPreparedResultSet(rapidRequest, pagedSQL, paging.getParameters(parameters, dialect));
+				}
+
+				// check we got one
+				if (rs != null) {
+
+					// get this resultset's meta data for the field names
+					ResultSetMetaData rsmd = rs.getMetaData();
+
+					// get a reader for each column, according to its type, which SQLite can change from row to row
+					ColumnReader[] readers = ColumnReader.getReaders(rsmd, localDateFormatter, localDateTimeFormatter, df instanceof SQLiteDataFactory);
+
+					// the rows written before this result set, for the sql statistics and the window
+					long startRowCount = rowWriter._rowCount;
+
+					// let the row writer know the result set is starting
+					rowWriter.start(rsmd);
+
+					// loop the result set
+					while (rs.next()) {
+
+						// skip any rows before the window
+						if (skip > 0) {
+							skip --;
+							continue;
+						}
+
+						// stop at the end of the window
+						if (limit > 0 && rowWriter._rowCount >= limit) break;
+
+						// if there's a row past the most we'll read, stop and remember the data is truncated
+						if (maxRows > 0 && rowWriter._rowCount >= maxRows) {
+							rowWriter._truncated = true;
+							break;
+						}
+
+						// write the row
+						rowWriter.write(rs, readers);
+
+						// count it
+						rowWriter._rowCount ++;
+
+						// each time the driver will go back to the database for more rows, check the client is still there - a print writer only tells us its writes failed when asked
+						if (rowWriter._rowCount % fetchSize == 0 && writer instanceof PrintWriter && ((PrintWriter) writer).checkError()) {
+							// remember the client has gone so the watchdog cancels any of this request's other queries
+							rapidRequest.setDisconnected(true);
+							// stop this one
+							df.cancel();
+							// stop
+							throw new QueryCancelledException(QueryCancelledException.DISCONNECTED, null);
+						}
+
+					}
+
+					// close the record set
+					rs.close();
+
+					// add the rows we read to the sql statistics
+					df.addResultRows(rowWriter._rowCount - startRowCount);
+
+				} // check rs
+
+				// if the client wants the total count
+				if (paging != null && paging.getTotalCount()) rowWriter._totalCount = getTotalCount(rapidRequest, df, sql, parameters);
+
+			} // parameters list loop
+
+			// commit the data factory transaction
+			df.commit();
+
+		} catch (SQLException ex) {
+
+			// if the query was cancelled throw that instead, so it can be told apart
+			SQLException cancelledException = df.getCancelledException(ex);
+			if (cancelledException == null) throw ex;
+			throw cancelledException;
+
+		} finally {
+
+			// close the data factory
+			df.close();
+
+		}
+
+	}
+
 	@Override
 	public boolean isWebService() {
 		return true;
@@ -1307,6 +2208,18 @@ public class Database extends Action {
 
 	// static methods
 
+	// writes a csv value, in double quotes with any double quotes doubled if it has a comma, quote, or line break, as in RFC-4180 - text a spreadsheet would run as a formula is started with a ' so it's only shown
+	private static void writeCSVValue(Writer out, String value, boolean text) throws IOException {
+		if (text && value.length() > 0 && "=+-@\t\r".indexOf(value.charAt(0)) >= 0) value = "'" + value;
+		if (value.indexOf(',') >= 0 || value.indexOf('"') >= 0 || value.indexOf('\r') >= 0 || value.indexOf('\n') >= 0) {
+			out.write('"');
+			out.write(value.replace("\"", "\"\""));
+			out.write('"');
+		} else {
+			out.write(value);
+		}
+	}
+
 	// returns a list of all parameters for the sql by finding any ?'s followed by numbers/names and creating a longer parameter list populated with those mapped by index to the inputs - also used by designer sql check where the input names come from json
 	public static List<Integer> getParameterMap(String sql, List<String> inputNames, Application application, ServletContext context) throws SQLException {
 
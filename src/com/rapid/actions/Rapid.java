@@ -67,6 +67,7 @@ import com.rapid.core.Device;
 import com.rapid.core.Device.Devices;
 import com.rapid.core.Email;
 import com.rapid.core.Page;
+import com.rapid.core.PageCache;
 import com.rapid.core.Pages.PageHeader;
 import com.rapid.core.Process;
 import com.rapid.core.Settings;
@@ -76,6 +77,7 @@ import com.rapid.core.Workflows;
 import com.rapid.data.ConnectionAdapter;
 import com.rapid.data.DataFactory;
 import com.rapid.data.DatabaseConnection;
+import com.rapid.data.SQLStatistics;
 import com.rapid.security.SecurityAdapter;
 import com.rapid.security.SecurityAdapter.Role;
 import com.rapid.security.SecurityAdapter.Roles;
@@ -84,6 +86,7 @@ import com.rapid.security.SecurityAdapter.User;
 import com.rapid.security.SecurityAdapter.UserRoles;
 import com.rapid.security.SecurityAdapter.Users;
 import com.rapid.server.Monitor;
+import com.rapid.server.MonitorFiles;
 import com.rapid.server.RapidHttpServlet;
 import com.rapid.server.RapidRequest;
 import com.rapid.server.RapidServletContextListener;
@@ -111,6 +114,7 @@ public class Rapid extends Action {
 	// private static finals
 	private static final String TEST_EMAIL_TO = "test@dev.rapid-is.co.uk";
 	private static final String TEST_EMAIL_FROM = "test@dev.rapid-is.co.uk";
+	private static final int MONITOR_SUMMARY_MINUTES = 15;
 
 	// static variables
 	private static Logger _logger = LogManager.getLogger(Rapid.class);
@@ -580,11 +584,7 @@ public class Rapid extends Action {
 	}
 
 	private void recordMonitorEvent(RapidRequest rapidRequest, String actionName, String appId, String appVersion) {
-		_monitor.openEntry();
-		_monitor.setActionName(actionName);
-		_monitor.setAppId(appId);
-		_monitor.setAppVersion(appVersion);
-		_monitor.commitEntry(rapidRequest, null, 0);
+		_monitor.commitEntry(rapidRequest, actionName, appId, appVersion);
 	}
 
 	@Override
@@ -2200,6 +2200,48 @@ public class Rapid extends Action {
 
 							return jsonDetails;
 
+					} else if ("GETSQLSTATS".equals(action)) {
+
+						// get the sql statistics the context listener made
+						SQLStatistics sqlStatistics = (SQLStatistics) servletContext.getAttribute("sqlStatistics");
+
+						// return them, or nothing if there aren't any
+						if (sqlStatistics == null) return new JSONObject();
+						return sqlStatistics.toJSON();
+
+					} else if ("RESETSQLSTATS".equals(action)) {
+
+						// get the sql statistics the context listener made
+						SQLStatistics sqlStatistics = (SQLStatistics) servletContext.getAttribute("sqlStatistics");
+
+						// clear them
+						if (sqlStatistics != null) sqlStatistics.reset();
+
+						// add a message
+						result.put("message", "SQL statistics reset");
+
+					} else if ("GETMONITORSUMMARY".equals(action)) {
+
+						// the monitor files, if the monitor is writing to them
+						MonitorFiles monitorFiles = _monitor.isAlive(servletContext) ? _monitor.getFiles() : null;
+
+						// if it isn't say so
+						if (monitorFiles == null) {
+							result.put("message", "The monitor is not writing to local files");
+						} else {
+							// return the totals by app and action for the last minutes, 15 by default
+							return monitorFiles.getSummary(jsonAction.optInt("minutes", MONITOR_SUMMARY_MINUTES));
+						}
+
+					} else if ("GETPAGECACHE".equals(action)) {
+
+						// get the page cache the context listener made
+						PageCache pageCache = (PageCache) servletContext.getAttribute("pageCache");
+
+						// return its budget and each application's loaded pages, size, and evictions, or nothing if there isn't one
+						if (pageCache == null) return new JSONObject();
+						return pageCache.toJSON(rapidServlet.getApplications());
+
 					} // action type check
 
 				}
@@ -3270,6 +3312,8 @@ public class Rapid extends Action {
 										dataFactory.getConnection(rapidActionRequest);
 										// close it
 										dataFactory.close();
+										// close the adapter too as it was only made for this test (pooling adapters will stop their threads)
+										connectionAdapter.close();
 
 										// add the application to the response
 										result.put("message", "Database connection OK");
@@ -3463,7 +3507,7 @@ public class Rapid extends Action {
 								page = Page.load(servletContext, backupFile);
 
 								// replace the current entry
-								app.getPages().addPage(page, pageFile, app.getIsForm());
+								app.getPages().addPage(servletContext, page, pageFile, app.getIsForm());
 
 								// set the result message
 								result.put("message", "Page backup " + appId + "/" + backupId + " restored");
@@ -25,6 +25,7 @@ in a file named "COPYING".  If not, see <http://www.gnu.org/licenses/>.
 
 package com.rapid.core;
 
+import java.io.Writer;
 import java.util.HashMap;
 import java.util.List;
 
@@ -121,6 +122,12 @@ public abstract class Action {
 	// this is where any server-side action happens! (some actions are client side only)
 	public JSONObject doAction(RapidRequest rapidRequest, JSONObject jsonData) throws Exception { return null; };
 
+	// whether this action can write its result straight to the response with doStreamAction, rather than returning it all from doAction
+	public boolean canStreamAction(RapidRequest rapidRequest, JSONObject jsonData) { return false; }
+
+	// writes the same json doAction would return straight to the writer, returning the number of characters written
+	public long doStreamAction(RapidRequest rapidRequest, JSONObject jsonData, Writer writer) throws Exception { return 0; }
+
 	// whether this action is a webservice
 	public boolean isWebService() { return false; }
 
@@ -49,6 +49,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Stack;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -611,6 +612,7 @@ public class Application {
 	private List<Parameter> _parameters;
 	private List<String> _controlTypes, _actionTypes;
 	private Pages _pages;
+	private Map<String,Integer> _sqlParameterCounts;
 	private Resources _appResources, _resources;
 	private List<String> _styleClasses;
 	private Variables _pageVariables;
@@ -871,6 +873,7 @@ public class Application {
 		_xmlVersion = XML_VERSION;
 		_pages = new Pages(this);
 		_pageOrders = new HashMap<>();
+		_sqlParameterCounts = new ConcurrentHashMap<>();
 		_formShowSummary = true;
 		_statusBarColour = "#aaaaaa";
 		_statusBarHighlightColour = "#999999";
@@ -1513,6 +1516,13 @@ public class Application {
 		_pageVariables = null;
 	}
 
+	// the number of parameters each sql statement has, as reported by the jdbc driver, keyed by connection and sql, so the meta data is only fetched once (no setter so jaxb ignores it)
+	public Map<String,Integer> getSQLParameterCounts() { return _sqlParameterCounts; }
+	// empty the sql parameter counts, for when the app or its pages are saved and the sql may have changed
+	public void emptySQLParameterCounts() {
+		_sqlParameterCounts.clear();
+	}
+
 	// an instance of the security adapter used by this object
 	public SecurityAdapter getSecurityAdapter() { return _securityAdapter; }
 	// set the security to a given type
@@ -2847,6 +2857,9 @@ public class Application {
 	    	_settings.save(servletContext, this);
 	    }
 
+	    // empty the sql parameter counts so they are checked again
+	    emptySQLParameterCounts();
+
 	    // put this application in the collection
 	    rapidServlet.getApplications().put(this);
 
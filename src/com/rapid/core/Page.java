@@ -40,8 +40,10 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import javax.servlet.ServletContext;
@@ -51,6 +53,10 @@ import javax.xml.bind.Unmarshaller;
 import javax.xml.bind.annotation.XmlRootElement;
 import javax.xml.bind.annotation.XmlType;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.util.StreamReaderDelegate;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactoryConfigurationError;
 
@@ -246,6 +252,64 @@ public class Page {
 
 	}
 
+	// the controls and actions of a page by id, kept together so a lookup always has both from the same build
+	private static class Index {
+
+		private Map<String, Control> _controls;
+		private Map<String, Action> _actions;
+
+		private Index(Map<String, Control> controls, Map<String, Action> actions) {
+			_controls = controls;
+			_actions = actions;
+		}
+
+	}
+
+	// passes a page file's xml to the unmarshaller, noting the XMLVersion element of the page as it goes by so we know if it needed upgrading without reading the file first
+	private static class XMLVersionReader extends StreamReaderDelegate {
+
+		private int _depth, _xmlVersion = -1;
+		private StringBuilder _xmlVersionText;
+
+		public XMLVersionReader(XMLStreamReader reader) {
+			super(reader);
+		}
+
+		// the version, or -1 if the page hasn't got one or it hasn't been read yet
+		public int getXMLVersion() { return _xmlVersion; }
+
+		@Override
+		public int next() throws XMLStreamException {
+			// get the next event
+			int event = super.next();
+			// check it
+			switch (event) {
+			case XMLStreamConstants.START_ELEMENT :
+				_depth ++;
+				// the page element is 1 and its children are 2
+				if (_depth == 2 && "XMLVersion".equals(getLocalName())) _xmlVersionText = new StringBuilder();
+				break;
+			case XMLStreamConstants.CHARACTERS :
+				if (_xmlVersionText != null) _xmlVersionText.append(getTextCharacters(), getTextStart(), getTextLength());
+				break;
+			case XMLStreamConstants.END_ELEMENT :
+				// if this is the end of the version element
+				if (_xmlVersionText != null) {
+					try {
+						_xmlVersion = Integer.parseInt(_xmlVersionText.toString().trim());
+					} catch (NumberFormatException ex) {
+						_xmlVersion = -1;
+					}
+					_xmlVersionText = null;
+				}
+				_depth --;
+				break;
+			}
+			return event;
+		}
+
+	}
+
 	// instance variables
 
 	private int _xmlVersion, _formPageType;
@@ -267,6 +331,9 @@ public class Page {
 	// this array is used to collect all of the lines needed in the pageload before sorting them
 	private List<String> _pageloadLines;
 
+	// the page's controls and actions by id, built when the page is loaded or saved, or when next needed after its controls or events are set
+	private volatile Index _index;
+
 	// properties
 
 	// the xml version is used to upgrade xml files before unmarshalling (we use a property so it's written ito xml)
@@ -344,11 +411,11 @@ public class Page {
 
 	// the child controls of the page
 	public List<Control> getControls() { return _controls; }
-	public void setControls(List<Control> controls) { _controls = controls; }
+	public void setControls(List<Control> controls) { _controls = controls; clearIndex(); }
 
 	// the page events and actions
 	public List<Event> getEvents() { return _events; }
-	public void setEvents(List<Event> events) { _events = events; }
+	public void setEvents(List<Event> events) { _events = events; clearIndex(); }
 
 	// the page styles
 	public List<Style> getStyles() { return _styles; }
@@ -417,6 +484,69 @@ public class Page {
 	public void addControl(Control control) {
 		if (_controls == null) _controls = new ArrayList<>();
 		_controls.add(control);
+		clearIndex();
+	}
+
+	// builds the index of the page's controls and actions by id, in the order the tree walking functions below find them so the first of any duplicates is kept
+	public void buildIndex() {
+		makeIndex();
+	}
+
+	// empties the index so it's built again the next time it's needed
+	public void clearIndex() {
+		_index = null;
+	}
+
+	// builds the index and swaps it in, returning it so callers use this one even if it's cleared straight after
+	private Index makeIndex() {
+		// make new maps so lookups carry on with the old ones until we're done
+		Map<String, Control> controlIndex = new HashMap<>();
+		Map<String, Action> actionIndex = new HashMap<>();
+		// the page event actions are checked first
+		indexEventActions(actionIndex, _events);
+		// then the controls, with their actions, and their child controls
+		indexControls(controlIndex, actionIndex, _controls);
+		// swap them in
+		Index index = new Index(controlIndex, actionIndex);
+		_index = index;
+		return index;
+	}
+
+	// the current index, building it if there isn't one
+	private Index getIndex() {
+		Index index = _index;
+		if (index == null) index = makeIndex();
+		return index;
+	}
+
+	// adds the actions of some events, and their child actions, to the action index
+	private void indexEventActions(Map<String, Action> actionIndex, List<Event> events) {
+		if (events != null) {
+			for (Event event : events) indexActions(actionIndex, event.getActions());
+		}
+	}
+
+	// adds some actions, and their child actions, to the action index
+	private void indexActions(Map<String, Action> actionIndex, List<Action> actions) {
+		if (actions != null) {
+			for (Action action : actions) {
+				if (action != null) {
+					if (action.getId() != null && !actionIndex.containsKey(action.getId())) actionIndex.put(action.getId(), action);
+					indexActions(actionIndex, action.getChildActions());
+				}
+			}
+		}
+	}
+
+	// adds some controls, their actions, and their child controls, to the indexes
+	private void indexControls(Map<String, Control> controlIndex, Map<String, Action> actionIndex, List<Control> controls) {
+		if (controls != null) {
+			for (Control control : controls) {
+				if (control.getId() != null && !controlIndex.containsKey(control.getId())) controlIndex.put(control.getId(), control);
+				indexEventActions(actionIndex, control.getEvents());
+				indexControls(controlIndex, actionIndex, control.getChildControls());
+			}
+		}
 	}
 
 	public Control getControl(int index) {
@@ -441,9 +571,12 @@ public class Page {
 		return foundControl;
 	}
 
-	// uses the tree walking function above to find a particular control
+	// finds a particular control from the index, building it first if need be
 	public Control getControl(String id) {
-		return getChildControl(_controls, id);
+		// check we have an id
+		if (id == null) return null;
+		// look it up in the index
+		return getIndex()._controls.get(id);
 	}
 
 	// append child controls of those in a list of controls
@@ -534,25 +667,12 @@ public class Page {
 		return foundAction;
 	}
 
-	// find an action in the page by its id
+	// find an action in the page by its id from the index, building it first if need be
 	public Action getAction(String actionId) {
-		// check the page actions first
-		if (actionId != null && _events != null) {
-			// loop the events
-			for (Event event : _events) {
-				// get any event actions
-				List<Action> actions = event.getActions();
-				// if we got some
-				if (actions != null) {
-					// use them to check recursively
-					Action action = getChildAction(actions, actionId);
-					// if we got one return it
-					if (action != null) return action;
-				}
-			}
-		}
-		// uses the tree walking function above to the find a particular action
-		return getChildControlsAction(_controls, actionId);
+		// check we have an id
+		if (actionId == null) return null;
+		// look it up in the index
+		return getIndex()._actions.get(actionId);
 	}
 
 	// recursively append to a list of actions from an action and it's children
@@ -1202,7 +1322,7 @@ public class Page {
 	    tempFile.delete();
 
 		// replace the old page with the new page
-		application.getPages().addPage(this, newFile, application.getIsForm());
+		application.getPages().addPage(rapidServlet.getServletContext(), this, newFile, application.getIsForm());
 
 		// create a file object for any old file
 	 	File oldFile = new File(oldPagePathAndName + ".page.xml");
@@ -1219,6 +1339,8 @@ public class Page {
 		_actionTypes = null;
 		// empty the cached control types
 		_controlTypes = null;
+		// rebuild the control and action index
+		buildIndex();
 
 		// empty the page variables so they are rebuilt the next time
 		application.emptyPageVariables();
@@ -1226,6 +1348,9 @@ public class Page {
 		// empty the resources JSON so it's rebuilt next time
 		application.emptyResourcesJSON();
 
+		// empty the sql parameter counts so they are checked again
+		application.emptySQLParameterCounts();
+
 		return fileSize;
 	}
 
@@ -2830,7 +2955,7 @@ public class Page {
 		(application != null ? "    <meta name=\"theme-color\" content=\"" + application.getStatusBarColour() + "\" />\n" : "" );
     }
 
-	// static function to load a new page
+	// static function to load a new page, the page file is unmarshalled as it's read for its version so it's only read again if it needs upgrading first
 	public static Page load(ServletContext servletContext, File file) throws JAXBException, ParserConfigurationException, SAXException, IOException, TransformerFactoryConfigurationError, TransformerException {
 
 		// get the logger
@@ -2839,6 +2964,112 @@ public class Page {
 		// trace log that we're about to load a page
 		logger.trace("Loading page from " + file);
 
+		// get an unmarshaller from the pool
+		Unmarshaller unmarshaller = RapidHttpServlet.borrowUnmarshaller();
+
+		try {
+
+			// the page
+			Page page = null;
+
+			// any exception unmarshalling it
+			JAXBException unmarshalException = null;
+
+			// get a buffered reader for our page with UTF-8 file format
+			BufferedReader br = new BufferedReader( new InputStreamReader( new FileInputStream(file), "UTF-8"));
+
+			// a stream reader that notes the version as the page is unmarshalled
+			XMLVersionReader versionReader = null;
+
+			try {
+
+				// make the stream reader
+				versionReader = new XMLVersionReader(XML.openStreamReader(br));
+
+				// unmarshall the page
+				page = (Page) unmarshaller.unmarshal(versionReader);
+
+			} catch (JAXBException ex) {
+
+				// keep it, it might be because the page needs upgrading
+				unmarshalException = ex;
+
+			} catch (XMLStreamException ex) {
+
+				// the file couldn't be read as xml
+				unmarshalException = new JAXBException(ex);
+
+			} finally {
+
+				// close the readers
+				if (versionReader != null) try { versionReader.close(); } catch (XMLStreamException ex) {}
+				br.close();
+
+			}
+
+			// get the version, -1 if the file hasn't got one or we didn't get that far
+			int xmlVersion = versionReader == null ? -1 : versionReader.getXMLVersion();
+
+			// if the version of this xml isn't the same as this class we have some work to do!
+			if (xmlVersion != XML_VERSION) {
+
+				// upgrade the file
+				upgrade(logger, file);
+
+				// get a buffered reader for the upgraded page
+				br = new BufferedReader( new InputStreamReader( new FileInputStream(file), "UTF-8"));
+
+				try {
+
+					// unmarshall the upgraded page
+					page = (Page) unmarshaller.unmarshal(br);
+
+				} catch (JAXBException ex) {
+
+					// log that the page had an error
+					logger.error("Error loading page from " + file);
+
+					// re-throw
+					throw ex;
+
+				} finally {
+
+					// close the buffered reader
+					br.close();
+
+				}
+
+			} else if (unmarshalException != null) {
+
+				// log that the page had an error
+				logger.error("Error loading page from " + file);
+
+				// re-throw
+				throw unmarshalException;
+
+			}
+
+			// index its controls and actions by id
+			page.buildIndex();
+
+			// log that the page was loaded
+			logger.debug("Loaded page " + page.getId() + " - " + page.getName() + " from " + file);
+
+			// return the page
+			return page;
+
+		} finally {
+
+			// give the unmarshaller back for the next load
+			RapidHttpServlet.returnUnmarshaller(unmarshaller);
+
+		}
+
+	}
+
+	// upgrades a page file from the version it was saved with to the current version
+	private static void upgrade(Logger logger, File file) throws ParserConfigurationException, SAXException, IOException, TransformerFactoryConfigurationError, TransformerException {
+
 		// open the xml file into a document
 		Document pageDocument = XML.openDocument(file);
 
@@ -2892,40 +3123,6 @@ public class Page {
 
 		}
 
-		// get the unmarshaller from the context
-		Unmarshaller unmarshaller = RapidHttpServlet.getUnmarshaller();
-
-		// get a buffered reader for our page with UTF-8 file format
-		BufferedReader br = new BufferedReader( new InputStreamReader( new FileInputStream(file), "UTF-8"));
-
-		// try the unmarshalling
-		try {
-
-			// unmarshall the page
-			Page page = (Page) unmarshaller.unmarshal(br);
-
-			// log that the page was loaded
-			logger.debug("Loaded page " + page.getId() + " - " + page.getName() + " from " + file);
-
-			// close the buffered reader
-			br.close();
-
-			// return the page
-			return page;
-
-		} catch (JAXBException ex) {
-
-			// close the buffered reader
-			br.close();
-
-			// log that the page had an error
-			logger.error("Error loading page from " + file);
-
-			// re-throw
-			throw ex;
-
-		}
-
 	}
 
 }
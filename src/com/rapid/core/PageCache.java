@@ -0,0 +1,220 @@
+/*
+
+Copyright (C) 2022 - Gareth Edwards / Rapid Information Systems
+
+gareth.edwards@rapid-is.co.uk
+
+
+This file is part of the Rapid Application Platform
+
+Rapid is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version. The terms require you
+to include the original copyright, and the license notice in all redistributions.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+in a file named "COPYING".  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package com.rapid.core;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.rapid.core.Pages.PageHeader;
+
+/*
+
+This class is made by the context listener and keeps the pages loaded into memory, across all of the applications, within
+a budget. Each loaded page is given an estimated size, which is the size of its file times a factor, and whenever a page is
+loaded the sizes are added up and, if they're over the budget, the pages that were least recently got are removed until
+they're comfortably under it. This uses the last get time the page headers already have so getting a page that's loaded
+doesn't need to do anything more, and only the thread that loaded a page ever does the adding up. The page monitor process
+still removes pages that haven't been got for a while.
+
+*/
+
+public class PageCache {
+
+	// a loaded page that could be evicted, and the pages it's in
+	private static class Candidate {
+
+		private Pages _pages;
+		private PageHeader _pageHeader;
+		private long _lastGet;
+
+		private Candidate(Pages pages, PageHeader pageHeader) {
+			_pages = pages;
+			_pageHeader = pageHeader;
+			// pages that were never got, like those added by the designer, go first
+			Date lastGetDateTime = pageHeader.getLastGetDateTime();
+			_lastGet = lastGetDateTime == null ? 0 : lastGetDateTime.getTime();
+		}
+
+	}
+
+	// defaults, which can be set with the pageCacheBudget (in MB), and pageCacheSizeFactor context parameters
+	public static final int BUDGET_PERCENT = 25;
+	public static final int SIZE_FACTOR = 3;
+
+	// private static finals
+
+	// once over budget we evict down to this percentage of it, so the next few loads don't evict again
+	private static final int LOW_WATER_PERCENT = 90;
+
+	// private static variables
+	private static Logger _logger = LogManager.getLogger(PageCache.class);
+
+	// private instance variables
+	private long _budget;
+	private int _sizeFactor;
+	private AtomicBoolean _evicting;
+
+	// constructor
+
+	public PageCache(long budget, int sizeFactor) {
+		_budget = budget;
+		_sizeFactor = sizeFactor;
+		_evicting = new AtomicBoolean();
+		_logger.info("Page cache budget is " + budget / 1024 / 1024 + " MB, with pages estimated at " + sizeFactor + " times their file size");
+	}
+
+	// properties
+
+	public long getBudget() { return _budget; }
+	public int getSizeFactor() { return _sizeFactor; }
+
+	// public methods
+
+	// the estimated memory a page from a file will take once loaded
+	public long estimateSize(File pageFile) {
+		return pageFile.length() * _sizeFactor;
+	}
+
+	// the estimated memory of all of the loaded pages
+	public long getSize(Applications applications) {
+		long size = 0;
+		for (Application application : applications.get()) {
+			Pages pages = application.getPages();
+			if (pages != null) size += pages.getLoadedSize();
+		}
+		return size;
+	}
+
+	// removes the least recently got pages if the loaded pages are over the budget, called after a page is loaded
+	public void checkBudget(Applications applications) {
+
+		// if another thread is already doing this, it'll get us under budget
+		if (!_evicting.compareAndSet(false, true)) return;
+
+		try {
+
+			// the loaded pages and their total size
+			List<Candidate> candidates = new ArrayList<>();
+			long size = 0;
+
+			// loop the applications
+			for (Application application : applications.get()) {
+				// get the pages
+				Pages pages = application.getPages();
+				// if there are some
+				if (pages != null) {
+					// loop the loaded ones
+					for (PageHeader pageHeader : pages.getLoadedPageHeaders()) {
+						candidates.add(new Candidate(pages, pageHeader));
+						size += pageHeader.getSize();
+					}
+				}
+			}
+
+			// if we're within budget we're done
+			if (size <= _budget) return;
+
+			// the size we'll evict down to
+			long lowWater = _budget / 100 * LOW_WATER_PERCENT;
+
+			// sort them, least recently got first
+			Collections.sort(candidates, new Comparator<Candidate>() {
+				@Override
+				public int compare(Candidate c1, Candidate c2) {
+					return Long.compare(c1._lastGet, c2._lastGet);
+				}
+			});
+
+			// how many we've removed
+			int evicted = 0;
+			long sizeBefore = size;
+
+			// remove them until we're under
+			for (Candidate candidate : candidates) {
+				if (size <= lowWater) break;
+				if (candidate._pages.evictPage(candidate._pageHeader)) {
+					size -= candidate._pageHeader.getSize();
+					evicted ++;
+				}
+			}
+
+			_logger.info("Page cache was " + sizeBefore / 1024 + " KB, over its budget of " + _budget / 1024 + " KB, " + evicted + " least recently used pages removed leaving " + size / 1024 + " KB");
+
+		} finally {
+
+			_evicting.set(false);
+
+		}
+
+	}
+
+	// the budget, size, and each application's loaded pages, size, and evictions, for the admin app
+	public JSONObject toJSON(Applications applications) throws JSONException {
+
+		JSONObject jsonCache = new JSONObject();
+		JSONArray jsonApplications = new JSONArray();
+		long size = 0;
+
+		// loop the applications
+		for (Application application : applications.get()) {
+			// get the pages
+			Pages pages = application.getPages();
+			// if there are some
+			if (pages != null) {
+				long appSize = pages.getLoadedSize();
+				JSONObject jsonApplication = new JSONObject();
+				jsonApplication.put("id", application.getId());
+				jsonApplication.put("version", application.getVersion());
+				jsonApplication.put("pages", pages.size());
+				jsonApplication.put("loaded", pages.getLoadedCount());
+				jsonApplication.put("size", appSize);
+				jsonApplication.put("evictions", pages.getEvictions());
+				jsonApplications.put(jsonApplication);
+				size += appSize;
+			}
+		}
+
+		jsonCache.put("budget", _budget);
+		jsonCache.put("size", size);
+		jsonCache.put("sizeFactor", _sizeFactor);
+		jsonCache.put("applications", jsonApplications);
+
+		return jsonCache;
+
+	}
+
+}
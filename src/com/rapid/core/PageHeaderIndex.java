@@ -0,0 +1,402 @@
+/*
+
+Copyright (C) 2022 - Gareth Edwards / Rapid Information Systems
+
+gareth.edwards@rapid-is.co.uk
+
+
+This file is part of the Rapid Application Platform
+
+Rapid is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version. The terms require you
+to include the original copyright, and the license notice in all redistributions.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+in a file named "COPYING".  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package com.rapid.core;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.servlet.ServletContext;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.rapid.utils.Strings;
+import com.rapid.utils.XML;
+
+/*
+
+This class is made by the context listener and holds the id, name, and title of every page file, against its path, size,
+and last modified time, so that loading the page headers of an application doesn't need to open any page file that hasn't
+changed since it was last read. Files that have changed, or that are new, are read with a streaming parser that stops once
+it has the header elements, rather than building a document for the whole page. The index is saved to WEB-INF/temp when
+the applications have loaded and when Rapid shuts down, and all of the pages folders can be read at the same time before
+the applications are loaded.
+
+*/
+
+public class PageHeaderIndex {
+
+	// the header of one page file, and the size and modified time it was read at
+	public static class Entry {
+
+		private String _id, _name, _title;
+		private long _size, _modified;
+
+		public Entry(String id, String name, String title, long size, long modified) {
+			_id = id;
+			_name = name;
+			_title = title;
+			_size = size;
+			_modified = modified;
+		}
+
+		public String getId() { return _id; }
+		public String getName() { return _name; }
+		public String getTitle() { return _title; }
+		public long getSize() { return _size; }
+		public long getModified() { return _modified; }
+
+		// whether the file is still the one this entry was read from
+		public boolean isCurrent(long size, long modified) {
+			return _size == size && _modified == modified;
+		}
+
+	}
+
+	// the file the index is saved in, in WEB-INF
+	public static final String FILE = "temp/pageheaders.json";
+
+	// private static finals
+	private static final int VERSION = 1;
+
+	// private static variables
+	private static Logger _logger = LogManager.getLogger(PageHeaderIndex.class);
+
+	// private instance variables
+	private File _file;
+	private Map<String, Entry> _entries;
+	private volatile boolean _changed;
+
+	// constructor
+
+	public PageHeaderIndex(ServletContext servletContext) {
+		// the file we're saved in
+		_file = new File(servletContext.getRealPath("/") + "/WEB-INF/" + FILE);
+		// the entries, by absolute file path
+		_entries = new ConcurrentHashMap<>();
+		// read any we saved last time
+		load();
+	}
+
+	// properties
+
+	public int size() { return _entries.size(); }
+
+	// public methods
+
+	// the header of a page file, from the index if the file hasn't changed since it was read, otherwise read from the file and added
+	public Entry getEntry(File pageFile) throws IOException, XMLStreamException {
+		// get the key, size, and modified time of the file
+		String path = pageFile.getAbsolutePath();
+		long size = pageFile.length();
+		long modified = pageFile.lastModified();
+		// look for it
+		Entry entry = _entries.get(path);
+		// if we don't have it, or the file has changed
+		if (entry == null || !entry.isCurrent(size, modified)) {
+			// read the header from the file
+			String[] header = readHeader(pageFile);
+			// make the entry
+			entry = new Entry(header[0], header[1], header[2], size, modified);
+			// remember it
+			_entries.put(path, entry);
+			// we'll need saving
+			_changed = true;
+		}
+		return entry;
+	}
+
+	// reads the page files in some pages folders into the index, spread over a number of threads
+	public void scan(List<File> pagesFolders, int threads) {
+
+		// the time we started
+		long startTime = System.currentTimeMillis();
+
+		// the number of entries before
+		int entries = _entries.size();
+
+		// don't make more threads than folders
+		threads = Math.max(1, Math.min(threads, pagesFolders.size()));
+
+		// make the threads
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+		try {
+
+			// the folders being read
+			List<Future<?>> futures = new ArrayList<>();
+
+			// add a task for each folder
+			for (final File pagesFolder : pagesFolders) {
+				futures.add(executor.submit(new Runnable() {
+					@Override
+					public void run() {
+						scanFolder(pagesFolder);
+					}
+				}));
+			}
+
+			// wait for them all
+			for (Future<?> future : futures) {
+				try {
+					future.get();
+				} catch (Exception ex) {
+					_logger.error("Error scanning page headers", ex);
+				}
+			}
+
+		} finally {
+			executor.shutdown();
+		}
+
+		_logger.info("Page headers scanned in " + pagesFolders.size() + " folders with " + threads + " threads in " + (System.currentTimeMillis() - startTime) + " ms, " + entries + " were indexed, " + _entries.size() + " are now");
+
+	}
+
+	// saves the index, if it's changed, leaving out any files that have been deleted
+	public synchronized void save() {
+
+		// remove the entries for files that aren't there any more
+		for (String path : _entries.keySet()) {
+			if (!new File(path).exists()) {
+				_entries.remove(path);
+				_changed = true;
+			}
+		}
+
+		// only save if there's something new
+		if (_changed) {
+
+			try {
+
+				// make the json
+				JSONObject jsonEntries = new JSONObject();
+				for (Map.Entry<String, Entry> mapEntry : _entries.entrySet()) {
+					Entry entry = mapEntry.getValue();
+					JSONObject jsonEntry = new JSONObject();
+					jsonEntry.put("id", entry.getId());
+					jsonEntry.put("name", entry.getName());
+					jsonEntry.put("title", entry.getTitle());
+					jsonEntry.put("size", entry.getSize());
+					jsonEntry.put("modified", entry.getModified());
+					jsonEntries.put(mapEntry.getKey(), jsonEntry);
+				}
+				JSONObject jsonIndex = new JSONObject();
+				jsonIndex.put("version", VERSION);
+				jsonIndex.put("pages", jsonEntries);
+
+				// make sure the folder is there
+				if (!_file.getParentFile().exists()) _file.getParentFile().mkdirs();
+
+				// write to a new file first so the last one is kept if this fails
+				File newFile = new File(_file.getPath() + ".new");
+				Writer writer = new OutputStreamWriter(new FileOutputStream(newFile), StandardCharsets.UTF_8);
+				try {
+					writer.write(jsonIndex.toString());
+				} finally {
+					writer.close();
+				}
+
+				// replace the last one
+				if (_file.exists()) _file.delete();
+				if (!newFile.renameTo(_file)) throw new IOException("Could not rename " + newFile + " to " + _file);
+
+				// we're saved
+				_changed = false;
+
+				_logger.debug("Page header index saved with " + _entries.size() + " pages");
+
+			} catch (Exception ex) {
+
+				// the index is only to save time so just log
+				_logger.error("Error saving page header index to " + _file, ex);
+
+			}
+
+		}
+
+	}
+
+	// public static methods
+
+	// reads the id, name, and title from a page file, stopping as soon as it has them, any that aren't there are empty strings
+	public static String[] readHeader(File pageFile) throws IOException, XMLStreamException {
+
+		// the id, name, and title
+		String[] header = {"", "", ""};
+		// how many we've found
+		int found = 0;
+
+		InputStream inputStream = new BufferedInputStream(new FileInputStream(pageFile));
+
+		try {
+
+			XMLStreamReader reader = XML.openStreamReader(inputStream);
+
+			try {
+
+				// how deep we are, the page element is 1 and its children are 2
+				int depth = 0;
+
+				// until we have them all or the file ends
+				while (found < header.length && reader.hasNext()) {
+
+					// get the next event
+					int event = reader.next();
+
+					if (event == XMLStreamConstants.START_ELEMENT) {
+
+						depth ++;
+
+						// the header elements are children of the page
+						if (depth == 2) {
+
+							// check the name
+							String localName = reader.getLocalName();
+							int index = "id".equals(localName) ? 0 : "name".equals(localName) ? 1 : "title".equals(localName) ? 2 : -1;
+
+							// if it's one we want
+							if (index >= 0) {
+								// this moves us to the end element so we're back up a level
+								header[index] = reader.getElementText();
+								depth --;
+								found ++;
+							}
+
+						}
+
+					} else if (event == XMLStreamConstants.END_ELEMENT) {
+
+						depth --;
+
+					}
+
+				}
+
+			} finally {
+				reader.close();
+			}
+
+		} finally {
+			inputStream.close();
+		}
+
+		return header;
+
+	}
+
+	// private methods
+
+	// reads the page files in a folder into the index
+	private void scanFolder(File pagesFolder) {
+		// get the page files
+		File[] pageFiles = pagesFolder.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.toLowerCase().endsWith(".page.xml");
+			}
+		});
+		// if we got some
+		if (pageFiles != null) {
+			// loop them
+			for (File pageFile : pageFiles) {
+				try {
+					// this reads the file if it's not indexed or has changed
+					getEntry(pageFile);
+				} catch (Exception ex) {
+					// the page headers will report this when the application loads
+					_logger.debug("Error reading page header from " + pageFile + " : " + ex.getMessage());
+				}
+			}
+		}
+	}
+
+	// reads the index we saved last time, if there is one
+	private void load() {
+
+		// if there's a file
+		if (_file.exists()) {
+
+			try {
+
+				// read it
+				JSONObject jsonIndex = new JSONObject(Strings.getString(_file));
+
+				// only if it's the version we write
+				if (jsonIndex.optInt("version") == VERSION) {
+
+					// get the entries
+					JSONObject jsonEntries = jsonIndex.getJSONObject("pages");
+
+					// get their paths, which is null if there are none
+					String[] paths = JSONObject.getNames(jsonEntries);
+
+					// loop them
+					if (paths != null) {
+						for (String path : paths) {
+							JSONObject jsonEntry = jsonEntries.getJSONObject(path);
+							_entries.put(path, new Entry(jsonEntry.getString("id"), jsonEntry.getString("name"), jsonEntry.getString("title"), jsonEntry.getLong("size"), jsonEntry.getLong("modified")));
+						}
+					}
+
+				}
+
+				_logger.info("Page header index loaded with " + _entries.size() + " pages");
+
+			} catch (IOException | JSONException ex) {
+
+				// we'll just read the pages again
+				_logger.error("Error loading page header index from " + _file + ", it will be rebuilt", ex);
+
+				_entries.clear();
+
+			}
+
+		}
+
+	}
+
+}
@@ -32,29 +32,30 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.servlet.ServletContext;
 import javax.xml.bind.JAXBException;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactoryConfigurationError;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathExpression;
 import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.w3c.dom.Document;
 import org.xml.sax.SAXException;
 
 import com.rapid.core.Application.RapidLoadingException;
+import com.rapid.server.RequestMetrics;
 import com.rapid.utils.Comparators;
 
 public class Pages {
@@ -66,7 +67,8 @@ public class Pages {
 		// instance variables
 		private String _id, _name, _title;
 		private File _file;
-		private Date _lastGetDateTime;
+		private volatile Date _lastGetDateTime;
+		private volatile long _size;
 
 		// properties
 		public String getId() { return _id; }
@@ -77,6 +79,10 @@ public class Pages {
 		public Date getLastGetDateTime() { return _lastGetDateTime; }
 		public void setLastGetDateTime(Date lastGetDateTime) { _lastGetDateTime = lastGetDateTime; }
 
+		// the estimated memory the page takes when it's loaded
+		public long getSize() { return _size; }
+		public void setSize(long size) { _size = size; }
+
 		// constructors
 		public PageHeader(String id, String name, String title, File file) {
 			_id = id;
@@ -154,10 +160,12 @@ public class Pages {
 	private Logger _logger;
 	private Application _application;
 	private FilenameFilter _filenameFilter;
-	private HashMap<String,PageHeader> _pageHeaders;
-	private HashMap<String,Page> _pages;
+	private volatile Map<String,PageHeader> _pageHeaders;
+	private Map<String,Page> _pages;
+	private Map<String,FutureTask<Page>> _loadingPages;
+	private AtomicLong _evictions;
 	private PageSorter _pageSorter;
-	private PageHeaders _sortedPageHeaders;
+	private volatile PageHeaders _sortedPageHeaders;
 
 	// constructor
 
@@ -167,9 +175,13 @@ public class Pages {
 		// store the application
 		_application = application;
 		// initialise the page headers collection
-		_pageHeaders = new HashMap<>();
+		_pageHeaders = new ConcurrentHashMap<>();
 		// initialise the pages collection
-		_pages = new HashMap<>();
+		_pages = new ConcurrentHashMap<>();
+		// initialise the collection of pages being loaded, so requests for a page that's loading wait for it rather than load it again
+		_loadingPages = new ConcurrentHashMap<>();
+		// initialise the number of pages removed to keep within the page cache budget
+		_evictions = new AtomicLong();
 		// create a filter for finding .page.xml files
 		_filenameFilter = new FilenameFilter() {
 	    	@Override
@@ -183,19 +195,38 @@ public class Pages {
 
 	// private methods
 
-	private Page loadPage(ServletContext servletContext, File pageFile) throws JAXBException, ParserConfigurationException, SAXException, IOException, TransformerFactoryConfigurationError, TransformerException {
+	private Page loadPage(ServletContext servletContext, PageHeader pageHeader) throws JAXBException, ParserConfigurationException, SAXException, IOException, TransformerFactoryConfigurationError, TransformerException {
 
 		// load the page from file
-		Page page = Page.load(servletContext, pageFile);
+		Page page = Page.load(servletContext, pageHeader.getFile());
+
+		// get the page cache
+		PageCache pageCache = (PageCache) servletContext.getAttribute("pageCache");
+
+		// estimate its size, from its file if we've a page cache to do it for us
+		pageHeader.setSize(pageCache == null ? pageHeader.getFile().length() * PageCache.SIZE_FACTOR : pageCache.estimateSize(pageHeader.getFile()));
+
+		// it's just been got, so it's not the first to go if the page cache is over budget
+		pageHeader.setLastGetDateTime(new Date());
 
-		// add it to the collection
-		_pages.put(page.getId(), page);
+		// add it to the collection, unless the page was removed or the pages reloaded whilst we were loading it
+		if (_pageHeaders.get(pageHeader.getId()) == pageHeader) _pages.put(page.getId(), page);
 
 		// we're done
 		return page;
 
 	}
 
+	// whether a page load task that's been run threw an exception
+	private boolean isFailed(FutureTask<Page> loadTask) {
+		try {
+			loadTask.get();
+			return false;
+		} catch (Exception ex) {
+			return true;
+		}
+	}
+
 	private String getPageName(File pageFile) {
 
 		// assume the page name is the whole path
@@ -212,11 +243,17 @@ public class Pages {
 	// public methods
 
 	// add them singly
-	public void addPage(Page page, File pageFile, boolean isForm) {
+	public void addPage(ServletContext servletContext, Page page, File pageFile, boolean isForm) {
 		// get the page id
 		String pageId = page.getId();
+		// make the page header
+		PageHeader pageHeader = new PageHeader(page, pageFile);
+		// get the page cache
+		PageCache pageCache = (PageCache) servletContext.getAttribute("pageCache");
+		// estimate its size, from its file if we've a page cache to do it for us, the same as when it's loaded
+		pageHeader.setSize(pageCache == null ? pageFile.length() * PageCache.SIZE_FACTOR : pageCache.estimateSize(pageFile));
 		// add to page headers
-		_pageHeaders.put(pageId, new PageHeader(page, pageFile));
+		_pageHeaders.put(pageId, pageHeader);
 		// add to pages collection
 		_pages.put(pageId, page);
 		// force the pages list to be resorted on next fetch
@@ -253,6 +290,50 @@ public class Pages {
 		return _pageHeaders.size();
 	}
 
+	// the number of pages loaded into memory
+	public int getLoadedCount() {
+		return _pages.size();
+	}
+
+	// the headers of the pages loaded into memory
+	public List<PageHeader> getLoadedPageHeaders() {
+		// the headers
+		List<PageHeader> loadedPageHeaders = new ArrayList<>();
+		// get the current headers
+		Map<String,PageHeader> pageHeaders = _pageHeaders;
+		// loop the loaded pages
+		for (String pageId : _pages.keySet()) {
+			// get the header
+			PageHeader pageHeader = pageHeaders.get(pageId);
+			// add it if we got one
+			if (pageHeader != null) loadedPageHeaders.add(pageHeader);
+		}
+		return loadedPageHeaders;
+	}
+
+	// the estimated memory of the pages loaded into memory
+	public long getLoadedSize() {
+		long size = 0;
+		for (PageHeader pageHeader : getLoadedPageHeaders()) size += pageHeader.getSize();
+		return size;
+	}
+
+	// the number of pages removed to keep within the page cache budget
+	public long getEvictions() {
+		return _evictions.get();
+	}
+
+	// removes a loaded page to keep within the page cache budget, any request using it carries on and the next loads it again
+	public boolean evictPage(PageHeader pageHeader) {
+		// remove it
+		if (_pages.remove(pageHeader.getId()) == null) return false;
+		// count it
+		_evictions.incrementAndGet();
+		// log that we did so
+		_logger.debug("Page " + pageHeader.getName() + " removed to keep within the page cache budget, last got " + pageHeader.getLastGetDateTime());
+		return true;
+	}
+
 	// a list of page id's sorted by rank, the idea is that pages that are used more often will move higher up the rank and lower ranked pages will not be required in memory
 	public Set<String> getPageIds() {
 		return _pageHeaders.keySet();
@@ -260,17 +341,22 @@ public class Pages {
 
 	// return a page direct from the map
 	public Page getPage(String pageId) {
+		// our maps can't have null keys
+		if (pageId == null) return null;
 		return _pages.get(pageId);
 	}
 
-	// return a specific page (or the start page if pageId is null) loading as necessary
-	public Page getPage(ServletContext servletContext, String pageId) throws RapidLoadingException {
+	// return a specific page (or the start page if pageId is null) loading as necessary, only one thread loads a page and any others wanting it at the same time wait for it
+	public Page getPage(final ServletContext servletContext, String pageId) throws RapidLoadingException {
 
 		// placeholder for the page
 		Page page = null;
 
+		// our maps can't have null keys
+		if (pageId == null) return null;
+
 		// look for the page header
-		PageHeader pageHeader = _pageHeaders.get(pageId);
+		final PageHeader pageHeader = _pageHeaders.get(pageId);
 
 		// if there is a page header
 		if (pageHeader != null) {
@@ -284,16 +370,83 @@ public class Pages {
 				// read the string into a file object
 				File pageFile = pageHeader.getFile();
 
-				// load the page from file
+				// whether our task loaded the page, rather than finding it already loaded
+				final AtomicBoolean loaded = new AtomicBoolean();
+
+				// make a task to load it - if it was loaded between us looking and adding the task it gives that page instead, so anyone waiting on the task always gets one
+				FutureTask<Page> loadTask = new FutureTask<>(new Callable<Page>() {
+					@Override
+					public Page call() throws Exception {
+						// check it wasn't loaded after we looked
+						Page loadedPage = _pages.get(pageHeader.getId());
+						if (loadedPage != null) return loadedPage;
+						// load it
+						loaded.set(true);
+						return loadPage(servletContext, pageHeader);
+					}
+				});
+
+				// add it, unless another thread is already loading this page
+				FutureTask<Page> loadingTask = _loadingPages.putIfAbsent(pageId, loadTask);
+
+				// if it was us that added it
+				if (loadingTask == null) {
+
+					// we'll wait on our own task
+					loadingTask = loadTask;
+
+					// note the time we started loading
+					long startTime = System.currentTimeMillis();
+
+					try {
+
+						// always run the task we added, which sets the result for anyone waiting on it
+						loadTask.run();
+
+					} finally {
+
+						// we're no longer loading it, so the next request after a failure tries again
+						_loadingPages.remove(pageId, loadTask);
+
+						// if we loaded it
+						if (loaded.get()) {
+							// get the request metrics
+							RequestMetrics requestMetrics = (RequestMetrics) servletContext.getAttribute("requestMetrics");
+							// if we got them record how long the load took, and whether it failed
+							if (requestMetrics != null) requestMetrics.recordPageLoad(_application.getId(), System.currentTimeMillis() - startTime, isFailed(loadTask));
+							// get the page cache
+							PageCache pageCache = (PageCache) servletContext.getAttribute("pageCache");
+							// get the applications
+							Applications applications = (Applications) servletContext.getAttribute("applications");
+							// if we have both, remove the least recently used pages if we're now over budget
+							if (pageCache != null && applications != null) pageCache.checkBudget(applications);
+						}
+
+					}
+
+				}
+
+				// get the page from the task, waiting for it if it's another thread's
 				try {
 
-					// load the page
-					page = loadPage(servletContext, pageFile);
+					// get the loaded page
+					page = loadingTask.get();
+
+				} catch (ExecutionException ex) {
 
-				} catch (Exception ex) {
+					// get what the load threw
+					Throwable cause = ex.getCause();
 
 					// throw the exception with the page name
-		    		throw new Application.RapidLoadingException("Error loading page " + getPageName(pageFile), ex);
+					throw new Application.RapidLoadingException("Error loading page " + getPageName(pageFile), cause instanceof Exception ? (Exception) cause : ex);
+
+				} catch (InterruptedException ex) {
+
+					// keep the interrupt for whoever's interested
+					Thread.currentThread().interrupt();
+
+					// throw the exception with the page name
+					throw new Application.RapidLoadingException("Interrupted waiting for page " + getPageName(pageFile) + " to load", ex);
 
 				}
 
@@ -311,11 +464,11 @@ public class Pages {
 
 	// get a single page by it's name (used by backups as the name is in the file)
 	public Page getPageByName(ServletContext servletContext, String name) throws RapidLoadingException {
-		// loop the page headers keyset
-		for (String pageId : _pageHeaders.keySet()) {
+		// loop the page headers
+		for (PageHeader pageHeader : _pageHeaders.values()) {
 			// return immediately  with the matching page
-			if (_pageHeaders.get(pageId).getName().equals(name)) {
-				return getPage(servletContext, pageId);
+			if (pageHeader.getName().equals(name)) {
+				return getPage(servletContext, pageHeader.getId());
 			}
 		}
 		// return if we got here
@@ -347,8 +500,8 @@ public class Pages {
 			// prepare the list we are going to send back
 			sortedPageHeaders = new PageHeaders();
 			// add each page to the list
-			for (String pageId : _pageHeaders.keySet()) {
-				sortedPageHeaders.add(_pageHeaders.get(pageId));
+			for (PageHeader pageHeader : _pageHeaders.values()) {
+				sortedPageHeaders.add(pageHeader);
 			}
 			// sort the list using our sorter
 			Collections.sort(sortedPageHeaders, _pageSorter);
@@ -362,17 +515,11 @@ public class Pages {
 		return sortedPageHeaders;
 	}
 
-	// clears the pages and reloads the page headers
-	public void loadpages(ServletContext servletContext) throws XPathExpressionException, ParserConfigurationException, SAXException, IOException {
+	// clears the pages and reloads the page headers, from the page header index for any files that haven't changed
+	public void loadpages(ServletContext servletContext) throws IOException {
 
-		// clear the pages
-		_pages.clear();
-
-		// force the pages to be resorted
-		_sortedPageHeaders = null;
-
-		// create a new map for caching page files by id's
-	    _pageHeaders = new HashMap<>();
+		// create a new map for caching page files by id's, which replaces the current one once it's filled so readers never see it part way through
+	    Map<String,PageHeader> pageHeaders = new ConcurrentHashMap<>();
 
 	    // initiate pages folder
 		File pagesFolder = new File(_application.getConfigFolder(servletContext) + "/pages");
@@ -380,35 +527,40 @@ public class Pages {
 		// if the folder is there
 		if (pagesFolder.exists()) {
 
-			// these are not thread safe so can't be reused
-			DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-			DocumentBuilder docBuilder = factory.newDocumentBuilder();
-
-			// create objects for xml parsing
-		    XPathFactory xPathfactory = XPathFactory.newInstance();
-		    XPath xpath = xPathfactory.newXPath();
-		    // compile the xpath expressions
-		    XPathExpression xpathId = xpath.compile("/page/id");
-		    XPathExpression xpathName = xpath.compile("/page/name");
-		    XPathExpression xpathTitle = xpath.compile("/page/title");
+			// get the page header index, if the context listener made one
+			PageHeaderIndex pageHeaderIndex = (PageHeaderIndex) servletContext.getAttribute("pageHeaderIndex");
 
 		    // loop the .page.xml files and add to the application
 		    for (File pageFile : pagesFolder.listFiles(_filenameFilter)) {
 
-	    		// parse the xml file
-				Document doc = docBuilder.parse(pageFile);
-
-    		    // get the page id from the file
-    		    String pageId = xpathId.evaluate(doc);
-    		    // get the name
-    		    String pageName = xpathName.evaluate(doc);
-    		    // get the title
-    		    String pageTitle = xpathTitle.evaluate(doc);
+		    	// the page id, name, and title
+		    	String pageId, pageName, pageTitle;
+
+		    	try {
+
+		    		// if we have no index
+		    		if (pageHeaderIndex == null) {
+		    			// read the header from the file
+		    			String[] header = PageHeaderIndex.readHeader(pageFile);
+		    			pageId = header[0];
+		    			pageName = header[1];
+		    			pageTitle = header[2];
+		    		} else {
+		    			// get the header from the index, which reads the file only if it's new or changed
+		    			PageHeaderIndex.Entry entry = pageHeaderIndex.getEntry(pageFile);
+		    			pageId = entry.getId();
+		    			pageName = entry.getName();
+		    			pageTitle = entry.getTitle();
+		    		}
+
+		    	} catch (XMLStreamException ex) {
+		    		throw new IOException("Error reading page header from " + pageFile + " : " + ex.getMessage(), ex);
+		    	}
 
     		    // on 19/11/2021 added page id into page file name so if pages had the same name, deleting one wouldn't delete both files. However this can result in Rapid updates where the old-style page from a previous version is not removed
 
     		    // if this is the Rapid app and this page is already in the app
-    		    if ("rapid".equals(_application.getId()) && _pageHeaders.containsKey(pageId)) {
+    		    if ("rapid".equals(_application.getId()) && pageHeaders.containsKey(pageId)) {
     		    	// get the path of this page file
     		    	String pageFilePath = pageFile.getAbsolutePath();
     		    	// if the file name contains the id
@@ -425,16 +577,25 @@ public class Pages {
     		    	}
     		    }
 
-    		    // cache the page id against the file so we don't need to use the expensive parsing operation again
-    		    _pageHeaders.put(pageId, new PageHeader(pageId, pageName, pageTitle, pageFile));
+    		    // cache the page id against the file so we don't need to read it again
+    		    pageHeaders.put(pageId, new PageHeader(pageId, pageName, pageTitle, pageFile));
 
 		    }
 
 		}
 
+		// swap in the new headers, any page still loading from the old ones won't be added
+		_pageHeaders = pageHeaders;
+
+		// clear the pages
+		_pages.clear();
+
+		// force the pages to be resorted
+		_sortedPageHeaders = null;
+
 	}
 
-	// removes old pages from the collection
+	// removes old pages from the collection, this is called by the page monitor process whilst requests are getting pages so those already got are used until they're done and the next request loads them again
 	public void clearOldPages(Date now, int maxPageAge) {
 		// list of pages to clear
 		List<PageHeader> clearPages = null;
@@ -460,10 +621,14 @@ public class Pages {
 		if (clearPages != null) {
 			// loop the ids
 			for (PageHeader pageHeader : clearPages) {
+				// get the last get time again, in case a request got the page since we checked
+				Date lastGetDateTime = pageHeader.getLastGetDateTime();
+				// skip it if it's been got since
+				if (now.getTime() - lastGetDateTime.getTime() <= maxPageAge * 1000) continue;
 				// remove from the collection
 				_pages.remove(pageHeader.getId());
 				// log that we did so
-				_logger.debug("Page " + pageHeader.getName() + " removed as not accessed since " + pageHeader.getLastGetDateTime());
+				_logger.debug("Page " + pageHeader.getName() + " removed as not accessed since " + lastGetDateTime);
 			}
 		}
 	}
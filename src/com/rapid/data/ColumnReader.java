@@ -0,0 +1,244 @@
+/*
+
+Copyright (C) 2022 - Gareth Edwards / Rapid Information Systems
+
+gareth.edwards@rapid-is.co.uk
+
+
+This file is part of the Rapid Application Platform
+
+Rapid is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version. The terms require you
+to include the original copyright, and the license notice in all redistributions.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+in a file named "COPYING".  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package com.rapid.data;
+
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.text.SimpleDateFormat;
+
+// reads one column from the current row of a result set - the readers are chosen once per result set, from its meta data, so each cell is read just once with the getter for its type
+public abstract class ColumnReader {
+
+	// the column, 1 based as in jdbc
+	protected int _column;
+
+	// constructor
+	public ColumnReader(int column) {
+		_column = column;
+	}
+
+	// properties
+
+	public int getColumn() { return _column; }
+
+	// whether the value is the column's own text, rather than a number or a formatted date
+	public boolean isText() { return false; }
+
+	// abstract methods
+
+	// the value of the column in the current row, or null if it's null
+	public abstract Object read(ResultSet rs) throws SQLException;
+
+	// readers
+
+	public static class TextReader extends ColumnReader {
+
+		public TextReader(int column) { super(column); }
+
+		@Override
+		public boolean isText() { return true; }
+
+		@Override
+		public Object read(ResultSet rs) throws SQLException {
+			return rs.getString(_column);
+		}
+
+	}
+
+	public static class IntegerReader extends ColumnReader {
+
+		public IntegerReader(int column) { super(column); }
+
+		@Override
+		public Object read(ResultSet rs) throws SQLException {
+			int value = rs.getInt(_column);
+			if (rs.wasNull()) return null;
+			return value;
+		}
+
+	}
+
+	public static class LongReader extends ColumnReader {
+
+		public LongReader(int column) { super(column); }
+
+		@Override
+		public Object read(ResultSet rs) throws SQLException {
+			long value = rs.getLong(_column);
+			if (rs.wasNull()) return null;
+			return value;
+		}
+
+	}
+
+	// floats are returned as doubles as json has no floats - floatValue() gets the original back
+	public static class FloatReader extends ColumnReader {
+
+		public FloatReader(int column) { super(column); }
+
+		@Override
+		public Object read(ResultSet rs) throws SQLException {
+			float value = rs.getFloat(_column);
+			if (rs.wasNull()) return null;
+			return (double) value;
+		}
+
+	}
+
+	public static class DoubleReader extends ColumnReader {
+
+		public DoubleReader(int column) { super(column); }
+
+		@Override
+		public Object read(ResultSet rs) throws SQLException {
+			double value = rs.getDouble(_column);
+			if (rs.wasNull()) return null;
+			return value;
+		}
+
+	}
+
+	// dates are returned formatted with the formatter
+	public static class DateReader extends ColumnReader {
+
+		private SimpleDateFormat _dateFormatter;
+
+		public DateReader(int column, SimpleDateFormat dateFormatter) {
+			super(column);
+			_dateFormatter = dateFormatter;
+		}
+
+		@Override
+		public Object read(ResultSet rs) throws SQLException {
+			Date date = rs.getDate(_column);
+			if (date == null) return null;
+			return _dateFormatter.format(date);
+		}
+
+	}
+
+	// timestamps are returned formatted with the date time formatter, or the date formatter if we have one and there is no time
+	public static class TimestampReader extends ColumnReader {
+
+		private SimpleDateFormat _dateFormatter, _dateTimeFormatter;
+
+		public TimestampReader(int column, SimpleDateFormat dateFormatter, SimpleDateFormat dateTimeFormatter) {
+			super(column);
+			_dateFormatter = dateFormatter;
+			_dateTimeFormatter = dateTimeFormatter;
+		}
+
+		@Override
+		public Object read(ResultSet rs) throws SQLException {
+			Timestamp timeStamp = rs.getTimestamp(_column);
+			if (timeStamp == null) return null;
+			// check for 0 millseconds past midnight - a truncated date time (time zone offset is in minutes, multiplied by the number of millis in a minute modulus with number of millis in a day)
+			if (_dateFormatter != null && (timeStamp.getTime() - timeStamp.getTimezoneOffset() * 60000) % 86400000L == 0) {
+				// if so show just date
+				return _dateFormatter.format(timeStamp);
+			} else {
+				// show date and time
+				return _dateTimeFormatter.format(timeStamp);
+			}
+		}
+
+	}
+
+	// for drivers like SQLite where each value has its own type, so the column type can change from row to row, this looks it up for every row and reads with the reader for that type
+	public static class RowTypeReader extends ColumnReader {
+
+		private ResultSetMetaData _rsmd;
+		private SimpleDateFormat _dateFormatter, _dateTimeFormatter;
+		private int _lastType;
+		private ColumnReader _lastReader;
+
+		public RowTypeReader(int column, ResultSetMetaData rsmd, SimpleDateFormat dateFormatter, SimpleDateFormat dateTimeFormatter) {
+			super(column);
+			_rsmd = rsmd;
+			_dateFormatter = dateFormatter;
+			_dateTimeFormatter = dateTimeFormatter;
+		}
+
+		// whether the value just read was text
+		@Override
+		public boolean isText() { return _lastReader == null || _lastReader.isText(); }
+
+		@Override
+		public Object read(ResultSet rs) throws SQLException {
+			// get the type of this row's value
+			int columnType = _rsmd.getColumnType(_column);
+			// get the reader for it, if it's not the same as the last row's
+			if (_lastReader == null || columnType != _lastType) {
+				_lastReader = getReader(_column, columnType, _dateFormatter, _dateTimeFormatter);
+				_lastType = columnType;
+			}
+			return _lastReader.read(rs);
+		}
+
+	}
+
+	// static methods
+
+	// the reader for a column of a jdbc type, with values as the database action sends them to the client
+	public static ColumnReader getReader(int column, int columnType, SimpleDateFormat localDateFormatter, SimpleDateFormat localDateTimeFormatter) {
+		switch (columnType) {
+		case (Types.INTEGER) :
+			return new IntegerReader(column);
+		case (Types.BIGINT) :
+			return new LongReader(column);
+		case (Types.FLOAT) :
+			return new FloatReader(column);
+		case (Types.NUMERIC) : case (Types.DOUBLE) : case (Types.DECIMAL) :
+			return new DoubleReader(column);
+		case (Types.DATE) :
+			return new DateReader(column, localDateFormatter);
+		case (Types.TIMESTAMP) :
+			return new TimestampReader(column, localDateFormatter, localDateTimeFormatter);
+		default :
+			return new TextReader(column);
+		}
+	}
+
+	// the readers for all of the columns in a result set, in order
+	public static ColumnReader[] getReaders(ResultSetMetaData rsmd, SimpleDateFormat localDateFormatter, SimpleDateFormat localDateTimeFormatter) throws SQLException {
+		return getReaders(rsmd, localDateFormatter, localDateTimeFormatter, false);
+	}
+
+	// the readers for all of the columns in a result set, in order, checking the type on every row if the driver's types can change from row to row
+	public static ColumnReader[] getReaders(ResultSetMetaData rsmd, SimpleDateFormat localDateFormatter, SimpleDateFormat localDateTimeFormatter, boolean rowTypes) throws SQLException {
+		// make an array for the readers
+		ColumnReader[] readers = new ColumnReader[rsmd.getColumnCount()];
+		// loop the columns getting the reader for each one's type
+		for (int i = 0; i < readers.length; i++) readers[i] = rowTypes ? new RowTypeReader(i + 1, rsmd, localDateFormatter, localDateTimeFormatter) : getReader(i + 1, rsmd.getColumnType(i + 1), localDateFormatter, localDateTimeFormatter);
+		// return the readers
+		return readers;
+	}
+
+}
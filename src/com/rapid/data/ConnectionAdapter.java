@@ -26,6 +26,7 @@ in a file named "COPYING".  If not, see <http://www.gnu.org/licenses/>.
 package com.rapid.data;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
 
 import javax.servlet.ServletContext;
@@ -115,5 +116,22 @@ public abstract class ConnectionAdapter {
 	
 	// close any objects we used
 	public abstract void close() throws SQLException;
+
+	// overridable methods
+
+	// this method fetches connections for read only use, adapters with read replicas can override it to give one of those instead
+	public Connection getReadOnlyConnection(RapidRequest rapidRequest) throws ConnectionAdapterException, SQLException, ClassNotFoundException {
+		return getConnection(rapidRequest);
+	}
+
+	// this method prepares statements for the data factory, adapters that keep their connections can override it to reuse statements
+	public PreparedStatement prepareStatement(Connection connection, String sql) throws SQLException {
+		return connection.prepareStatement(sql);
+	}
+
+	// this method is called by the data factory when it has finished with a statement from prepareStatement
+	public void closeStatement(Connection connection, PreparedStatement statement) throws SQLException {
+		statement.close();
+	}
 				
 }
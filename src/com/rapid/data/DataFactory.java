@@ -35,6 +35,8 @@ import java.sql.ParameterMetaData;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
 import java.sql.Timestamp;
 import java.sql.Types;
 import java.util.ArrayList;
@@ -45,6 +47,7 @@ import javax.servlet.ServletContext;
 import com.rapid.core.Application;
 import com.rapid.data.ConnectionAdapter.ConnectionAdapterException;
 import com.rapid.server.RapidRequest;
+import com.rapid.server.RequestTiming;
 
 public class DataFactory {
 
@@ -298,6 +301,28 @@ public class DataFactory {
 
 	}
 
+	// this class is thrown when a query is stopped by its query timeout, or the query watchdog, so it can be told apart from other errors
+	public static class QueryCancelledException extends SQLException {
+
+		private static final long serialVersionUID = 1L;
+
+		// reasons
+		public static final String TIMEOUT = "timeout";
+		public static final String DEADLINE = "deadline";
+		public static final String DISCONNECTED = "disconnected";
+
+		private String _reason;
+
+		public QueryCancelledException(String reason, SQLException ex) {
+			super("Query cancelled (" + reason + ")" + (ex == null || ex.getMessage() == null ? "" : " : " + ex.getMessage()), ex == null ? null : ex.getSQLState(), ex);
+			_reason = reason;
+		}
+
+		// why the query was cancelled, timeout, deadline, or disconnected
+		public String getReason() { return _reason; }
+
+	}
+
 	// print an exception stack trace
 	public static String getStringStackTrace(Exception ex) {
 
@@ -311,11 +336,20 @@ public class DataFactory {
 
 	}
 
+	// the default number of rows sent to the database at a time by getPreparedBatchUpdate
+	public static final int BATCH_SIZE = 100;
+	// the default number of rows fetched from the database at a time when results are streamed to the client
+	public static final int FETCH_SIZE = 500;
+
 	// protected instance variables
 
 	protected ConnectionAdapter _connectionAdapter;
 	protected String _sql;
 	protected boolean _autoCommit, _readOnly;
+	protected int _fetchSize, _queryTimeout;
+	protected QueryWatchdog.Watch _watch;
+	protected String _cancelledReason;
+	protected SQLStatistics.Statistic _statistic;
 	protected Connection _connection;
 	protected PreparedStatement _preparedStatement;
 	protected ResultSet _resultset;
@@ -379,7 +413,14 @@ public class DataFactory {
 	}
 
 	public Connection getConnection(RapidRequest rapidRequest) throws SQLException, ClassNotFoundException, ConnectionAdapterException {
-		_connection = _connectionAdapter.getConnection(rapidRequest);
+		if (_readOnly) {
+			// read only connections may come from a replica
+			_connection = _connectionAdapter.getReadOnlyConnection(rapidRequest);
+		} else {
+			// anything else may write, so the rest of the request's reads must see it
+			_connection = _connectionAdapter.getConnection(rapidRequest);
+			if (rapidRequest != null) rapidRequest.setDatabaseWritten(true);
+		}
 		_connection.setAutoCommit(_autoCommit);
 		_connection.setReadOnly(_readOnly);
 		return _connection;
@@ -395,11 +436,131 @@ public class DataFactory {
 	public boolean getReadOnly() { return _readOnly; }
 	public void setReadOnly(boolean readOnly) {	_readOnly = readOnly; }
 
+	// the number of rows the jdbc driver is asked to fetch at a time, 0 leaves it to the driver
+	public int getFetchSize() { return _fetchSize; }
+	public void setFetchSize(int fetchSize) { _fetchSize = fetchSize; }
+
+	// the number of seconds the jdbc driver waits for a statement before cancelling it, 0 for no limit
+	public int getQueryTimeout() { return _queryTimeout; }
+	public void setQueryTimeout(int queryTimeout) { _queryTimeout = queryTimeout; }
+
 	// protected methods
 
+	// gives the current statement back to the connection adapter, which may keep it for reuse
+	protected void closeStatement() throws SQLException {
+
+		// stop watching the statement, remembering if it was cancelled for when its error is checked
+		if (_watch != null) {
+			if (_watch.getReason() != null) _cancelledReason = _watch.getReason();
+			QueryWatchdog watchdog = getQueryWatchdog(_watch.getRapidRequest());
+			if (watchdog != null) watchdog.unwatch(_watch);
+			_watch = null;
+		}
+
+		if (_preparedStatement != null) {
+			// statements we prepared ourselves, like callable ones, the adapter will just close
+			if (_connectionAdapter != null && _connection != null) {
+				_connectionAdapter.closeStatement(_connection, _preparedStatement);
+			} else {
+				_preparedStatement.close();
+			}
+			// forget the statement
+			_preparedStatement = null;
+		}
+
+	}
+
+	// the query watchdog the listener made, if there is one
+	protected QueryWatchdog getQueryWatchdog(RapidRequest rapidRequest) {
+		if (rapidRequest == null || rapidRequest.getServletContext() == null) return null;
+		return (QueryWatchdog) rapidRequest.getServletContext().getAttribute("queryWatchdog");
+	}
+
+	// the sql statistics the listener made, if there are any
+	protected SQLStatistics getSQLStatistics(RapidRequest rapidRequest) {
+		if (rapidRequest == null || rapidRequest.getServletContext() == null) return null;
+		return (SQLStatistics) rapidRequest.getServletContext().getAttribute("sqlStatistics");
+	}
+
+	// records an execution of some sql that started at start nanos in the sql statistics, if there are any, and retains its statistic for adding the rows read later
+	protected void recordStatistic(RapidRequest rapidRequest, String sql, long start, boolean error, List<Parameter> parameters, long rows) {
+		// add the time to the request's jdbc span, if it's being timed
+		if (rapidRequest != null && rapidRequest.getTiming() != null) rapidRequest.getTiming().end(RequestTiming.DATABASE, start);
+		// get the statistics
+		SQLStatistics sqlStatistics = getSQLStatistics(rapidRequest);
+		// if there are some
+		if (sqlStatistics != null) {
+			// get the statistic for this request and sql
+			_statistic = sqlStatistics.getStatistic(rapidRequest, sql);
+			// record the execution
+			sqlStatistics.record(_statistic, System.nanoTime() - start, error, parameters);
+			// add any rows
+			_statistic.addRows(rows);
+		}
+	}
+
+	// the number of parameters the jdbc metadata reports for the statement, or -1 if the driver doesn't provide it, which the application remembers so drivers that go back to the server for it are only asked once per sql
+	protected int getParameterCount(RapidRequest rapidRequest, PreparedStatement statement) throws SQLException {
+
+		// the application, if we have one, holds the counts
+		Application application = rapidRequest == null ? null : rapidRequest.getApplication();
+
+		// the counts are keyed by connection and sql
+		String key = _connectionAdapter.getConnectionString() + "|" + _sql;
+
+		// if we have an application and sql
+		if (application != null && _sql != null) {
+			// look for a count we've already had
+			Integer parameterCount = application.getSQLParameterCounts().get(key);
+			// if we had one, use it
+			if (parameterCount != null) return parameterCount;
+		}
+
+		// get the parameter metadata - some jdbc drivers will return null
+		ParameterMetaData parameterMetaData = statement.getParameterMetaData();
+
+		// assume no count
+		int parameterCount = -1;
+
+		// if we got some meta data take its count
+		if (parameterMetaData != null) parameterCount = parameterMetaData.getParameterCount();
+
+		// remember the count for next time
+		if (application != null && _sql != null) application.getSQLParameterCounts().put(key, parameterCount);
+
+		return parameterCount;
+
+	}
+
+	// executes the rows added to a statement's batch, returning the total rows affected
+	protected int executeBatch(PreparedStatement preparedStatement) throws SQLException {
+
+		int rows = 0;
+
+		// execute the batch and loop the update counts for each row
+		for (int count : preparedStatement.executeBatch()) {
+			// some drivers only say the row succeeded, not how many it affected, so count it as one
+			if (count == Statement.SUCCESS_NO_INFO) {
+				rows ++;
+			} else if (count > 0) {
+				rows += count;
+			}
+		}
+
+		return rows;
+
+	}
+
 	protected ResultSet getFirstResultSet(PreparedStatement preparedStatement) throws SQLException {
 
-		preparedStatement.execute();
+		try {
+			preparedStatement.execute();
+		} catch (SQLException ex) {
+			// throw a cancelled exception if that's why it failed
+			SQLException cancelledException = getCancelledException(ex);
+			if (cancelledException == null) throw ex;
+			throw cancelledException;
+		}
 
 		_resultset = preparedStatement.getResultSet();
 
@@ -415,35 +576,35 @@ public class DataFactory {
 
 	public void populateStatement(RapidRequest rapidRequest, PreparedStatement statement, List<Parameter> parameters, int startColumn, boolean checkParameters) throws SQLException {
 
-		// get the parameter metadata - some jdbc drivers will return null, especially for more complex things like insert/update, or stored procedures
-		ParameterMetaData parameterMetaData = null;
+		// the number of parameters from the metadata - some jdbc drivers will return null, especially for more complex things like insert/update, or stored procedures
+		int parameterCount = -1;
 
 		// identify sql server
 		boolean isSQLServer =  _connectionAdapter.getDriverClass().contains("sqlserver");
 
 		// sql server has problems getting parameter meta data for non-exec scripts, especially select statements with joins falsely reporting "The multi-part identifier could not be bound"
-		if (!isSQLServer || !checkParameters) parameterMetaData = statement.getParameterMetaData();
+		if (!isSQLServer || !checkParameters) parameterCount = getParameterCount(rapidRequest, statement);
 
 		// if we're supposed the check the parameters but didn't get any -
 		if (checkParameters && parameters == null) {
 
 			// if we have meta data to check, and it expects some
-			if (parameterMetaData != null && parameterMetaData.getParameterCount() > 0) throw new SQLException("SQL has " + parameterMetaData.getParameterCount() + " parameters, none provided");
+			if (parameterCount > 0) throw new SQLException("SQL has " + parameterCount + " parameters, none provided");
 
 		} else {
 
 			// if we're checking parameters and got parameter meta data from the jdbc
-			if (parameterMetaData != null) {
+			if (parameterCount > -1) {
 
 				// if we're checking parameters
 				if (checkParameters) {
 					// we need exactly the same number of input and meta data parameters
-					if (parameterMetaData.getParameterCount() - startColumn != parameters.size()) throw new SQLException("SQL has " + parameterMetaData.getParameterCount() + " parameters, " + (parameters.size() - startColumn) + " provided");
+					if (parameterCount - startColumn != parameters.size()) throw new SQLException("SQL has " + parameterCount + " parameters, " + (parameters.size() - startColumn) + " provided");
 				} else {
 					// if there are inputs parameters and no metadata parameters this is most likely due to the procedure not being found
-					if (parameters.size() > 0 && parameterMetaData.getParameterCount() == 0) throw new SQLException("SQL object could not be found");
+					if (parameters.size() > 0 && parameterCount == 0) throw new SQLException("SQL object could not be found");
 					// if there are more inputs then metadata parameters
-					if (parameters.size() > parameterMetaData.getParameterCount()) throw new SQLException("SQL requires " + parameterMetaData.getParameterCount() + " parameters, " + (parameters.size() - startColumn) + " provided");
+					if (parameters.size() > parameterCount) throw new SQLException("SQL requires " + parameterCount + " parameters, " + (parameters.size() - startColumn) + " provided");
 				}
 
 			}
@@ -534,15 +695,28 @@ public class DataFactory {
 		}
 
 		// close any previously prepared statement
-		if (_preparedStatement != null) _preparedStatement.close();
+		closeStatement();
 
 		// if there is no connection yet, or the one we have is closed - possibly from an error
 		if (_connection == null || _connection.isClosed()) _connection = getConnection(rapidRequest);
 
 		try {
 
-			// prepare the statement for the current sql
-			_preparedStatement = _connection.prepareStatement(_sql);
+			// prepare the statement for the current sql - the connection adapter may give us one it prepared earlier
+			_preparedStatement = _connectionAdapter.prepareStatement(_connection, _sql);
+
+			// set the fetch size if we have one
+			if (_fetchSize > 0) _preparedStatement.setFetchSize(_fetchSize);
+
+			// set the query timeout if we have one, or clear one from an earlier use of a reused statement
+			if (_queryTimeout > 0 || _preparedStatement.getQueryTimeout() > 0) _preparedStatement.setQueryTimeout(_queryTimeout);
+
+			// this statement hasn't been cancelled
+			_cancelledReason = null;
+
+			// have the watchdog watch the statement, if there is one, so it can be cancelled if the request passes its deadline or the client goes
+			QueryWatchdog watchdog = getQueryWatchdog(rapidRequest);
+			if (watchdog != null) _watch = watchdog.watch(_preparedStatement, rapidRequest);
 
 			// clean and prepare the sql for checking
 			String sqlCheck = _sql.toLowerCase().replace(" ", "");
@@ -575,18 +749,70 @@ public class DataFactory {
 
 	public ResultSet getPreparedResultSet(RapidRequest rapidRequest, String sql, List<Parameter> parameters) throws SQLException, ClassNotFoundException, ConnectionAdapterException {
 
-		return getFirstResultSet(getPreparedStatement(rapidRequest, sql, parameters));
+		// when we started, for the statistics
+		long start = System.nanoTime();
+		// assume an error until we have the result set
+		boolean error = true;
+
+		try {
+
+			ResultSet resultSet = getFirstResultSet(getPreparedStatement(rapidRequest, sql, parameters));
+
+			error = false;
+
+			return resultSet;
+
+		} finally {
+
+			// record the execution - the rows are added by whoever reads them
+			recordStatistic(rapidRequest, sql, start, error, parameters, 0);
+
+		}
 
 	}
 
 	public ResultSet getPreparedResultSet(RapidRequest rapidRequest, String sql, Object... parameters) throws SQLException, ClassNotFoundException, ConnectionAdapterException {
 
-		return getFirstResultSet(getPreparedStatement(rapidRequest, sql, parameters));
+		Parameters params = new Parameters(parameters);
+
+		return getPreparedResultSet(rapidRequest, sql, params);
 
 	}
 
+	// adds the rows read from the last result set to its sql statistic
+	public void addResultRows(long rows) {
+		if (_statistic != null) _statistic.addRows(rows);
+	}
+
 	public int getPreparedUpdate(RapidRequest rapidRequest, String sql, List<Parameter> parameters) throws SQLException, ClassNotFoundException, ConnectionAdapterException {
 
+		// when we started, for the statistics
+		long start = System.nanoTime();
+		// assume an error until we're done
+		boolean error = true;
+
+		int rows = -1;
+
+		try {
+
+			rows = getPreparedUpdateRows(rapidRequest, sql, parameters);
+
+			error = false;
+
+		} finally {
+
+			// record the execution
+			recordStatistic(rapidRequest, sql, start, error, parameters, rows);
+
+		}
+
+		return rows;
+
+	}
+
+	// runs the update for getPreparedUpdate, which records its statistics
+	private int getPreparedUpdateRows(RapidRequest rapidRequest, String sql, List<Parameter> parameters) throws SQLException, ClassNotFoundException, ConnectionAdapterException {
+
 		int rows = -1;
 
 		// do the trim and lower just once
@@ -599,6 +825,9 @@ public class DataFactory {
 
 			CallableStatement cs = getConnection(rapidRequest).prepareCall(sql);
 
+			// set the query timeout if we have one
+			if (_queryTimeout > 0) cs.setQueryTimeout(_queryTimeout);
+
 			populateStatement(rapidRequest, cs, parameters, 0, false);
 
 			try {
@@ -619,7 +848,10 @@ public class DataFactory {
 				// close the connection
 				close();
 
-				throw new RethrownSQLException(ex);
+				// throw a cancelled exception if that's why it failed
+				SQLException cancelledException = getCancelledException(ex);
+				if (cancelledException == null) throw new RethrownSQLException(ex);
+				throw cancelledException;
 
 			}
 
@@ -631,11 +863,11 @@ public class DataFactory {
 
 				rows = ps.executeUpdate();
 
-				ps.close();
+				closeStatement();
 
 			} catch (SQLException ex) {
 
-				ps.close();
+				closeStatement();
 
 				// Oracle does not honour the auto commit = false in its own driver on error so manually roll back
 				if (_connection != null && !_autoCommit) _connection.rollback();
@@ -643,7 +875,10 @@ public class DataFactory {
 				// close the connection
 				close();
 
-				throw new RethrownSQLException(ex);
+				// throw a cancelled exception if that's why it failed
+				SQLException cancelledException = getCancelledException(ex);
+				if (cancelledException == null) throw new RethrownSQLException(ex);
+				throw cancelledException;
 
 			}
 
@@ -662,6 +897,103 @@ public class DataFactory {
 
 	}
 
+	// performs the same update for each parameters in the list using the one prepared statement, sending batchSize rows to the database at a time in a single transaction, and returns the total rows affected
+	public int getPreparedBatchUpdate(RapidRequest rapidRequest, String sql, List<Parameters> parametersList, int batchSize) throws SQLException, ClassNotFoundException, ConnectionAdapterException {
+
+		int rows = 0;
+
+		// do the trim and lower just once
+		String sqlCheck = sql.trim().toLowerCase();
+
+		// single rows, no batching, and oracle blocks are done one at a time as before
+		if (parametersList.size() < 2 || batchSize < 2 || sqlCheck.startsWith("begin") || sqlCheck.startsWith("declare")) {
+
+			for (Parameters parameters : parametersList) rows += getPreparedUpdate(rapidRequest, sql, parameters);
+
+		} else {
+
+			// when we started, for the statistics
+			long start = System.nanoTime();
+			// assume an error until we're done
+			boolean error = true;
+
+			// prepare the statement with the first row, which also checks its parameters
+			PreparedStatement ps = getPreparedStatement(rapidRequest, sql, parametersList.get(0));
+
+			// clean the prepared sql for checking whether the rows need their parameters checked, as in getPreparedStatement
+			String preparedSqlCheck = _sql.toLowerCase().replace(" ", "");
+			boolean checkParameters = !preparedSqlCheck.startsWith("exec") && !preparedSqlCheck.startsWith("execute") && !preparedSqlCheck.startsWith("{call");
+
+			// retain whether the connection commits each statement itself
+			boolean autoCommit = _connection.getAutoCommit();
+
+			try {
+
+				// turn auto commit off so all batches are in one transaction
+				if (autoCommit) _connection.setAutoCommit(false);
+
+				// add the first row, which was populated when prepared
+				ps.addBatch();
+
+				// the rows in the current batch
+				int batchRows = 1;
+
+				// loop the remaining rows
+				for (int i = 1; i < parametersList.size(); i++) {
+
+					// populate and add this row
+					populateStatement(rapidRequest, ps, parametersList.get(i), 0, checkParameters);
+					ps.addBatch();
+
+					// if the batch is full send it
+					if (++batchRows == batchSize) {
+						rows += executeBatch(ps);
+						batchRows = 0;
+					}
+
+				}
+
+				// send any remaining rows
+				if (batchRows > 0) rows += executeBatch(ps);
+
+				// if the connection was auto committing commit the transaction ourselves and put it back
+				if (autoCommit) {
+					_connection.commit();
+					_connection.setAutoCommit(true);
+				}
+
+				closeStatement();
+
+				error = false;
+
+			} catch (SQLException ex) {
+
+				closeStatement();
+
+				// roll back all of the batches - Oracle does not honour the auto commit = false in its own driver on error either
+				if (_connection != null) _connection.rollback();
+
+				// close the connection
+				close();
+
+				// throw a cancelled exception if that's why it failed
+				SQLException cancelledException = getCancelledException(ex);
+				if (cancelledException == null) throw new RethrownSQLException(ex);
+				throw cancelledException;
+
+			} finally {
+
+				// record the batch as one execution, with the types of the first row's parameters
+				recordStatistic(rapidRequest, sql, start, error, parametersList.get(0), rows);
+
+			}
+
+		}
+
+		return rows;
+
+	}
+
 	// the first column value of the first row
 	public String getPreparedScalar(RapidRequest rapidRequest, String sql, List<Parameter> parameters) throws SQLException, ClassNotFoundException, ConnectionAdapterException {
 
@@ -691,6 +1023,11 @@ public class DataFactory {
 
 				CallableStatement st = _connection.prepareCall("{? = call " + sql + "}");
 
+				// set the query timeout if we have one
+				if (_queryTimeout > 0) st.setQueryTimeout(_queryTimeout);
+
+				closeStatement();
+
 				_preparedStatement = st;
 
 				populateStatement(rapidRequest, st, parameters, 1, false);
@@ -739,6 +1076,31 @@ public class DataFactory {
 	// for use with Oracle "{ call ..." statments
 	public Parameters executeCallableStatement(RapidRequest rapidRequest, String sql, Parameters parameters) throws ClassNotFoundException, SQLException, ConnectionAdapterException {
 
+		// when we started, for the statistics
+		long start = System.nanoTime();
+		// assume an error until we're done
+		boolean error = true;
+
+		try {
+
+			Parameters outParameters = executeCallable(rapidRequest, sql, parameters);
+
+			error = false;
+
+			return outParameters;
+
+		} finally {
+
+			// record the execution
+			recordStatistic(rapidRequest, sql, start, error, parameters, 0);
+
+		}
+
+	}
+
+	// runs the call for executeCallableStatement, which records its statistics
+	private Parameters executeCallable(RapidRequest rapidRequest, String sql, Parameters parameters) throws ClassNotFoundException, SQLException, ConnectionAdapterException {
+
 		// get the connection if we need to
 		if (_connection == null) _connection = getConnection(rapidRequest);
 
@@ -758,7 +1120,11 @@ public class DataFactory {
 		// get a callable statement for the call sql
 		CallableStatement cs = _connection.prepareCall(sql);
 
-		// retain it too
+		// set the query timeout if we have one
+		if (_queryTimeout > 0) cs.setQueryTimeout(_queryTimeout);
+
+		// release any previous statement and retain this one too
+		closeStatement();
 		_preparedStatement = cs;
 
 		// get this statement's parameter meta data for the inputs and outputs - unfortunately all methods here seem to return "Unsupported feature" so we'll guess that inputs are first and outputs follow
@@ -820,6 +1186,25 @@ public class DataFactory {
 
 	}
 
+	// a QueryCancelledException for an exception from the current statement if it was stopped by its query timeout or the query watchdog, otherwise null
+	public SQLException getCancelledException(SQLException ex) {
+		// already is one
+		if (ex instanceof QueryCancelledException) return ex;
+		// the watchdog cancelled the statement
+		if (_watch != null && _watch.getReason() != null) return new QueryCancelledException(_watch.getReason(), ex);
+		// the watchdog cancelled the statement, which has since been closed
+		if (_cancelledReason != null) return new QueryCancelledException(_cancelledReason, ex);
+		// the driver stopped the statement at its query timeout
+		if (ex instanceof SQLTimeoutException) return new QueryCancelledException(QueryCancelledException.TIMEOUT, ex);
+		// not cancelled
+		return null;
+	}
+
+	// asks the database to stop the current statement, from this or another thread
+	public void cancel() throws SQLException {
+		if (_preparedStatement != null) _preparedStatement.cancel();
+	}
+
 	public void commit() throws SQLException {
 
 		if (_connection != null && !_connection.isClosed()) _connection.commit();
@@ -835,7 +1220,7 @@ public class DataFactory {
 	public void close() throws SQLException {
 
 		// close any statement that may still be open if we returned a resultset
-		if (_preparedStatement != null) _preparedStatement.close();
+		closeStatement();
 
 		// if we have a connection adapter and a connection
 		if (_connectionAdapter != null && _connection != null) {
@@ -846,6 +1231,9 @@ public class DataFactory {
 			_connection.close();
 		}
 
+		// forget the connection - pooling adapters will have given it to someone else so we must not use, commit, or close it again
+		_connection = null;
+
 	}
 
 }
@@ -28,6 +28,8 @@ package com.rapid.data;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.servlet.ServletContext;
 import javax.xml.bind.annotation.adapters.XmlJavaTypeAdapter;
@@ -40,7 +42,9 @@ public class DatabaseConnection {
 
 	// instance variables
 
-	String _name, _driverClass, _connectionString, _connectionAdapterClass, _userName, _password;
+	String _name, _driverClass, _connectionString, _connectionAdapterClass, _userName, _password, _replicaRouting;
+	List<String> _replicaConnectionStrings;
+	int _queryTimeout;
 	ConnectionAdapter _connectionAdapter;
 
 	// properties
@@ -64,6 +68,18 @@ public class DatabaseConnection {
 	public String getPassword() { return _password; }
 	public void setPassword(String password) { _password = password; }
 
+	// optional connection strings for read replicas of this database, which read only queries are shared between
+	public List<String> getReplicaConnectionStrings() { return _replicaConnectionStrings; }
+	public void setReplicaConnectionStrings(List<String> replicaConnectionStrings) { _replicaConnectionStrings = replicaConnectionStrings; }
+
+	// how read only queries are shared between the replicas, roundRobin (the default) or leastBusy
+	public String getReplicaRouting() { return _replicaRouting; }
+	public void setReplicaRouting(String replicaRouting) { _replicaRouting = replicaRouting; }
+
+	// an optional number of seconds queries on this connection can run for before being cancelled, 0 for no limit
+	public int getQueryTimeout() { return _queryTimeout; }
+	public void setQueryTimeout(int queryTimeout) { _queryTimeout = queryTimeout; }
+
 	// constructors
 	public DatabaseConnection() {};
 	public DatabaseConnection(ServletContext servletContext, Application application, String name, String driverClass, String connectionString, String connectionAdapterClass, String userName, String password) {
@@ -97,12 +113,43 @@ public class DatabaseConnection {
 					connectionString,
 					_userName,
 					_password);
+			// if it's a pool, let it know who it's for
+			setOwner(_connectionAdapter, application, 0);
+			// if there are replicas
+			if (_replicaConnectionStrings != null && _replicaConnectionStrings.size() > 0) {
+				// make an adapter of the same class for each replica
+				List<ConnectionAdapter> replicaConnectionAdapters = new ArrayList<>();
+				for (String replicaConnectionString : _replicaConnectionStrings) {
+					// if there is an app, insert the parameters to the connection string
+					if (application != null) replicaConnectionString = application.insertParameters(servletContext, replicaConnectionString);
+					// initialise the class
+					ConnectionAdapter replicaConnectionAdapter = (ConnectionAdapter) constructor.newInstance(
+							servletContext,
+							_driverClass,
+							replicaConnectionString,
+							_userName,
+							_password);
+					// if it's a pool, let it know who it's for
+					setOwner(replicaConnectionAdapter, application, replicaConnectionAdapters.size() + 1);
+					// add it
+					replicaConnectionAdapters.add(replicaConnectionAdapter);
+				}
+				// wrap the primary and replicas in an adapter that routes between them
+				_connectionAdapter = new ReplicaConnectionAdapter(servletContext, _connectionAdapter, replicaConnectionAdapters, _replicaRouting);
+			}
 		}
 
 		return _connectionAdapter;
 
 	}
 
+	// tells a pooled connection adapter the application, version, and name of this connection, so its metrics can be told apart without the connection string
+	private void setOwner(ConnectionAdapter connectionAdapter, Application application, int replica) {
+		if (connectionAdapter instanceof PooledConnectionAdapter) {
+			((PooledConnectionAdapter) connectionAdapter).setOwner(application == null ? null : application.getId(), application == null ? null : application.getVersion(), _name, replica);
+		}
+	}
+
 	// set the connection adapter to null to for it to be re-initialised
 	public synchronized void reset() throws SQLException {
 		// close it first
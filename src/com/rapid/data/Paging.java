@@ -0,0 +1,299 @@
+/*
+
+Copyright (C) 2022 - Gareth Edwards / Rapid Information Systems
+
+gareth.edwards@rapid-is.co.uk
+
+
+This file is part of the Rapid Application Platform
+
+Rapid is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version. The terms require you
+to include the original copyright, and the license notice in all redistributions.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+in a file named "COPYING".  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package com.rapid.data;
+
+import java.sql.SQLException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.rapid.data.DataFactory.Parameter;
+import com.rapid.data.DataFactory.Parameters;
+
+/*
+
+A window of rows to fetch from a select query, either a page number and size, or the rows after a key value
+(a keyset cursor) which avoids the database reading and discarding all of the earlier rows. The window is pushed
+down to the database by wrapping the sql for its dialect, with the offset, size, and key value as extra parameters
+so the wrapped statement can still be prepared and cached once. Any with clause is kept in front of the wrapping
+as common table expressions can't go inside it. Where the dialect is not known the sql is left alone and the
+caller skips and stops reading the rows itself.
+
+*/
+
+public class Paging {
+
+	// dialects
+	public static final String SQLSERVER = "sqlserver";
+	public static final String ORACLE = "oracle";
+	public static final String MYSQL = "mysql";
+	public static final String SQLITE = "sqlite";
+
+	// the alias given to the original query when it's wrapped
+	private static final String ALIAS = "rapid_page";
+
+	// a top level order by
+	private static final Pattern ORDER_BY = Pattern.compile("order\\s+by\\s", Pattern.CASE_INSENSITIVE);
+
+	// the start of a query with common table expressions, and the select after them
+	private static final Pattern WITH = Pattern.compile("with\\s", Pattern.CASE_INSENSITIVE);
+	private static final Pattern SELECT = Pattern.compile("select\\s", Pattern.CASE_INSENSITIVE);
+
+	// a select top, which sql server doesn't allow with an offset
+	private static final Pattern SELECT_TOP = Pattern.compile("select\\s+((all|distinct)\\s+)?top\\b", Pattern.CASE_INSENSITIVE);
+
+	// a simple column name, all we allow for the key as it goes into the sql
+	private static final Pattern KEY = Pattern.compile("^[A-Za-z_][A-Za-z0-9_]*$");
+
+	// private instance variables
+	private int _page, _pageSize;
+	private String _key;
+	private Object _after;
+	private boolean _totalCount;
+
+	// constructor
+
+	public Paging(int page, int pageSize, String key, Object after, boolean totalCount) throws SQLException {
+		// check the key if we have one
+		if (key != null && !KEY.matcher(key).matches()) throw new SQLException("Paging key " + key + " is not a valid column name");
+		_page = Math.max(1, page);
+		_pageSize = pageSize;
+		_key = key;
+		_after = after;
+		_totalCount = totalCount;
+	}
+
+	// properties
+
+	public int getPage() { return _page; }
+	public int getPageSize() { return _pageSize; }
+	public String getKey() { return _key; }
+	public Object getAfter() { return _after; }
+	public boolean getTotalCount() { return _totalCount; }
+
+	// the number of rows before the window, always 0 for a keyset as the key value does the skipping
+	public int getOffset() {
+		if (_key != null) return 0;
+		return (_page - 1) * _pageSize;
+	}
+
+	// public methods
+
+	// the sql wrapped to fetch just the window in the given dialect, or null if we don't know how to for the dialect
+	public String getSQL(String sql, String dialect) throws SQLException {
+
+		// no dialect we can page in
+		if (dialect == null) return null;
+
+		// remove any trailing semi-colon - anything we add goes on a new line in case the sql ends in a comment
+		sql = trimSQL(sql);
+
+		// take off any with clause, which goes back on the front once the query is wrapped
+		int select = getSelectPosition(sql);
+		String with = sql.substring(0, select);
+		sql = sql.substring(select);
+
+		// sql server can't have a top and an offset, and a top in the wrapped query for a keyset would be applied before the key
+		if (SQLSERVER.equals(dialect) && SELECT_TOP.matcher(sql).lookingAt()) throw new SQLException("Paging is not available for queries using select top, use the page size instead");
+
+		// the position of any order by at the top level of the query
+		int orderBy = getOrderByPosition(sql);
+
+		// if this is a keyset
+		if (_key != null) {
+			// the key orders the rows so remove any order by, which sql server doesn't allow in a sub query anyway
+			if (orderBy >= 0) sql = sql.substring(0, orderBy).trim();
+			// wrap the query so we can filter and sort on the key
+			sql = "select * from (" + sql + "\n) " + ALIAS;
+			// the rows after the key value if we have one - the first page doesn't
+			if (_after != null) sql += " where " + ALIAS + "." + _key + " > ?";
+			// order by the key
+			sql += " order by " + ALIAS + "." + _key;
+			// there is now an order by
+			orderBy = 0;
+		}
+
+		// add the window for the dialect
+		if (SQLSERVER.equals(dialect)) {
+			// sql server needs an order by for an offset, so add one that keeps the query's order if there isn't one
+			if (orderBy < 0) sql += "\norder by (select null)";
+			return with + sql + "\noffset ? rows fetch next ? rows only";
+		} else if (ORACLE.equals(dialect)) {
+			// oracle 12c and later
+			return with + sql + "\noffset ? rows fetch next ? rows only";
+		} else {
+			// mysql, sqlite, and others using limit
+			return with + sql + "\nlimit ? offset ?";
+		}
+
+	}
+
+	// a copy of the parameters with those for the window added to the end, in the order of the sql from getSQL for the dialect
+	public Parameters getParameters(Parameters parameters, String dialect) {
+
+		// make the copy
+		Parameters pagedParameters = new Parameters();
+		// add the originals
+		if (parameters != null) pagedParameters.addAll(parameters);
+
+		// the key value is first, if we have one
+		if (_key != null && _after != null) pagedParameters.add(getParameter(_after));
+
+		// the window
+		if (SQLSERVER.equals(dialect) || ORACLE.equals(dialect)) {
+			pagedParameters.addInt(getOffset());
+			pagedParameters.addInt(_pageSize);
+		} else {
+			pagedParameters.addInt(_pageSize);
+			pagedParameters.addInt(getOffset());
+		}
+
+		return pagedParameters;
+
+	}
+
+	// overrides
+
+	// used in the action cache key so each window is cached separately
+	@Override
+	public String toString() {
+		return "page=" + _page + ",pageSize=" + _pageSize + (_key == null ? "" : ",key=" + _key + ",after=" + _after) + ",totalCount=" + _totalCount;
+	}
+
+	// static methods
+
+	// the dialect of a connection string, or null if it's not one we can page in
+	public static String getDialect(String connectionString) {
+		// check we got one
+		if (connectionString == null) return null;
+		// lower case for checking
+		String connectionStringCheck = connectionString.toLowerCase();
+		// check the jdbc sub protocol
+		if (connectionStringCheck.contains("sqlserver") || connectionStringCheck.contains("jtds")) return SQLSERVER;
+		if (connectionStringCheck.contains("oracle")) return ORACLE;
+		if (connectionStringCheck.contains("mysql") || connectionStringCheck.contains("mariadb")) return MYSQL;
+		if (connectionStringCheck.contains("sqlite")) return SQLITE;
+		// we don't know this one
+		return null;
+	}
+
+	// sql to count all of the rows the query would return, using the same parameters
+	public static String getCountSQL(String sql) {
+		// remove any trailing semi-colon
+		sql = trimSQL(sql);
+		// take off any with clause, which goes back on the front of the count
+		int select = getSelectPosition(sql);
+		String with = sql.substring(0, select);
+		sql = sql.substring(select);
+		// the order by doesn't change the count, and sql server doesn't allow it in a sub query
+		int orderBy = getOrderByPosition(sql);
+		if (orderBy >= 0) sql = sql.substring(0, orderBy).trim();
+		// wrap it
+		return with + "select count(*) from (" + sql + "\n) " + ALIAS;
+	}
+
+	// private static methods
+
+	// trims the sql and any trailing semi-colons
+	private static String trimSQL(String sql) {
+		sql = sql.trim();
+		while (sql.endsWith(";")) sql = sql.substring(0, sql.length() - 1).trim();
+		return sql;
+	}
+
+	// the position of the select after any with clause, which is 0 if there isn't one
+	private static int getSelectPosition(String sql) {
+		// if it starts with a with
+		if (WITH.matcher(sql).lookingAt()) {
+			// the first select outside of the brackets of the common table expressions
+			int position = getTopLevelPosition(sql, SELECT, false);
+			// use it if we found one
+			if (position > 0) return position;
+		}
+		return 0;
+	}
+
+	// the position of the last order by outside of any brackets, quotes, or comments, or -1 if there isn't one
+	private static int getOrderByPosition(String sql) {
+		return getTopLevelPosition(sql, ORDER_BY, true);
+	}
+
+	// the position of the first or last match of a pattern starting a word outside of any brackets, quotes, or comments, or -1 if there isn't one
+	private static int getTopLevelPosition(String sql, Pattern pattern, boolean last) {
+
+		// the position we'll return
+		int position = -1;
+		// how deep in brackets we are
+		int depth = 0;
+		// one matcher, moved along the sql with its region
+		Matcher matcher = pattern.matcher(sql);
+
+		// loop the characters
+		for (int i = 0; i < sql.length(); i++) {
+
+			// get the character
+			char c = sql.charAt(i);
+
+			if (c == '\'' || c == '"' || c == '`' || c == '[') {
+				// skip to the end of the quoted string or name
+				char end = c == '[' ? ']' : c;
+				i = sql.indexOf(end, i + 1);
+				if (i < 0) break;
+			} else if (c == '-' && sql.startsWith("--", i)) {
+				// skip to the end of the line comment
+				i = sql.indexOf('\n', i);
+				if (i < 0) break;
+			} else if (c == '/' && sql.startsWith("/*", i)) {
+				// skip to the end of the block comment
+				i = sql.indexOf("*/", i);
+				if (i < 0) break;
+			} else if (c == '(') {
+				depth ++;
+			} else if (c == ')') {
+				depth --;
+			} else if (depth == 0 && Character.isLetter(c) && (i == 0 || !Character.isLetterOrDigit(sql.charAt(i - 1)) && sql.charAt(i - 1) != '_')) {
+				// a word at the top level, check it against the pattern
+				if (matcher.region(i, sql.length()).lookingAt()) {
+					position = i;
+					// stop at the first if that's what we want
+					if (!last) break;
+				}
+			}
+
+		}
+
+		return position;
+
+	}
+
+	// a parameter for a key value from the client, keeping numbers as numbers
+	private static Parameter getParameter(Object value) {
+		if (value instanceof Integer) return new Parameter((Integer) value);
+		if (value instanceof Long) return new Parameter((Long) value);
+		if (value instanceof Number) return new Parameter(((Number) value).doubleValue());
+		return new Parameter(value.toString());
+	}
+
+}
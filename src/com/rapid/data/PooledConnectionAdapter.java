@@ -0,0 +1,691 @@
+/*
+
+Copyright (C) 2022 - Gareth Edwards / Rapid Information Systems
+
+gareth.edwards@rapid-is.co.uk
+
+
+This file is part of the Rapid Application Platform
+
+Rapid is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version. The terms require you
+to include the original copyright, and the license notice in all redistributions.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+in a file named "COPYING".  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package com.rapid.data;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletContext;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.rapid.server.RapidRequest;
+
+/*
+
+This adapter keeps a bounded pool of physical connections so we don't pay for a full connect and authentication on every
+request. Connections are validated when borrowed, returned to the pool by closeConnection, evicted when idle for too long,
+and any held for longer than the leak threshold are logged against the action that borrowed them. Each physical connection
+also keeps a small LRU cache of its prepared statements, keyed by sql, so repeated queries are not parsed and planned again.
+
+The pool is sized and timed using the following optional web.xml context parameters (all times in seconds)
+
+connectionPoolMinSize, connectionPoolMaxSize, connectionPoolIdleTimeout, connectionPoolBorrowTimeout, connectionPoolValidationTimeout, connectionPoolLeakThreshold, connectionPoolStatementCacheSize
+
+*/
+
+public class PooledConnectionAdapter extends ConnectionAdapter {
+
+	// the prepared statements of a single physical connection, least recently used are closed when there are more than the max size
+	protected static class StatementCache {
+
+		// instance variables
+		private int _maxSize;
+		private LinkedHashMap<String, PreparedStatement> _statements;
+		private Map<PreparedStatement, String> _inUse;
+
+		// constructor
+		@SuppressWarnings("serial")
+		public StatementCache(int maxSize) {
+			_maxSize = maxSize;
+			// access ordered so the eldest entry is the least recently used
+			_statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+					if (size() > _maxSize) {
+						// statements still in use are closed when they are released
+						if (!_inUse.containsKey(eldest.getValue())) closeQuietly(eldest.getValue());
+						return true;
+					}
+					return false;
+				}
+			};
+			// statements are compared by identity
+			_inUse = new IdentityHashMap<>();
+		}
+
+		// properties
+		public synchronized int size() { return _statements.size(); }
+
+		// returns the cached statement for this sql, or null if there isn't one or it's already in use
+		public synchronized PreparedStatement get(String sql) {
+			// get any statement for this sql
+			PreparedStatement statement = _statements.get(sql);
+			// if we don't have one, or it's in use already (say by an open result set) we can't use it
+			if (statement == null || _inUse.containsKey(statement)) return null;
+			// check it's still open
+			try {
+				if (statement.isClosed()) {
+					_statements.remove(sql);
+					return null;
+				}
+			} catch (SQLException ex) {
+				_statements.remove(sql);
+				return null;
+			}
+			// it's now in use
+			_inUse.put(statement, sql);
+			return statement;
+		}
+
+		// adds a newly prepared statement, unless there's one for this sql in use already
+		public synchronized void put(String sql, PreparedStatement statement) {
+			// get any existing statement
+			PreparedStatement existing = _statements.get(sql);
+			// if it's in use we'll leave it and the new one will be closed when released
+			if (existing != null && _inUse.containsKey(existing)) return;
+			// close any existing one we're replacing
+			if (existing != null) closeQuietly(existing);
+			// add the new one
+			_statements.put(sql, statement);
+			// it's now in use
+			_inUse.put(statement, sql);
+		}
+
+		// releases a statement from get or put, returning false if it's not one of ours and should be closed by the caller
+		public synchronized boolean release(PreparedStatement statement) throws SQLException {
+			// remove from in use
+			String sql = _inUse.remove(statement);
+			// if it wasn't in use it's ours only if it's in the cache, i.e. released already
+			if (sql == null) return _statements.containsValue(statement);
+			// if it was evicted while in use close it now
+			if (_statements.get(sql) != statement) {
+				statement.close();
+			} else {
+				// clear it ready for the next execution
+				statement.clearParameters();
+				statement.clearWarnings();
+			}
+			return true;
+		}
+
+		// puts every statement back the way it was prepared, ready for the next borrower of the connection
+		public synchronized void reset() {
+			// nothing is in use by the new borrower
+			_inUse.clear();
+			// loop the statements
+			Iterator<PreparedStatement> iterator = _statements.values().iterator();
+			while (iterator.hasNext()) {
+				PreparedStatement statement = iterator.next();
+				try {
+					statement.clearParameters();
+					statement.clearBatch();
+					statement.clearWarnings();
+					statement.setMaxRows(0);
+					statement.setQueryTimeout(0);
+					statement.setFetchSize(0);
+				} catch (SQLException ex) {
+					// if it can't be reset it's no good to the next borrower
+					closeQuietly(statement);
+					iterator.remove();
+				}
+			}
+		}
+
+		// closes all of the statements
+		public synchronized void close() {
+			for (PreparedStatement statement : _statements.values()) closeQuietly(statement);
+			_statements.clear();
+			_inUse.clear();
+		}
+
+		// close a statement without minding if it fails
+		private static void closeQuietly(PreparedStatement statement) {
+			try {
+				statement.close();
+			} catch (SQLException ex) {
+				_logger.debug("Error closing cached statement : " + ex.getMessage());
+			}
+		}
+
+	}
+
+	// a physical connection and what we know about its use
+	protected static class PooledConnection {
+
+		// instance variables
+		private Connection _connection;
+		private StatementCache _statementCache;
+		private long _createdTime, _lastUsedTime, _borrowedTime;
+		private String _borrower;
+		private boolean _leakReported;
+
+		// constructor
+		public PooledConnection(Connection connection, int statementCacheSize) {
+			_connection = connection;
+			if (statementCacheSize > 0) _statementCache = new StatementCache(statementCacheSize);
+			_createdTime = System.currentTimeMillis();
+			_lastUsedTime = _createdTime;
+		}
+
+		// properties
+		public Connection getConnection() { return _connection; }
+		public StatementCache getStatementCache() { return _statementCache; }
+		public long getCreatedTime() { return _createdTime; }
+		public long getLastUsedTime() { return _lastUsedTime; }
+		public long getBorrowedTime() { return _borrowedTime; }
+		public String getBorrower() { return _borrower; }
+
+	}
+
+	// this thread evicts idle connections, tops the pool back up to its minimum, and reports leaks
+	private class Housekeeper extends Thread {
+
+		public Housekeeper() {
+			super("Rapid connection pool " + _connectionString);
+			// don't hold up the container shutting down
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			while (!_closed) {
+				try {
+					// wait for the next check
+					Thread.sleep(_housekeepingInterval);
+					// do the checks
+					evictIdle();
+					fill();
+					reportLeaks();
+				} catch (InterruptedException ex) {
+					// we're interrupted when the pool is closed
+					break;
+				} catch (Exception ex) {
+					_logger.error("Error housekeeping connection pool for " + _connectionString, ex);
+				}
+			}
+		}
+
+	}
+
+	// default settings (in seconds)
+	public static final int MIN_SIZE = 0;
+	public static final int MAX_SIZE = 20;
+	public static final int IDLE_TIMEOUT = 600;
+	public static final int BORROW_TIMEOUT = 30;
+	public static final int VALIDATION_TIMEOUT = 5;
+	public static final int LEAK_THRESHOLD = 300;
+	public static final int STATEMENT_CACHE_SIZE = 50;
+
+	// private static variables
+	private static Logger _logger = LogManager.getLogger(PooledConnectionAdapter.class);
+	private static Set<PooledConnectionAdapter> _pools = ConcurrentHashMap.newKeySet();
+
+	// private instance variables
+	private int _minSize, _maxSize, _validationTimeout, _statementCacheSize;
+	private long _idleTimeout, _borrowTimeout, _leakThreshold, _housekeepingInterval;
+	private LinkedBlockingDeque<PooledConnection> _idleConnections;
+	private Map<Connection, PooledConnection> _borrowedConnections;
+	private Semaphore _permits;
+	private Housekeeper _housekeeper;
+	private volatile boolean _closed;
+	private volatile long _leakCount;
+	private AtomicLong _statementCacheHits, _statementCacheMisses;
+	private String _appId, _appVersion, _connectionName;
+	private int _replica;
+
+	// constructors
+
+	public PooledConnectionAdapter(ServletContext servletContext, String driverClassName, String connectionString, String userName, String password) {
+		// call the super
+		super(servletContext, driverClassName, connectionString, userName, password);
+		// read our settings from the web.xml, falling back to the defaults
+		_minSize = getIntInitParameter(servletContext, "connectionPoolMinSize", MIN_SIZE);
+		_maxSize = getIntInitParameter(servletContext, "connectionPoolMaxSize", MAX_SIZE);
+		_idleTimeout = getIntInitParameter(servletContext, "connectionPoolIdleTimeout", IDLE_TIMEOUT) * 1000L;
+		_borrowTimeout = getIntInitParameter(servletContext, "connectionPoolBorrowTimeout", BORROW_TIMEOUT) * 1000L;
+		_validationTimeout = getIntInitParameter(servletContext, "connectionPoolValidationTimeout", VALIDATION_TIMEOUT);
+		_leakThreshold = getIntInitParameter(servletContext, "connectionPoolLeakThreshold", LEAK_THRESHOLD) * 1000L;
+		_statementCacheSize = getIntInitParameter(servletContext, "connectionPoolStatementCacheSize", STATEMENT_CACHE_SIZE);
+		// max must be at least 1 and min can't be more than max
+		if (_maxSize < 1) _maxSize = 1;
+		if (_minSize > _maxSize) _minSize = _maxSize;
+		// check twice as often as the shortest of our timeouts, but not more than every 30 seconds, or less than every second
+		_housekeepingInterval = Math.max(1000, Math.min(30000, Math.min(_idleTimeout, _leakThreshold) / 2));
+		// initialise our collections
+		_idleConnections = new LinkedBlockingDeque<>();
+		_borrowedConnections = new IdentityHashMap<>();
+		// fair permits so long waiters are not starved
+		_permits = new Semaphore(_maxSize, true);
+		// statement cache counters
+		_statementCacheHits = new AtomicLong();
+		_statementCacheMisses = new AtomicLong();
+		// remember us for the metrics
+		_pools.add(this);
+		// log our details
+		_logger.info("Connection pool for " + connectionString + " min " + _minSize + ", max " + _maxSize + ", idle timeout " + _idleTimeout / 1000 + "s, borrow timeout " + _borrowTimeout / 1000 + "s, leak threshold " + _leakThreshold / 1000 + "s, statement cache " + _statementCacheSize);
+	}
+
+	public PooledConnectionAdapter(ServletContext servletContext, DatabaseConnection databaseConnection) {
+		this(
+			servletContext,
+			databaseConnection.getDriverClass(),
+			databaseConnection.getConnectionString(),
+			databaseConnection.getUserName(),
+			databaseConnection.getPassword()
+		);
+	}
+
+	// properties
+
+	public int getMinSize() { return _minSize; }
+	public int getMaxSize() { return _maxSize; }
+	public int getIdleCount() { return _idleConnections.size(); }
+	public synchronized int getActiveCount() { return _borrowedConnections.size(); }
+	public long getLeakCount() { return _leakCount; }
+	public long getStatementCacheHits() { return _statementCacheHits.get(); }
+	public long getStatementCacheMisses() { return _statementCacheMisses.get(); }
+	public int getWaitingCount() { return _permits.getQueueLength(); }
+
+	// the application, version, and database connection the pool is for, and which replica if it's for one, for the metrics
+	public String getAppId() { return _appId; }
+	public String getAppVersion() { return _appVersion; }
+	public String getConnectionName() { return _connectionName; }
+	public int getReplica() { return _replica; }
+
+	// public methods
+
+	// sets who the pool is for, called by the database connection when it makes the pool, replicas are numbered from 1
+	public void setOwner(String appId, String appVersion, String connectionName, int replica) {
+		_appId = appId;
+		_appVersion = appVersion;
+		_connectionName = connectionName;
+		_replica = replica;
+	}
+
+	// private methods
+
+	// read an integer from the web.xml context parameters, logging and using the default if it's not valid
+	private static int getIntInitParameter(ServletContext servletContext, String name, int defaultValue) {
+		// no context, no parameters
+		if (servletContext == null) return defaultValue;
+		// get the value
+		String value = servletContext.getInitParameter(name);
+		// if there was one
+		if (value != null && value.trim().length() > 0) {
+			try {
+				return Integer.parseInt(value.trim());
+			} catch (NumberFormatException ex) {
+				_logger.error(name + " is not an integer");
+			}
+		}
+		return defaultValue;
+	}
+
+	// make a new physical connection, same as the simple adapter
+	private Connection createConnection() throws SQLException {
+		// get username from superclass
+		String userName = getUserName();
+		// convert to empty string if null
+		if (userName == null) userName = "";
+		// get password from superclass
+		String password = getPassword();
+		// convert to empty string if null
+		if (password == null) password = "";
+		// if user null or not set don't pass username/password
+		if ("".equals(userName)) {
+			return DriverManager.getConnection(getConnectionString());
+		} else {
+			return DriverManager.getConnection(getConnectionString(), userName , password);
+		}
+	}
+
+	// close a physical connection, without minding if it fails
+	private void discard(PooledConnection pooledConnection) {
+		// close its statements first
+		if (pooledConnection.getStatementCache() != null) pooledConnection.getStatementCache().close();
+		try {
+			pooledConnection.getConnection().close();
+		} catch (SQLException ex) {
+			_logger.debug("Error closing pooled connection for " + _connectionString + " : " + ex.getMessage());
+		}
+	}
+
+	// check a connection is still good before we hand it out
+	private boolean isValid(PooledConnection pooledConnection) {
+		try {
+			// if the driver does not support isValid we'll get an AbstractMethodError or SQLFeatureNotSupportedException so just check closed
+			return pooledConnection.getConnection().isValid(_validationTimeout);
+		} catch (AbstractMethodError | SQLException ex) {
+			try {
+				return !pooledConnection.getConnection().isClosed();
+			} catch (SQLException ex2) {
+				return false;
+			}
+		}
+	}
+
+	// put a returned connection back the way a new one would be, returns false if it can't be reused
+	private boolean reset(Connection connection) {
+		try {
+			// closed connections are no good to anyone
+			if (connection.isClosed()) return false;
+			// roll back anything the borrower didn't commit
+			if (!connection.getAutoCommit()) {
+				connection.rollback();
+				connection.setAutoCommit(true);
+			}
+			// read only is set by the data factory per query
+			if (connection.isReadOnly()) connection.setReadOnly(false);
+			// clear any warnings
+			connection.clearWarnings();
+			// we're good
+			return true;
+		} catch (SQLException ex) {
+			_logger.debug("Pooled connection for " + _connectionString + " could not be reset and will be discarded : " + ex.getMessage());
+			return false;
+		}
+	}
+
+	// whether a connection is already back in the idle pool
+	private boolean isIdle(Connection connection) {
+		for (PooledConnection pooledConnection : _idleConnections) {
+			if (pooledConnection.getConnection() == connection) return true;
+		}
+		return false;
+	}
+
+	// start the housekeeper if we haven't already
+	private synchronized void startHousekeeper() {
+		if (_housekeeper == null && !_closed) {
+			_housekeeper = new Housekeeper();
+			_housekeeper.start();
+		}
+	}
+
+	// close idle connections not used since the idle timeout, leaving at least the minimum
+	private void evictIdle() {
+		// get the current time
+		long now = System.currentTimeMillis();
+		// loop the idle connections from least recently used
+		Iterator<PooledConnection> iterator = _idleConnections.descendingIterator();
+		while (iterator.hasNext()) {
+			// stop if we're at the minimum
+			if (_idleConnections.size() + getActiveCount() <= _minSize) break;
+			// get this idle connection
+			PooledConnection pooledConnection = iterator.next();
+			// if it's been idle too long and we remove it before a borrower gets it, close it
+			if (now - pooledConnection.getLastUsedTime() > _idleTimeout && _idleConnections.remove(pooledConnection)) {
+				discard(pooledConnection);
+				_logger.debug("Idle pooled connection for " + _connectionString + " evicted");
+			}
+		}
+	}
+
+	// top the pool up to the minimum size
+	private void fill() throws SQLException {
+		while (!_closed && _idleConnections.size() + getActiveCount() < _minSize) {
+			_idleConnections.offerLast(new PooledConnection(createConnection(), _statementCacheSize));
+		}
+	}
+
+	// log any connections held for longer than the leak threshold, once each
+	private synchronized void reportLeaks() {
+		// get the current time
+		long now = System.currentTimeMillis();
+		// loop the borrowed connections
+		for (PooledConnection pooledConnection : _borrowedConnections.values()) {
+			// if held too long and we've not said so already
+			if (!pooledConnection._leakReported && now - pooledConnection.getBorrowedTime() > _leakThreshold) {
+				// remember we reported it
+				pooledConnection._leakReported = true;
+				// count it
+				_leakCount ++;
+				// log it
+				_logger.warn("Possible connection leak, connection for " + _connectionString + " borrowed by " + pooledConnection.getBorrower() + " has been held for " + (now - pooledConnection.getBorrowedTime()) / 1000 + " seconds");
+			}
+		}
+	}
+
+	// overrides
+
+	@Override
+	public Connection getConnection(RapidRequest rapidRequest) throws ConnectionAdapterException, SQLException, ClassNotFoundException {
+
+		// can't borrow from a closed pool
+		if (_closed) throw new ConnectionAdapterException("Connection pool for " + _connectionString + " has been closed");
+
+		// wait for a permit, there is one for each connection we're allowed to lend out
+		try {
+			if (!_permits.tryAcquire(_borrowTimeout, TimeUnit.MILLISECONDS)) throw new ConnectionAdapterException("Timed out after " + _borrowTimeout / 1000 + " seconds waiting for a connection to " + _connectionString + ", all " + _maxSize + " are in use");
+		} catch (InterruptedException ex) {
+			// keep the interrupt for the caller
+			Thread.currentThread().interrupt();
+			throw new ConnectionAdapterException("Interrupted waiting for a connection to " + _connectionString, ex);
+		}
+
+		// start the housekeeper on first use
+		if (_housekeeper == null) startHousekeeper();
+
+		try {
+
+			// the connection we will lend
+			PooledConnection pooledConnection = null;
+
+			// take the most recently used idle connections first, as they are the most likely to be good
+			while (pooledConnection == null) {
+				// get the next one
+				pooledConnection = _idleConnections.pollFirst();
+				// if there are none make a new one
+				if (pooledConnection == null) {
+					pooledConnection = new PooledConnection(createConnection(), _statementCacheSize);
+				} else if (!isValid(pooledConnection)) {
+					// close it and try the next one
+					discard(pooledConnection);
+					pooledConnection = null;
+				}
+			}
+
+			// retain when and who borrowed it
+			pooledConnection._borrowedTime = System.currentTimeMillis();
+			pooledConnection._borrower = getBorrower(rapidRequest);
+			pooledConnection._leakReported = false;
+
+			// record it as borrowed
+			synchronized (this) {
+				_borrowedConnections.put(pooledConnection.getConnection(), pooledConnection);
+			}
+
+			// lend it
+			return pooledConnection.getConnection();
+
+		} catch (SQLException | RuntimeException ex) {
+
+			// give the permit back if we failed to lend a connection
+			_permits.release();
+
+			throw ex;
+
+		}
+
+	}
+
+	@Override
+	public void closeConnection(Connection connection) throws SQLException {
+
+		// ignore nulls
+		if (connection == null) return;
+
+		// the pooled connection for this connection
+		PooledConnection pooledConnection = null;
+
+		// remove it from the borrowed connections
+		synchronized (this) {
+			pooledConnection = _borrowedConnections.remove(connection);
+		}
+
+		// if this wasn't one of our borrowed connections, just close it (it may have been returned already)
+		if (pooledConnection == null) {
+			if (!connection.isClosed() && !isIdle(connection)) connection.close();
+			return;
+		}
+
+		try {
+
+			// if the pool is still open and the connection can be reset, put it back for the next borrower
+			if (!_closed && reset(connection)) {
+				// reset its statements for the next borrower too
+				if (pooledConnection.getStatementCache() != null) pooledConnection.getStatementCache().reset();
+				pooledConnection._lastUsedTime = System.currentTimeMillis();
+				pooledConnection._borrower = null;
+				_idleConnections.offerFirst(pooledConnection);
+			} else {
+				discard(pooledConnection);
+			}
+
+		} finally {
+
+			// always give the permit back
+			_permits.release();
+
+		}
+
+	}
+
+	@Override
+	public PreparedStatement prepareStatement(Connection connection, String sql) throws SQLException {
+
+		// the statement cache of this connection
+		StatementCache statementCache = null;
+
+		// get it from the borrowed connection
+		synchronized (this) {
+			PooledConnection pooledConnection = _borrowedConnections.get(connection);
+			if (pooledConnection != null) statementCache = pooledConnection.getStatementCache();
+		}
+
+		// if we're not caching statements, or this isn't one of our connections, prepare as usual
+		if (statementCache == null) return super.prepareStatement(connection, sql);
+
+		// try the cache
+		PreparedStatement statement = statementCache.get(sql);
+
+		// if we didn't get one
+		if (statement == null) {
+			// count the miss
+			_statementCacheMisses.incrementAndGet();
+			// prepare a new one
+			statement = connection.prepareStatement(sql);
+			// add it to the cache
+			statementCache.put(sql, statement);
+		} else {
+			// count the hit
+			_statementCacheHits.incrementAndGet();
+		}
+
+		return statement;
+
+	}
+
+	@Override
+	public void closeStatement(Connection connection, PreparedStatement statement) throws SQLException {
+
+		// the statement cache of this connection
+		StatementCache statementCache = null;
+
+		// get it from the borrowed connection
+		synchronized (this) {
+			PooledConnection pooledConnection = _borrowedConnections.get(connection);
+			if (pooledConnection != null) statementCache = pooledConnection.getStatementCache();
+		}
+
+		// if the cache doesn't keep it, close it
+		if (statementCache == null || !statementCache.release(statement)) statement.close();
+
+	}
+
+	@Override
+	public void close() throws SQLException {
+
+		// stop lending
+		_closed = true;
+
+		// stop the housekeeper
+		synchronized (this) {
+			if (_housekeeper != null) _housekeeper.interrupt();
+			_housekeeper = null;
+		}
+
+		// close all of the idle connections, borrowed ones will be closed when they are returned
+		List<PooledConnection> idleConnections = new ArrayList<>();
+		_idleConnections.drainTo(idleConnections);
+		for (PooledConnection pooledConnection : idleConnections) discard(pooledConnection);
+
+		// forget us
+		_pools.remove(this);
+
+		_logger.info("Connection pool for " + _connectionString + " closed, statement cache hits " + _statementCacheHits.get() + ", misses " + _statementCacheMisses.get());
+
+	}
+
+	// static methods
+
+	// all of the pools that are open, for the metrics
+	public static List<PooledConnectionAdapter> getPools() {
+		return new ArrayList<>(_pools);
+	}
+
+	// a description of who borrowed the connection for the leak log
+	private static String getBorrower(RapidRequest rapidRequest) {
+		// no request is likely a process or background task
+		if (rapidRequest == null) return "no request";
+		// start with the app
+		String borrower = "app " + rapidRequest.getAppId();
+		// add the action if there is one
+		if (rapidRequest.getAction() != null) {
+			borrower += ", action " + rapidRequest.getAction().getId();
+		} else if (rapidRequest.getActionName() != null) {
+			borrower += ", action " + rapidRequest.getActionName();
+		}
+		return borrower;
+	}
+
+}
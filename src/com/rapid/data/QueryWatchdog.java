@@ -0,0 +1,186 @@
+/*
+
+Copyright (C) 2022 - Gareth Edwards / Rapid Information Systems
+
+gareth.edwards@rapid-is.co.uk
+
+
+This file is part of the Rapid Application Platform
+
+Rapid is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version. The terms require you
+to include the original copyright, and the license notice in all redistributions.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+in a file named "COPYING".  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package com.rapid.data;
+
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.rapid.server.RapidRequest;
+
+/*
+
+This thread is made by the context listener and watches the statements the data factories are running for requests.
+It cancels any whose request has passed its deadline, or whose client has gone so the response can no longer be
+written, rather than leaving them to hold a thread and a database session until they finish by themselves.
+
+*/
+
+public class QueryWatchdog extends Thread {
+
+	// a statement being watched for a request
+	public static class Watch {
+
+		private Statement _statement;
+		private RapidRequest _rapidRequest;
+		private volatile String _reason;
+
+		public Watch(Statement statement, RapidRequest rapidRequest) {
+			_statement = statement;
+			_rapidRequest = rapidRequest;
+		}
+
+		public Statement getStatement() { return _statement; }
+		public RapidRequest getRapidRequest() { return _rapidRequest; }
+
+		// why the statement was cancelled, or null if it wasn't
+		public String getReason() { return _reason; }
+
+	}
+
+	// default number of seconds between checks, can be set with the queryWatchdogInterval context parameter
+	public static final int INTERVAL = 1;
+
+	// private static variables
+	private static Logger _logger = LogManager.getLogger(QueryWatchdog.class);
+
+	// private instance variables
+	private long _interval;
+	private Set<Watch> _watches;
+	private volatile boolean _stopped;
+
+	// constructor
+
+	public QueryWatchdog(int interval) {
+		super("Rapid query watchdog");
+		// don't stop the server shutting down
+		setDaemon(true);
+		// retain the interval in millis
+		_interval = Math.max(1, interval) * 1000L;
+		// make the set of watches
+		_watches = ConcurrentHashMap.newKeySet();
+	}
+
+	// properties
+
+	// the number of statements being watched
+	public int getWatchCount() { return _watches.size(); }
+
+	// public methods
+
+	// starts watching a statement for a request, returning the watch to give back to unwatch
+	public Watch watch(Statement statement, RapidRequest rapidRequest) {
+		Watch watch = new Watch(statement, rapidRequest);
+		_watches.add(watch);
+		return watch;
+	}
+
+	// stops watching a statement, when it's been closed
+	public void unwatch(Watch watch) {
+		if (watch != null) _watches.remove(watch);
+	}
+
+	// stops the thread
+	public void close() {
+		_stopped = true;
+		interrupt();
+	}
+
+	// overrides
+
+	@Override
+	public void run() {
+
+		_logger.info("Query watchdog started, checking every " + _interval / 1000 + " seconds");
+
+		while (!_stopped) {
+
+			try {
+
+				// wait for the next check
+				Thread.sleep(_interval);
+
+				// now
+				long now = System.currentTimeMillis();
+
+				// loop the watches
+				for (Watch watch : _watches) {
+
+					// skip any we've already cancelled
+					if (watch._reason != null) continue;
+
+					// get the request
+					RapidRequest rapidRequest = watch.getRapidRequest();
+
+					// check the client is still there, and the request's deadline
+					if (rapidRequest.getDisconnected()) {
+						cancel(watch, DataFactory.QueryCancelledException.DISCONNECTED);
+					} else if (rapidRequest.getDeadline() > 0 && now > rapidRequest.getDeadline()) {
+						cancel(watch, DataFactory.QueryCancelledException.DEADLINE);
+					}
+
+				}
+
+			} catch (InterruptedException ex) {
+
+				// we've been stopped
+
+			} catch (Exception ex) {
+
+				_logger.error("Error in query watchdog", ex);
+
+			}
+
+		}
+
+		_logger.info("Query watchdog stopped");
+
+	}
+
+	// private methods
+
+	// cancels a watched statement, remembering why
+	private void cancel(Watch watch, String reason) {
+
+		// remember why first so the data factory knows when the statement fails
+		watch._reason = reason;
+
+		try {
+			// ask the database to stop
+			watch.getStatement().cancel();
+			// log
+			_logger.warn("Query cancelled (" + reason + ") for app " + watch.getRapidRequest().getAppId() + (watch.getRapidRequest().getAction() == null ? "" : " action " + watch.getRapidRequest().getAction().getId()));
+		} catch (SQLException ex) {
+			_logger.debug("Error cancelling query : " + ex.getMessage());
+		}
+
+	}
+
+}
@@ -0,0 +1,274 @@
+/*
+
+Copyright (C) 2022 - Gareth Edwards / Rapid Information Systems
+
+gareth.edwards@rapid-is.co.uk
+
+
+This file is part of the Rapid Application Platform
+
+Rapid is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version. The terms require you
+to include the original copyright, and the license notice in all redistributions.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+in a file named "COPYING".  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package com.rapid.data;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletContext;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.rapid.server.RapidRequest;
+
+/*
+
+This adapter is made by the database connection when it has replica connection strings. It wraps an
+adapter for the primary and one for each replica, all of the database connection's adapter class.
+Read only connections come from a replica, unless the request has already written, and everything
+else comes from the primary. A replica that fails to give a connection is left out for a while, with
+its reads going to the other replicas or the primary.
+
+*/
+
+public class ReplicaConnectionAdapter extends ConnectionAdapter {
+
+	// a replica and how it's doing
+	private static class Replica {
+
+		private ConnectionAdapter _connectionAdapter;
+		private AtomicInteger _busy;
+		private volatile long _ejectedUntil;
+
+		public Replica(ConnectionAdapter connectionAdapter) {
+			_connectionAdapter = connectionAdapter;
+			_busy = new AtomicInteger();
+		}
+
+		public ConnectionAdapter getConnectionAdapter() { return _connectionAdapter; }
+		public AtomicInteger getBusy() { return _busy; }
+
+		public boolean isEjected() { return _ejectedUntil > System.currentTimeMillis(); }
+		public void eject(long time) { _ejectedUntil = System.currentTimeMillis() + time; }
+		public void restore() { _ejectedUntil = 0; }
+
+	}
+
+	// routing
+	public static final String ROUND_ROBIN = "roundRobin";
+	public static final String LEAST_BUSY = "leastBusy";
+
+	// default number of seconds a failed replica is left out for, can be set with the replicaEjectTime context parameter
+	public static final int EJECT_TIME = 30;
+
+	// private static variables
+	private static Logger _logger = LogManager.getLogger(ReplicaConnectionAdapter.class);
+
+	// private instance variables
+	private ConnectionAdapter _primary;
+	private Replica[] _replicas;
+	private boolean _leastBusy;
+	private long _ejectTime;
+	private AtomicInteger _next;
+	private Map<Connection, Replica> _replicaConnections;
+
+	// constructor
+
+	public ReplicaConnectionAdapter(ServletContext servletContext, ConnectionAdapter primary, List<ConnectionAdapter> replicas, String routing) {
+		// the primary's details are ours
+		super(servletContext, primary.getDriverClass(), primary.getConnectionString(), primary.getUserName(), primary.getPassword());
+		// retain the primary
+		_primary = primary;
+		// make the replicas
+		_replicas = new Replica[replicas.size()];
+		for (int i = 0; i < _replicas.length; i++) _replicas[i] = new Replica(replicas.get(i));
+		// round robin unless least busy is asked for
+		_leastBusy = LEAST_BUSY.equals(routing);
+		// get the eject time
+		int ejectTime = EJECT_TIME;
+		String ejectTimeParameter = servletContext == null ? null : servletContext.getInitParameter("replicaEjectTime");
+		if (ejectTimeParameter != null) {
+			try {
+				ejectTime = Integer.parseInt(ejectTimeParameter.trim());
+			} catch (NumberFormatException ex) {
+				_logger.error("replicaEjectTime " + ejectTimeParameter + " is not a number, using " + ejectTime);
+			}
+		}
+		_ejectTime = ejectTime * 1000L;
+		// start at the first replica
+		_next = new AtomicInteger();
+		// the connections lent from replicas, so they go back to the right one
+		_replicaConnections = new IdentityHashMap<>();
+	}
+
+	// properties
+
+	public ConnectionAdapter getPrimary() { return _primary; }
+	public int getReplicaCount() { return _replicas.length; }
+
+	// the number of replicas currently left out after failing
+	public int getEjectedCount() {
+		int count = 0;
+		for (Replica replica : _replicas) if (replica.isEjected()) count ++;
+		return count;
+	}
+
+	// private methods
+
+	// the replica to try first, or null if they've all been ejected
+	private Replica chooseReplica() {
+
+		// the replica we'll choose
+		Replica chosen = null;
+
+		if (_leastBusy) {
+
+			// loop the replicas looking for the one with the fewest connections out
+			for (Replica replica : _replicas) {
+				if (!replica.isEjected() && (chosen == null || replica.getBusy().get() < chosen.getBusy().get())) chosen = replica;
+			}
+
+		} else {
+
+			// take the next position, keeping it positive if it wraps
+			int start = (_next.getAndIncrement() & Integer.MAX_VALUE) % _replicas.length;
+
+			// loop from there until we find one that's not ejected
+			for (int i = 0; i < _replicas.length && chosen == null; i++) {
+				Replica replica = _replicas[(start + i) % _replicas.length];
+				if (!replica.isEjected()) chosen = replica;
+			}
+
+		}
+
+		return chosen;
+
+	}
+
+	// the adapter that lent a connection
+	private synchronized ConnectionAdapter getConnectionAdapter(Connection connection) {
+		Replica replica = _replicaConnections.get(connection);
+		if (replica == null) return _primary;
+		return replica.getConnectionAdapter();
+	}
+
+	// overrides
+
+	@Override
+	public Connection getConnection(RapidRequest rapidRequest) throws ConnectionAdapterException, SQLException, ClassNotFoundException {
+		// anything that may write uses the primary
+		return _primary.getConnection(rapidRequest);
+	}
+
+	@Override
+	public Connection getReadOnlyConnection(RapidRequest rapidRequest) throws ConnectionAdapterException, SQLException, ClassNotFoundException {
+
+		// if this request has already written it must read from the primary to see its changes
+		if (rapidRequest != null && rapidRequest.getDatabaseWritten()) return _primary.getConnection(rapidRequest);
+
+		// try a replica at a time, ejecting any that fail, until we get a connection or there are none left
+		Replica replica = chooseReplica();
+		while (replica != null) {
+
+			try {
+
+				// get a connection from the replica
+				Connection connection = replica.getConnectionAdapter().getConnection(rapidRequest);
+
+				// remember where it came from and that the replica is busier
+				synchronized (this) {
+					_replicaConnections.put(connection, replica);
+				}
+				replica.getBusy().incrementAndGet();
+
+				// it worked so it's healthy
+				replica.restore();
+
+				return connection;
+
+			} catch (ConnectionAdapterException ex) {
+
+				// the adapter couldn't lend a connection, likely as its pool is full, rather than the replica failing so just use the primary this time
+				_logger.debug("Replica " + replica.getConnectionAdapter().getConnectionString() + " has no connection available : " + ex.getMessage());
+
+				break;
+
+			} catch (SQLException ex) {
+
+				// leave this replica out for a while
+				replica.eject(_ejectTime);
+
+				_logger.warn("Replica " + replica.getConnectionAdapter().getConnectionString() + " failed and is ejected for " + _ejectTime / 1000 + " seconds : " + ex.getMessage());
+
+			}
+
+			// try another
+			replica = chooseReplica();
+
+		}
+
+		// no replica was available so use the primary
+		return _primary.getConnection(rapidRequest);
+
+	}
+
+	@Override
+	public void closeConnection(Connection connection) throws SQLException {
+
+		// the replica the connection came from, if any
+		Replica replica = null;
+
+		synchronized (this) {
+			replica = _replicaConnections.remove(connection);
+		}
+
+		if (replica == null) {
+			// not one of the replica's so it's the primary's
+			_primary.closeConnection(connection);
+		} else {
+			// the replica is less busy
+			replica.getBusy().decrementAndGet();
+			// give it back
+			replica.getConnectionAdapter().closeConnection(connection);
+		}
+
+	}
+
+	@Override
+	public PreparedStatement prepareStatement(Connection connection, String sql) throws SQLException {
+		return getConnectionAdapter(connection).prepareStatement(connection, sql);
+	}
+
+	@Override
+	public void closeStatement(Connection connection, PreparedStatement statement) throws SQLException {
+		getConnectionAdapter(connection).closeStatement(connection, statement);
+	}
+
+	@Override
+	public void close() throws SQLException {
+		// close the primary
+		_primary.close();
+		// close the replicas
+		for (Replica replica : _replicas) replica.getConnectionAdapter().close();
+	}
+
+}
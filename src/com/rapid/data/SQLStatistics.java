@@ -0,0 +1,329 @@
+/*
+
+Copyright (C) 2022 - Gareth Edwards / Rapid Information Systems
+
+gareth.edwards@rapid-is.co.uk
+
+
+This file is part of the Rapid Application Platform
+
+Rapid is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version. The terms require you
+to include the original copyright, and the license notice in all redistributions.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+in a file named "COPYING".  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package com.rapid.data;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.rapid.data.DataFactory.Parameter;
+import com.rapid.server.RapidRequest;
+
+/*
+
+This class is made by the context listener and counts the sql the data factories run, for each application, action, and
+sql fingerprint - the sql with its literals replaced and its whitespace and case normalised so the same query is counted
+together. The counters are striped adders so the many request threads recording at once don't contend. Executions that
+take longer than the slow query threshold are written to the SlowQueries log with the types, but not the values, of
+their parameters.
+
+*/
+
+public class SQLStatistics {
+
+	// the statistics for one application, action, and sql fingerprint
+	public static class Statistic {
+
+		private String _appId, _actionId, _sql;
+		private LongAdder _executions, _errors, _rows, _totalNanos;
+		private AtomicLong _maxNanos;
+		private LongAdder[] _histogram;
+
+		public Statistic(String appId, String actionId, String sql) {
+			_appId = appId;
+			_actionId = actionId;
+			_sql = sql;
+			_executions = new LongAdder();
+			_errors = new LongAdder();
+			_rows = new LongAdder();
+			_totalNanos = new LongAdder();
+			_maxNanos = new AtomicLong();
+			// a bucket for each bound, and one for everything slower
+			_histogram = new LongAdder[HISTOGRAM_MILLIS.length + 1];
+			for (int i = 0; i < _histogram.length; i++) _histogram[i] = new LongAdder();
+		}
+
+		public String getAppId() { return _appId; }
+		public String getActionId() { return _actionId; }
+		public String getSQL() { return _sql; }
+		public long getExecutions() { return _executions.sum(); }
+		public long getErrors() { return _errors.sum(); }
+		public long getRows() { return _rows.sum(); }
+		public long getTotalNanos() { return _totalNanos.sum(); }
+		public long getMaxNanos() { return _maxNanos.get(); }
+
+		// counts an execution
+		public void record(long nanos, boolean error) {
+			_executions.increment();
+			if (error) _errors.increment();
+			_totalNanos.add(nanos);
+			// raise the max if this was slower, trying again if another thread changed it first
+			long maxNanos = _maxNanos.get();
+			while (nanos > maxNanos && !_maxNanos.compareAndSet(maxNanos, nanos)) maxNanos = _maxNanos.get();
+			// find the bucket
+			long millis = nanos / 1000000;
+			int bucket = 0;
+			while (bucket < HISTOGRAM_MILLIS.length && millis > HISTOGRAM_MILLIS[bucket]) bucket ++;
+			_histogram[bucket].increment();
+		}
+
+		// counts rows read or updated
+		public void addRows(long rows) {
+			if (rows > 0) _rows.add(rows);
+		}
+
+		// the statistic as json for the admin app
+		public JSONObject toJSON() throws JSONException {
+			JSONObject jsonStatistic = new JSONObject();
+			long executions = getExecutions();
+			long totalNanos = getTotalNanos();
+			jsonStatistic.put("appId", _appId);
+			jsonStatistic.put("actionId", _actionId);
+			jsonStatistic.put("sql", _sql);
+			jsonStatistic.put("executions", executions);
+			jsonStatistic.put("errors", getErrors());
+			jsonStatistic.put("rows", getRows());
+			jsonStatistic.put("totalMillis", totalNanos / 1000000);
+			jsonStatistic.put("meanMillis", executions == 0 ? 0 : totalNanos / executions / 1000000.0);
+			jsonStatistic.put("maxMillis", getMaxNanos() / 1000000);
+			JSONArray jsonHistogram = new JSONArray();
+			for (LongAdder bucket : _histogram) jsonHistogram.put(bucket.sum());
+			jsonStatistic.put("histogram", jsonHistogram);
+			return jsonStatistic;
+		}
+
+	}
+
+	// the upper bounds in millis of the latency histogram buckets, there's one more bucket for anything slower
+	public static final long[] HISTOGRAM_MILLIS = {1, 5, 10, 50, 100, 500, 1000, 5000, 10000};
+
+	// default number of millis an execution must take to be logged as slow, can be set with the slowQueryThreshold context parameter, 0 turns off the slow query log
+	public static final int SLOW_THRESHOLD = 1000;
+
+	// the longest fingerprint we keep
+	private static final int MAX_SQL_LENGTH = 1000;
+
+	// the most fingerprints we remember for sql we've seen, before starting again
+	private static final int MAX_FINGERPRINTS = 10000;
+
+	// private static variables
+	private static Logger _logger = LogManager.getLogger(SQLStatistics.class);
+	private static Logger _slowLogger = LogManager.getLogger("SlowQueries");
+
+	// private instance variables
+	private Map<String, Statistic> _statistics;
+	private Map<String, String> _fingerprints;
+	private long _slowThresholdNanos;
+	private long _started;
+
+	// constructor
+
+	public SQLStatistics(int slowThreshold) {
+		_statistics = new ConcurrentHashMap<>();
+		_fingerprints = new ConcurrentHashMap<>();
+		_slowThresholdNanos = slowThreshold * 1000000L;
+		_started = System.currentTimeMillis();
+		_logger.info("SQL statistics started, logging queries slower than " + slowThreshold + " ms");
+	}
+
+	// properties
+
+	// when the statistics were started, or last reset
+	public long getStarted() { return _started; }
+
+	// public methods
+
+	// the statistic to record an execution of some sql for a request against
+	public Statistic getStatistic(RapidRequest rapidRequest, String sql) {
+		// get the app and action
+		String appId = rapidRequest == null ? null : rapidRequest.getAppId();
+		String actionId = null;
+		if (rapidRequest != null) actionId = rapidRequest.getAction() == null ? rapidRequest.getActionName() : rapidRequest.getAction().getId();
+		// get the fingerprint we made when we first saw this sql
+		String fingerprint = sql == null ? "" : _fingerprints.get(sql);
+		// if we haven't seen it before
+		if (fingerprint == null) {
+			// make it
+			fingerprint = getFingerprint(sql);
+			// start again if we've seen a lot, likely from sql with literals in it
+			if (_fingerprints.size() >= MAX_FINGERPRINTS) _fingerprints.clear();
+			// remember it
+			_fingerprints.put(sql, fingerprint);
+		}
+		// the key
+		String key = appId + "|" + actionId + "|" + fingerprint;
+		// get the statistic
+		Statistic statistic = _statistics.get(key);
+		// if there isn't one yet
+		if (statistic == null) {
+			// make one
+			Statistic newStatistic = new Statistic(appId, actionId, fingerprint);
+			// add it, unless another thread just did
+			statistic = _statistics.putIfAbsent(key, newStatistic);
+			// if it was us use ours
+			if (statistic == null) statistic = newStatistic;
+		}
+		return statistic;
+	}
+
+	// records an execution, logging it if it's slow
+	public void record(Statistic statistic, long nanos, boolean error, List<Parameter> parameters) {
+		// count it
+		statistic.record(nanos, error);
+		// if it was slow
+		if (_slowThresholdNanos > 0 && nanos >= _slowThresholdNanos) {
+			// log the types of the parameters, but not their values which may be personal
+			_slowLogger.warn(nanos / 1000000 + " ms" + (error ? " (error)" : "") + " app " + statistic.getAppId() + " action " + statistic.getActionId() + " : " + statistic.getSQL() + " : parameters " + getParameterTypes(parameters));
+		}
+	}
+
+	// all of the statistics as json, the slowest in total first
+	public JSONObject toJSON() throws JSONException {
+
+		// get the statistics
+		List<Statistic> statistics = new ArrayList<>(_statistics.values());
+
+		// sort them by total time
+		Collections.sort(statistics, new Comparator<Statistic>() {
+			@Override
+			public int compare(Statistic s1, Statistic s2) {
+				return Long.compare(s2.getTotalNanos(), s1.getTotalNanos());
+			}
+		});
+
+		// make the json
+		JSONObject jsonStatistics = new JSONObject();
+		jsonStatistics.put("started", _started);
+		jsonStatistics.put("slowThresholdMillis", _slowThresholdNanos / 1000000);
+		JSONArray jsonHistogramMillis = new JSONArray();
+		for (long millis : HISTOGRAM_MILLIS) jsonHistogramMillis.put(millis);
+		jsonStatistics.put("histogramMillis", jsonHistogramMillis);
+		JSONArray jsonQueries = new JSONArray();
+		for (Statistic statistic : statistics) jsonQueries.put(statistic.toJSON());
+		jsonStatistics.put("queries", jsonQueries);
+
+		return jsonStatistics;
+
+	}
+
+	// clears all of the statistics
+	public void reset() {
+		_statistics.clear();
+		_started = System.currentTimeMillis();
+		_logger.info("SQL statistics reset");
+	}
+
+	// static methods
+
+	// the sql with literals replaced by ?, whitespace collapsed, and in lower case, so executions of the same query with different values are counted together
+	public static String getFingerprint(String sql) {
+
+		// check we got some
+		if (sql == null) return "";
+
+		// make a builder for the fingerprint
+		StringBuilder fingerprint = new StringBuilder(Math.min(sql.length(), MAX_SQL_LENGTH));
+
+		// whether the last character added was a space
+		boolean space = false;
+
+		// loop the characters
+		for (int i = 0; i < sql.length() && fingerprint.length() < MAX_SQL_LENGTH; i++) {
+
+			// get the character
+			char c = sql.charAt(i);
+
+			if (c == '\'') {
+				// skip to the end of the string literal
+				i++;
+				while (i < sql.length()) {
+					if (sql.charAt(i) == '\'') {
+						// a doubled quote is an escaped quote, otherwise it's the end
+						if (i + 1 < sql.length() && sql.charAt(i + 1) == '\'') {
+							i += 2;
+							continue;
+						}
+						break;
+					}
+					i++;
+				}
+				fingerprint.append('?');
+				space = false;
+			} else if (Character.isDigit(c) && (fingerprint.length() == 0 || !Character.isLetterOrDigit(fingerprint.charAt(fingerprint.length() - 1)) && fingerprint.charAt(fingerprint.length() - 1) != '_')) {
+				// skip the rest of the number
+				while (i + 1 < sql.length() && (Character.isDigit(sql.charAt(i + 1)) || sql.charAt(i + 1) == '.')) i++;
+				fingerprint.append('?');
+				space = false;
+			} else if (Character.isWhitespace(c)) {
+				// collapse any whitespace to a single space
+				if (!space && fingerprint.length() > 0) fingerprint.append(' ');
+				space = true;
+			} else {
+				fingerprint.append(Character.toLowerCase(c));
+				space = false;
+			}
+
+		}
+
+		return fingerprint.toString().trim();
+
+	}
+
+	// the types of the parameters, for the slow query log
+	public static String getParameterTypes(List<Parameter> parameters) {
+		// check we got some
+		if (parameters == null || parameters.size() == 0) return "none";
+		// make a builder
+		StringBuilder types = new StringBuilder();
+		// loop them
+		for (Parameter parameter : parameters) {
+			if (types.length() > 0) types.append(", ");
+			switch (parameter.getType()) {
+			case Parameter.NULL : types.append("null"); break;
+			case Parameter.STRING : types.append("string"); break;
+			case Parameter.DATE : types.append("date"); break;
+			case Parameter.INTEGER : types.append("integer"); break;
+			case Parameter.FLOAT : types.append("float"); break;
+			case Parameter.DOUBLE : types.append("double"); break;
+			case Parameter.LONG : types.append("long"); break;
+			default : types.append("unknown");
+			}
+		}
+		return types.toString();
+	}
+
+}
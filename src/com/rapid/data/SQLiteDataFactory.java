@@ -28,49 +28,59 @@ package com.rapid.data;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+import javax.servlet.ServletContext;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.sqlite.SQLiteConnection;
 
 import com.rapid.data.ConnectionAdapter.ConnectionAdapterException;
 import com.rapid.server.RapidRequest;
 
-// this class extends the data factory for SQLite providing a static connection for updates and synchronisation to avoid file locks
+// this class extends the data factory for SQLite providing a static connection for updates and synchronisation to avoid file locks, or in WAL mode a writer thread and pool of readers for each database file
 public class SQLiteDataFactory extends DataFactory {
 
+	// our logger
+	private static Logger _logger = LogManager.getLogger(SQLiteDataFactory.class);
+
 	// a map of static connections used by all overrides
-	protected static Map<String,SQLiteConnection> _appStaticConnections;
-	// a lock object for synchronising the update calls which we make in the constructor
-	protected static Map<String,Object> _appLocks;
+	protected static Map<String,SQLiteConnection> _appStaticConnections = new ConcurrentHashMap<>();
+	// a lock object for synchronising the update calls for each app/version
+	protected static Map<String,Object> _appLocks = new ConcurrentHashMap<>();
+	// the WAL mode databases, by connection string so apps sharing a file share its writer
+	protected static Map<String,SQLiteDatabase> _databases = new ConcurrentHashMap<>();
 
 	// the static connection key for this app/version
 	protected String _key;
+	// the WAL mode database our connection was read from, if it was
+	protected SQLiteDatabase _readDatabase;
 
 	// constructors
 	public SQLiteDataFactory(ConnectionAdapter connectionAdapter) {
 		// call the super
 		super(connectionAdapter);
-		// create the static connections map
-		if (_appStaticConnections == null) _appStaticConnections = new HashMap<>();
-		// create the object we will use for locking
-		if (_appLocks == null) _appLocks = new HashMap<>();
 	}
 
 	public SQLiteDataFactory(ConnectionAdapter connectionAdapter, boolean autoCommit) {
 		// call the super
 		super(connectionAdapter, autoCommit);
-		// create the static connections map
-		if (_appStaticConnections == null) _appStaticConnections = new HashMap<>();
-		// create the object we will use for locking
-		if (_appLocks == null) _appLocks = new HashMap<>();
 	}
 
 
 	// we change the process in this override ever so slightly to allow non-update calls to have their own connection
 	@Override
 	public Connection getConnection(RapidRequest rapidRequest) throws SQLException, ClassNotFoundException, ConnectionAdapterException {
+		// in WAL mode reads use one of the database's query only connections
+		SQLiteDatabase database = getDatabase(rapidRequest);
+		if (database != null) {
+			_connection = database.getReadConnection(rapidRequest);
+			_readDatabase = database;
+			return _connection;
+		}
 		SQLiteConnection sqliteConnection = (SQLiteConnection) _connectionAdapter.getConnection(rapidRequest);
 		sqliteConnection.setTransactionIsolation(SQLiteConnection.TRANSACTION_READ_UNCOMMITTED); // allow dirty read - it doesn't seem to make much difference, committing the updates was the big thing
 		sqliteConnection.setBusyTimeout(20000); // a 20 second busy timeout - updates must be COMMITED!
@@ -78,14 +88,8 @@ public class SQLiteDataFactory extends DataFactory {
 		return _connection;
 	}
 
-	// this new method ensures the connection used on update calls is the static one and is used in a synchronised way
-	public PreparedStatement getPreparedUpdateStatement(RapidRequest rapidRequest, String sql, List<Parameter> parameters) throws SQLException, ClassNotFoundException, ConnectionAdapterException  {
-
-		// trim and retain sql
-		_sql = sql.trim();
-
-		// close any previous statement
-		if (_preparedStatement != null) _preparedStatement.close();
+	// the lock for this app/version, making it if need be
+	protected Object getLock(RapidRequest rapidRequest) {
 
 		// make a _key if we need one
 		if (_key == null) _key = rapidRequest.getApplication().getId() + "-" + rapidRequest.getApplication().getVersion();
@@ -96,33 +100,101 @@ public class SQLiteDataFactory extends DataFactory {
 		// if lock doesn not exist yet
 		if (lock == null) {
 			// make a new one
-			lock = new Object();
-			// retain it
-			_appLocks.put(_key,lock);
+			Object newLock = new Object();
+			// retain it, unless another thread just did in which case use theirs
+			lock = _appLocks.putIfAbsent(_key, newLock);
+			// if it was us use ours
+			if (lock == null) lock = newLock;
 		}
 
-		// synchronise the execution of prepared statements on the static connection to avoid file lock errors
-		synchronized(lock) {
+		return lock;
 
-			// try and get a static connection
-			SQLiteConnection connection = _appStaticConnections.get(_key);
+	}
 
-			// if we don't have a static connection yet for this key, or the one we have is closed
-			if (connection == null || connection.isClosed()) {
-				// make a new static connection if we need one
-				connection = (SQLiteConnection) _connectionAdapter.getConnection(rapidRequest);
-				connection.setAutoCommit(true);
-				connection.setReadOnly(false);
-				connection.setBusyTimeout(1000);
-				// store it
-				_appStaticConnections.put(_key, connection);
-			}
+	// the WAL mode database for our connection string, making it if need be, or null if the sqliteMode context parameter isn't wal
+	protected SQLiteDatabase getDatabase(RapidRequest rapidRequest) {
+
+		// we need the servlet context for the parameters
+		ServletContext servletContext = rapidRequest == null ? null : rapidRequest.getServletContext();
+
+		// check we're in WAL mode
+		if (servletContext == null || !"wal".equalsIgnoreCase(servletContext.getInitParameter("sqliteMode"))) return null;
+
+		// get the connection string
+		String connectionString = _connectionAdapter.getConnectionString();
+
+		// get the database
+		SQLiteDatabase database = _databases.get(connectionString);
+
+		// if we don't have one yet
+		if (database == null) {
+			// make a new one, with the number of readers and writes to commit together
+			SQLiteDatabase newDatabase = new SQLiteDatabase(_connectionAdapter, getIntParameter(servletContext, "sqliteReaders", SQLiteDatabase.READERS), getIntParameter(servletContext, "sqliteGroupSize", SQLiteDatabase.GROUP_SIZE));
+			// retain it, unless another thread just did in which case use theirs
+			database = _databases.putIfAbsent(connectionString, newDatabase);
+			// if it was us use ours
+			if (database == null) database = newDatabase;
+		}
+
+		return database;
+
+	}
+
+	// the milliseconds to wait for the WAL mode writer, until the request's deadline, or for the query timeout, or the default
+	protected long getWriteTimeout(RapidRequest rapidRequest) {
+		// use the deadline if the request has one
+		long deadline = rapidRequest == null ? 0 : rapidRequest.getDeadline();
+		if (deadline > 0) return Math.max(1, deadline - System.currentTimeMillis());
+		// use the query timeout if the action has one
+		if (_queryTimeout > 0) return _queryTimeout * 1000L;
+		// use the default
+		return SQLiteDatabase.WRITE_TIMEOUT;
+	}
+
+	// the static connection for this app/version, making it if need be - only call this when synchronised on the lock
+	protected SQLiteConnection getStaticConnection(RapidRequest rapidRequest) throws SQLException, ClassNotFoundException, ConnectionAdapterException {
+
+		// try and get a static connection
+		SQLiteConnection connection = _appStaticConnections.get(_key);
+
+		// if we don't have a static connection yet for this key, or the one we have is closed
+		if (connection == null || connection.isClosed()) {
+			// make a new static connection if we need one
+			connection = (SQLiteConnection) _connectionAdapter.getConnection(rapidRequest);
+			connection.setAutoCommit(true);
+			connection.setReadOnly(false);
+			connection.setBusyTimeout(1000);
+			// store it
+			_appStaticConnections.put(_key, connection);
+		}
+
+		return connection;
+
+	}
+
+	// this new method ensures the connection used on update calls is the static one and is used in a synchronised way
+	public PreparedStatement getPreparedUpdateStatement(RapidRequest rapidRequest, String sql, List<Parameter> parameters) throws SQLException, ClassNotFoundException, ConnectionAdapterException  {
+
+		// trim and retain sql
+		_sql = sql.trim();
+
+		// close any previous statement
+		closeStatement();
+
+		// get the lock
+		Object lock = getLock(rapidRequest);
+
+		// synchronise the execution of prepared statements on the static connection to avoid file lock errors
+		synchronized(lock) {
 
 			// get our prepared statement
-			_preparedStatement = connection.prepareStatement(_sql);
+			_preparedStatement = getStaticConnection(rapidRequest).prepareStatement(_sql);
 
 		}
 
+		// set the query timeout if we have one
+		if (_queryTimeout > 0) _preparedStatement.setQueryTimeout(_queryTimeout);
+
 		// don't check parameter numbers for exec queries
 		populateStatement(rapidRequest, _preparedStatement, parameters, 0, !_sql.startsWith("exec"));
 
@@ -130,9 +202,62 @@ public class SQLiteDataFactory extends DataFactory {
 
 	}
 
-	// this override uses the new getPreparedUpdateStatement
+	// this override uses the new getPreparedUpdateStatement, or in WAL mode the database's writer
 	@Override
-	public int getPreparedUpdate(RapidRequest rapidRequest, String sql, List<Parameter> parameters) throws SQLException, ClassNotFoundException, ConnectionAdapterException {
+	public int getPreparedUpdate(final RapidRequest rapidRequest, String sql, final List<Parameter> parameters) throws SQLException, ClassNotFoundException, ConnectionAdapterException {
+
+		// get the WAL mode database, if we're using one
+		SQLiteDatabase database = getDatabase(rapidRequest);
+
+		// if we are
+		if (database != null) {
+
+			// trim and retain sql
+			_sql = sql.trim();
+
+			// the sql for the writer
+			final String updateSQL = _sql;
+
+			// assume an issue with the rows updated
+			int rows = -1;
+
+			// when we started, for the statistics
+			long start = System.nanoTime();
+			// assume an error until we're done
+			boolean error = true;
+
+			try {
+
+				// have the writer do the update, committed with any others waiting
+				rows = database.write(rapidRequest, new SQLiteDatabase.Write() {
+					@Override
+					public int execute(Connection connection) throws SQLException {
+						PreparedStatement ps = connection.prepareStatement(updateSQL);
+						try {
+							// set the query timeout if we have one
+							if (_queryTimeout > 0) ps.setQueryTimeout(_queryTimeout);
+							// don't check parameter numbers for exec queries
+							populateStatement(rapidRequest, ps, parameters, 0, !updateSQL.startsWith("exec"));
+							return ps.executeUpdate();
+						} finally {
+							ps.close();
+						}
+					}
+				}, getWriteTimeout(rapidRequest));
+
+				error = false;
+
+			} finally {
+
+				// record the execution
+				recordStatistic(rapidRequest, sql, start, error, parameters, rows);
+
+			}
+
+			// return the rows
+			return rows;
+
+		}
 
 		// get a prepared statement (also synchronised)
 		PreparedStatement ps = getPreparedUpdateStatement(rapidRequest, sql, parameters);
@@ -141,21 +266,29 @@ public class SQLiteDataFactory extends DataFactory {
 		int rows = -1;
 
 		// get the lock
-		Object lock = _appLocks.get(_key);
+		Object lock = getLock(rapidRequest);
 
-		// if lock doesn not exist yet
-		if (lock == null) {
-			// make a new one
-			lock = new Object();
-			// retain it
-			_appLocks.put(_key,lock);
-		}
+		// when we started, for the statistics
+		long start = System.nanoTime();
+		// assume an error until we're done
+		boolean error = true;
 
-		// synchronise the execution of prepared statements on the static connection to avoid file lock errors
-		synchronized(lock) {
+		try {
 
-			// get the updated rows
-			rows = ps.executeUpdate();
+			// synchronise the execution of prepared statements on the static connection to avoid file lock errors
+			synchronized(lock) {
+
+				// get the updated rows
+				rows = ps.executeUpdate();
+
+			}
+
+			error = false;
+
+		} finally {
+
+			// record the execution
+			recordStatistic(rapidRequest, sql, start, error, parameters, rows);
 
 		}
 
@@ -167,6 +300,163 @@ public class SQLiteDataFactory extends DataFactory {
 
 	}
 
+	// this override sends all of the rows on the static connection in one transaction, taking the lock only once rather than for every row, or in WAL mode has the database's writer send them
+	@Override
+	public int getPreparedBatchUpdate(final RapidRequest rapidRequest, String sql, final List<Parameters> parametersList, final int batchSize) throws SQLException, ClassNotFoundException, ConnectionAdapterException {
+
+		// single rows, or no batching, are done one at a time as before
+		if (parametersList.size() < 2 || batchSize < 2) return super.getPreparedBatchUpdate(rapidRequest, sql, parametersList, batchSize);
+
+		// trim and retain sql
+		_sql = sql.trim();
+
+		// get the WAL mode database, if we're using one
+		SQLiteDatabase database = getDatabase(rapidRequest);
+
+		// if we are
+		if (database != null) {
+
+			// the sql for the writer
+			final String updateSQL = _sql;
+
+			// the total rows updated
+			int rows = 0;
+
+			// when we started, for the statistics
+			long start = System.nanoTime();
+			// assume an error until we're done
+			boolean error = true;
+
+			try {
+
+				// have the writer send all of the rows, in the one savepoint so they're all or nothing
+				rows = database.write(rapidRequest, new SQLiteDatabase.Write() {
+					@Override
+					public int execute(Connection connection) throws SQLException {
+						PreparedStatement ps = connection.prepareStatement(updateSQL);
+						try {
+							int batchUpdated = 0;
+							int batchRows = 0;
+							for (Parameters parameters : parametersList) {
+								// don't check parameter numbers for exec queries
+								populateStatement(rapidRequest, ps, parameters, 0, !updateSQL.startsWith("exec"));
+								ps.addBatch();
+								// if the batch is full send it
+								if (++batchRows == batchSize) {
+									batchUpdated += executeBatch(ps);
+									batchRows = 0;
+								}
+							}
+							// send any remaining rows
+							if (batchRows > 0) batchUpdated += executeBatch(ps);
+							return batchUpdated;
+						} finally {
+							ps.close();
+						}
+					}
+				}, getWriteTimeout(rapidRequest));
+
+				error = false;
+
+			} finally {
+
+				// record the batch as one execution, with the types of the first row's parameters
+				recordStatistic(rapidRequest, sql, start, error, parametersList.get(0), rows);
+
+			}
+
+			// return the rows
+			return rows;
+
+		}
+
+		// close any previous statement
+		closeStatement();
+
+		// the total rows updated
+		int rows = 0;
+
+		// get the lock
+		Object lock = getLock(rapidRequest);
+
+		// when we started, for the statistics
+		long start = System.nanoTime();
+		// assume an error until we're done
+		boolean error = true;
+
+		try {
+
+			// synchronise the whole batch on the static connection to avoid file lock errors
+			synchronized(lock) {
+
+				// get the static connection
+				SQLiteConnection connection = getStaticConnection(rapidRequest);
+
+				// prepare the statement just the once
+				PreparedStatement ps = connection.prepareStatement(_sql);
+
+				try {
+
+					// all of the rows go in one transaction, which is far quicker in SQLite than committing each
+					connection.setAutoCommit(false);
+
+					// the rows in the current batch
+					int batchRows = 0;
+
+					// loop the rows
+					for (Parameters parameters : parametersList) {
+
+						// don't check parameter numbers for exec queries
+						populateStatement(rapidRequest, ps, parameters, 0, !_sql.startsWith("exec"));
+						ps.addBatch();
+
+						// if the batch is full send it
+						if (++batchRows == batchSize) {
+							rows += executeBatch(ps);
+							batchRows = 0;
+						}
+
+					}
+
+					// send any remaining rows
+					if (batchRows > 0) rows += executeBatch(ps);
+
+					// commit them all
+					connection.commit();
+
+				} catch (SQLException ex) {
+
+					// roll back all of the batches
+					connection.rollback();
+
+					throw ex;
+
+				} finally {
+
+					// the static connection is otherwise auto commit
+					connection.setAutoCommit(true);
+
+					// close the statement
+					ps.close();
+
+				}
+
+			}
+
+			error = false;
+
+		} finally {
+
+			// record the batch as one execution, with the types of the first row's parameters
+			recordStatistic(rapidRequest, sql, start, error, parametersList.get(0), rows);
+
+		}
+
+		// return the rows
+		return rows;
+
+	}
+
 	// must commit to clear any locks on the update connections so the select ones can proceed
 	@Override
 	public void commit() throws SQLException {
@@ -180,6 +470,26 @@ public class SQLiteDataFactory extends DataFactory {
 		// if (_staticConnection != null) _staticConnection.rollback();
 	}
 
+	// in WAL mode our read connection goes back to the database's pool
+	@Override
+	public void close() throws SQLException {
+
+		// if our connection is a WAL mode reader
+		if (_readDatabase != null && _connection != null) {
+			// close any statement that may still be open if we returned a resultset
+			closeStatement();
+			// give the connection back
+			_readDatabase.closeReadConnection(_connection);
+			// forget it
+			_connection = null;
+			_readDatabase = null;
+		} else {
+			// close as usual
+			super.close();
+		}
+
+	}
+
 	// a close all method which also closes the static connection and should be used for cleanup/shutdown - disabled for now as autocommit is true
 	public void closeAll() throws SQLException {
 
@@ -205,4 +515,25 @@ public class SQLiteDataFactory extends DataFactory {
 
 	}
 
+	// gets a whole number from the web.xml context parameters, or the default if it's not there or not a number
+	private static int getIntParameter(ServletContext servletContext, String name, int defaultValue) {
+		// get the parameter
+		String value = servletContext.getInitParameter(name);
+		// if we got one
+		if (value != null) {
+			try {
+				return Integer.parseInt(value.trim());
+			} catch (NumberFormatException ex) {
+				_logger.error(name + " " + value + " is not a number, using " + defaultValue);
+			}
+		}
+		return defaultValue;
+	}
+
+	// stops the writers and closes the connections of all of the WAL mode databases, used by the context listener at shutdown
+	public static void closeDatabases() {
+		for (SQLiteDatabase database : _databases.values()) database.close();
+		_databases.clear();
+	}
+
 }
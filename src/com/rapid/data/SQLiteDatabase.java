@@ -0,0 +1,410 @@
+/*
+
+Copyright (C) 2022 - Gareth Edwards / Rapid Information Systems
+
+gareth.edwards@rapid-is.co.uk
+
+
+This file is part of the Rapid Application Platform
+
+Rapid is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version. The terms require you
+to include the original copyright, and the license notice in all redistributions.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+in a file named "COPYING".  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package com.rapid.data;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.rapid.data.ConnectionAdapter.ConnectionAdapterException;
+import com.rapid.server.RapidRequest;
+
+/*
+
+A SQLite database file used in write-ahead log (WAL) mode, where readers see the last commit and are never blocked by
+a writer. Writes are queued for the one writer thread, which does all of the writes waiting each time in a single
+transaction, each in its own savepoint so one failing doesn't undo the others, and commits them together. Reads
+borrow one of a small pool of query only connections.
+
+*/
+
+public class SQLiteDatabase {
+
+	// a write for the writer thread to do, the request's thread waits for its rows
+	public static abstract class Write {
+
+		// the states of a write, the writer only does queued ones and the request only gives up on queued ones
+		private static final int QUEUED = 0, STARTED = 1, ABANDONED = 2;
+
+		private CountDownLatch _done = new CountDownLatch(1);
+		private AtomicInteger _state = new AtomicInteger(QUEUED);
+		private int _rows;
+		private SQLException _exception;
+
+		// does the write on the writer's connection, returning the rows updated
+		public abstract int execute(Connection connection) throws SQLException;
+
+		// waits up to the timeout in milliseconds for the writer to commit the write, returning its rows or throwing its exception
+		public int getRows(long timeout) throws SQLException {
+			try {
+				// if it wasn't done in time
+				if (!_done.await(timeout, TimeUnit.MILLISECONDS)) {
+					// if the writer hasn't got to it take it out, so it's never done
+					if (_state.compareAndSet(QUEUED, ABANDONED)) throw new SQLException("SQLite write not started after " + timeout + " ms");
+					// the writer has it so give it the same again to commit, as we'd rather report what happened
+					if (!_done.await(timeout, TimeUnit.MILLISECONDS)) throw new SQLException("SQLite write not committed after " + timeout * 2 + " ms, it may still be");
+				}
+			} catch (InterruptedException ex) {
+				// take it out if the writer hasn't got to it
+				_state.compareAndSet(QUEUED, ABANDONED);
+				throw new SQLException("Interrupted waiting for SQLite write", ex);
+			}
+			if (_exception != null) throw _exception;
+			return _rows;
+		}
+
+	}
+
+	// the thread that does all of the writes
+	private class Writer extends Thread {
+
+		public Writer() {
+			super("Rapid SQLite writer " + _connectionString);
+			// don't stop the server shutting down
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+
+			_logger.info("SQLite writer started for " + _connectionString);
+
+			while (!_closed) {
+
+				// the writes to commit together
+				List<Write> writes = new ArrayList<>();
+
+				try {
+
+					// wait for a write
+					writes.add(_writes.take());
+
+					// add any others that arrived while we were waiting, or committing the last lot
+					_writes.drainTo(writes, _groupSize - 1);
+
+					// do them
+					commit(writes);
+
+				} catch (InterruptedException ex) {
+
+					// we've been closed
+
+				}
+
+			}
+
+			// fail anything left
+			List<Write> writes = new ArrayList<>();
+			_writes.drainTo(writes);
+			for (Write write : writes) {
+				write._exception = new SQLException("SQLite database " + _connectionString + " has been closed");
+				write._done.countDown();
+			}
+
+			// close the write connection
+			try {
+				_connectionAdapter.closeConnection(_writeConnection);
+			} catch (SQLException ex) {
+				_logger.debug("Error closing SQLite write connection : " + ex.getMessage());
+			}
+
+			_logger.info("SQLite writer stopped for " + _connectionString);
+
+		}
+
+	}
+
+	// default number of query only connections for reads, can be set with the sqliteReaders context parameter
+	public static final int READERS = 4;
+
+	// default most writes committed together, can be set with the sqliteGroupSize context parameter
+	public static final int GROUP_SIZE = 100;
+
+	// milliseconds to wait for the file if another process has it locked, and for a reader if they're all in use
+	public static final int BUSY_TIMEOUT = 5000;
+
+	// default milliseconds a request waits for the writer, if it has no deadline or query timeout
+	public static final int WRITE_TIMEOUT = 60000;
+
+	// private static variables
+	private static Logger _logger = LogManager.getLogger(SQLiteDatabase.class);
+
+	// private instance variables
+	private ConnectionAdapter _connectionAdapter;
+	private String _connectionString;
+	private int _readers, _groupSize;
+	private Connection _writeConnection;
+	private BlockingQueue<Write> _writes;
+	private BlockingQueue<Connection> _readConnections;
+	private AtomicInteger _readConnectionCount;
+	private Writer _writer;
+	private volatile boolean _closed;
+
+	// constructor
+
+	public SQLiteDatabase(ConnectionAdapter connectionAdapter, int readers, int groupSize) {
+		_connectionAdapter = connectionAdapter;
+		_connectionString = connectionAdapter.getConnectionString();
+		_readers = Math.max(1, readers);
+		_groupSize = Math.max(1, groupSize);
+		_writes = new LinkedBlockingQueue<>();
+		_readConnections = new LinkedBlockingQueue<>();
+		_readConnectionCount = new AtomicInteger();
+	}
+
+	// properties
+
+	public String getConnectionString() { return _connectionString; }
+
+	// the number of writes waiting for the writer
+	public int getWriteQueueSize() { return _writes.size(); }
+
+	// public methods
+
+	// has the writer do a write, waiting up to the timeout in milliseconds for it to be committed and returning its rows
+	public int write(RapidRequest rapidRequest, Write write, long timeout) throws SQLException, ClassNotFoundException, ConnectionAdapterException {
+
+		// check we're still open
+		if (_closed) throw new SQLException("SQLite database " + _connectionString + " has been closed");
+
+		// start the writer if this is the first write
+		startWriter(rapidRequest);
+
+		// queue the write
+		_writes.add(write);
+
+		// wait for it
+		return write.getRows(timeout);
+
+	}
+
+	// a query only connection for reading, from the pool if there's one free
+	public Connection getReadConnection(RapidRequest rapidRequest) throws SQLException, ClassNotFoundException, ConnectionAdapterException {
+
+		// check we're still open
+		if (_closed) throw new SQLException("SQLite database " + _connectionString + " has been closed");
+
+		// try for a free one
+		Connection connection = _readConnections.poll();
+
+		// if there wasn't one
+		if (connection == null) {
+
+			// if we can make another
+			if (_readConnectionCount.incrementAndGet() <= _readers) {
+
+				try {
+					// make one
+					connection = _connectionAdapter.getConnection(rapidRequest);
+					// use write-ahead logging, which is kept in the file, so we're not blocked by the writer
+					execute(connection, "PRAGMA journal_mode=WAL");
+					// make sure we don't write
+					execute(connection, "PRAGMA query_only=1");
+				} catch (SQLException | ClassNotFoundException | ConnectionAdapterException ex) {
+					// we didn't make it
+					_readConnectionCount.decrementAndGet();
+					throw ex;
+				}
+
+			} else {
+
+				// we can't make any more
+				_readConnectionCount.decrementAndGet();
+
+				try {
+					// wait for one to be given back
+					connection = _readConnections.poll(BUSY_TIMEOUT, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException ex) {
+					throw new SQLException("Interrupted waiting for SQLite read connection", ex);
+				}
+
+				// if we didn't get one in time
+				if (connection == null) throw new SQLException("No SQLite read connection free for " + _connectionString + " after " + BUSY_TIMEOUT + " ms");
+
+			}
+
+		}
+
+		// each statement is its own read transaction so the log can be checkpointed
+		connection.setAutoCommit(true);
+
+		return connection;
+
+	}
+
+	// gives back a read connection from getReadConnection
+	public void closeReadConnection(Connection connection) throws SQLException {
+
+		// if we've been closed, or it was closed after an error, forget it
+		if (_closed || connection.isClosed()) {
+			_readConnectionCount.decrementAndGet();
+			if (!connection.isClosed()) _connectionAdapter.closeConnection(connection);
+		} else {
+			// put it back for the next reader
+			_readConnections.add(connection);
+		}
+
+	}
+
+	// stops the writer and closes the connections
+	public void close() {
+
+		_closed = true;
+
+		// stop the writer, which closes its connection once it's done
+		if (_writer != null) _writer.interrupt();
+
+		// close the free read connections
+		Connection connection;
+		while ((connection = _readConnections.poll()) != null) {
+			try {
+				_connectionAdapter.closeConnection(connection);
+			} catch (SQLException ex) {
+				_logger.debug("Error closing SQLite read connection : " + ex.getMessage());
+			}
+		}
+
+	}
+
+	// private methods
+
+	// starts the writer with its connection, if it isn't already
+	private synchronized void startWriter(RapidRequest rapidRequest) throws SQLException, ClassNotFoundException, ConnectionAdapterException {
+
+		// if we haven't started it yet
+		if (_writer == null) {
+
+			// make the write connection
+			_writeConnection = _connectionAdapter.getConnection(rapidRequest);
+			// use write-ahead logging so readers aren't blocked
+			execute(_writeConnection, "PRAGMA journal_mode=WAL");
+			// with the log, syncing at checkpoints is safe from corruption and much quicker
+			execute(_writeConnection, "PRAGMA synchronous=NORMAL");
+			// only other processes can have the file locked now
+			execute(_writeConnection, "PRAGMA busy_timeout=" + BUSY_TIMEOUT);
+
+			// start the writer
+			_writer = new Writer();
+			_writer.start();
+
+		}
+
+	}
+
+	// does a group of writes in one transaction, called only from the writer thread
+	private void commit(List<Write> writes) {
+
+		try {
+
+			// all of the writes go in one transaction
+			_writeConnection.setAutoCommit(false);
+
+			// loop them
+			for (Write write : writes) {
+
+				// skip any whose request has stopped waiting
+				if (!write._state.compareAndSet(Write.QUEUED, Write.STARTED)) continue;
+
+				// mark where this write starts
+				Savepoint savepoint = _writeConnection.setSavepoint();
+
+				try {
+
+					// do it
+					write._rows = write.execute(_writeConnection);
+
+					// keep it
+					_writeConnection.releaseSavepoint(savepoint);
+
+				} catch (Exception ex) {
+
+					// undo just this write
+					_writeConnection.rollback(savepoint);
+
+					// give the request its exception
+					write._exception = ex instanceof SQLException ? (SQLException) ex : new SQLException(ex.getMessage(), ex);
+
+				}
+
+			}
+
+			// commit them all together
+			_writeConnection.commit();
+
+		} catch (SQLException ex) {
+
+			_logger.error("Error committing SQLite writes for " + _connectionString, ex);
+
+			// undo whatever we can
+			try {
+				_writeConnection.rollback();
+			} catch (SQLException rex) {
+				_logger.debug("Error rolling back SQLite writes : " + rex.getMessage());
+			}
+
+			// none of the writes were committed
+			for (Write write : writes) if (write._exception == null) write._exception = ex;
+
+		} finally {
+
+			// put auto commit back
+			try {
+				_writeConnection.setAutoCommit(true);
+			} catch (SQLException ex) {
+				_logger.debug("Error setting SQLite auto commit : " + ex.getMessage());
+			}
+
+			// let the requests carry on
+			for (Write write : writes) write._done.countDown();
+
+		}
+
+	}
+
+	// private static methods
+
+	// runs a pragma, which can return a row, on a connection
+	private static void execute(Connection connection, String sql) throws SQLException {
+		Statement statement = connection.createStatement();
+		try {
+			statement.execute(sql);
+		} finally {
+			statement.close();
+		}
+	}
+
+}
@@ -25,99 +25,337 @@ in a file named "COPYING".  If not, see <http://www.gnu.org/licenses/>.
 
 package com.rapid.server;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.HashMap;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.servlet.ServletContext;
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
-import javax.xml.bind.Marshaller;
-import javax.xml.bind.Unmarshaller;
 import javax.xml.bind.annotation.XmlRootElement;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import com.rapid.utils.Files;
 
+/*
+
+Each application has its own cache, held in memory, of up to actionCacheMaxSize responses with the least
+recently used removed first, and any older than actionCacheTTL seconds ignored. Caches that have changed are
+written to their cache.json file every actionCacheSaveInterval seconds by a background thread, a line per
+response, and any cache.xml file from before is read if there is no cache.json yet.
+
+*/
+
 public class ActionCache {
 
-	// private static variables
-	private static Logger _logger = LogManager.getLogger(ActionCache.class);
-	private static Marshaller _marshaller;
-	private static Unmarshaller _unmarshaller;
+	// the cache.xml files were made by marshalling the old cache class, which we still read the first time
+	@XmlRootElement(name = "cache")
+	public static class LegacyCache {
+
+		private Map<String, String> _cache;
+
+		public Map<String, String> getCache() { return _cache; }
+		public void setCache(Map<String, String> cache) { _cache = cache; }
+
+	}
 
-	@XmlRootElement
-	public static class Cache {
+	// a cached response
+	private static class Entry {
+
+		private String _value;
+		private long _created;
+
+		public Entry(String value, long created) {
+			_value = value;
+			_created = created;
+		}
+
+		public String getValue() { return _value; }
+		public long getCreated() { return _created; }
+
+	}
+
+	// an application's cache
+	public class Cache {
 
 		// private variables
 
-		private File _cacheFile;
-		private Map<String, String> _cache;
+		private String _appId;
+		private File _cacheFile, _legacyCacheFile;
+		private LinkedHashMap<String, Entry> _entries;
+		private AtomicLong _hits, _misses, _evictions;
+		private boolean _dirty;
+
+		// constructor
+
+		@SuppressWarnings("serial")
+		public Cache(String appId) {
+
+			// retain the app id
+			_appId = appId;
+
+			// the cache.json file in the application's folder
+			_cacheFile = new File(_servletContext.getRealPath("/") + "/WEB-INF/applications/" + Files.safeName(appId) + "/cache.json");
+
+			// where cache.xml files used to be made
+			_legacyCacheFile = new File(_servletContext.getRealPath("/") + "/WEB-INF/applications/" + Files.safeName(appId + "/cache.xml"));
+
+			// an access ordered map, so the eldest entry is the least recently used
+			_entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+					// if we've gone over the size remove the least recently used
+					if (size() > _maxSize) {
+						_evictions.incrementAndGet();
+						return true;
+					}
+					return false;
+				}
+			};
+
+			// the counters
+			_hits = new AtomicLong();
+			_misses = new AtomicLong();
+			_evictions = new AtomicLong();
+
+			// load anything saved before
+			try {
+				load();
+			} catch (Exception ex) {
+				_logger.error("Error loading action cache for " + appId, ex);
+			}
+
+			_logger.info("Action cache initialised for " + appId);
+
+		}
 
-		// constructors
+		// properties
 
-		// JAXB
-		public Cache() {}
-		// ActionCache
-		public Cache(ServletContext servletContext, String appId) throws JAXBException {
+		public String getAppId() { return _appId; }
+		public synchronized int size() { return _entries.size(); }
+		public long getHits() { return _hits.get(); }
+		public long getMisses() { return _misses.get(); }
+		public long getEvictions() { return _evictions.get(); }
 
-			// create a file object for the cache.xml file
-			_cacheFile = new File(servletContext.getRealPath("/") + "/WEB-INF/applications/" + Files.safeName(appId + "/cache.xml"));
+		// private methods
+
+		// whether an entry is older than the time to live
+		private boolean isExpired(Entry entry, long now) {
+			return _timeToLive > 0 && now - entry.getCreated() > _timeToLive;
+		}
+
+		// loads the cache.json file, or any cache.xml file if there isn't one
+		private void load() throws IOException, JSONException, JAXBException {
+
+			// the time, for checking expiry
+			long now = System.currentTimeMillis();
 
 			if (_cacheFile.exists()) {
-				// unmarshall the file into an object
-				Cache actionCache = (Cache) _unmarshaller.unmarshal(_cacheFile);
-				// bring that objects cache into this one
-				_cache = actionCache.getCache();
+
+				// read the file a line at a time
+				BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(_cacheFile), "UTF-8"));
+
+				try {
+
+					String line = null;
+
+					while ((line = reader.readLine()) != null) {
+
+						// skip any blank lines
+						if (line.length() > 0) {
+							// each line is an array of key, created, and value
+							JSONArray jsonLine = new JSONArray(line);
+							// make the entry
+							Entry entry = new Entry(jsonLine.getString(2), jsonLine.getLong(1));
+							// add it if it's still in date
+							if (!isExpired(entry, now)) _entries.put(jsonLine.getString(0), entry);
+						}
+
+					}
+
+				} finally {
+
+					reader.close();
+
+				}
+
+			} else if (_legacyCacheFile.exists()) {
+
+				// unmarshall the old file
+				LegacyCache legacyCache = (LegacyCache) JAXBContext.newInstance(LegacyCache.class).createUnmarshaller().unmarshal(_legacyCacheFile);
+
+				// bring its entries in, as if made now
+				if (legacyCache.getCache() != null) {
+					for (Map.Entry<String, String> legacyEntry : legacyCache.getCache().entrySet()) _entries.put(legacyEntry.getKey(), new Entry(legacyEntry.getValue(), now));
+				}
+
+				// save in the new format
+				_dirty = true;
+
+			}
+
+		}
+
+		// public methods
+
+		// gets a value, or null if there isn't one or it's expired
+		public String get(String key) {
+
+			Entry entry = null;
+
+			synchronized (this) {
+
+				// get the entry, which also makes it the most recently used
+				entry = _entries.get(key);
+
+				// if it's too old remove it
+				if (entry != null && isExpired(entry, System.currentTimeMillis())) {
+					_entries.remove(key);
+					_evictions.incrementAndGet();
+					_dirty = true;
+					entry = null;
+				}
+
+			}
+
+			// count it
+			if (entry == null) {
+				_misses.incrementAndGet();
+				return null;
 			} else {
-				_cache = new HashMap<String, String>();
+				_hits.incrementAndGet();
+				return entry.getValue();
 			}
 
-			_logger.info("Action cache initialised for " + appId);
+		}
 
+		// puts a value, which will be saved by the background thread
+		public synchronized void put(String key, String value) {
+			_entries.put(key, new Entry(value, System.currentTimeMillis()));
+			_dirty = true;
 		}
 
-		// properties (these are required to be marshalled)
+		// writes the cache to a temp file and then moves it over the cache.json file so it's never half written, if anything has changed
+		public void save() throws IOException, JSONException {
 
-		public Map<String, String> getCache() { return _cache; }
-		public void setCache(Map<String, String> cache) { _cache = cache; }
+			// a copy of the lines to write so we don't hold the lock while writing
+			List<String> lines = null;
 
-		// public methods
+			synchronized (this) {
+
+				// nothing to do if nothing's changed
+				if (!_dirty) return;
+
+				// make the lines
+				lines = new ArrayList<>(_entries.size());
+				for (Map.Entry<String, Entry> entry : _entries.entrySet()) {
+					lines.add(new JSONArray().put(entry.getKey()).put(entry.getValue().getCreated()).put(entry.getValue().getValue()).toString());
+				}
+
+				// we've got everything
+				_dirty = false;
+
+			}
 
-		public void save() throws IOException, JAXBException  {
+			// make sure the folder is there
+			_cacheFile.getParentFile().mkdirs();
 
-			// create a temp file for saving the application to
-			File tempFile = new File(_cacheFile.getParentFile().getAbsolutePath() + "/cache-saving.xml");
+			// create a temp file for saving the cache to
+			File tempFile = new File(_cacheFile.getParentFile(), "cache-saving.json");
 
-			// get a file output stream to write the data to
-			FileOutputStream fos = new FileOutputStream(tempFile.getAbsolutePath());
+			try {
 
-			// marshal the security object to the temp file
-			_marshaller.marshal(this, fos);
+				// write the lines
+				BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), "UTF-8"));
+				try {
+					for (String line : lines) {
+						writer.write(line);
+						writer.newLine();
+					}
+				} finally {
+					writer.close();
+				}
 
-			// close the stream
-		    fos.close();
+				// move the temp file over the cache file
+				try {
+					java.nio.file.Files.move(tempFile.toPath(), _cacheFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+				} catch (AtomicMoveNotSupportedException ex) {
+					java.nio.file.Files.move(tempFile.toPath(), _cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				}
 
-		    // copy / overwrite the app file with the temp file
-		    Files.copyFile(tempFile, _cacheFile);
+			} catch (IOException ex) {
 
-		    // delete the temp file
-		    tempFile.delete();
+				// it wasn't saved so try again next time
+				synchronized (this) {
+					_dirty = true;
+				}
+
+				throw ex;
+
+			}
 
 		}
 
 	}
 
+	// saves the changed caches every save interval
+	private class Saver extends Thread {
+
+		public Saver() {
+			setName("Rapid action cache saver");
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			while (!_closed) {
+				try {
+					Thread.sleep(_saveInterval);
+				} catch (InterruptedException ex) {
+					// we're interrupted when closing, which saves for the last time
+					break;
+				}
+				save();
+			}
+		}
+
+	}
+
+	// public static finals
+	public static final int MAX_SIZE = 1000;
+	public static final int TIME_TO_LIVE = 0;
+	public static final int SAVE_INTERVAL = 10;
+
+	// private static variables
+	private static Logger _logger = LogManager.getLogger(ActionCache.class);
+
 	// private variables
 
 	private ServletContext _servletContext;
 	private Map<String,Cache> _applicationCaches;
+	private int _maxSize;
+	private long _timeToLive, _saveInterval;
+	private Saver _saver;
+	private Object _saveLock;
+	private volatile boolean _closed;
 
 	// constructors
 
@@ -126,28 +364,66 @@ public class ActionCache {
 		// retain servletContext
 		_servletContext = servletContext;
 
-		// create the JAXB context and marshalers for this
-		JAXBContext jaxb = JAXBContext.newInstance(Cache.class);
-		_marshaller = jaxb.createMarshaller();
-		_marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
-		_unmarshaller = jaxb.createUnmarshaller();
+		// get the size and times from the web.xml, times are in seconds
+		_maxSize = getIntInitParameter(servletContext, "actionCacheMaxSize", MAX_SIZE);
+		_timeToLive = getIntInitParameter(servletContext, "actionCacheTTL", TIME_TO_LIVE) * 1000L;
+		_saveInterval = Math.max(1, getIntInitParameter(servletContext, "actionCacheSaveInterval", SAVE_INTERVAL)) * 1000L;
 
 		// initialise the map of all application caches
-		_applicationCaches = new HashMap<String,Cache>();
+		_applicationCaches = new ConcurrentHashMap<String,Cache>();
+
+		// only one save happens at a time
+		_saveLock = new Object();
+
+		// start saving in the background
+		_saver = new Saver();
+		_saver.start();
 
 	}
 
+	// private methods
+
+	// gets a whole number from the web.xml context parameters, or the default if it's not there or not a number
+	private static int getIntInitParameter(ServletContext servletContext, String name, int defaultValue) {
+		String value = servletContext.getInitParameter(name);
+		if (value != null) {
+			try {
+				return Integer.parseInt(value.trim());
+			} catch (NumberFormatException ex) {
+				_logger.error(name + " " + value + " is not a number, using " + defaultValue);
+			}
+		}
+		return defaultValue;
+	}
 
 	// public methods
 
-	// converts the marshalled string into a JSONObject and stores it in the appropriate application cache
-	public JSONObject get(String appId, String actionId, String key) throws JSONException, JAXBException {
+	// gets the cache for an application, loading it the first time
+	public Cache getCache(String appId) {
 		// get the appropriate application cache
 		Cache appCache = _applicationCaches.get(appId);
-		// create if null
-		if (appCache == null) appCache = new Cache(_servletContext, appId);
+		// create if null, checking again once we have the lock in case another thread got there first
+		if (appCache == null) {
+			synchronized (this) {
+				appCache = _applicationCaches.get(appId);
+				if (appCache == null) {
+					appCache = new Cache(appId);
+					_applicationCaches.put(appId, appCache);
+				}
+			}
+		}
+		return appCache;
+	}
+
+	// the caches we have loaded
+	public List<Cache> getCaches() {
+		return new ArrayList<>(_applicationCaches.values());
+	}
+
+	// gets any data from the appropriate application cache and converts it into a JSONObject
+	public JSONObject get(String appId, String actionId, String key) throws JSONException {
 		// fetch any data from the cache
-		String value = appCache.getCache().get(actionId + key);
+		String value = getCache(appId).get(actionId + key);
 		// check for null
 		if (value == null) {
 			return null;
@@ -157,20 +433,49 @@ public class ActionCache {
 		}
 	}
 
-	// converts the marshalled string into a JSONObject and stores it in the appropriate application cache
-	public void put(String appId, String actionId, String key, JSONObject jsonObject) throws JAXBException {
-		// get the appropriate application cache
-		Cache appCache = _applicationCaches.get(appId);
-		// create if null
-		if (appCache == null) appCache = new Cache(_servletContext, appId);
-		// add data to the cache
-		appCache.getCache().put(actionId + key, jsonObject.toString());
-		// attempt to save the cache (one day this might be on it's own queue thread to avoid file locking)
-		try {
-			appCache.save();
-		} catch (Exception ex) {
-			_logger.error(ex);
+	// converts the JSONObject into a string and stores it in the appropriate application cache
+	public void put(String appId, String actionId, String key, JSONObject jsonObject) {
+		// add data to the cache, the saver will write it out
+		getCache(appId).put(actionId + key, jsonObject.toString());
+	}
+
+	// totals of the counters for all applications
+	public long getHits() {
+		long hits = 0;
+		for (Cache cache : _applicationCaches.values()) hits += cache.getHits();
+		return hits;
+	}
+
+	public long getMisses() {
+		long misses = 0;
+		for (Cache cache : _applicationCaches.values()) misses += cache.getMisses();
+		return misses;
+	}
+
+	public long getEvictions() {
+		long evictions = 0;
+		for (Cache cache : _applicationCaches.values()) evictions += cache.getEvictions();
+		return evictions;
+	}
+
+	// saves any caches that have changed
+	public void save() {
+		synchronized (_saveLock) {
+			for (Cache cache : _applicationCaches.values()) {
+				try {
+					cache.save();
+				} catch (Exception ex) {
+					_logger.error("Error saving action cache for " + cache.getAppId(), ex);
+				}
+			}
 		}
 	}
 
+	// stops the saver and saves for the last time
+	public void close() {
+		_closed = true;
+		_saver.interrupt();
+		save();
+	}
+
 }
@@ -385,10 +385,6 @@ public class Designer extends RapidHttpServlet {
 		// get a reference to our logger
 		Logger logger = getLogger();
 
-		// if monitor is alive then log the event
-		if(_monitor != null && _monitor.isAlive(context) && _monitor.isLoggingAll())
-			_monitor.openEntry();
-
 		// we will store the length of the item we are adding
 		long responseLength = 0;
 
@@ -1947,10 +1943,6 @@ public class Designer extends RapidHttpServlet {
 		// get a reference to our logger
 		Logger logger = getLogger();
 
-		// if monitor is alive then log the event
-		if (_monitor != null && _monitor.isAlive(context) && _monitor.isLoggingAll())
-			_monitor.openEntry();
-
 		// we will store the length of the item we are adding
 		long responseLength = 0;
 
@@ -3093,18 +3085,14 @@ public class Designer extends RapidHttpServlet {
 			} // got rapid application
 
 			// if monitor is alive then log the event
-			if (_monitor != null && _monitor.isAlive(context) && _monitor.isLoggingAll()) {
-				_monitor.setDetails(monitorEntryDetails);
-				_monitor.commitEntry(rapidRequest, response, responseLength);
-			}
+			if (_monitor != null && _monitor.isAlive(context) && _monitor.isLoggingAll())
+				_monitor.commitEntry(rapidRequest, response, responseLength, null, monitorEntryDetails);
 
 		} catch (Exception ex) {
 
 			// if monitor is alive then log the event
-			if (_monitor != null && _monitor.isAlive(context) && _monitor.isLoggingExceptions()) {
-				_monitor.setDetails(monitorEntryDetails);
-				_monitor.commitEntry(rapidRequest, response, responseLength, ex.getMessage());
-			}
+			if (_monitor != null && _monitor.isAlive(context) && _monitor.isLoggingExceptions())
+				_monitor.commitEntry(rapidRequest, response, responseLength, ex.getMessage(), monitorEntryDetails);
 
 			getLogger().error("Designer POST error : ",ex);
 
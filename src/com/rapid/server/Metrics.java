@@ -0,0 +1,486 @@
+/*
+
+Copyright (C) 2022 - Gareth Edwards / Rapid Information Systems
+
+gareth.edwards@rapid-is.co.uk
+
+
+This file is part of the Rapid Application Platform
+
+Rapid is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version. The terms require you
+to include the original copyright, and the license notice in all redistributions.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+in a file named "COPYING".  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package com.rapid.server;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.xml.bind.DatatypeConverter;
+
+import org.apache.logging.log4j.Logger;
+
+import com.rapid.core.Application;
+import com.rapid.core.PageCache;
+import com.rapid.core.Pages;
+import com.rapid.data.PooledConnectionAdapter;
+import com.rapid.security.SecurityAdapter;
+
+/*
+
+This servlet reads out the request metrics, and the state of the database connection pools, loaded pages, action caches,
+sessions, monitor, and JVM, in the Prometheus text format. Only the request metrics are recorded as requests are served,
+everything else is read when we're asked. It's excluded from the Rapid filter's authentication so scrapers can send their
+credentials with basic authentication, and the user must have the Admin role in the Rapid application, either with those
+credentials or the user already logged in to the session.
+
+*/
+
+public class Metrics extends RapidHttpServlet {
+
+	// the values of the pools with the same labels, added together
+	private static class PoolValues {
+
+		private long _active, _idle, _max, _waiting, _leaks, _hits, _misses;
+
+		private void add(PooledConnectionAdapter pool) {
+			_active += pool.getActiveCount();
+			_idle += pool.getIdleCount();
+			_max += pool.getMaxSize();
+			_waiting += pool.getWaitingCount();
+			_leaks += pool.getLeakCount();
+			_hits += pool.getStatementCacheHits();
+			_misses += pool.getStatementCacheMisses();
+		}
+
+	}
+
+	private static final long serialVersionUID = 1L;
+
+	@Override
+	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+
+		// get a logger
+		Logger logger = getLogger();
+
+		// log
+		logger.debug("Metrics GET request");
+
+		try {
+
+			// check the user is a Rapid admin
+			if (isAuthorised(request)) {
+
+				// make the metrics
+				StringBuilder metrics = new StringBuilder();
+				appendRequests(metrics);
+				appendPools(metrics);
+				appendPages(metrics);
+				appendPageLoads(metrics);
+				appendActionCaches(metrics);
+				appendSessions(metrics);
+				appendMonitor(metrics);
+				appendJVM(metrics);
+
+				// send them in the prometheus text format
+				response.setContentType("text/plain; version=0.0.4");
+				response.setCharacterEncoding("utf-8");
+				PrintWriter out = response.getWriter();
+				out.print(metrics);
+				out.close();
+
+			} else {
+
+				// ask for credentials
+				response.setHeader("WWW-Authenticate", "Basic realm=\"Rapid metrics\"");
+
+				sendMessage(response, 401, "Not authorised", "You must have the Rapid Admin role to see the metrics");
+
+				logger.debug("Metrics GET response (401) : not authorised");
+
+			}
+
+		} catch (Exception ex) {
+
+			logger.error("Metrics GET error : ", ex);
+
+			sendException(response, ex);
+
+		}
+
+	}
+
+	// private methods
+
+	// whether the user from basic authentication, or the session, has the admin role in the Rapid application
+	private boolean isAuthorised(HttpServletRequest request) throws Exception {
+
+		// get the rapid application
+		Application rapidApplication = getApplications().get("rapid");
+
+		// check we got one
+		if (rapidApplication == null) return false;
+
+		// get rapid security
+		SecurityAdapter rapidSecurity = rapidApplication.getSecurityAdapter();
+
+		// check we got some
+		if (rapidSecurity == null) return false;
+
+		// make a request for the rapid application, which has any user name from the session
+		RapidRequest rapidRequest = new RapidRequest(this, request, rapidApplication);
+
+		// look for basic authentication
+		String authorization = request.getHeader("Authorization");
+
+		// if we got some
+		if (authorization != null && authorization.regionMatches(true, 0, "Basic ", 0, 6)) {
+
+			// decode the user name and password
+			String credentials = new String(DatatypeConverter.parseBase64Binary(authorization.substring(6).trim()), StandardCharsets.UTF_8);
+
+			// they're separated by the first colon
+			int colonPos = credentials.indexOf(':');
+			if (colonPos < 0) return false;
+			String userName = credentials.substring(0, colonPos);
+			String password = credentials.substring(colonPos + 1);
+
+			// use this user for the role check
+			rapidRequest.setUserName(userName);
+
+			// check their password
+			if (!rapidSecurity.checkUserPassword(rapidRequest, userName, password)) {
+				// delay by 1sec to make brute force attacks a little harder, as the Rapid filter does
+				try { Thread.sleep(1000); } catch (InterruptedException e) {}
+				// not authorised
+				return false;
+			}
+
+		} else if (rapidRequest.getUserName() == null) {
+
+			// no basic authentication and not logged in
+			return false;
+
+		}
+
+		// check permission
+		return rapidSecurity.checkUserRole(rapidRequest, Rapid.ADMIN_ROLE);
+
+	}
+
+	// the request counts and latency histograms
+	private void appendRequests(StringBuilder metrics) {
+
+		// get the request metrics
+		RequestMetrics requestMetrics = getRequestMetrics();
+
+		// check we got some
+		if (requestMetrics == null) return;
+
+		// get the series
+		List<RequestMetrics.Series> series = requestMetrics.getSeries();
+
+		appendHeader(metrics, "rapid_requests_total", "counter", "Requests served by the Rapid and SOA servlets");
+		for (RequestMetrics.Series s : series) {
+			appendName(metrics, "rapid_requests_total", s);
+			metrics.append("} ").append(s.getRequests()).append('\n');
+		}
+
+		appendHeader(metrics, "rapid_request_errors_total", "counter", "Requests that failed with an exception or server error");
+		for (RequestMetrics.Series s : series) {
+			appendName(metrics, "rapid_request_errors_total", s);
+			metrics.append("} ").append(s.getErrors()).append('\n');
+		}
+
+		appendHeader(metrics, "rapid_request_duration_seconds", "histogram", "Time taken to serve requests");
+		for (RequestMetrics.Series s : series) appendHistogram(metrics, "rapid_request_duration_seconds", s, false);
+
+	}
+
+	// the database connection pools, labelled with their application, version, connection name, and replica
+	private void appendPools(StringBuilder metrics) {
+
+		// the pools' values by their labels, added together for any pools with the same ones so each series is only sent once
+		Map<String, PoolValues> pools = new TreeMap<>();
+
+		// loop the open pools
+		for (PooledConnectionAdapter pool : PooledConnectionAdapter.getPools()) {
+			// get the labels
+			String labels = getPoolLabels(pool);
+			// get the values for them, making them if need be
+			PoolValues values = pools.get(labels);
+			if (values == null) {
+				values = new PoolValues();
+				pools.put(labels, values);
+			}
+			// add this pool's
+			values.add(pool);
+		}
+
+		appendHeader(metrics, "rapid_db_pool_connections", "gauge", "Connections in each database pool by state");
+		for (Map.Entry<String, PoolValues> pool : pools.entrySet()) {
+			metrics.append("rapid_db_pool_connections{").append(pool.getKey()).append(",state=\"active\"} ").append(pool.getValue()._active).append('\n');
+			metrics.append("rapid_db_pool_connections{").append(pool.getKey()).append(",state=\"idle\"} ").append(pool.getValue()._idle).append('\n');
+		}
+
+		appendHeader(metrics, "rapid_db_pool_max_connections", "gauge", "Most connections each database pool can have");
+		for (Map.Entry<String, PoolValues> pool : pools.entrySet()) appendPool(metrics, "rapid_db_pool_max_connections", pool.getKey(), pool.getValue()._max);
+
+		appendHeader(metrics, "rapid_db_pool_waiting", "gauge", "Requests waiting for a connection from each database pool");
+		for (Map.Entry<String, PoolValues> pool : pools.entrySet()) appendPool(metrics, "rapid_db_pool_waiting", pool.getKey(), pool.getValue()._waiting);
+
+		appendHeader(metrics, "rapid_db_pool_leaks_total", "counter", "Connections held for longer than the leak threshold");
+		for (Map.Entry<String, PoolValues> pool : pools.entrySet()) appendPool(metrics, "rapid_db_pool_leaks_total", pool.getKey(), pool.getValue()._leaks);
+
+		appendHeader(metrics, "rapid_db_statement_cache_hits_total", "counter", "Prepared statements found in the connections' statement caches");
+		for (Map.Entry<String, PoolValues> pool : pools.entrySet()) appendPool(metrics, "rapid_db_statement_cache_hits_total", pool.getKey(), pool.getValue()._hits);
+
+		appendHeader(metrics, "rapid_db_statement_cache_misses_total", "counter", "Prepared statements not found in the connections' statement caches");
+		for (Map.Entry<String, PoolValues> pool : pools.entrySet()) appendPool(metrics, "rapid_db_statement_cache_misses_total", pool.getKey(), pool.getValue()._misses);
+
+	}
+
+	// the pages of each application version, and how many are loaded
+	private void appendPages(StringBuilder metrics) {
+
+		// get all of the application versions
+		List<Application> applications = getApplications().get();
+
+		appendHeader(metrics, "rapid_pages", "gauge", "Pages in each application version");
+		for (Application application : applications) {
+			Pages pages = application.getPages();
+			if (pages != null) appendApplication(metrics, "rapid_pages", application, pages.size());
+		}
+
+		appendHeader(metrics, "rapid_pages_loaded", "gauge", "Pages loaded into memory in each application version");
+		for (Application application : applications) {
+			Pages pages = application.getPages();
+			if (pages != null) appendApplication(metrics, "rapid_pages_loaded", application, pages.getLoadedCount());
+		}
+
+		appendHeader(metrics, "rapid_pages_loaded_bytes", "gauge", "Estimated memory of the pages loaded in each application version");
+		for (Application application : applications) {
+			Pages pages = application.getPages();
+			if (pages != null) appendApplication(metrics, "rapid_pages_loaded_bytes", application, pages.getLoadedSize());
+		}
+
+		appendHeader(metrics, "rapid_pages_evictions_total", "counter", "Pages removed from memory to keep within the page cache budget in each application version");
+		for (Application application : applications) {
+			Pages pages = application.getPages();
+			if (pages != null) appendApplication(metrics, "rapid_pages_evictions_total", application, pages.getEvictions());
+		}
+
+		// get the page cache
+		PageCache pageCache = (PageCache) getServletContext().getAttribute("pageCache");
+
+		// if we have one
+		if (pageCache != null) {
+			appendHeader(metrics, "rapid_page_cache_budget_bytes", "gauge", "Memory budget for the pages loaded in all applications");
+			metrics.append("rapid_page_cache_budget_bytes ").append(pageCache.getBudget()).append('\n');
+		}
+
+	}
+
+	// the time taken to load pages from their files, which requests for pages that aren't in memory wait for
+	private void appendPageLoads(StringBuilder metrics) {
+
+		// get the request metrics
+		RequestMetrics requestMetrics = getRequestMetrics();
+
+		// check we got some
+		if (requestMetrics == null) return;
+
+		// get the series, one for each application
+		List<RequestMetrics.Series> series = requestMetrics.getPageLoads();
+
+		appendHeader(metrics, "rapid_page_load_errors_total", "counter", "Pages that failed to load from their files");
+		for (RequestMetrics.Series s : series) {
+			metrics.append("rapid_page_load_errors_total{app=\"").append(escape(s.getAppId())).append("\"} ").append(s.getErrors()).append('\n');
+		}
+
+		appendHeader(metrics, "rapid_page_load_duration_seconds", "histogram", "Time taken to load pages from their files when they weren't in memory");
+		for (RequestMetrics.Series s : series) appendHistogram(metrics, "rapid_page_load_duration_seconds", s, true);
+
+	}
+
+	// the action caches of each application, if the action cache is on
+	private void appendActionCaches(StringBuilder metrics) {
+
+		// get the action cache
+		ActionCache actionCache = getActionCache();
+
+		// check we got one
+		if (actionCache == null) return;
+
+		// get the caches
+		List<ActionCache.Cache> caches = actionCache.getCaches();
+
+		appendHeader(metrics, "rapid_action_cache_entries", "gauge", "Results in each application's action cache");
+		for (ActionCache.Cache cache : caches) appendCache(metrics, "rapid_action_cache_entries", cache, cache.size());
+
+		appendHeader(metrics, "rapid_action_cache_hits_total", "counter", "Action results found in the cache");
+		for (ActionCache.Cache cache : caches) appendCache(metrics, "rapid_action_cache_hits_total", cache, cache.getHits());
+
+		appendHeader(metrics, "rapid_action_cache_misses_total", "counter", "Action results not found in the cache");
+		for (ActionCache.Cache cache : caches) appendCache(metrics, "rapid_action_cache_misses_total", cache, cache.getMisses());
+
+		appendHeader(metrics, "rapid_action_cache_evictions_total", "counter", "Action results removed from the cache to make room");
+		for (ActionCache.Cache cache : caches) appendCache(metrics, "rapid_action_cache_evictions_total", cache, cache.getEvictions());
+
+	}
+
+	// the user sessions
+	private void appendSessions(StringBuilder metrics) {
+
+		appendHeader(metrics, "rapid_sessions", "gauge", "User sessions");
+		metrics.append("rapid_sessions ").append(RapidSessionListener.getTotalSessionCount()).append('\n');
+
+	}
+
+	// the monitor's writer, if the monitor is on
+	private void appendMonitor(StringBuilder metrics) {
+
+		// get the writer
+		MonitorWriter writer = _monitor.getWriter();
+
+		// check we got one
+		if (writer == null) return;
+
+		appendHeader(metrics, "rapid_monitor_queue", "gauge", "Monitor entries waiting to be written");
+		metrics.append("rapid_monitor_queue ").append(writer.getQueueSize()).append('\n');
+
+		appendHeader(metrics, "rapid_monitor_entries_total", "counter", "Monitor entries by outcome");
+		metrics.append("rapid_monitor_entries_total{outcome=\"written\"} ").append(writer.getWritten()).append('\n');
+		metrics.append("rapid_monitor_entries_total{outcome=\"dropped\"} ").append(writer.getDropped()).append('\n');
+		metrics.append("rapid_monitor_entries_total{outcome=\"failed\"} ").append(writer.getFailed()).append('\n');
+
+	}
+
+	// the jvm's memory, garbage collection, and threads
+	private void appendJVM(StringBuilder metrics) {
+
+		// get the memory
+		MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+		MemoryUsage nonHeap = ManagementFactory.getMemoryMXBean().getNonHeapMemoryUsage();
+
+		appendHeader(metrics, "jvm_memory_bytes_used", "gauge", "Memory used");
+		metrics.append("jvm_memory_bytes_used{area=\"heap\"} ").append(heap.getUsed()).append('\n');
+		metrics.append("jvm_memory_bytes_used{area=\"nonheap\"} ").append(nonHeap.getUsed()).append('\n');
+
+		appendHeader(metrics, "jvm_memory_bytes_committed", "gauge", "Memory committed by the operating system");
+		metrics.append("jvm_memory_bytes_committed{area=\"heap\"} ").append(heap.getCommitted()).append('\n');
+		metrics.append("jvm_memory_bytes_committed{area=\"nonheap\"} ").append(nonHeap.getCommitted()).append('\n');
+
+		appendHeader(metrics, "jvm_memory_bytes_max", "gauge", "Most memory that can be used, -1 if there's no limit");
+		metrics.append("jvm_memory_bytes_max{area=\"heap\"} ").append(heap.getMax()).append('\n');
+		metrics.append("jvm_memory_bytes_max{area=\"nonheap\"} ").append(nonHeap.getMax()).append('\n');
+
+		// get the garbage collectors
+		List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+
+		appendHeader(metrics, "jvm_gc_collections_total", "counter", "Garbage collections by collector");
+		for (GarbageCollectorMXBean collector : collectors) {
+			metrics.append("jvm_gc_collections_total{gc=\"").append(escape(collector.getName())).append("\"} ").append(collector.getCollectionCount()).append('\n');
+		}
+
+		appendHeader(metrics, "jvm_gc_collection_seconds_total", "counter", "Time spent in garbage collection by collector");
+		for (GarbageCollectorMXBean collector : collectors) {
+			metrics.append("jvm_gc_collection_seconds_total{gc=\"").append(escape(collector.getName())).append("\"} ").append(collector.getCollectionTime() / 1000.0).append('\n');
+		}
+
+		appendHeader(metrics, "jvm_threads", "gauge", "Live threads");
+		metrics.append("jvm_threads ").append(ManagementFactory.getThreadMXBean().getThreadCount()).append('\n');
+
+		appendHeader(metrics, "process_uptime_seconds", "gauge", "Time since the JVM started");
+		metrics.append("process_uptime_seconds ").append(ManagementFactory.getRuntimeMXBean().getUptime() / 1000.0).append('\n');
+
+	}
+
+	// private static methods
+
+	// the help and type lines before each metric
+	private static void appendHeader(StringBuilder metrics, String name, String type, String help) {
+		metrics.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		metrics.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	// the buckets, sum, and count of a series' latency histogram, labelled with just the application for page loads
+	private static void appendHistogram(StringBuilder metrics, String name, RequestMetrics.Series series, boolean appOnly) {
+		// the labels, left open so the bucket bound can be added
+		StringBuilder labels = new StringBuilder();
+		if (appOnly) {
+			labels.append("{app=\"").append(escape(series.getAppId())).append('"');
+		} else {
+			appendName(labels, "", series);
+		}
+		// prometheus buckets include all of the ones before them
+		long count = 0;
+		for (int i = 0; i < RequestMetrics.HISTOGRAM_MILLIS.length; i++) {
+			count += series.getBucket(i);
+			metrics.append(name).append("_bucket").append(labels).append(",le=\"").append(RequestMetrics.HISTOGRAM_MILLIS[i] / 1000.0).append("\"} ").append(count).append('\n');
+		}
+		count += series.getBucket(RequestMetrics.HISTOGRAM_MILLIS.length);
+		metrics.append(name).append("_bucket").append(labels).append(",le=\"+Inf\"} ").append(count).append('\n');
+		metrics.append(name).append("_sum").append(labels).append("} ").append(series.getTotalMillis() / 1000.0).append('\n');
+		metrics.append(name).append("_count").append(labels).append("} ").append(count).append('\n');
+	}
+
+	// the name and labels of a request series, leaving the labels open so more can be added
+	private static void appendName(StringBuilder metrics, String name, RequestMetrics.Series series) {
+		metrics.append(name)
+			.append("{servlet=\"").append(escape(series.getServlet()))
+			.append("\",app=\"").append(escape(series.getAppId()))
+			.append("\",page=\"").append(escape(series.getPageId()))
+			.append("\",action=\"").append(escape(series.getActionType()))
+			.append('"');
+	}
+
+	private static void appendPool(StringBuilder metrics, String name, String labels, long value) {
+		metrics.append(name).append('{').append(labels).append("} ").append(value).append('\n');
+	}
+
+	private static void appendApplication(StringBuilder metrics, String name, Application application, long value) {
+		metrics.append(name).append("{app=\"").append(escape(application.getId())).append("\",version=\"").append(escape(application.getVersion())).append("\"} ").append(value).append('\n');
+	}
+
+	private static void appendCache(StringBuilder metrics, String name, ActionCache.Cache cache, long value) {
+		metrics.append(name).append("{app=\"").append(escape(cache.getAppId())).append("\"} ").append(value).append('\n');
+	}
+
+	// the labels of a pool, from who it's for rather than its connection string which could have credentials in it
+	private static String getPoolLabels(PooledConnectionAdapter pool) {
+		return "app=\"" + escape(pool.getAppId())
+			+ "\",version=\"" + escape(pool.getAppVersion())
+			+ "\",connection=\"" + escape(pool.getConnectionName())
+			+ "\",replica=\"" + pool.getReplica() + "\"";
+	}
+
+	// escapes a label value
+	private static String escape(String value) {
+		if (value == null) return "";
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+}
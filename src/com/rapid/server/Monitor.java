@@ -1,11 +1,13 @@
 package com.rapid.server;
 
+import java.io.File;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Timestamp;
 
 import javax.servlet.ServletContext;
 import javax.servlet.ServletRequest;
@@ -14,59 +16,197 @@ import javax.servlet.http.HttpServletResponse;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import com.rapid.data.DataFactory.QueryCancelledException;
 import com.rapid.server.RapidRequest;
 
 public class Monitor {
-	private static Logger _logger = LogManager.getLogger(Monitor.class);
 
-	// monitor status and mode
-	private boolean _isAlive = false;
-	private boolean _hasStarted = false;
-	private boolean _isLoggingExceptions;
-	private boolean _isLoggingAll;
+	// an entry for the monitor table, made once from the request when it's committed and never changed
+	public static class Entry {
+
+		private final String _url, _serverName, _context, _userName, _appId, _appVersion, _pageId, _actionId, _actionType, _actionName, _details, _component, _ipAddress, _exception, _timing;
+		private final long _requestSize, _responseSize;
+		private final Timestamp _requestDate, _responseDate;
+		private final int _responseCode;
+
+		public Entry(String url, String serverName, String context, String userName, String appId, String appVersion, String pageId, String actionId, String actionType, String actionName, String details, long requestSize, long responseSize, String component, String ipAddress, Timestamp requestDate, Timestamp responseDate, int responseCode, String exception, String timing) {
+			_url = url;
+			_serverName = serverName;
+			_context = context;
+			_userName = userName;
+			_appId = appId;
+			_appVersion = appVersion;
+			_pageId = pageId;
+			_actionId = actionId;
+			_actionType = actionType;
+			_actionName = actionName;
+			_details = details;
+			_requestSize = requestSize;
+			_responseSize = responseSize;
+			_component = component;
+			_ipAddress = ipAddress;
+			_requestDate = requestDate;
+			_responseDate = responseDate;
+			_responseCode = responseCode;
+			_exception = exception;
+			_timing = timing;
+		}
+
+		// sets the parameters of the insert statement from this entry, including the timing json if the monitor table has a column for it
+		public void populate(PreparedStatement statement, boolean timing) throws SQLException {
+			statement.setString(1, _url);
+			statement.setString(2, _serverName);
+			statement.setString(3, _context);
+			statement.setString(4, _userName);
+			statement.setString(5, _appId);
+			statement.setString(6, _appVersion);
+			statement.setString(7, _pageId);
+			statement.setString(8, _actionId);
+			statement.setString(9, _actionType);
+			statement.setString(10, _actionName);
+			statement.setString(11, _details);
+			statement.setLong(12, _requestSize);
+			statement.setLong(13, _responseSize);
+			statement.setString(14, _component);
+			statement.setString(15, _ipAddress);
+			statement.setObject(16, _requestDate);
+			statement.setObject(17, _responseDate);
+			statement.setInt(18, _responseCode);
+			statement.setString(19, _exception);
+			if (timing) statement.setString(20, _timing);
+		}
+
+		// appends this entry as a line of tab separated fields for the monitor files, in the order of MonitorFiles.FIELDS
+		public void appendLine(StringBuilder line) {
+			line.append(_requestDate == null ? 0 : _requestDate.getTime()).append('\t');
+			line.append(_requestDate == null || _responseDate == null ? 0 : _responseDate.getTime() - _requestDate.getTime()).append('\t');
+			appendField(line, _appId);
+			appendField(line, _appVersion);
+			appendField(line, _pageId);
+			appendField(line, _actionId);
+			appendField(line, _actionType);
+			appendField(line, _actionName);
+			appendField(line, _component);
+			line.append(_responseCode).append('\t');
+			line.append(_requestSize).append('\t');
+			line.append(_responseSize).append('\t');
+			appendField(line, _userName);
+			appendField(line, _ipAddress);
+			appendField(line, _serverName);
+			appendField(line, _context);
+			appendField(line, _url);
+			appendField(line, _details);
+			appendField(line, _exception);
+			appendField(line, _timing);
+			// replace the last tab with the end of the line
+			line.setCharAt(line.length() - 1, '\n');
+		}
+
+		// appends a field and its tab, escaping any tabs, line breaks, and backslashes in it
+		private static void appendField(StringBuilder line, String value) {
+			if (value != null) {
+				for (int i = 0; i < value.length(); i++) {
+					char c = value.charAt(i);
+					switch (c) {
+					case '\t' : line.append("\\t"); break;
+					case '\n' : line.append("\\n"); break;
+					case '\r' : line.append("\\r"); break;
+					case '\\' : line.append("\\\\"); break;
+					default : line.append(c);
+					}
+				}
+			}
+			line.append('\t');
+		}
+
+	}
+
+	// where the entries are written
+	public static final String DATABASE_SINK = "database";
+	public static final String FILE_SINK = "file";
+
+	private static Logger _logger = LogManager.getLogger(Monitor.class);
 
-	// database
-	private Connection _connection;
-	private PreparedStatement _preparedInsertStatement;
+	// monitor status and mode, shared by all of the servlets and actions
+	private static volatile boolean _isAlive = false;
+	private static volatile boolean _hasStarted = false;
+	private static volatile boolean _isLoggingExceptions;
+	private static volatile boolean _isLoggingAll;
 
-	// entry data
-	private java.sql.Timestamp _startTime;
-	private String _details;
-	private String _actionName;
-	private String _appId;
-	private String _appVersion;
+	// the thread writing the entries to the database
+	private static volatile MonitorWriter _writer;
 
 	public Monitor() {
 	}
 
 	public void setUpMonitor(ServletContext servletContect) throws SQLException  {
-		String connectionString = servletContect.getInitParameter("monitor.jdbc");
-		String username = servletContect.getInitParameter("monitor.user");
-		String password = servletContect.getInitParameter("monitor.password");
-		
-		if(connectionString==null || connectionString.length()==0 || username==null || username.length()==0 || password==null || password.length()==0) {
-			_logger.debug("Monitoring not initialised");
-			_isAlive = false;
+		synchronized (Monitor.class) {
+
+			// only the first servlet or action to get here sets up the monitor
+			if(_writer!=null)
+				return;
+
+			String connectionString = servletContect.getInitParameter("monitor.jdbc");
+			String username = servletContect.getInitParameter("monitor.user");
+			String password = servletContect.getInitParameter("monitor.password");
+			String loggingMode = servletContect.getInitParameter("monitor.mode");
+
+			boolean hasDatabase = connectionString!=null && connectionString.length()>0 && username!=null && username.length()>0 && password!=null && password.length()>0;
+
+			// the sink is the database if there is one, otherwise local files if there's a mode, unless set with monitor.sink
+			String sinkType = servletContect.getInitParameter("monitor.sink");
+			if(sinkType==null || sinkType.length()==0) {
+				if(hasDatabase)
+					sinkType = DATABASE_SINK;
+				else if(loggingMode!=null && loggingMode.length()>0)
+					sinkType = FILE_SINK;
+			}
+
+			MonitorWriter.Sink sink = null;
+
+			if(FILE_SINK.equalsIgnoreCase(sinkType)) {
+
+				// the folder for the files, in the logs folder unless set
+				String folder = servletContect.getInitParameter("monitor.folder");
+				if(folder==null || folder.length()==0)
+					folder = servletContect.getRealPath("/") + "/WEB-INF/logs/monitor";
+
+				sink = new MonitorFiles(new File(folder), getIntParameter(servletContect, "monitor.fileSize", MonitorFiles.FILE_SIZE), getIntParameter(servletContect, "monitor.rollMinutes", MonitorFiles.ROLL_MINUTES), getIntParameter(servletContect, "monitor.maxFiles", MonitorFiles.MAX_FILES));
+
+			} else if(DATABASE_SINK.equalsIgnoreCase(sinkType) && hasDatabase) {
+
+				Connection connection = DriverManager.getConnection(connectionString, username, password);
+
+				if(isDatabaseConnectionActive(connection)) {
+					sink = new MonitorWriter.DatabaseSink(connection, hasTimingColumn(connection));
+				} else {
+					connection.close();
+				}
+
+			}
+
+			_isAlive = sink!=null;
+			if(_isAlive) {
+				// start the writer
+				_writer = new MonitorWriter(sink, getIntParameter(servletContect, "monitor.queueSize", MonitorWriter.QUEUE_SIZE), getIntParameter(servletContect, "monitor.batchSize", MonitorWriter.BATCH_SIZE), getIntParameter(servletContect, "monitor.flushInterval", MonitorWriter.FLUSH_INTERVAL), servletContect.getInitParameter("monitor.overflow"));
+				_writer.start();
+			} else {
+				_logger.debug("Monitoring not initialised");
+				_hasStarted = true;
+				return;
+			}
+
+			if("all".equalsIgnoreCase(loggingMode)) {
+				_isLoggingExceptions = true;
+				_isLoggingAll = true;
+			}
+			if("exception".equalsIgnoreCase(loggingMode)) {
+				_isLoggingExceptions = true;
+				_isLoggingAll = false;
+			}
+
 			_hasStarted = true;
-			return;
-		}
 
-		_connection = DriverManager.getConnection(connectionString, username, password);
-		
-		_isAlive = isDatabaseConnectionActive();
-		if(_isAlive)
-			_preparedInsertStatement = _connection.prepareStatement("insert monitor(url, serverName, context, username, appId, appVersion, pageId, actionId, actionType, actionName, details, requestSize, responseSize, component, ipAddress, requestDate, responseDate, respondeCode, exception) values(?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
-		else
-			_logger.debug("Monitoring not initialised");
-		
-		String loggingMode = servletContect.getInitParameter("monitor.mode");
-		if("all".equalsIgnoreCase(loggingMode)) {
-			_isLoggingExceptions = true;
-			_isLoggingAll = true;
-		}
-		if("exception".equalsIgnoreCase(loggingMode)) {
-			_isLoggingExceptions = true;
-			_isLoggingAll = false;
 		}
 	}
 
@@ -77,11 +217,10 @@ public class Monitor {
 		if(!_isAlive && _hasStarted)
 			return false;
 
-		_hasStarted = true;
-
 		try {
 			setUpMonitor(servletContect);
 		} catch(Exception e) {
+			_hasStarted = true;
 			e.printStackTrace();
 		}
 
@@ -96,124 +235,108 @@ public class Monitor {
 		return _isLoggingExceptions;
 	}
 
-	public void setDetails(String details) {
-		this._details = details;
+	// the writer, for its counts, or null if the monitor isn't running
+	public MonitorWriter getWriter() {
+		return _writer;
 	}
 
-	public void setActionName(String actionName) {
-		this._actionName = actionName;
+	// the local files the entries are written to, or null if they're going to the database or the monitor isn't running
+	public MonitorFiles getFiles() {
+		MonitorWriter writer = _writer;
+		if(writer!=null && writer.getSink() instanceof MonitorFiles)
+			return (MonitorFiles) writer.getSink();
+		return null;
 	}
 
-	public void setAppId(String appName) {
-		this._appId = appName;
+	public void commitEntry(RapidRequest rapidRequest, HttpServletResponse response, long responseSize) {
+		commitEntry(rapidRequest, response, responseSize, null, null);
 	}
 
-	public void setAppVersion(String appVersion) {
-		this._appVersion = appVersion;
+	public void commitEntry(RapidRequest rapidRequest, HttpServletResponse response, long responseSize, String exceptionMessage) {
+		commitEntry(rapidRequest, response, responseSize, exceptionMessage, null);
 	}
 
-	public void openEntry() {
-		_startTime = new java.sql.Timestamp(new java.util.Date().getTime());
-		_details = null;
+	public void commitEntry(RapidRequest rapidRequest, HttpServletResponse response, long responseSize, String exceptionMessage, String details) {
+		commitEntry(rapidRequest, response, responseSize, exceptionMessage, details, null, null, null);
 	}
-	
-	public void commitEntry(RapidRequest rapidRequest, HttpServletResponse response, long responseSize) {
-		commitEntry(rapidRequest, response, responseSize, null);
+
+	// an entry for something done by a request but for a different app or action name, like the rapid action creating an app
+	public void commitEntry(RapidRequest rapidRequest, String actionName, String appId, String appVersion) {
+		commitEntry(rapidRequest, null, 0, null, null, actionName, appId, appVersion);
 	}
 
-	public void commitEntry(RapidRequest rapidRequest, HttpServletResponse response, long responseSize, String exceptionMessage) {
-		try {
+	private void commitEntry(RapidRequest rapidRequest, HttpServletResponse response, long responseSize, String exceptionMessage, String details, String entryActionName, String entryAppId, String entryAppVersion) {
 
-			if(_connection==null)
-				setUpMonitor(rapidRequest.getRapidServlet().getServletContext());
-			
-			String url = rapidRequest.getRequest().getRequestURL().toString();
-			String query = rapidRequest.getRequest().getQueryString();
-		
-			String wholeUrl = url;
-			if(wholeUrl.endsWith("~") && query!=null && query.length()>0)
-				wholeUrl = wholeUrl.substring(0, wholeUrl.length()-1) + "?" + query;
-		
-			ServletRequest request = rapidRequest.getRequest();
-
-			String appId = request.getParameter("a");
-			if(_appId!=null)
-				appId = _appId;
-			
-			String appVersion = request.getParameter("v");
-			if(_appVersion!=null)
-				appVersion = _appVersion;
-			
-			String pageId = request.getParameter("p");
-			if(appId==null) {
-				appVersion = null;
-				pageId = null;
-			}
+		if(_writer==null)
+			return;
+
+		String url = rapidRequest.getRequest().getRequestURL().toString();
+		String query = rapidRequest.getRequest().getQueryString();
+
+		String wholeUrl = url;
+		if(wholeUrl.endsWith("~") && query!=null && query.length()>0)
+			wholeUrl = wholeUrl.substring(0, wholeUrl.length()-1) + "?" + query;
+
+		ServletRequest request = rapidRequest.getRequest();
+
+		String appId = request.getParameter("a");
+		if(entryAppId!=null)
+			appId = entryAppId;
+
+		String appVersion = request.getParameter("v");
+		if(entryAppVersion!=null)
+			appVersion = entryAppVersion;
 
-			String server = request.getServerName();
-			String context = rapidRequest.getRequest().getContextPath();
+		String pageId = request.getParameter("p");
+		if(appId==null) {
+			appVersion = null;
+			pageId = null;
+		}
+
+		String server = request.getServerName();
+		String context = rapidRequest.getRequest().getContextPath();
+		if(context.length()>0)
 			context = context.substring(1, context.length());
-			
-			String uri = rapidRequest.getRequest().getRequestURI();
-			int lastSlash = uri.lastIndexOf("/");
-			String component = uri.substring(lastSlash+1);
-			if("~".equals(component))
-				component = "rapid";
-			
-			String userName = rapidRequest.getUserName();
-
-			String actionId = request.getParameter("act");
-			
-			String actionType = null;
-			if(actionId!=null)
-				actionType = rapidRequest.getAction().getType();
-				
-			String actionName = request.getParameter("action");
-			if(actionName==null) {
-				actionName = _actionName;
-			}
-			
-			if("imageUpload".equalsIgnoreCase(actionName)) {
-				_details = request.getParameter("name");
-			}
-			
-			int requestSize = request.getContentLength();
-			if(requestSize<0)
-				requestSize = 0;
-
-			_preparedInsertStatement.setString(1, wholeUrl);
-			_preparedInsertStatement.setString(2, server);
-			_preparedInsertStatement.setString(3, context);
-			_preparedInsertStatement.setString(4, userName);
-			_preparedInsertStatement.setString(5, appId);
-			_preparedInsertStatement.setString(6, appVersion);
-			_preparedInsertStatement.setString(7, pageId);
-			_preparedInsertStatement.setString(8, actionId);
-			_preparedInsertStatement.setString(9, actionType);
-			_preparedInsertStatement.setString(10, actionName);
-			_preparedInsertStatement.setString(11, _details);
-			_preparedInsertStatement.setInt(12, requestSize);
-			_preparedInsertStatement.setLong(13, responseSize);
-			_preparedInsertStatement.setString(14, component);
-			_preparedInsertStatement.setString(15, request.getRemoteAddr());
-			_preparedInsertStatement.setObject(16, _startTime);
-			_preparedInsertStatement.setObject(17, new java.sql.Timestamp(new java.util.Date().getTime()));
-			if(response!=null)
-				_preparedInsertStatement.setInt(18, ((HttpServletResponse) response).getStatus());
-			else
-				_preparedInsertStatement.setInt(18, -1);
-				
-			_preparedInsertStatement.setString(19, exceptionMessage);
-			_preparedInsertStatement.executeUpdate();
-			_connection.commit();
-			
-			_details = null;
-			_actionName = null;
-			_appId = null;
-			_appVersion = null;
-		} catch (SQLException e) {
-			_logger.debug("Monitor database open entry error: "+e.getMessage());
+
+		String uri = rapidRequest.getRequest().getRequestURI();
+		int lastSlash = uri.lastIndexOf("/");
+		String component = uri.substring(lastSlash+1);
+		if("~".equals(component))
+			component = "rapid";
+
+		String userName = rapidRequest.getUserName();
+
+		String actionId = request.getParameter("act");
+
+		String actionType = null;
+		if(actionId!=null && rapidRequest.getAction()!=null)
+			actionType = rapidRequest.getAction().getType();
+
+		String actionName = request.getParameter("action");
+		if(actionName==null) {
+			actionName = entryActionName;
+		}
+
+		if("imageUpload".equalsIgnoreCase(actionName)) {
+			details = request.getParameter("name");
 		}
+
+		int requestSize = request.getContentLength();
+		if(requestSize<0)
+			requestSize = 0;
+
+		int responseCode = -1;
+		if(response!=null)
+			responseCode = response.getStatus();
+
+		// the time spent in each part of the request, if it was timed
+		String timing = null;
+		if(rapidRequest.getTiming()!=null)
+			timing = rapidRequest.getTiming().toJSON();
+
+		// queue the entry for the writer
+		_writer.add(new Entry(wholeUrl, server, context, userName, appId, appVersion, pageId, actionId, actionType, actionName, details, requestSize, responseSize, component, request.getRemoteAddr(), new Timestamp(rapidRequest.getStartTime()), new Timestamp(System.currentTimeMillis()), responseCode, exceptionMessage, timing));
+
 	}
 
 	public void createEntry(ServletContext servletContext, String appId, String appVersion, String actionName, long requestSize, long response)  {
@@ -221,64 +344,76 @@ public class Monitor {
 	}
 
 	public void createEntry(ServletContext servletContext, String appId, String appVersion, String actionName, long requestSize, long response, String exceptionMessage) {
-		try {
 
-			if(_connection==null)
-				setUpMonitor(servletContext);
-			
-			_preparedInsertStatement.setString(1, "SERVER SIDE");
-			_preparedInsertStatement.setString(2, null);
-			_preparedInsertStatement.setString(3, null);
-			_preparedInsertStatement.setString(4, null);
-			_preparedInsertStatement.setString(5, appId);
-			_preparedInsertStatement.setString(6, appVersion);
-			_preparedInsertStatement.setString(7, null);
-			_preparedInsertStatement.setString(8, null);
-			_preparedInsertStatement.setString(9, null);
-			_preparedInsertStatement.setString(10, actionName);
-			_preparedInsertStatement.setString(11, _details);
-			_preparedInsertStatement.setLong(12, requestSize);
-			_preparedInsertStatement.setLong(13, response);
-			_preparedInsertStatement.setString(14, null);
-			_preparedInsertStatement.setString(15, null);
-			_preparedInsertStatement.setObject(16, new java.sql.Timestamp(new java.util.Date().getTime()));
-			_preparedInsertStatement.setObject(17, new java.sql.Timestamp(new java.util.Date().getTime()));
-			_preparedInsertStatement.setInt(18, -1);
-			_preparedInsertStatement.setString(19, exceptionMessage);
-			_preparedInsertStatement.executeUpdate();
-			_connection.commit();
-			
-			_details = null;
-			_actionName = null;
-			_appId = null;
-			_appVersion = null;
-		} catch (SQLException e) {
-			_logger.debug("Monitor database open entry error: "+e.getMessage());
+		if(_writer==null)
+			return;
+
+		Timestamp now = new Timestamp(System.currentTimeMillis());
+
+		// queue the entry for the writer
+		_writer.add(new Entry("SERVER SIDE", null, null, null, appId, appVersion, null, null, null, actionName, null, requestSize, response, null, null, now, now, -1, exceptionMessage, null));
+
+	}
+
+	// the message recorded for an exception - cancelled queries are prefixed with their type and reason so they can be told apart from other errors
+	public static String getExceptionMessage(Exception ex) {
+		if(ex instanceof QueryCancelledException)
+			return "QueryCancelled(" + ((QueryCancelledException) ex).getReason() + "): " + ex.getMessage();
+		return ex.getMessage();
+	}
+
+	// whether the monitor table has the optional timing column for the request timing json
+	private static boolean hasTimingColumn(Connection connection) {
+		try {
+			Statement statement = connection.createStatement();
+			try {
+				statement.executeQuery("select timing from monitor where 1=0").close();
+				return true;
+			} finally {
+				statement.close();
+			}
+		} catch(SQLException ex) {
+			_logger.debug("Monitor table has no timing column, request timing will not be recorded");
+			return false;
 		}
 	}
-	
-	private boolean isDatabaseConnectionActive() {
+
+	private static boolean isDatabaseConnectionActive(Connection connection) {
 		try {
-			Statement statement = _connection.createStatement();  
+			Statement statement = connection.createStatement();
 			ResultSet resultSet = statement.executeQuery("select count(*) count from monitor");
 			if(resultSet!=null) {
 				resultSet.close();
+				statement.close();
 				return true;
 			}
+			statement.close();
 			return false;
 		} catch(SQLException ex) {
 			return false;
 		}
 	}
 
+	private static int getIntParameter(ServletContext servletContext, String name, int defaultValue) {
+		String value = servletContext.getInitParameter(name);
+		if(value!=null) {
+			try {
+				return Integer.parseInt(value.trim());
+			} catch(NumberFormatException ex) {
+				_logger.error(name + " " + value + " is not a number, using " + defaultValue);
+			}
+		}
+		return defaultValue;
+	}
+
+	// writes any entries still queued and stops the writer, used by the context listener at shutdown
 	public void close() {
-		try {
-			if(_connection!=null)
-				_connection.close();
-			if(_preparedInsertStatement!=null)
-				_preparedInsertStatement.close();
-		} catch (SQLException e) {
-			_logger.debug("Monitor database connection close error: "+e.getMessage());
+		synchronized (Monitor.class) {
+			if(_writer!=null) {
+				_writer.close();
+				_writer = null;
+			}
+			_isAlive = false;
 		}
 	}
 }
@@ -0,0 +1,338 @@
+/*
+
+Copyright (C) 2022 - Gareth Edwards / Rapid Information Systems
+
+gareth.edwards@rapid-is.co.uk
+
+
+This file is part of the Rapid Application Platform
+
+Rapid is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version. The terms require you
+to include the original copyright, and the license notice in all redistributions.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+in a file named "COPYING".  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package com.rapid.server;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.rapid.server.Monitor.Entry;
+
+/*
+
+This monitor writer sink appends the entries to local files, for when there's no monitor database. Each entry is a line of
+tab separated fields, with any tabs, line breaks, and backslashes in them escaped, and each file starts with a comment line
+naming the fields. A new file is started when the current one reaches the maximum size, or has been open for the roll
+interval, and the oldest are deleted when there are more than the maximum number. The files are named by when they were
+started, so the summary only needs to read the ones that can have entries in the period it's asked for, and reads them a
+line at a time.
+
+*/
+
+public class MonitorFiles implements MonitorWriter.Sink {
+
+	// the totals for one application and action in a summary
+	private static class Group {
+
+		private String _appId, _action;
+		private long _count, _errors, _totalMillis, _maxMillis, _responseBytes;
+
+		private Group(String appId, String action) {
+			_appId = appId;
+			_action = action;
+		}
+
+		private JSONObject toJSON() throws JSONException {
+			JSONObject jsonGroup = new JSONObject();
+			jsonGroup.put("appId", _appId);
+			jsonGroup.put("action", _action);
+			jsonGroup.put("count", _count);
+			jsonGroup.put("errors", _errors);
+			jsonGroup.put("totalMillis", _totalMillis);
+			jsonGroup.put("meanMillis", _count == 0 ? 0 : _totalMillis / (double) _count);
+			jsonGroup.put("maxMillis", _maxMillis);
+			jsonGroup.put("responseBytes", _responseBytes);
+			return jsonGroup;
+		}
+
+	}
+
+	// the fields of each line, in the order Monitor.Entry writes them
+	public static final String[] FIELDS = {"requestDate", "millis", "appId", "appVersion", "pageId", "actionId", "actionType", "actionName", "component", "responseCode", "requestSize", "responseSize", "userName", "ipAddress", "serverName", "context", "url", "details", "exception", "timing"};
+
+	// defaults, which can be set with the monitor.fileSize (in MB), monitor.rollMinutes, and monitor.maxFiles context parameters
+	public static final int FILE_SIZE = 10;
+	public static final int ROLL_MINUTES = 60;
+	public static final int MAX_FILES = 168;
+
+	// the positions of the fields the summary uses
+	private static final int REQUEST_DATE = 0, MILLIS = 1, APP_ID = 2, ACTION_TYPE = 6, ACTION_NAME = 7, COMPONENT = 8, RESPONSE_CODE = 9, RESPONSE_SIZE = 11, EXCEPTION = 18;
+
+	// the files are named monitor-{start}.log
+	private static final String PREFIX = "monitor-";
+	private static final String SUFFIX = ".log";
+	private static final String DATE_FORMAT = "yyyyMMdd-HHmmss-SSS";
+
+	// private static variables
+	private static Logger _logger = LogManager.getLogger(MonitorFiles.class);
+
+	// private instance variables
+	private File _folder;
+	private long _maxFileSize, _rollInterval;
+	private int _maxFiles;
+	private File _file;
+	private Writer _writer;
+	private long _rollAt;
+
+	// constructor
+
+	public MonitorFiles(File folder, int fileSize, int rollMinutes, int maxFiles) {
+		_folder = folder;
+		_maxFileSize = Math.max(1, fileSize) * 1024L * 1024L;
+		_rollInterval = Math.max(1, rollMinutes) * 60000L;
+		_maxFiles = Math.max(1, maxFiles);
+		_logger.info("Monitor writing to files in " + folder + ", rolled every " + _rollInterval / 60000 + " minutes or " + _maxFileSize / 1024 / 1024 + " MB, keeping " + _maxFiles);
+	}
+
+	// properties
+
+	public File getFolder() { return _folder; }
+
+	// overrides
+
+	// appends the entries to the current file, rolling it first if it's due, called only by the monitor writer thread
+	@Override
+	public void write(List<Entry> entries) throws IOException {
+
+		// start a new file if there isn't one, it's been open long enough, or it's big enough
+		if (_writer == null || System.currentTimeMillis() >= _rollAt || _file.length() >= _maxFileSize) roll();
+
+		// make the lines
+		StringBuilder lines = new StringBuilder();
+		for (Entry entry : entries) entry.appendLine(lines);
+
+		// append them, flushing so the summary can see them
+		_writer.write(lines.toString());
+		_writer.flush();
+
+	}
+
+	@Override
+	public void close() {
+		closeWriter();
+	}
+
+	// public methods
+
+	// the number of entries, errors, and total, mean, and max millis, for each application and action in the last minutes, reading the files a line at a time
+	public JSONObject getSummary(int minutes) throws IOException, JSONException {
+
+		// the earliest request we want
+		long now = System.currentTimeMillis();
+		long from = now - minutes * 60000L;
+
+		// the totals, by app and action
+		Map<String, Group> groups = new HashMap<>();
+
+		// the number of files and entries read
+		int fileCount = 0;
+		long entryCount = 0;
+
+		// get the files in order
+		File[] files = getFiles(_folder);
+
+		// loop them
+		for (int i = 0; i < files.length; i++) {
+
+			// skip it if the next was started before the period, so this one can only have earlier entries
+			if (i < files.length - 1 && getStarted(files[i + 1]) < from) continue;
+
+			fileCount ++;
+
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(files[i]), StandardCharsets.UTF_8));
+
+			try {
+
+				String line;
+				while ((line = reader.readLine()) != null) {
+
+					// skip the field names, and anything that's not a whole line
+					if (line.startsWith("#")) continue;
+					String[] fields = line.split("\t", -1);
+					if (fields.length < FIELDS.length) continue;
+
+					// skip entries from before the period
+					long requestDate = parseLong(fields[REQUEST_DATE]);
+					if (requestDate < from) continue;
+
+					entryCount ++;
+
+					// the action is the action type, or the name of a rapid or designer action, or the component for page requests
+					String action = fields[ACTION_TYPE];
+					if (action.length() == 0) action = fields[ACTION_NAME];
+					if (action.length() == 0) action = fields[COMPONENT];
+
+					// get the group
+					String key = fields[APP_ID] + "\t" + action;
+					Group group = groups.get(key);
+					if (group == null) {
+						group = new Group(fields[APP_ID], action);
+						groups.put(key, group);
+					}
+
+					// add this entry
+					long millis = parseLong(fields[MILLIS]);
+					group._count ++;
+					group._totalMillis += millis;
+					if (millis > group._maxMillis) group._maxMillis = millis;
+					group._responseBytes += parseLong(fields[RESPONSE_SIZE]);
+					if (parseLong(fields[RESPONSE_CODE]) >= 500 || fields[EXCEPTION].length() > 0) group._errors ++;
+
+				}
+
+			} finally {
+				reader.close();
+			}
+
+		}
+
+		// sort the groups, most entries first
+		List<Group> sortedGroups = new ArrayList<>(groups.values());
+		Collections.sort(sortedGroups, new Comparator<Group>() {
+			@Override
+			public int compare(Group g1, Group g2) {
+				return Long.compare(g2._count, g1._count);
+			}
+		});
+
+		// make the json
+		JSONObject jsonSummary = new JSONObject();
+		jsonSummary.put("minutes", minutes);
+		jsonSummary.put("from", from);
+		jsonSummary.put("to", now);
+		jsonSummary.put("files", fileCount);
+		jsonSummary.put("entries", entryCount);
+		JSONArray jsonGroups = new JSONArray();
+		for (Group group : sortedGroups) jsonGroups.put(group.toJSON());
+		jsonSummary.put("groups", jsonGroups);
+
+		return jsonSummary;
+
+	}
+
+	// private methods
+
+	// starts a new file and deletes the oldest if there are too many
+	private void roll() throws IOException {
+
+		// close the current one
+		closeWriter();
+
+		// make sure the folder is there
+		if (!_folder.exists()) _folder.mkdirs();
+
+		// name the new file by when it was started
+		long now = System.currentTimeMillis();
+		_file = new File(_folder, PREFIX + new SimpleDateFormat(DATE_FORMAT).format(new Date(now)) + SUFFIX);
+		_rollAt = now + _rollInterval;
+
+		// open it for appending
+		_writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(_file, true), StandardCharsets.UTF_8));
+
+		// start it with the field names
+		_writer.write("#" + String.join("\t", FIELDS) + "\n");
+		_writer.flush();
+
+		// delete the oldest files if we have too many
+		File[] files = getFiles(_folder);
+		for (int i = 0; i < files.length - _maxFiles; i++) {
+			if (!files[i].delete()) _logger.debug("Could not delete old monitor file " + files[i]);
+		}
+
+	}
+
+	// closes the current file
+	private void closeWriter() {
+		if (_writer != null) {
+			try {
+				_writer.close();
+			} catch (IOException ex) {
+				_logger.debug("Error closing monitor file " + _file + " : " + ex.getMessage());
+			}
+			_writer = null;
+		}
+	}
+
+	// private static methods
+
+	// the monitor files in a folder, oldest first
+	private static File[] getFiles(File folder) {
+		File[] files = folder.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+			}
+		});
+		if (files == null) return new File[0];
+		// the names sort by when they were started
+		Arrays.sort(files);
+		return files;
+	}
+
+	// when a file was started, from its name
+	private static long getStarted(File file) {
+		String name = file.getName();
+		try {
+			return new SimpleDateFormat(DATE_FORMAT).parse(name.substring(PREFIX.length(), name.length() - SUFFIX.length())).getTime();
+		} catch (Exception ex) {
+			// if we can't tell, read it
+			return Long.MAX_VALUE;
+		}
+	}
+
+	// a number field, or 0 if it isn't one
+	private static long parseLong(String value) {
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException ex) {
+			return 0;
+		}
+	}
+
+}
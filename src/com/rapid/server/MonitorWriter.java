@@ -0,0 +1,334 @@
+/*
+
+Copyright (C) 2022 - Gareth Edwards / Rapid Information Systems
+
+gareth.edwards@rapid-is.co.uk
+
+
+This file is part of the Rapid Application Platform
+
+Rapid is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version. The terms require you
+to include the original copyright, and the license notice in all redistributions.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+in a file named "COPYING".  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package com.rapid.server;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.rapid.server.Monitor.Entry;
+
+/*
+
+This thread writes the monitor entries to the monitor database, or local files, so requests only have to add their entry
+to a queue rather than wait for an insert and commit of their own. The queue is lock free with a fixed capacity. When it's
+full new entries are either dropped and counted, or the request waits for room, according to the overflow policy. The
+entries are given to the sink in batches of up to batchSize, whenever that many are waiting or every flushInterval
+milliseconds, and any left are written when it's closed. The database sink inserts each batch in one transaction.
+
+*/
+
+public class MonitorWriter extends Thread {
+
+	// where the batches of entries are written
+	public interface Sink {
+
+		// writes a batch of entries, throwing an exception if they're lost
+		public void write(List<Entry> entries) throws Exception;
+
+		// closes anything the sink has open
+		public void close();
+
+	}
+
+	// inserts the entries into the monitor table with a jdbc batch in one transaction
+	public static class DatabaseSink implements Sink {
+
+		private Connection _connection;
+		private boolean _timing;
+
+		// timing is whether the monitor table has the optional timing column
+		public DatabaseSink(Connection connection, boolean timing) {
+			_connection = connection;
+			_timing = timing;
+		}
+
+		@Override
+		public void write(List<Entry> entries) throws SQLException {
+
+			// each batch is one transaction
+			_connection.setAutoCommit(false);
+
+			PreparedStatement statement = _connection.prepareStatement(_timing ? INSERT_TIMING_SQL : INSERT_SQL);
+
+			try {
+
+				// add the entries
+				for (Entry entry : entries) {
+					entry.populate(statement, _timing);
+					statement.addBatch();
+				}
+
+				// insert them
+				statement.executeBatch();
+				_connection.commit();
+
+			} catch (SQLException ex) {
+
+				try {
+					_connection.rollback();
+				} catch (SQLException rex) {
+					_logger.debug("Monitor database rollback error: " + rex.getMessage());
+				}
+
+				throw ex;
+
+			} finally {
+
+				statement.close();
+
+			}
+
+		}
+
+		@Override
+		public void close() {
+			try {
+				_connection.close();
+			} catch (SQLException ex) {
+				_logger.debug("Monitor database connection close error: " + ex.getMessage());
+			}
+		}
+
+	}
+
+	// overflow policies
+	public static final String DROP = "drop";
+	public static final String BLOCK = "block";
+
+	// defaults, which can be set with the monitor.queueSize, monitor.batchSize, monitor.flushInterval, and monitor.overflow context parameters
+	public static final int QUEUE_SIZE = 10000;
+	public static final int BATCH_SIZE = 100;
+	public static final int FLUSH_INTERVAL = 1000;
+
+	// the longest a request waits for room with the block policy, before its entry is dropped anyway
+	private static final long BLOCK_TIMEOUT = 5000;
+
+	// the insert for each entry
+	private static final String INSERT_SQL = "insert monitor(url, serverName, context, username, appId, appVersion, pageId, actionId, actionType, actionName, details, requestSize, responseSize, component, ipAddress, requestDate, responseDate, respondeCode, exception) values(?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+	// the insert when the monitor table has the optional timing column
+	private static final String INSERT_TIMING_SQL = "insert monitor(url, serverName, context, username, appId, appVersion, pageId, actionId, actionType, actionName, details, requestSize, responseSize, component, ipAddress, requestDate, responseDate, respondeCode, exception, timing) values(?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+	// private static variables
+	private static Logger _logger = LogManager.getLogger(MonitorWriter.class);
+
+	// private instance variables
+	private Sink _sink;
+	private Queue<Entry> _queue;
+	private AtomicInteger _size;
+	private AtomicLong _written, _dropped, _failed;
+	private int _capacity, _batchSize;
+	private long _flushInterval;
+	private boolean _block;
+	private volatile boolean _closed;
+
+	// constructor
+
+	public MonitorWriter(Sink sink, int capacity, int batchSize, int flushInterval, String overflow) {
+		super("Rapid monitor writer");
+		// don't stop the server shutting down
+		setDaemon(true);
+		_sink = sink;
+		_queue = new ConcurrentLinkedQueue<>();
+		_size = new AtomicInteger();
+		_written = new AtomicLong();
+		_dropped = new AtomicLong();
+		_failed = new AtomicLong();
+		_capacity = Math.max(1, capacity);
+		_batchSize = Math.max(1, batchSize);
+		_flushInterval = Math.max(1, flushInterval);
+		_block = BLOCK.equalsIgnoreCase(overflow);
+	}
+
+	// properties
+
+	// where the entries are written
+	public Sink getSink() { return _sink; }
+
+	// the number of entries waiting to be written
+	public int getQueueSize() { return _size.get(); }
+
+	// the number of entries written to the database
+	public long getWritten() { return _written.get(); }
+
+	// the number of entries dropped because the queue was full
+	public long getDropped() { return _dropped.get(); }
+
+	// the number of entries lost because their insert failed
+	public long getFailed() { return _failed.get(); }
+
+	// public methods
+
+	// adds an entry to the queue for writing, returning false if it was dropped
+	public boolean add(Entry entry) {
+
+		// when we'll stop waiting for room, if we're blocking
+		long blockUntil = 0;
+
+		// reserve a place in the queue
+		while (true) {
+
+			// get the current size
+			int size = _size.get();
+
+			// if the queue is full
+			if (size >= _capacity) {
+
+				// if we're dropping, or closed, or have waited long enough
+				if (!_block || _closed || (blockUntil > 0 && System.currentTimeMillis() > blockUntil)) {
+					// count it
+					_dropped.incrementAndGet();
+					// it's not going in
+					return false;
+				}
+
+				// remember when to stop waiting
+				if (blockUntil == 0) blockUntil = System.currentTimeMillis() + BLOCK_TIMEOUT;
+
+				// make sure the writer is making room
+				LockSupport.unpark(this);
+
+				// wait a moment for it
+				LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+
+			} else if (_size.compareAndSet(size, size + 1)) {
+
+				// we have our place
+				break;
+
+			}
+
+		}
+
+		// add the entry
+		_queue.add(entry);
+
+		// if there's a batch waiting wake the writer
+		if (_size.get() >= _batchSize) LockSupport.unpark(this);
+
+		return true;
+
+	}
+
+	// stops the thread, once it has written everything in the queue
+	public void close() {
+
+		_closed = true;
+
+		// wake the writer
+		LockSupport.unpark(this);
+
+		try {
+			// wait for it to write what's left
+			join(BLOCK_TIMEOUT);
+		} catch (InterruptedException ex) {
+			_logger.debug("Interrupted waiting for monitor writer to finish");
+		}
+
+		// close the sink
+		_sink.close();
+
+	}
+
+	// overrides
+
+	@Override
+	public void run() {
+
+		_logger.info("Monitor writer started, writing batches of " + _batchSize + " every " + _flushInterval + " ms, queue size " + _capacity + (_block ? " blocking" : " dropping") + " when full");
+
+		while (!_closed) {
+
+			// wait until the interval passes, or we're woken for a batch
+			LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(_flushInterval));
+
+			// write everything waiting
+			flush();
+
+		}
+
+		// write anything added whilst we were stopping
+		flush();
+
+		_logger.info("Monitor writer stopped, " + _written.get() + " entries written, " + _dropped.get() + " dropped, " + _failed.get() + " failed");
+
+	}
+
+	// private methods
+
+	// writes all of the entries in the queue, a batch at a time
+	private void flush() {
+
+		// the batch we're writing
+		List<Entry> entries = new ArrayList<>();
+
+		// while there are entries
+		while (!_queue.isEmpty()) {
+
+			// take up to a batch of entries
+			entries.clear();
+			Entry entry;
+			while (entries.size() < _batchSize && (entry = _queue.poll()) != null) {
+				// free its place for a new one
+				_size.decrementAndGet();
+				// add it
+				entries.add(entry);
+			}
+
+			try {
+
+				// write them
+				_sink.write(entries);
+
+				// count them
+				_written.addAndGet(entries.size());
+
+			} catch (Exception ex) {
+
+				// these entries are lost
+				_failed.addAndGet(entries.size());
+
+				_logger.debug("Monitor write error: " + ex.getMessage());
+
+			}
+
+		}
+
+	}
+
+}
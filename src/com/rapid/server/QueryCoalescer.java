@@ -0,0 +1,213 @@
+/*
+
+Copyright (C) 2022 - Gareth Edwards / Rapid Information Systems
+
+gareth.edwards@rapid-is.co.uk
+
+
+This file is part of the Rapid Application Platform
+
+Rapid is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version. The terms require you
+to include the original copyright, and the license notice in all redistributions.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+in a file named "COPYING".  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package com.rapid.server;
+
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONObject;
+
+import com.rapid.data.DataFactory.QueryCancelledException;
+
+/*
+
+This class is made by the context listener and lets requests for the same read only query, with the same inputs,
+share one execution. The first request runs the query and any others that arrive while it is running wait for it
+and are given a copy of its result, rather than each running the query themselves. The result can also be kept
+for a few seconds for requests that arrive just after. Callers must make the key from everything the result depends
+on, including any inputs taken from the user's session.
+
+*/
+
+public class QueryCoalescer {
+
+	// what to run when no other request is already running it
+	public interface Execution {
+
+		public JSONObject execute() throws Exception;
+
+	}
+
+	// one execution, shared by all of the requests waiting for it
+	private static class Flight {
+
+		private CountDownLatch _done = new CountDownLatch(1);
+		private JSONObject _result;
+		private Exception _exception;
+		// when a finished result is no longer shared, the maximum value whilst running
+		private volatile long _expires = Long.MAX_VALUE;
+
+		private boolean isExpired(long now) {
+			return now > _expires;
+		}
+
+	}
+
+	// private static variables
+	private static Logger _logger = LogManager.getLogger(QueryCoalescer.class);
+
+	// private instance variables
+	private Map<String, Flight> _flights;
+	private AtomicLong _executions, _shared;
+
+	// constructor
+
+	public QueryCoalescer() {
+		_flights = new ConcurrentHashMap<>();
+		_executions = new AtomicLong();
+		_shared = new AtomicLong();
+	}
+
+	// properties
+
+	// the number of times a query was run
+	public long getExecutions() { return _executions.get(); }
+
+	// the number of times a request was given another's result instead of running the query
+	public long getShared() { return _shared.get(); }
+
+	// public methods
+
+	// runs the execution, or waits for the same key's execution if another request is already running it, or uses its result if it finished less than ttl seconds ago, and returns a copy of the result - deadline is the request's, 0 for none
+	public JSONObject execute(String key, int ttl, long deadline, Execution execution) throws Exception {
+
+		// remove any results kept past their ttl, so they don't stay in memory until their key is next asked for
+		removeExpired();
+
+		// our flight, if we end up running it
+		Flight flight = new Flight();
+
+		// add it, unless there's already one for this key
+		Flight existing = _flights.putIfAbsent(key, flight);
+
+		// if there is one
+		while (existing != null) {
+
+			// if it finished too long ago
+			if (existing.isExpired(System.currentTimeMillis())) {
+				// replace it with ours, if another request hasn't just replaced it
+				if (_flights.replace(key, existing, flight)) break;
+				// try again with whatever's there now
+				existing = _flights.putIfAbsent(key, flight);
+			} else {
+				// share it
+				return getResult(existing, deadline);
+			}
+
+		}
+
+		// we're running the query
+		_executions.incrementAndGet();
+
+		try {
+
+			// run it
+			flight._result = execution.execute();
+
+		} catch (Exception ex) {
+
+			// the waiting requests get the exception too
+			flight._exception = ex;
+
+		} finally {
+
+			// if there's a ttl and no exception, keep the result for that long, otherwise remove it
+			if (ttl > 0 && flight._exception == null) {
+				flight._expires = System.currentTimeMillis() + ttl * 1000L;
+			} else {
+				_flights.remove(key, flight);
+			}
+
+			// let the waiting requests carry on
+			flight._done.countDown();
+
+		}
+
+		// throw any exception
+		if (flight._exception != null) throw flight._exception;
+
+		// return a copy so we can each change ours
+		return copy(flight._result);
+
+	}
+
+	// removes all of the results
+	public void clear() {
+		_flights.clear();
+	}
+
+	// private methods
+
+	// waits for another request's flight and returns a copy of its result
+	private JSONObject getResult(Flight flight, long deadline) throws Exception {
+
+		// if we have a deadline
+		if (deadline > 0) {
+			// wait until then at most
+			if (!flight._done.await(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) throw new QueryCancelledException(QueryCancelledException.DEADLINE, new SQLException("Deadline passed waiting for the same query in another request"));
+		} else {
+			// wait for as long as it takes
+			flight._done.await();
+		}
+
+		// count it
+		_shared.incrementAndGet();
+
+		_logger.debug("Query result shared");
+
+		// throw any exception
+		if (flight._exception != null) throw flight._exception;
+
+		// return a copy so we can each change ours
+		return copy(flight._result);
+
+	}
+
+	// removes any results that have expired
+	private void removeExpired() {
+		long now = System.currentTimeMillis();
+		for (Map.Entry<String, Flight> entry : _flights.entrySet()) {
+			if (entry.getValue().isExpired(now)) _flights.remove(entry.getKey(), entry.getValue());
+		}
+	}
+
+	// private static methods
+
+	// a copy of the top level of a result, which is all requests change
+	private static JSONObject copy(JSONObject result) throws Exception {
+		if (result == null) return null;
+		String[] names = JSONObject.getNames(result);
+		if (names == null) return new JSONObject();
+		return new JSONObject(result, names);
+	}
+
+}
@@ -25,11 +25,13 @@ in a file named "COPYING".  If not, see <http://www.gnu.org/licenses/>.
 
 package com.rapid.server;
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
@@ -44,6 +46,7 @@ import java.util.Date;
 import java.util.Enumeration;
 import java.util.List;
 import java.util.Random;
+import java.util.zip.GZIPOutputStream;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
@@ -55,6 +58,8 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import com.rapid.actions.Database;
+import com.rapid.core.Action;
 import com.rapid.core.Application;
 import com.rapid.core.Application.Parameter;
 import com.rapid.core.Application.RapidLoadingException;
@@ -63,6 +68,7 @@ import com.rapid.core.Page;
 import com.rapid.core.Page.Variable;
 import com.rapid.core.Pages.PageHeader;
 import com.rapid.core.Pages.PageHeaders;
+import com.rapid.data.DataFactory.QueryCancelledException;
 import com.rapid.forms.FormAdapter;
 import com.rapid.forms.FormAdapter.FormControlValue;
 import com.rapid.forms.FormAdapter.FormPageControlValues;
@@ -247,9 +253,6 @@ public class Rapid extends RapidHttpServlet {
 		// get a new rapid request passing in this servlet and the http request
 		RapidRequest rapidRequest = new RapidRequest(this, request);
 
-		// if monitor is alive then log the event
-		if(_monitor != null && _monitor.isAlive(rapidRequest.getRapidServlet().getServletContext()) && _monitor.isLoggingAll()) _monitor.openEntry();
-
 		// we will store the length of the item we are adding
 		long responseLength = 0;
 
@@ -272,8 +275,13 @@ public class Rapid extends RapidHttpServlet {
 				// get the application security
 				SecurityAdapter security = app.getSecurityAdapter();
 
+				// check the password, timing it if the request is being timed
+				long securityStart = System.nanoTime();
+				boolean validUser = security.checkUserPassword(rapidRequest, rapidRequest.getUserName(), rapidRequest.getUserPassword());
+				if (rapidRequest.getTiming() != null) rapidRequest.getTiming().end(RequestTiming.SECURITY, securityStart);
+
 				// check the password
-				if (security.checkUserPassword(rapidRequest, rapidRequest.getUserName(), rapidRequest.getUserPassword())) {
+				if (validUser) {
 
 					// get the user
 					User user = security.getUser(rapidRequest);
@@ -777,9 +785,18 @@ public class Rapid extends RapidHttpServlet {
 										// set the response type
 										response.setContentType("text/html");
 
+										// send the timing so far, if the request is being timed
+										if (rapidRequest.getTiming() != null) rapidRequest.getTiming().setHeader(response);
+
+										// when we started writing the page
+										long writeStart = System.nanoTime();
+
 										// write the page html
 										page.writeHtml(this, response, rapidRequest, app, user, out, designerLink, false);
 
+										// add the time to write the page
+										if (rapidRequest.getTiming() != null) rapidRequest.getTiming().end(RequestTiming.WRITE, writeStart);
+
 										// close the writer
 										out.close();
 
@@ -851,6 +868,11 @@ public class Rapid extends RapidHttpServlet {
 
 			sendException(rapidRequest, response, ex);
 
+		} finally {
+
+			// count the request and its time, server errors include any exception above
+			recordRequestMetrics(rapidRequest, response.getStatus() >= 500);
+
 		}
 
 	}
@@ -939,6 +961,62 @@ public class Rapid extends RapidHttpServlet {
 
 	}
 
+	// writes the rows of a database action's query to the response as a csv file, with its inputs from the body which is json, or a form with the json in its data field so the browser can post it for a download
+	private long exportCSV(RapidRequest rapidRequest, HttpServletRequest request, HttpServletResponse response, byte[] bodyBytes) throws Exception {
+
+		// get the action
+		Action action = rapidRequest.getAction();
+
+		// check it's a database action that's been set to export, and can
+		if (!(action instanceof Database) || !((Database) action).canExportCSV(rapidRequest)) {
+			// send bad request response
+			sendMessage(response, 400, "Export not available", "This action can't be exported");
+			// nothing exported
+			return 0;
+		}
+
+		// read the body into a string
+		String bodyString = new String(bodyBytes, "UTF-8");
+
+		// if it's a form get the json from its data field
+		if (bodyString.startsWith("data=")) bodyString = URLDecoder.decode(bodyString.substring(5), "UTF-8");
+
+		// get the json data, which is what the action would usually be sent
+		JSONObject jsonData = bodyString.trim().length() == 0 ? new JSONObject() : new JSONObject(bodyString);
+
+		// get the file name, defaulting to the action id, with anything that could break the header removed
+		String fileName = request.getParameter("filename");
+		if (fileName == null || fileName.trim().length() == 0) fileName = action.getId();
+		fileName = fileName.trim().replaceAll("[^A-Za-z0-9 ._-]", "_");
+		if (!fileName.toLowerCase().endsWith(".csv")) fileName += ".csv";
+
+		// set the response to a csv file download
+		response.setContentType("text/csv; charset=UTF-8");
+		response.setHeader("Content-Disposition", "attachment; filename=\"" + fileName + "\"");
+
+		// get the output stream
+		OutputStream os = response.getOutputStream();
+
+		// gzip it if asked for and the browser can take it, which it unzips as the file is saved
+		String acceptEncoding = request.getHeader("Accept-Encoding");
+		if ("true".equals(request.getParameter("gzip")) && acceptEncoding != null && acceptEncoding.contains("gzip")) {
+			response.setHeader("Content-Encoding", "gzip");
+			os = new GZIPOutputStream(os, 8192);
+		}
+
+		// create a buffered writer, as a print writer so the action can check the client is still there
+		PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(os, "UTF-8")));
+
+		// have the action write the rows
+		long length = ((Database) action).doExportCSV(rapidRequest, jsonData, out);
+
+		// close the writer, which finishes any gzip
+		out.close();
+
+		return length;
+
+	}
+
 	// writes a JSON string to the response and returns the string it used so this is only done once for logging and getting its length
 	private String writeJSONResponse(HttpServletResponse response, String jsonString) throws IOException {
 
@@ -974,12 +1052,12 @@ public class Rapid extends RapidHttpServlet {
 		// read back the body bytes
 		byte[] bodyBytes = rapidRequest.getBodyBytes();
 
-		// if monitor is alive then log the event
-		if (_monitor != null && _monitor.isAlive(rapidRequest.getRapidServlet().getServletContext()) && _monitor.isLoggingAll()) _monitor.openEntry();
-
 		// we will store the length of the item we are adding
 		long responseLength = 0;
 
+		// whether there was an error, as the status can't show it once a streamed response has started
+		boolean error = false;
+
 		// get any action name
 		String actionName = rapidRequest.getActionName();
 
@@ -1135,11 +1213,25 @@ public class Rapid extends RapidHttpServlet {
 					// get the security
 					SecurityAdapter security = app.getSecurityAdapter();
 
+					// check the user password, timing it if the request is being timed
+					long securityStart = System.nanoTime();
+					boolean validUser = security.checkUserPassword(rapidRequest, rapidRequest.getUserName(), rapidRequest.getUserPassword());
+					if (rapidRequest.getTiming() != null) rapidRequest.getTiming().end(RequestTiming.SECURITY, securityStart);
+
 					// check the user password
-					if (security.checkUserPassword(rapidRequest, rapidRequest.getUserName(), rapidRequest.getUserPassword())) {
+					if (validUser) {
+
+						// if a database action's rows are being exported as csv
+						if (rapidRequest.getAction() != null && "csv".equals(request.getParameter("export"))) {
+
+							// write them straight to the response
+							responseLength = exportCSV(rapidRequest, request, response, bodyBytes);
+
+							// log response
+							logger.debug("Rapid POST response : exported csv length " + responseLength + " characters");
 
 						// if an application action was found in the request
-						if (rapidRequest.getAction() != null) {
+						} else if (rapidRequest.getAction() != null) {
 
 							// assume no json data
 							JSONObject jsonData = null;
@@ -1158,21 +1250,89 @@ public class Rapid extends RapidHttpServlet {
 							// if we got some data
 							if (jsonData != null) {
 
-								// fetch the action result
-								JSONObject jsonResult = rapidRequest.getAction().doAction(rapidRequest, jsonData);
+								// get the action
+								Action action = rapidRequest.getAction();
+
+								// the timing, if the request is being timed
+								RequestTiming timing = rapidRequest.getTiming();
 
-								// write the json string to the response and retain the length
-								String responseString = writeJSONResponse(response, jsonResult.toString());
+								// if the action can write its result straight to the response, rather than building it all in memory first
+								if (action.canStreamAction(rapidRequest, jsonData)) {
 
-								// store the response length
-								responseLength = responseString.length();
+									// send the timing so far, as the action will start the response
+									if (timing != null) timing.setHeader(response);
 
-								// log response
+									// when we started the action, which is also writing the response
+									long actionStart = System.nanoTime();
+
+									// create a writer
+									PrintWriter out = response.getWriter();
+									// set response to json
+									response.setContentType("application/json");
+
+									try {
+
+										// have the action write its result and retain the length
+										responseLength = action.doStreamAction(rapidRequest, jsonData, out);
+
+									} catch (Exception ex) {
+
+										// if none of the result has been sent yet
+										if (!response.isCommitted()) {
+											// forget what was written so the error is sent as usual
+											response.resetBuffer();
+										} else {
+											// the start of the result has gone so the error can't be sent, end the response without finishing the json so the client can't take it for the whole result
+											out.close();
+										}
+
+										// throw it on for the monitor and the metrics, it's not sent if the response has started
+										throw ex;
+
+									}
+
+									// close the writer
+									out.close();
+									// add the time for the action
+									if (timing != null) timing.end(RequestTiming.ACTION, actionStart);
+
+									// log response
+									logger.debug("Rapid POST response : streamed length " + responseLength + " bytes");
 
-								if (logger.isTraceEnabled()) {
-									logger.trace("Rapid POST response : " + responseString);
 								} else {
-									logger.debug("Rapid POST response : length " + responseString.length() + " bytes");
+
+									// when we started the action
+									long actionStart = System.nanoTime();
+
+									// fetch the action result
+									JSONObject jsonResult = action.doAction(rapidRequest, jsonData);
+
+									// add the time for the action and send the timing so far, before the response is written
+									if (timing != null) {
+										timing.end(RequestTiming.ACTION, actionStart);
+										timing.setHeader(response);
+									}
+
+									// when we started writing the response
+									long writeStart = System.nanoTime();
+
+									// write the json string to the response and retain the length
+									String responseString = writeJSONResponse(response, jsonResult.toString());
+
+									// add the time to write the response
+									if (timing != null) timing.end(RequestTiming.WRITE, writeStart);
+
+									// store the response length
+									responseLength = responseString.length();
+
+									// log response
+
+									if (logger.isTraceEnabled()) {
+										logger.trace("Rapid POST response : " + responseString);
+									} else {
+										logger.debug("Rapid POST response : length " + responseString.length() + " bytes");
+									}
+
 								}
 
 							} // jsonData
@@ -1959,11 +2119,25 @@ public class Rapid extends RapidHttpServlet {
 
 			// if monitor is alive then log the event
 			if (_monitor != null && _monitor.isAlive(rapidRequest.getRapidServlet().getServletContext()) && _monitor.isLoggingExceptions())
-				_monitor.commitEntry(rapidRequest, response, responseLength, ex.getMessage());
+				_monitor.commitEntry(rapidRequest, response, responseLength, Monitor.getExceptionMessage(ex));
 
-			logger.error("Rapid POST error : ", ex);
+			// cancelled queries are expected when clients go or requests run too long so are logged as warnings, and told apart from other errors
+			if (ex instanceof QueryCancelledException) {
+				logger.warn("Rapid POST query cancelled : " + ex.getMessage());
+			} else {
+				logger.error("Rapid POST error : ", ex);
+			}
 
-			sendException(rapidRequest, response, ex);
+			// remember there was an error, for the metrics
+			error = true;
+
+			// send the exception, unless a streamed response has already started in which case its text would be added to the result
+			if (!response.isCommitted()) sendException(rapidRequest, response, ex);
+
+		} finally {
+
+			// count the request and its time, server errors include any exception above
+			recordRequestMetrics(rapidRequest, error || response.getStatus() >= 500);
 
 		}
 
@@ -39,9 +39,14 @@ import java.lang.reflect.Constructor;
 import java.security.GeneralSecurityException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletResponse;
@@ -73,12 +78,35 @@ import com.rapid.utils.JAXB.EncryptedXmlAdapter;
 @SuppressWarnings({"serial", "unchecked", "rawtypes"})
 public class RapidHttpServlet extends HttpServlet {
 
+	// the unmarshallers made from the jaxb context that can be used again, as they're slow to make and can only be used by one thread at a time
+	private static class UnmarshallerPool {
+
+		// the ones not in use
+		private Queue<Unmarshaller> _free = new ConcurrentLinkedQueue<>();
+		// all of the ones we'll take back, at most UNMARSHALLERS
+		private Set<Unmarshaller> _pooled = Collections.newSetFromMap(new ConcurrentHashMap<Unmarshaller, Boolean>());
+
+		// forget them all
+		private void clear() {
+			_pooled.clear();
+			_free.clear();
+		}
+
+	}
+
+	// private static finals
+
+	// the most unmarshallers kept for reuse
+	private static final int UNMARSHALLERS = Runtime.getRuntime().availableProcessors() * 2;
+
 	// private static variables
 
 	private static Logger _logger = LogManager.getLogger(RapidHttpServlet.class);
 	private static JAXBContext _jaxbContext;
 	private static EncryptedXmlAdapter _encryptedXmlAdapter;
 	private static EncryptionProvider _encryptionProvider;
+	// the unmarshallers that can be reused, this is replaced when the jaxb context is so ones from the old context aren't used or kept
+	private static volatile UnmarshallerPool _unmarshallerPool = new UnmarshallerPool();
 
 	// private instance variables
 
@@ -92,7 +120,11 @@ public class RapidHttpServlet extends HttpServlet {
 	// properties
 
 	public static JAXBContext getJAXBContext() { return _jaxbContext; }
-	public static void setJAXBContext(JAXBContext jaxbContext) { _jaxbContext = jaxbContext; }
+	public static void setJAXBContext(JAXBContext jaxbContext) {
+		_jaxbContext = jaxbContext;
+		// drop the unmarshallers made from any previous context
+		clearUnmarshallers();
+	}
 
 	public static EncryptionProvider getEncryptionProvider() { return _encryptionProvider; }
 	public static void setEncryptionProvider(EncryptionProvider encryptionProvider) { _encryptionProvider = encryptionProvider; }
@@ -143,6 +175,43 @@ public class RapidHttpServlet extends HttpServlet {
 		return unmarshaller;
 	}
 
+	// gets a free unmarshaller from the pool, or a new one if there are none, which must be given back with returnUnmarshaller when the unmarshalling is done
+	public static Unmarshaller borrowUnmarshaller() throws JAXBException, IOException {
+		// get the pool
+		UnmarshallerPool pool = _unmarshallerPool;
+		// get a free unmarshaller
+		Unmarshaller unmarshaller = pool._free.poll();
+		// if there isn't one
+		if (unmarshaller == null) {
+			// make one
+			unmarshaller = getUnmarshaller();
+			// take it back when it's returned, if the pool isn't full
+			if (pool._pooled.size() < UNMARSHALLERS) pool._pooled.add(unmarshaller);
+		} else {
+			// in case the adapter was changed since it was made
+			unmarshaller.setAdapter(_encryptedXmlAdapter);
+		}
+		return unmarshaller;
+	}
+
+	// gives an unmarshaller back to the pool for its next use, unless it's not one the pool is keeping, like those from a previous jaxb context
+	public static void returnUnmarshaller(Unmarshaller unmarshaller) {
+		// get the pool
+		UnmarshallerPool pool = _unmarshallerPool;
+		// keep it if it's one of ours
+		if (pool._pooled.contains(unmarshaller)) pool._free.offer(unmarshaller);
+	}
+
+	// drops all of the pooled unmarshallers, when the jaxb context changes and at shutdown
+	public static void clearUnmarshallers() {
+		// get the pool
+		UnmarshallerPool pool = _unmarshallerPool;
+		// replace it so any borrowed from it aren't taken back
+		_unmarshallerPool = new UnmarshallerPool();
+		// empty it
+		pool.clear();
+	}
+
 	public Logger getLogger() {	return (Logger) getServletContext().getAttribute("logger");	}
 
 	public Constructor getSecurityConstructor(String type) {
@@ -394,6 +463,17 @@ public class RapidHttpServlet extends HttpServlet {
 		return (ActionCache) getServletContext().getAttribute("actionCache");
 	}
 
+	// the request counts and latencies for the metrics servlet, made by the context listener
+	public RequestMetrics getRequestMetrics() {
+		return (RequestMetrics) getServletContext().getAttribute("requestMetrics");
+	}
+
+	// records a request in the request metrics, from when the request was made
+	protected void recordRequestMetrics(RapidRequest rapidRequest, boolean error) {
+		RequestMetrics requestMetrics = getRequestMetrics();
+		if (requestMetrics != null) requestMetrics.record(rapidRequest, System.currentTimeMillis() - rapidRequest.getStartTime(), error);
+	}
+
 	// send the user an exception in a formatted page - used by both Rapid and Designer servelets
 	public void sendException(RapidRequest rapidRequest, HttpServletResponse response, Exception ex) throws IOException {
 
@@ -72,6 +72,11 @@ public class RapidRequest {
 	private Control _control;
 	private Action _action;
 	private byte[] _bodyBytes;
+	private boolean _databaseWritten;
+	private volatile boolean _disconnected;
+	private volatile long _deadline;
+	private long _startTime = System.currentTimeMillis();
+	private RequestTiming _timing;
 
 	// properties
 
@@ -94,6 +99,24 @@ public class RapidRequest {
 	public String getUserName() { return _userName; }
 	public void setUserName(String userName) { _userName = userName; }
 
+	// whether this request has used a database connection that can write, after which its reads must not go to a replica that may not have its changes yet
+	public boolean getDatabaseWritten() { return _databaseWritten; }
+	public void setDatabaseWritten(boolean databaseWritten) { _databaseWritten = databaseWritten; }
+
+	// whether the client has gone and the response can no longer be written, after which the query watchdog cancels any of the request's queries
+	public boolean getDisconnected() { return _disconnected; }
+	public void setDisconnected(boolean disconnected) { _disconnected = disconnected; }
+
+	// the time in millis after which the query watchdog cancels any of the request's queries, 0 for none
+	public long getDeadline() { return _deadline; }
+	public void setDeadline(long deadline) { _deadline = deadline; }
+
+	// the time in millis the request was made, for the monitor
+	public long getStartTime() { return _startTime; }
+
+	// the time spent in each part of the request, or null if it's not in the sample
+	public RequestTiming getTiming() { return _timing; }
+
 	// methods
 
 	// get a specified session attribute
@@ -139,6 +162,8 @@ public class RapidRequest {
 
 	// most likely to construct a rapidRequest from a servlet and an http request
 	public RapidRequest(RapidHttpServlet rapidServlet, HttpServletRequest request) {
+		// time this request if it's in the sample
+		_timing = RequestTiming.sample();
 		// retain the servlet
 		_rapidServlet = rapidServlet;
 		// if there was a rapidServlet, store the context
@@ -188,6 +213,8 @@ public class RapidRequest {
 		if (_application != null) {
 			// get the requested page id
 			String pageId = request.getParameter("p");
+			// when we started getting the page
+			long pageStart = System.nanoTime();
 			// try and get the specified page
 			try {
 				// if no page was specifically requested
@@ -230,6 +257,8 @@ public class RapidRequest {
 				// log the exception
 				logger.error("Failed to load page when creating request", ex);
 			}
+			// add the time to get the page, and its control and action
+			if (_timing != null) _timing.end(RequestTiming.PAGE, pageStart);
 
 		}
 		// if we have a page
@@ -262,6 +291,8 @@ public class RapidRequest {
 				}
 			}
 		}
+		// the time to make the request, which started with the timing
+		if (_timing != null) _timing.add(RequestTiming.REQUEST, _timing.getTotalNanos());
 	}
 
 	// can also instantiate a rapid request with just an application object (this is used by the rapid action)
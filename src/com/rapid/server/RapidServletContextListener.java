@@ -45,6 +45,10 @@ import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLContext;
@@ -72,6 +76,7 @@ import org.json.JSONException;
 import org.json.JSONObject;
 import org.xml.sax.SAXException;
 
+import com.rapid.actions.Database;
 import com.rapid.core.Action;
 import com.rapid.core.Application;
 import com.rapid.core.Application.RapidLoadingException;
@@ -79,10 +84,15 @@ import com.rapid.core.Applications;
 import com.rapid.core.Applications.Versions;
 import com.rapid.core.Device.Devices;
 import com.rapid.core.Email;
+import com.rapid.core.PageCache;
+import com.rapid.core.PageHeaderIndex;
 import com.rapid.core.Process;
 import com.rapid.core.Theme;
 import com.rapid.core.Workflow;
 import com.rapid.core.Workflows;
+import com.rapid.data.QueryWatchdog;
+import com.rapid.data.SQLiteDataFactory;
+import com.rapid.data.SQLStatistics;
 import com.rapid.utils.Classes;
 import com.rapid.utils.Comparators;
 import com.rapid.utils.Encryption.EncryptionProvider;
@@ -873,6 +883,48 @@ public class RapidServletContextListener implements ServletContextListener {
 		// the application root folder
 		File applicationFolderRoot = new File(servletContext.getRealPath("/") + "/WEB-INF/applications/");
 
+		// get the page header index
+		PageHeaderIndex pageHeaderIndex = (PageHeaderIndex) servletContext.getAttribute("pageHeaderIndex");
+
+		// if we have one, read the headers of the pages of all the apps we might load at the same time, so loading them one by one below only uses the index
+		if (pageHeaderIndex != null) {
+			// the pages folders
+			List<File> pagesFolders = new ArrayList<>();
+			// loop the application folders
+			for (File applicationFolder : applicationFolderRoot.listFiles()) {
+				// get the app folder name
+				String appFolderName = applicationFolder.getName().toLowerCase();
+				// skip any files or apps we're ignoring
+				if (!applicationFolder.isDirectory() || ignoreApps.contains(appFolderName)) continue;
+				// if we're only loading some apps, skip this one if no entry starts the same, without any version or wildcard (this need only be close as the index is checked again)
+				if (loadApps.size() > 0) {
+					boolean loadApp = false;
+					for (String loadAppName : loadApps) {
+						if (loadAppName.contains("[")) loadAppName = loadAppName.substring(0, loadAppName.indexOf("["));
+						if (loadAppName.endsWith("*")) loadAppName = loadAppName.substring(0, loadAppName.length() - 1);
+						if (appFolderName.startsWith(loadAppName)) {
+							loadApp = true;
+							break;
+						}
+					}
+					if (!loadApp) continue;
+				}
+				// loop its version folders
+				File[] versionFolders = applicationFolder.listFiles();
+				if (versionFolders != null) {
+					for (File versionFolder : versionFolders) {
+						// add any pages folder
+						File pagesFolder = new File(versionFolder, "pages");
+						if (pagesFolder.isDirectory()) pagesFolders.add(pagesFolder);
+					}
+				}
+			}
+			// get the number of threads
+			int pageHeaderThreads = getIntParameter(servletContext, "pageHeaderThreads", Runtime.getRuntime().availableProcessors());
+			// read them
+			pageHeaderIndex.scan(pagesFolders, pageHeaderThreads);
+		}
+
 		// loop the children of the application folder
 		for (File applicationFolder : applicationFolderRoot.listFiles()) {
 
@@ -1107,6 +1159,9 @@ public class RapidServletContextListener implements ServletContextListener {
 		// store them in the context
 		servletContext.setAttribute("applications", applications);
 
+		// save the page header index so the next start only reads the pages that have changed
+		if (pageHeaderIndex != null) pageHeaderIndex.save();
+
 		_logger.info(applications.size() + " applications loaded");
 
 		return applications.size();
@@ -1334,6 +1389,38 @@ public class RapidServletContextListener implements ServletContextListener {
 
 	}
 
+	// private static methods
+
+	// gets a whole number from the web.xml context parameters, or the default if it's not there or not a number
+	private static int getIntParameter(ServletContext servletContext, String name, int defaultValue) {
+		// get the parameter
+		String value = servletContext.getInitParameter(name);
+		// if we got one
+		if (value != null) {
+			try {
+				return Integer.parseInt(value.trim());
+			} catch (NumberFormatException ex) {
+				_logger.error(name + " " + value + " is not a number, using " + defaultValue);
+			}
+		}
+		return defaultValue;
+	}
+
+	// gets a decimal number from the web.xml context parameters, or the default if it's not there or not a number
+	private static double getDoubleParameter(ServletContext servletContext, String name, double defaultValue) {
+		// get the parameter
+		String value = servletContext.getInitParameter(name);
+		// if we got one
+		if (value != null) {
+			try {
+				return Double.parseDouble(value.trim());
+			} catch (NumberFormatException ex) {
+				_logger.error(name + " " + value + " is not a number, using " + defaultValue);
+			}
+		}
+		return defaultValue;
+	}
+
 
 	// this is the entry point to loading all of the bits we want in the context as Rapid starts
 	@Override
@@ -1382,6 +1469,36 @@ public class RapidServletContextListener implements ServletContextListener {
 			boolean actionCache = Boolean.parseBoolean(servletContext.getInitParameter("actionCache"));
 			if (actionCache) servletContext.setAttribute("actionCache", new ActionCache(servletContext));
 
+			// a bounded pool of threads for database actions that run their child queries at the same time - when its queue is full the request's own thread runs the query
+			int databaseChildThreads = Math.max(1, getIntParameter(servletContext, "databaseChildThreads", Database.CHILD_THREADS));
+			ThreadPoolExecutor databaseChildExecutor = new ThreadPoolExecutor(databaseChildThreads, databaseChildThreads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(databaseChildThreads * 10), new ThreadPoolExecutor.CallerRunsPolicy());
+			databaseChildExecutor.allowCoreThreadTimeOut(true);
+			servletContext.setAttribute("databaseChildExecutor", databaseChildExecutor);
+
+			// a thread that cancels queries whose request has passed its deadline, or whose client has gone
+			QueryWatchdog queryWatchdog = new QueryWatchdog(getIntParameter(servletContext, "queryWatchdogInterval", QueryWatchdog.INTERVAL));
+			queryWatchdog.start();
+			servletContext.setAttribute("queryWatchdog", queryWatchdog);
+
+			// the statistics for the sql the data factories run, and the slow query log
+			servletContext.setAttribute("sqlStatistics", new SQLStatistics(getIntParameter(servletContext, "slowQueryThreshold", SQLStatistics.SLOW_THRESHOLD)));
+
+			// lets database actions with coalesce set share the result of the same query running in another request
+			servletContext.setAttribute("queryCoalescer", new QueryCoalescer());
+
+			// the request counts and latencies read out by the metrics servlet
+			servletContext.setAttribute("requestMetrics", new RequestMetrics(getIntParameter(servletContext, "metricsMaxSeries", RequestMetrics.MAX_SERIES)));
+
+			// the fraction of requests timed, and whether they send their timing in a Server-Timing header
+			RequestTiming.configure(getDoubleParameter(servletContext, "requestTimingSampleRate", 0), Boolean.parseBoolean(servletContext.getInitParameter("serverTiming")));
+
+			// the memory budget for the pages loaded across all of the applications, a quarter of the heap unless set
+			long pageCacheBudget = getIntParameter(servletContext, "pageCacheBudget", (int) (Runtime.getRuntime().maxMemory() / 100 * PageCache.BUDGET_PERCENT / 1024 / 1024)) * 1024L * 1024;
+			servletContext.setAttribute("pageCache", new PageCache(pageCacheBudget, getIntParameter(servletContext, "pageCacheSizeFactor", PageCache.SIZE_FACTOR)));
+
+			// the id, name, and title of the page files, so loading applications only reads the ones that have changed
+			servletContext.setAttribute("pageHeaderIndex", new PageHeaderIndex(servletContext));
+
 			// allow calling to https without checking certs (for now)
 			SSLContext sc = SSLContext.getInstance("SSL");
 			TrustManager[] trustAllCerts = new TrustManager[]{ new Https.TrustAllCerts() };
@@ -1614,6 +1731,40 @@ public class RapidServletContextListener implements ServletContextListener {
 			}
 		}
 
+		// get any database child query executor
+		ExecutorService databaseChildExecutor = (ExecutorService) servletContext.getAttribute("databaseChildExecutor");
+		// if we got one stop its threads
+		if (databaseChildExecutor != null) databaseChildExecutor.shutdownNow();
+
+		// drop the pooled unmarshallers
+		RapidHttpServlet.clearUnmarshallers();
+
+		// get any query watchdog
+		QueryWatchdog queryWatchdog = (QueryWatchdog) servletContext.getAttribute("queryWatchdog");
+		// if we got one stop it
+		if (queryWatchdog != null) queryWatchdog.close();
+
+		// stop any SQLite WAL mode writers and close their connections
+		SQLiteDataFactory.closeDatabases();
+
+		// write any monitor entries still queued and stop the monitor writer
+		_monitor.close();
+
+		// get any page header index
+		PageHeaderIndex pageHeaderIndex = (PageHeaderIndex) servletContext.getAttribute("pageHeaderIndex");
+		// if we got one save any pages read since the applications were loaded
+		if (pageHeaderIndex != null) pageHeaderIndex.save();
+
+		// get any action cache
+		ActionCache actionCache = (ActionCache) servletContext.getAttribute("actionCache");
+		// if we got one save it for the last time
+		if (actionCache != null) {
+			// log
+			_logger.info("Saving action cache...");
+			// stop its saver and save
+			actionCache.close();
+		}
+
 		// get all of the applications
 		Applications applications = (Applications) servletContext.getAttribute("applications");
 		// if we got some
@@ -0,0 +1,263 @@
+/*
+
+Copyright (C) 2022 - Gareth Edwards / Rapid Information Systems
+
+gareth.edwards@rapid-is.co.uk
+
+
+This file is part of the Rapid Application Platform
+
+Rapid is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version. The terms require you
+to include the original copyright, and the license notice in all redistributions.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+in a file named "COPYING".  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package com.rapid.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.rapid.core.Action;
+import com.rapid.core.Application;
+import com.rapid.core.Page;
+
+/*
+
+This class is made by the context listener and counts the requests the Rapid and SOA servlets serve, with a latency
+histogram, for each servlet, application, page, and action type. The series are kept in maps nested by each label so
+finding one is only lookups with the strings we already have, and the counters are striped adders, so recording a
+request doesn't allocate or contend. Labels can come from the request, so once there are maxSeries series any new
+ones are counted together under the other label. The Metrics servlet reads them out in the Prometheus text format.
+
+*/
+
+public class RequestMetrics {
+
+	// the counters for one servlet, application, page, and action type
+	public static class Series {
+
+		private String _servlet, _appId, _pageId, _actionType;
+		private LongAdder _requests, _errors, _totalMillis;
+		private LongAdder[] _histogram;
+
+		public Series(String servlet, String appId, String pageId, String actionType) {
+			_servlet = servlet;
+			_appId = appId;
+			_pageId = pageId;
+			_actionType = actionType;
+			_requests = new LongAdder();
+			_errors = new LongAdder();
+			_totalMillis = new LongAdder();
+			// a bucket for each bound, and one for everything slower
+			_histogram = new LongAdder[HISTOGRAM_MILLIS.length + 1];
+			for (int i = 0; i < _histogram.length; i++) _histogram[i] = new LongAdder();
+		}
+
+		public String getServlet() { return _servlet; }
+		public String getAppId() { return _appId; }
+		public String getPageId() { return _pageId; }
+		public String getActionType() { return _actionType; }
+		public long getRequests() { return _requests.sum(); }
+		public long getErrors() { return _errors.sum(); }
+		public long getTotalMillis() { return _totalMillis.sum(); }
+
+		// the number of requests in a bucket, not including the ones before it
+		public long getBucket(int index) { return _histogram[index].sum(); }
+
+		// counts a request
+		public void record(long millis, boolean error) {
+			_requests.increment();
+			if (error) _errors.increment();
+			_totalMillis.add(millis);
+			// find the bucket
+			int bucket = 0;
+			while (bucket < HISTOGRAM_MILLIS.length && millis > HISTOGRAM_MILLIS[bucket]) bucket ++;
+			_histogram[bucket].increment();
+		}
+
+	}
+
+	// the servlets we record
+	public static final String RAPID = "rapid";
+	public static final String SOA = "soa";
+
+	// the servlet label of page load series, which are kept apart from the requests
+	public static final String PAGE_LOAD = "pageload";
+
+	// the label for series made after there are too many
+	public static final String OTHER = "other";
+
+	// the upper bounds in millis of the latency histogram buckets, there's one more bucket for anything slower
+	public static final long[] HISTOGRAM_MILLIS = {5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000};
+
+	// default most series we'll make, can be set with the metricsMaxSeries context parameter
+	public static final int MAX_SERIES = 5000;
+
+	// private static variables
+	private static Logger _logger = LogManager.getLogger(RequestMetrics.class);
+
+	// private instance variables
+	private Map<String, Map<String, Map<String, Map<String, Series>>>> _series;
+	private Map<String, Series> _pageLoads;
+	private AtomicInteger _seriesCount;
+	private int _maxSeries;
+	private long _started;
+
+	// constructor
+
+	public RequestMetrics(int maxSeries) {
+		_series = new ConcurrentHashMap<>();
+		_pageLoads = new ConcurrentHashMap<>();
+		_seriesCount = new AtomicInteger();
+		_maxSeries = maxSeries;
+		_started = System.currentTimeMillis();
+		_logger.info("Request metrics started, with up to " + maxSeries + " series");
+	}
+
+	// properties
+
+	// when the metrics were started
+	public long getStarted() { return _started; }
+
+	// public methods
+
+	// records a request to the Rapid servlet against its application, page, and action type, or action name if it's not for an action
+	public void record(RapidRequest rapidRequest, long millis, boolean error) {
+		// get the labels from the objects the request found, so their strings are the ones we already have
+		Application application = rapidRequest.getApplication();
+		Page page = rapidRequest.getPage();
+		Action action = rapidRequest.getAction();
+		String appId = application == null ? rapidRequest.getAppId() : application.getId();
+		String pageId = page == null ? null : page.getId();
+		String actionType = action == null ? rapidRequest.getActionName() : action.getType();
+		// record it
+		record(RAPID, appId, pageId, actionType, millis, error);
+	}
+
+	// records a request against a servlet, application, page, and action type, any of which can be null
+	public void record(String servlet, String appId, String pageId, String actionType, long millis, boolean error) {
+		getSeries(servlet, appId, pageId, actionType).record(millis, error);
+	}
+
+	// records a page being loaded from its file into memory, against its application, which is the cold load a request for a page that isn't loaded waits for
+	public void recordPageLoad(String appId, long millis, boolean error) {
+		// our map can't have null keys
+		if (appId == null) appId = "";
+		// get the series
+		Series series = _pageLoads.get(appId);
+		// if there isn't one yet make it, unless another thread just did
+		if (series == null) {
+			Series newSeries = new Series(PAGE_LOAD, appId, null, null);
+			series = _pageLoads.putIfAbsent(appId, newSeries);
+			if (series == null) series = newSeries;
+		}
+		// record it
+		series.record(millis, error);
+	}
+
+	// the page load series, one for each application
+	public List<Series> getPageLoads() {
+		return new ArrayList<>(_pageLoads.values());
+	}
+
+	// all of the series, for reading out
+	public List<Series> getSeries() {
+		List<Series> series = new ArrayList<>();
+		for (Map<String, Map<String, Map<String, Series>>> apps : _series.values()) {
+			for (Map<String, Map<String, Series>> pages : apps.values()) {
+				for (Map<String, Series> actionTypes : pages.values()) {
+					series.addAll(actionTypes.values());
+				}
+			}
+		}
+		return series;
+	}
+
+	// the number of series
+	public int getSeriesCount() {
+		return _seriesCount.get();
+	}
+
+	// private methods
+
+	// finds the series for the labels, making it if this is the first request for them
+	private Series getSeries(String servlet, String appId, String pageId, String actionType) {
+
+		// our maps can't have null keys
+		if (servlet == null) servlet = "";
+		if (appId == null) appId = "";
+		if (pageId == null) pageId = "";
+		if (actionType == null) actionType = "";
+
+		// look for each level in turn, which is all we do once they've been made
+		Map<String, Map<String, Map<String, Series>>> apps = _series.get(servlet);
+		Map<String, Map<String, Series>> pages = apps == null ? null : apps.get(appId);
+		Map<String, Series> actionTypes = pages == null ? null : pages.get(pageId);
+		Series series = actionTypes == null ? null : actionTypes.get(actionType);
+
+		// if we found it we're done
+		if (series != null) return series;
+
+		// if we have too many already, count this with the others
+		if (_seriesCount.get() >= _maxSeries) {
+			appId = OTHER;
+			pageId = OTHER;
+			actionType = OTHER;
+			apps = _series.get(servlet);
+			pages = apps == null ? null : apps.get(appId);
+			actionTypes = pages == null ? null : pages.get(pageId);
+			series = actionTypes == null ? null : actionTypes.get(actionType);
+			if (series != null) return series;
+		}
+
+		// make whatever levels are missing, using any another thread has just made
+		if (apps == null) apps = getChild(_series, servlet);
+		if (pages == null) pages = getChild(apps, appId);
+		if (actionTypes == null) actionTypes = getChild(pages, pageId);
+
+		// make the series
+		Series newSeries = new Series(servlet, appId, pageId, actionType);
+		// add it, unless another thread just did
+		series = actionTypes.putIfAbsent(actionType, newSeries);
+		// if it was us use ours, and count it
+		if (series == null) {
+			series = newSeries;
+			if (_seriesCount.incrementAndGet() == _maxSeries) _logger.warn("Request metrics has " + _maxSeries + " series, new ones will be counted as " + OTHER);
+		}
+
+		return series;
+
+	}
+
+	// private static methods
+
+	// gets the map for a key from its parent, making it if there isn't one yet
+	private static <T> Map<String, T> getChild(Map<String, Map<String, T>> parent, String key) {
+		Map<String, T> child = parent.get(key);
+		if (child == null) {
+			Map<String, T> newChild = new ConcurrentHashMap<>();
+			child = parent.putIfAbsent(key, newChild);
+			if (child == null) child = newChild;
+		}
+		return child;
+	}
+
+}
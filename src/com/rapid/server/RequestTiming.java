@@ -0,0 +1,152 @@
+/*
+
+Copyright (C) 2022 - Gareth Edwards / Rapid Information Systems
+
+gareth.edwards@rapid-is.co.uk
+
+
+This file is part of the Rapid Application Platform
+
+Rapid is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version. The terms require you
+to include the original copyright, and the license notice in all redistributions.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+in a file named "COPYING".  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package com.rapid.server;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.servlet.http.HttpServletResponse;
+
+/*
+
+The time a sampled request spent in each part of being served - making the Rapid request, which reads the whole body,
+checking security, loading the page, running the action, jdbc, and writing the response. Only the sampled fraction of
+requests get one, the rest have null and only pay for reading the clock. Spans can nest, jdbc is part of the action,
+and are added together when there's more than one, like each query, including any run by other threads for parallel
+child queries. The spans so far can be sent in a Server-Timing header before the response is written, and all of them
+are kept in the monitor entry.
+
+*/
+
+public class RequestTiming {
+
+	// the spans
+	public static final int REQUEST = 0;
+	public static final int SECURITY = 1;
+	public static final int PAGE = 2;
+	public static final int ACTION = 3;
+	public static final int DATABASE = 4;
+	public static final int WRITE = 5;
+
+	// the span names, in the order above
+	private static final String[] NAMES = {"request", "security", "page", "action", "db", "write"};
+
+	// the fraction of requests timed, set with the requestTimingSampleRate context parameter
+	private static volatile double _sampleRate = 0;
+
+	// whether timed requests send their spans in a Server-Timing header, set with the serverTiming context parameter
+	private static volatile boolean _serverTiming = false;
+
+	// private instance variables
+	private long _start;
+	private AtomicLongArray _nanos, _counts;
+
+	// constructor
+
+	public RequestTiming() {
+		_start = System.nanoTime();
+		_nanos = new AtomicLongArray(NAMES.length);
+		_counts = new AtomicLongArray(NAMES.length);
+	}
+
+	// public static methods
+
+	// sets the sample rate, from 0 for none to 1 for all, and whether to send the Server-Timing header, called by the context listener
+	public static void configure(double sampleRate, boolean serverTiming) {
+		_sampleRate = Math.max(0, Math.min(1, sampleRate));
+		_serverTiming = serverTiming;
+	}
+
+	// a timing for a new request if it's in the sample, otherwise null
+	public static RequestTiming sample() {
+		// get the rate
+		double sampleRate = _sampleRate;
+		// none, all, or a random fraction
+		if (sampleRate <= 0) return null;
+		if (sampleRate >= 1 || ThreadLocalRandom.current().nextDouble() < sampleRate) return new RequestTiming();
+		return null;
+	}
+
+	// public methods
+
+	// adds the time since start nanos to a span
+	public void end(int span, long start) {
+		add(span, System.nanoTime() - start);
+	}
+
+	// adds some nanos to a span
+	public void add(int span, long nanos) {
+		_nanos.addAndGet(span, nanos);
+		_counts.incrementAndGet(span);
+	}
+
+	// the nanos since the request was made
+	public long getTotalNanos() {
+		return System.nanoTime() - _start;
+	}
+
+	// sends the spans so far in a Server-Timing header, if it's turned on and the response hasn't started
+	public void setHeader(HttpServletResponse response) {
+		if (_serverTiming && !response.isCommitted()) response.setHeader("Server-Timing", toServerTiming());
+	}
+
+	// the spans in the Server-Timing header format, in millis
+	public String toServerTiming() {
+		StringBuilder serverTiming = new StringBuilder();
+		for (int i = 0; i < NAMES.length; i++) {
+			long count = _counts.get(i);
+			if (count > 0) {
+				serverTiming.append(NAMES[i]).append(";dur=").append(toMillis(_nanos.get(i)));
+				if (count > 1) serverTiming.append(";desc=\"").append(count).append("\"");
+				serverTiming.append(", ");
+			}
+		}
+		serverTiming.append("total;dur=").append(toMillis(getTotalNanos()));
+		return serverTiming.toString();
+	}
+
+	// the spans as json for the monitor, in millis, with the count for any that happened more than once
+	public String toJSON() {
+		StringBuilder json = new StringBuilder("{");
+		for (int i = 0; i < NAMES.length; i++) {
+			long count = _counts.get(i);
+			if (count > 0) {
+				json.append('"').append(NAMES[i]).append("\":").append(toMillis(_nanos.get(i))).append(',');
+				if (count > 1) json.append('"').append(NAMES[i]).append("Count\":").append(count).append(',');
+			}
+		}
+		json.append("\"total\":").append(toMillis(getTotalNanos())).append('}');
+		return json.toString();
+	}
+
+	// private static methods
+
+	// nanos as millis to 3 decimal places
+	private static double toMillis(long nanos) {
+		return Math.round(nanos / 1000.0) / 1000.0;
+	}
+
+}
@@ -342,6 +342,9 @@ public class SOA extends RapidHttpServlet {
 		// get a logger
 		Logger logger = getLogger();
 
+		// remember when we started, for the request metrics
+		long startTime = System.currentTimeMillis();
+
 		// log!
 		logger.debug("SOA POST request : " + request.getContentType() + " "  + request.getContentLength() + " bytes" );
 
@@ -362,6 +365,10 @@ public class SOA extends RapidHttpServlet {
 		// assume not a SOAP action
 		boolean soapAction = false;
 
+		// the webservice, and whether it failed, for the request metrics
+		String serviceName = null;
+		boolean error = false;
+
 		try {
 
 			// check we got the content type
@@ -416,6 +423,9 @@ public class SOA extends RapidHttpServlet {
 
 					} else if ("authenticate".equals(action)) {
 
+						// remember the service
+						serviceName = action;
+
 						// now get a suitable reader
 						soaReader = getRequestReader(contentType, _authenticationWebservice);
 
@@ -470,6 +480,9 @@ public class SOA extends RapidHttpServlet {
 
 								} else {
 
+									// remember the service
+									serviceName = webservice.getName();
+
 									// now get a suitable reader
 									soaReader = getRequestReader(contentType, webservice);
 
@@ -541,6 +554,9 @@ public class SOA extends RapidHttpServlet {
 
 		} catch (Exception ex) {
 
+			// remember it failed
+			error = true;
+
 			// log
 			_logger.error("Error with SOA post", ex);
 
@@ -567,6 +583,10 @@ public class SOA extends RapidHttpServlet {
 		// close the output stream
 		out.close();
 
+		// count the request and its time against the application and webservice
+		RequestMetrics requestMetrics = getRequestMetrics();
+		if (requestMetrics != null) requestMetrics.record(RequestMetrics.SOA, application == null ? null : application.getId(), null, serviceName, System.currentTimeMillis() - startTime, error);
+
 	}
 
 }
\ No newline at end of file
@@ -131,6 +131,8 @@ public class RapidFilter implements Filter {
 			_noAuthResources.add("/online.htm");
 			_noAuthResources.add("/manifest.json");
 			_noAuthResources.add("/sw.js");
+			// the metrics servlet checks its own credentials so scrapers can use basic authentication
+			_noAuthResources.add("/metrics");
 
 			// look for a specified noAuthResources in web.xml
 			String noAuthResourcesParam = filterConfig.getInitParameter("noAuthResources");
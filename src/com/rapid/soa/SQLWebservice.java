@@ -27,10 +27,12 @@ package com.rapid.soa;
 
 import java.sql.Date;
 import java.sql.ResultSet;
-import java.sql.Timestamp;
+import java.sql.SQLException;
 import java.text.SimpleDateFormat;
+import java.util.List;
 
 import com.rapid.core.Application;
+import com.rapid.data.ColumnReader;
 import com.rapid.data.ConnectionAdapter;
 import com.rapid.data.DataFactory;
 import com.rapid.data.DataFactory.Parameters;
@@ -62,6 +64,50 @@ public class SQLWebservice extends Webservice {
 		setName(name);
 	}
 
+	// private methods
+
+	// the readers for the fields of the response child elements, according to their data type, so the columns are only looked up once rather than for every row
+	private ColumnReader[] getReaders(RapidRequest rapidRequest, ResultSet rs, List<SOASchemaElement> responseChildElementSchemas) throws SQLException {
+
+		// the xml date formatters, made once for all rows
+		SimpleDateFormat xmlDateFormatter = rapidRequest.getRapidServlet().getXMLDateFormatter();
+		SimpleDateFormat xmlDateTimeFormatter = rapidRequest.getRapidServlet().getXMLDateTimeFormatter();
+
+		// make an array for the readers
+		ColumnReader[] readers = new ColumnReader[responseChildElementSchemas.size()];
+
+		// loop the response child element schemas
+		for (int i = 0; i < readers.length; i++) {
+
+			SOASchemaElement responseChildElementSchema = responseChildElementSchemas.get(i);
+
+			// find the column for the field
+			int column = rs.findColumn(responseChildElementSchema.getField());
+
+			switch (responseChildElementSchema.getDataType()) {
+				case SOASchema.INTEGER :
+					readers[i] = new ColumnReader.IntegerReader(column);
+					break;
+				case SOASchema.DECIMAL :
+					readers[i] = new ColumnReader.FloatReader(column);
+					break;
+				case SOASchema.DATE :
+					readers[i] = new ColumnReader.DateReader(column, xmlDateFormatter);
+					break;
+				case SOASchema.DATETIME :
+					// no date formatter so date times are always formatted with the time
+					readers[i] = new ColumnReader.TimestampReader(column, null, xmlDateTimeFormatter);
+					break;
+				default:
+					readers[i] = new ColumnReader.TextReader(column);
+			}
+
+		}
+
+		return readers;
+
+	}
+
 	// overrides
 
 	@Override
@@ -131,42 +177,46 @@ public class SQLWebservice extends Webservice {
 			// get the response element
 			SOAElement responseElement = new SOAElement(responseSchemaElement.getName(), responseSchemaElement.getIsArray());
 
+			// the readers for the response child elements' fields, made from the first row
+			ColumnReader[] readers = null;
+
+			// the rows we read, for the sql statistics
+			int resultRows = 0;
+
 			while (rs.next()) {
 
+				// count the row
+				resultRows ++;
+
 				if (responseSchemaElement.getChildElements() != null) {
 
-					for (SOASchemaElement responseChildElementSchema : responseSchemaElement.getChildElements()) {
+					// make the readers if we haven't yet
+					if (readers == null) readers = getReaders(rapidRequest, rs, responseSchemaElement.getChildElements());
+
+					for (int i = 0; i < readers.length; i++) {
+
+						SOASchemaElement responseChildElementSchema = responseSchemaElement.getChildElements().get(i);
 
 						String elementName = responseChildElementSchema.getName();
 
 						int elementType = responseChildElementSchema.getDataType();
 
-						String fieldName = responseChildElementSchema.getField();
+						Object value = readers[i].read(rs);
 
 						String elementValue = null;
 
 						switch (elementType) {
 							case SOASchema.INTEGER :
-								elementValue = Integer.toString(rs.getInt(fieldName));
+								// null integers have always been sent as 0
+								elementValue = Integer.toString(value == null ? 0 : (Integer) value);
 								break;
 							case SOASchema.DECIMAL :
-								elementValue = Float.toString(rs.getFloat(fieldName));
-								break;
-							case SOASchema.DATE :
-								dateFormatter = rapidRequest.getRapidServlet().getXMLDateFormatter();
-								date = rs.getDate(fieldName);
-								if (date != null) elementValue = dateFormatter.format(date);
-								break;
-							case SOASchema.DATETIME :
-								dateFormatter = rapidRequest.getRapidServlet().getXMLDateTimeFormatter();
-								Timestamp timeStamp = rs.getTimestamp(fieldName);
-								if (timeStamp != null) {
-									date = new Date(timeStamp.getTime());
-									elementValue = dateFormatter.format(date);
-								}
+								// the float reader returns doubles, which we turn back to the float they were read as
+								elementValue = Float.toString(value == null ? 0 : ((Double) value).floatValue());
 								break;
 							default:
-								elementValue = rs.getString(fieldName);
+								// text, and dates already formatted for xml
+								elementValue = (String) value;
 						}
 
 						// create a child response element
@@ -190,6 +240,9 @@ public class SQLWebservice extends Webservice {
 
 			}
 
+			// add the rows we read to the sql statistics
+			df.addResultRows(resultRows);
+
 			SOAData responseData = new SOAData(responseElement);
 
 			return responseData;
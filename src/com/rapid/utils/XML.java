@@ -40,6 +40,9 @@ import java.util.List;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.transform.Result;
 import javax.xml.transform.Source;
 import javax.xml.transform.Transformer;
@@ -58,6 +61,16 @@ import org.xml.sax.SAXException;
 
 public class XML {
 
+	// stream readers can be made from the same factory by many threads once it's set up
+	private static XMLInputFactory _inputFactory;
+
+	static {
+		_inputFactory = XMLInputFactory.newInstance();
+		// our files have no dtd nor entities so don't fetch or expand any
+		_inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		_inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+	}
+
 	private static DocumentBuilder getDocBuilder() throws ParserConfigurationException {
 
 		DocumentBuilderFactory docBuilderFactory = DocumentBuilderFactory.newInstance();
@@ -94,6 +107,20 @@ public class XML {
 
 	}
 
+	// a streaming reader, for when we only want some of the document or don't want it all in memory, the encoding is taken from the xml declaration
+	public static XMLStreamReader openStreamReader(InputStream inputStream) throws XMLStreamException {
+
+		return _inputFactory.createXMLStreamReader(inputStream);
+
+	}
+
+	// a streaming reader for a reader that's already decoding the characters
+	public static XMLStreamReader openStreamReader(Reader reader) throws XMLStreamException {
+
+		return _inputFactory.createXMLStreamReader(reader);
+
+	}
+
 	public static void saveDocument(Document document, File file) throws TransformerFactoryConfigurationError, TransformerException {
 
 		Transformer transformer = TransformerFactory.newInstance().newTransformer();
@@ -0,0 +1,254 @@
+/*
+
+Copyright (C) 2022 - Gareth Edwards / Rapid Information Systems
+
+gareth.edwards@rapid-is.co.uk
+
+
+This file is part of the Rapid Application Platform
+
+Rapid is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version. The terms require you
+to include the original copyright, and the license notice in all redistributions.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+in a file named "COPYING".  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package com.rapid.actions;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/*
+
+Compares Database.mergeChildRows, which indexes the child rows once and looks up each parent row's key, with the nested
+loop the Database action used before, which compared every child row with every parent row. It checks both give the
+same rows, then times each as the number of parent rows grows, with three child rows for each parent matched on an
+integer and a string field, and some that match nothing or have a null. The nested loop grows with the square of the
+rows so it's only timed up to a limit.
+
+java -cp bin:test-bin:WebContent/WEB-INF/lib/* com.rapid.actions.MergeChildRowsBenchmark [parentRows...]
+
+It exits with 1 if the rows differ.
+
+*/
+
+public class MergeChildRowsBenchmark {
+
+	// the numbers of parent rows to time
+	private static final int[] SIZES = { 100, 1000, 4000, 20000, 100000 };
+
+	// the most parent rows the nested loop is timed with
+	private static final int NESTED_LIMIT = 4000;
+
+	// child rows for each parent row
+	private static final int CHILDREN = 3;
+
+	// times each way is timed, after the same again to warm up
+	private static final int REPEATS = 5;
+
+	// the merge, one way or the other
+	private interface Merge {
+		public void merge(JSONArray jsonRows, JSONArray jsonChildFields, JSONArray jsonChildRows, Map<Integer,Integer> fieldsMap) throws JSONException;
+	}
+
+	public static void main(String[] args) throws Exception {
+
+		int[] sizes = SIZES;
+		if (args.length > 0) {
+			sizes = new int[args.length];
+			for (int i = 0; i < args.length; i++) sizes[i] = Integer.parseInt(args[i]);
+		}
+
+		Merge hashJoin = new Merge() {
+			@Override
+			public void merge(JSONArray jsonRows, JSONArray jsonChildFields, JSONArray jsonChildRows, Map<Integer,Integer> fieldsMap) throws JSONException {
+				Database.mergeChildRows(jsonRows, jsonChildFields, jsonChildRows, fieldsMap);
+			}
+		};
+
+		Merge nestedLoop = new Merge() {
+			@Override
+			public void merge(JSONArray jsonRows, JSONArray jsonChildFields, JSONArray jsonChildRows, Map<Integer,Integer> fieldsMap) throws JSONException {
+				mergeNestedLoop(jsonRows, jsonChildFields, jsonChildRows, fieldsMap);
+			}
+		};
+
+		// the parent id and code match the child id and code
+		JSONArray jsonChildFields = new JSONArray(Arrays.asList("id", "code", "value"));
+		Map<Integer,Integer> fieldsMap = new HashMap<>();
+		fieldsMap.put(0, 0);
+		fieldsMap.put(1, 1);
+
+		boolean same = true;
+
+		System.out.println("Parent rows\tChild rows\tHash join ms\tNested loop ms");
+
+		for (int size : sizes) {
+
+			JSONArray jsonChildRows = makeChildRows(size);
+
+			// check they give the same rows where we can run the nested loop
+			if (size <= NESTED_LIMIT) {
+				JSONArray hashRows = makeParentRows(size);
+				hashJoin.merge(hashRows, jsonChildFields, jsonChildRows, fieldsMap);
+				JSONArray nestedRows = makeParentRows(size);
+				nestedLoop.merge(nestedRows, jsonChildFields, jsonChildRows, fieldsMap);
+				if (!hashRows.toString().equals(nestedRows.toString())) {
+					same = false;
+					System.out.println("Rows differ for " + size + " parent rows");
+				}
+			}
+
+			double hashMillis = time(hashJoin, size, jsonChildFields, jsonChildRows, fieldsMap);
+			String nestedMillis = size <= NESTED_LIMIT ? Double.toString(time(nestedLoop, size, jsonChildFields, jsonChildRows, fieldsMap)) : "-";
+
+			System.out.println(size + "\t" + jsonChildRows.length() + "\t" + hashMillis + "\t" + nestedMillis);
+
+		}
+
+		System.out.println(same ? "Same rows both ways" : "DIFFERENT rows");
+		System.exit(same ? 0 : 1);
+
+	}
+
+	// the median milliseconds of a merge into new parent rows, which aren't included in the time
+	private static double time(Merge merge, int size, JSONArray jsonChildFields, JSONArray jsonChildRows, Map<Integer,Integer> fieldsMap) throws JSONException {
+		long[] nanos = new long[REPEATS];
+		for (int r = -REPEATS; r < REPEATS; r++) {
+			JSONArray jsonRows = makeParentRows(size);
+			long start = System.nanoTime();
+			merge.merge(jsonRows, jsonChildFields, jsonChildRows, fieldsMap);
+			if (r >= 0) nanos[r] = System.nanoTime() - start;
+		}
+		Arrays.sort(nanos);
+		return Math.round(nanos[REPEATS / 2] / 10000.0) / 100.0;
+	}
+
+	// parent rows of id, code, and name, with every hundredth code null so it matches nothing
+	private static JSONArray makeParentRows(int size) throws JSONException {
+		JSONArray jsonRows = new JSONArray();
+		for (int i = 0; i < size; i++) {
+			JSONArray jsonRow = new JSONArray();
+			jsonRow.put(i);
+			jsonRow.put(i % 100 == 0 ? JSONObject.NULL : "C" + i % 10);
+			jsonRow.put("Parent " + i);
+			jsonRows.put(jsonRow);
+		}
+		return jsonRows;
+	}
+
+	// child rows of id, code, and value, for random parents, some of which aren't there
+	private static JSONArray makeChildRows(int size) throws JSONException {
+		Random random = new Random(size);
+		JSONArray jsonChildRows = new JSONArray();
+		for (int i = 0; i < size * CHILDREN; i++) {
+			int id = random.nextInt(size + size / 10);
+			JSONArray jsonChildRow = new JSONArray();
+			jsonChildRow.put(id);
+			jsonChildRow.put("C" + id % 10);
+			jsonChildRow.put(i * 1.5);
+			jsonChildRows.put(jsonChildRow);
+		}
+		return jsonChildRows;
+	}
+
+	// how the Database action merged child rows before the hash join
+	private static void mergeNestedLoop(JSONArray jsonRows, JSONArray jsonChildFields, JSONArray jsonChildRows, Map<Integer,Integer> fieldsMap) throws JSONException {
+		// an object with a null value for when there is no match
+		Object nullObject = null;
+		// loop the parent rows
+		for (int j = 0; j < jsonRows.length(); j++) {
+			// get the parent row
+			JSONArray jsonRow = jsonRows.getJSONArray(j);
+			// make a new rows collection for the child subset
+			JSONArray jsonChildRowsSubset = new JSONArray();
+			// loop the child rows
+			for (int k =0; k < jsonChildRows.length(); k++) {
+				// get the child row
+				JSONArray jsonChildRow = jsonChildRows.getJSONArray(k);
+				// assume no matches
+				int matches = 0;
+				// loop the fields map
+				for (Integer l: fieldsMap.keySet()) {
+					// parent value
+					Object parentValue = null;
+					// get the value if there are enough
+					if (jsonRow.length() > l) parentValue = jsonRow.get(l);
+					// child value
+					Object childValue = null;
+					// get child value if present
+					if (jsonChildRow.length() > l) childValue= jsonChildRow.opt(fieldsMap.get(l));
+					// non null check
+					if (parentValue != null && childValue != null) {
+						// a string we will concert the child value to
+						String parentString = null;
+						// check the parent value type
+						if (parentValue.getClass() == String.class) {
+							parentString = (String) parentValue;
+						} else if (parentValue.getClass() == Integer.class) {
+							parentString = Integer.toString((Integer) parentValue);
+						} else if (parentValue.getClass() == Long.class) {
+							parentString = Long.toString((Long) parentValue);
+						} else if (parentValue.getClass() == Double.class) {
+							parentString = Double.toString((Double) parentValue);
+						} else if (parentValue.getClass() == Boolean.class) {
+							parentString = Boolean.toString((Boolean) parentValue);
+						}
+						// a string we will convert the child value to
+						String childString = null;
+						// check the parent value type
+						if (childValue.getClass() == String.class) {
+							childString = (String) childValue;
+						} else if (childValue.getClass() == Integer.class) {
+							childString = Integer.toString((Integer) childValue);
+						} else if (childValue.getClass() == Long.class) {
+							childString = Long.toString((Long) childValue);
+						} else if (childValue.getClass() == Double.class) {
+							childString = Double.toString((Double) childValue);
+						} else if (childValue.getClass() == Boolean.class) {
+							childString = Boolean.toString((Boolean) childValue);
+						}
+						// non null check
+						if (parentString != null && childString != null) {
+							// do the match!
+							if (parentString.equals(childString)) matches++;
+						}
+					} // values non null
+				} // field map loop
+				// if we got some matches for all the fields add this row to the subset
+				if (matches == fieldsMap.size()) jsonChildRowsSubset.put(jsonChildRow);
+			} // child row loop
+			// if our child subset has rows in it
+			if (jsonChildRowsSubset.length() > 0) {
+				// create a new childSubset object
+				JSONObject jsonChildDataSubset = new JSONObject();
+				// add the fields
+				jsonChildDataSubset.put("fields", jsonChildFields);
+				// add the subset of rows
+				jsonChildDataSubset.put("rows", jsonChildRowsSubset);
+				// add the child database action data subset
+				jsonRow.put(jsonChildDataSubset);
+			} else {
+				// add an empty cell
+				jsonRow.put(nullObject);
+			}
+		} // parent row loop
+	}
+
+}
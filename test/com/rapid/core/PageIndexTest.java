@@ -0,0 +1,240 @@
+/*
+
+Copyright (C) 2022 - Gareth Edwards / Rapid Information Systems
+
+gareth.edwards@rapid-is.co.uk
+
+
+This file is part of the Rapid Application Platform
+
+Rapid is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version. The terms require you
+to include the original copyright, and the license notice in all redistributions.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+in a file named "COPYING".  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package com.rapid.core;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.servlet.ServletContext;
+import javax.xml.bind.JAXBContext;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.rapid.actions.Logic;
+import com.rapid.server.RapidHttpServlet;
+import com.rapid.utils.JAXB.EncryptedXmlAdapter;
+
+/*
+
+Checks the page's index of controls and actions by id against the tree walking lookups it replaced, for every page in
+the applications folder, and that the index is rebuilt after setControls, setEvents, and addControl so it never returns
+a control or action the page no longer has, or misses one it's been given. Finally it clears the index while another
+thread is reading it, which must never fail.
+
+Run it from the root of the project, with the src classes compiled to bin and these to test-bin:
+
+java -cp bin:test-bin:WebContent/WEB-INF/lib/*:servlet-api.jar com.rapid.core.PageIndexTest [webContentFolder]
+
+It exits with 1 if any check fails.
+
+*/
+
+public class PageIndexTest {
+
+	private static int _failures;
+
+	public static void main(String[] args) throws Exception {
+
+		File webContent = new File(args.length > 0 ? args[0] : "WebContent");
+
+		// the jaxb context needs the page and every action class, which we get from the action definitions the same as the context listener
+		List<Class> jaxbClasses = new ArrayList<>();
+		jaxbClasses.add(Page.class);
+		Pattern classPattern = Pattern.compile("<class>\\s*([\\w.]+)\\s*</class>");
+		for (File actionFile : new File(webContent, "WEB-INF/actions").listFiles()) {
+			if (actionFile.getName().endsWith(".action.xml")) {
+				Matcher matcher = classPattern.matcher(new String(Files.readAllBytes(actionFile.toPath()), StandardCharsets.UTF_8));
+				while (matcher.find()) jaxbClasses.add(Class.forName(matcher.group(1)));
+			}
+		}
+		RapidHttpServlet.setJAXBContext(JAXBContext.newInstance(jaxbClasses.toArray(new Class[jaxbClasses.size()])));
+		RapidHttpServlet.setEncryptedXmlAdapter(new EncryptedXmlAdapter(null));
+
+		// loading a page only needs the logger from the servlet context
+		final Logger logger = LogManager.getLogger(PageIndexTest.class);
+		ServletContext servletContext = (ServletContext) Proxy.newProxyInstance(PageIndexTest.class.getClassLoader(), new Class[] { ServletContext.class }, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] methodArgs) {
+				if ("getAttribute".equals(method.getName()) && "logger".equals(methodArgs[0])) return logger;
+				return null;
+			}
+		});
+
+		// find every page
+		List<File> pageFiles = new ArrayList<>();
+		findPages(new File(webContent, "WEB-INF/applications"), pageFiles);
+
+		int controls = 0, actions = 0, mismatches = 0;
+
+		for (File pageFile : pageFiles) {
+
+			Page page = Page.load(servletContext, pageFile);
+
+			// every control must be the same one the tree walk finds, which is the first of any duplicates
+			for (Control control : page.getAllControls()) {
+				controls ++;
+				if (page.getControl(control.getId()) != page.getChildControl(page.getControls(), control.getId())) {
+					mismatches ++;
+					System.out.println("Control " + control.getId() + " in " + pageFile.getName() + " isn't the one the tree walk finds");
+				}
+			}
+
+			// and every action, looking in the page events first and then the controls
+			for (Action action : page.getAllActions()) {
+				actions ++;
+				if (page.getAction(action.getId()) != findAction(page, action.getId())) {
+					mismatches ++;
+					System.out.println("Action " + action.getId() + " in " + pageFile.getName() + " isn't the one the tree walk finds");
+				}
+			}
+
+			// ids the page doesn't have, and no id, find nothing
+			if (page.getControl("missing") != null || page.getAction("missing") != null || page.getControl(null) != null || page.getAction(null) != null) mismatches ++;
+
+		}
+
+		System.out.println(pageFiles.size() + " pages, " + controls + " controls, " + actions + " actions");
+		check("index matches the tree walk", pageFiles.size() > 0 && mismatches == 0);
+
+		// a page with one control with one action, and one page event action, all looked up so the index is built
+		Page page = new Page();
+		Control first = newControl("first", newAction("firstAction"));
+		List<Control> firstControls = new ArrayList<>();
+		firstControls.add(first);
+		page.setControls(firstControls);
+		page.setEvents(newEvents(newAction("pageAction")));
+		check("control found", page.getControl("first") == first);
+		check("control action found", page.getAction("firstAction") != null);
+		check("page event action found", page.getAction("pageAction") != null);
+
+		// replacing the controls drops the old ones and their actions and finds the new ones
+		Control second = newControl("second", newAction("secondAction"));
+		List<Control> secondControls = new ArrayList<>();
+		secondControls.add(second);
+		page.setControls(secondControls);
+		check("setControls drops the old control", page.getControl("first") == null);
+		check("setControls drops the old control's action", page.getAction("firstAction") == null);
+		check("setControls finds the new control", page.getControl("second") == second);
+		check("setControls finds the new control's action", page.getAction("secondAction") != null);
+
+		// replacing the page events likewise
+		Action newPageAction = newAction("newPageAction");
+		page.setEvents(newEvents(newPageAction));
+		check("setEvents drops the old action", page.getAction("pageAction") == null);
+		check("setEvents finds the new action", page.getAction("newPageAction") == newPageAction);
+
+		// adding a control finds it and its action, and keeps the others
+		Control third = newControl("third", newAction("thirdAction"));
+		page.addControl(third);
+		check("addControl finds the new control", page.getControl("third") == third);
+		check("addControl finds the new control's action", page.getAction("thirdAction") != null);
+		check("addControl keeps the others", page.getControl("second") == second && page.getAction("newPageAction") == newPageAction);
+
+		// a page with no controls or events yet
+		Page empty = new Page();
+		check("empty page finds nothing", empty.getControl("first") == null && empty.getAction("firstAction") == null);
+		empty.addControl(newControl("first", null));
+		check("addControl to an empty page", empty.getControl("first") != null);
+
+		// clearing the index while another thread reads it must never throw or lose what's there
+		final Page racePage = page;
+		final boolean[] raceFailed = new boolean[1];
+		Thread clearer = new Thread() {
+			@Override
+			public void run() {
+				for (int i = 0; i < 200000; i++) racePage.clearIndex();
+			}
+		};
+		clearer.start();
+		try {
+			for (int i = 0; i < 200000; i++) if (racePage.getControl("third") != third) raceFailed[0] = true;
+		} catch (Exception ex) {
+			raceFailed[0] = true;
+		}
+		clearer.join();
+		check("clearing while reading", !raceFailed[0]);
+
+		System.out.println(_failures == 0 ? "Passed" : _failures + " failed");
+		System.exit(_failures == 0 ? 0 : 1);
+
+	}
+
+	// the action the tree walking functions find, the page events first and then the controls
+	private static Action findAction(Page page, String actionId) {
+		Action action = page.getChildEventsAction(page.getEvents(), actionId);
+		if (action == null) action = page.getChildControlsAction(page.getControls(), actionId);
+		return action;
+	}
+
+	private static Control newControl(String id, Action action) {
+		Control control = new Control();
+		control.addProperty("id", id);
+		if (action != null) control.setEvents(newEvents(action));
+		return control;
+	}
+
+	private static Action newAction(String id) {
+		Action action = new Logic();
+		action.addProperty("id", id);
+		return action;
+	}
+
+	private static List<Event> newEvents(Action action) {
+		Event event = new Event("click", null);
+		event.getActions().add(action);
+		List<Event> events = new ArrayList<>();
+		events.add(event);
+		return events;
+	}
+
+	private static void findPages(File folder, List<File> pageFiles) {
+		File[] files = folder.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.isDirectory()) {
+					findPages(file, pageFiles);
+				} else if (file.getName().endsWith(".page.xml")) {
+					pageFiles.add(file);
+				}
+			}
+		}
+	}
+
+	private static void check(String name, boolean passed) {
+		if (!passed) _failures ++;
+		System.out.println((passed ? "ok   " : "FAIL ") + name);
+	}
+
+}
@@ -0,0 +1,322 @@
+/*
+
+Copyright (C) 2022 - Gareth Edwards / Rapid Information Systems
+
+gareth.edwards@rapid-is.co.uk
+
+
+This file is part of the Rapid Application Platform
+
+Rapid is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version. The terms require you
+to include the original copyright, and the license notice in all redistributions.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+in a file named "COPYING".  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package com.rapid.data;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+
+Compares reading result sets with ColumnReader against the way the Database action read them before, which got every
+cell as a string, looked up the column type for every cell, and then read numbers and dates again with their own
+getter. It checks both give the same values, then times each over the same rows and counts the calls they make on the
+result set and its meta data, as each is a call into the driver.
+
+With no arguments it reads an in-memory result set of integer, bigint, double, decimal, varchar, date and timestamp
+columns with some nulls. Given a JDBC url and a query it reads that instead, with the driver on the classpath. SQLite
+urls get the readers that check the type on every row, as the Database action uses for SQLite:
+
+java -cp bin:test-bin:WebContent/WEB-INF/lib/* com.rapid.data.ColumnReaderBenchmark [rows] [repeats]
+java -cp bin:test-bin:WebContent/WEB-INF/lib/*:driver.jar com.rapid.data.ColumnReaderBenchmark jdbcUrl query [repeats]
+
+It exits with 1 if the values differ.
+
+*/
+
+public class ColumnReaderBenchmark {
+
+	// rows in the in-memory result set
+	private static final int ROWS = 100000;
+
+	// times each way is timed, after the same again to warm up
+	private static final int REPEATS = 10;
+
+	// the column types of the in-memory result set
+	private static final int[] TYPES = { Types.INTEGER, Types.BIGINT, Types.DOUBLE, Types.DECIMAL, Types.VARCHAR, Types.DATE, Types.TIMESTAMP };
+
+	// something that gives us a new result set to read
+	private interface Source {
+		public ResultSet getResultSet() throws SQLException;
+		public void close(ResultSet rs) throws SQLException;
+	}
+
+	// the cell reads and their values for one way of reading
+	private interface Way {
+		public String getName();
+		public List<Object> read(ResultSet rs) throws SQLException;
+	}
+
+	public static void main(String[] args) throws Exception {
+
+		final SimpleDateFormat dateFormatter = new SimpleDateFormat("dd/MM/yyyy");
+		final SimpleDateFormat dateTimeFormatter = new SimpleDateFormat("dd/MM/yyyy HH:mm:ss");
+
+		// counts every call made on the result set and its meta data, other than next
+		final AtomicLong calls = new AtomicLong();
+
+		Source source;
+		int repeats;
+		boolean rowTypes = false;
+
+		if (args.length > 1 && args[0].startsWith("jdbc:")) {
+
+			// read a real query
+			final Connection connection = DriverManager.getConnection(args[0]);
+			final String sql = args[1];
+			rowTypes = args[0].startsWith("jdbc:sqlite");
+			repeats = args.length > 2 ? Integer.parseInt(args[2]) : REPEATS;
+			source = new Source() {
+				@Override
+				public ResultSet getResultSet() throws SQLException {
+					return counting(connection.createStatement().executeQuery(sql), ResultSet.class, calls);
+				}
+				@Override
+				public void close(ResultSet rs) throws SQLException {
+					Statement statement = rs.getStatement();
+					rs.close();
+					statement.close();
+				}
+			};
+
+		} else {
+
+			// read the in-memory rows
+			final Object[][] rows = makeRows(args.length > 0 ? Integer.parseInt(args[0]) : ROWS);
+			repeats = args.length > 1 ? Integer.parseInt(args[1]) : REPEATS;
+			source = new Source() {
+				@Override
+				public ResultSet getResultSet() {
+					return counting(newResultSet(rows), ResultSet.class, calls);
+				}
+				@Override
+				public void close(ResultSet rs) {}
+			};
+
+		}
+
+		Way previous = new Way() {
+			@Override
+			public String getName() { return "Previous"; }
+			@Override
+			public List<Object> read(ResultSet rs) throws SQLException {
+				List<Object> values = new ArrayList<>();
+				ResultSetMetaData rsmd = rs.getMetaData();
+				while (rs.next()) {
+					for (int i = 0; i < rsmd.getColumnCount(); i++) values.add(getColumnValue(rs, rsmd, i + 1, dateFormatter, dateTimeFormatter));
+				}
+				return values;
+			}
+		};
+
+		final boolean readerRowTypes = rowTypes;
+		Way readers = new Way() {
+			@Override
+			public String getName() { return readerRowTypes ? "ColumnReader, row types" : "ColumnReader"; }
+			@Override
+			public List<Object> read(ResultSet rs) throws SQLException {
+				List<Object> values = new ArrayList<>();
+				ColumnReader[] readers = ColumnReader.getReaders(rs.getMetaData(), dateFormatter, dateTimeFormatter, readerRowTypes);
+				while (rs.next()) {
+					for (int i = 0; i < readers.length; i++) values.add(readers[i].read(rs));
+				}
+				return values;
+			}
+		};
+
+		// check they read the same values
+		ResultSet rs = source.getResultSet();
+		List<Object> previousValues = previous.read(rs);
+		source.close(rs);
+		rs = source.getResultSet();
+		List<Object> readerValues = readers.read(rs);
+		source.close(rs);
+		boolean same = previousValues.equals(readerValues);
+		System.out.println(previousValues.size() + " values, " + (same ? "the same" : "DIFFERENT") + " both ways");
+
+		// time them, alternating so neither gets all of the warm up
+		long[][] nanos = new long[2][repeats];
+		long[] wayCalls = new long[2];
+		Way[] ways = { previous, readers };
+		for (int r = -repeats; r < repeats; r++) {
+			for (int w = 0; w < ways.length; w++) {
+				rs = source.getResultSet();
+				calls.set(0);
+				long start = System.nanoTime();
+				ways[w].read(rs);
+				long took = System.nanoTime() - start;
+				source.close(rs);
+				if (r >= 0) {
+					nanos[w][r] = took;
+					wayCalls[w] = calls.get();
+				}
+			}
+		}
+
+		for (int w = 0; w < ways.length; w++) {
+			Arrays.sort(nanos[w]);
+			System.out.println(ways[w].getName() + " : median " + nanos[w][repeats / 2] / 1000000.0 + " ms, " + wayCalls[w] + " result set calls");
+		}
+
+		System.exit(same ? 0 : 1);
+
+	}
+
+	// how the Database action read a column before ColumnReader, without the XSS escaping which is the same for both
+	private static Object getColumnValue(ResultSet rs, ResultSetMetaData rsmd, int column, SimpleDateFormat localDateFormatter, SimpleDateFormat localDateTimeFormatter) throws SQLException {
+
+		// get the value as a string
+		String value = rs.getString(column);
+
+		// check for null
+		if (value == null) return null;
+
+		// get the column type
+		int columnType = rsmd.getColumnType(column);
+
+		// return the data according to it's type
+		switch (columnType) {
+		case (Types.NUMERIC) :
+			return rs.getDouble(column);
+		case (Types.INTEGER) :
+			return rs.getInt(column);
+		case (Types.BIGINT) :
+			return rs.getLong(column);
+		case (Types.FLOAT) :
+			// json has no floats so it goes as a double
+			return (double) rs.getFloat(column);
+		case (Types.DOUBLE) : case (Types.DECIMAL) :
+			return rs.getDouble(column);
+		case (Types.DATE) :
+			Date date = rs.getDate(column);
+			if (date == null) return null;
+			return localDateFormatter.format(date);
+		case (Types.TIMESTAMP) :
+			Timestamp timeStamp = rs.getTimestamp(column);
+			if (timeStamp == null) return null;
+			// check for 0 millseconds past midnight - a truncated date time (time zone offset is in minutes, multiplied by the number of millis in a minute modulus with number of millis in a day)
+			if ((timeStamp.getTime() - timeStamp.getTimezoneOffset() * 60000) % 86400000L == 0) {
+				// if so show just date
+				return localDateFormatter.format(timeStamp);
+			} else {
+				// show date and time
+				return localDateTimeFormatter.format(timeStamp);
+			}
+		default :
+			// return the value
+			return value;
+		}
+
+	}
+
+	// rows of values for the in-memory result set, every seventh cell null
+	private static Object[][] makeRows(int count) {
+		Object[][] rows = new Object[count][];
+		long day = 86400000L;
+		for (int i = 0; i < count; i++) {
+			rows[i] = new Object[] { i, i * 1000000007L, i / 3.0, i * 1.25, "Name " + i, new Date(day * (i % 20000)), new Timestamp(day * (i % 20000) + (i % 2 == 0 ? 0 : 3723000L)) };
+			rows[i][i % 7] = null;
+		}
+		return rows;
+	}
+
+	// a forward only result set over the rows, where getString converts like a driver does
+	private static ResultSet newResultSet(final Object[][] rows) {
+
+		final ResultSetMetaData rsmd = (ResultSetMetaData) Proxy.newProxyInstance(ColumnReaderBenchmark.class.getClassLoader(), new Class[] { ResultSetMetaData.class }, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				String name = method.getName();
+				if ("getColumnCount".equals(name)) return TYPES.length;
+				if ("getColumnType".equals(name)) return TYPES[(Integer) args[0] - 1];
+				if ("getColumnLabel".equals(name)) return "column" + args[0];
+				throw new UnsupportedOperationException(name);
+			}
+		});
+
+		return (ResultSet) Proxy.newProxyInstance(ColumnReaderBenchmark.class.getClassLoader(), new Class[] { ResultSet.class }, new InvocationHandler() {
+
+			private int _row = -1;
+			private boolean _wasNull;
+
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				String name = method.getName();
+				if ("next".equals(name)) return ++_row < rows.length;
+				if ("getMetaData".equals(name)) return rsmd;
+				if ("wasNull".equals(name)) return _wasNull;
+				if ("close".equals(name)) return null;
+				// the rest are getters by column number
+				Object value = rows[_row][(Integer) args[0] - 1];
+				_wasNull = value == null;
+				if ("getString".equals(name)) return value == null ? null : value.toString();
+				if ("getInt".equals(name)) return value == null ? 0 : ((Number) value).intValue();
+				if ("getLong".equals(name)) return value == null ? 0L : ((Number) value).longValue();
+				if ("getFloat".equals(name)) return value == null ? 0f : ((Number) value).floatValue();
+				if ("getDouble".equals(name)) return value == null ? 0d : ((Number) value).doubleValue();
+				if ("getDate".equals(name)) return value == null ? null : new Date(((java.util.Date) value).getTime());
+				if ("getTimestamp".equals(name)) return value == null ? null : new Timestamp(((java.util.Date) value).getTime());
+				throw new UnsupportedOperationException(name);
+			}
+
+		});
+
+	}
+
+	// wraps a result set, or its meta data, to count the calls made on it, other than next
+	private static <T> T counting(final T object, final Class<T> type, final AtomicLong calls) {
+		return type.cast(Proxy.newProxyInstance(ColumnReaderBenchmark.class.getClassLoader(), new Class[] { type }, new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if (!"next".equals(method.getName())) calls.incrementAndGet();
+				try {
+					Object result = method.invoke(object, args);
+					// count the meta data calls too
+					if (result instanceof ResultSetMetaData) return counting((ResultSetMetaData) result, ResultSetMetaData.class, calls);
+					return result;
+				} catch (InvocationTargetException ex) {
+					throw ex.getCause();
+				}
+			}
+		}));
+	}
+
+}
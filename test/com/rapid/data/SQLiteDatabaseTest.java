@@ -0,0 +1,394 @@
+/*
+
+Copyright (C) 2022 - Gareth Edwards / Rapid Information Systems
+
+gareth.edwards@rapid-is.co.uk
+
+
+This file is part of the Rapid Application Platform
+
+Rapid is free software: you can redistribute it and/or modify
+it under the terms of the GNU Affero General Public License as
+published by the Free Software Foundation, either version 3 of the
+License, or (at your option) any later version. The terms require you
+to include the original copyright, and the license notice in all redistributions.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU Affero General Public License for more details.
+
+You should have received a copy of the GNU Affero General Public License
+in a file named "COPYING".  If not, see <http://www.gnu.org/licenses/>.
+
+*/
+
+package com.rapid.data;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+
+Runs many threads writing and reading one SQLite file at the same time, first each with its own connection, the way
+SQLITE_BUSY happens, and then through a SQLiteDatabase in WAL mode, which must have no errors, lose no rows, and never
+show a reader fewer rows than it saw before. It then checks a failing write only undoes itself, and that a write which
+times out before the writer gets to it is never done.
+
+There's no SQLite driver in WEB-INF/lib so it needs the sqlite-jdbc jar on the classpath, for example with the src
+classes compiled to bin and these to test-bin:
+
+java -cp bin:test-bin:sqlite-jdbc.jar:WebContent/WEB-INF/lib/* com.rapid.data.SQLiteDatabaseTest [threads] [writes]
+
+It exits with 1 if any check fails.
+
+*/
+
+public class SQLiteDatabaseTest {
+
+	// how many threads write, and read, at once
+	private static final int THREADS = 8;
+
+	// how many rows each writing thread inserts
+	private static final int WRITES = 200;
+
+	private static int _failures;
+
+	public static void main(String[] args) throws Exception {
+
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : THREADS;
+		int writes = args.length > 1 ? Integer.parseInt(args[1]) : WRITES;
+
+		// check we have the driver
+		try {
+			Class.forName("org.sqlite.JDBC");
+		} catch (ClassNotFoundException ex) {
+			System.out.println("The sqlite-jdbc jar needs to be on the classpath");
+			System.exit(2);
+		}
+
+		// without the writer each thread's connection competes for the file lock
+		File file = newDatabase();
+		final String connectionString = "jdbc:sqlite:" + file.getPath();
+		Result direct = run(threads, writes, new Writer() {
+			@Override
+			public void insert(int thread, int row) throws SQLException {
+				Connection connection = DriverManager.getConnection(connectionString);
+				try {
+					insertRow(connection, thread, row);
+				} finally {
+					connection.close();
+				}
+			}
+		}, new Reader() {
+			@Override
+			public int count() throws SQLException {
+				Connection connection = DriverManager.getConnection(connectionString);
+				try {
+					return countRows(connection);
+				} finally {
+					connection.close();
+				}
+			}
+		});
+		System.out.println("Own connections : " + direct);
+		file.delete();
+
+		// with the writer all of the writes go through one connection and the readers use the pool
+		file = newDatabase();
+		final SQLiteDatabase database = new SQLiteDatabase(new SimpleConnectionAdapter(null, "org.sqlite.JDBC", "jdbc:sqlite:" + file.getPath(), null, null), SQLiteDatabase.READERS, SQLiteDatabase.GROUP_SIZE);
+		Result wal = run(threads, writes, new Writer() {
+			@Override
+			public void insert(final int thread, final int row) throws Exception {
+				database.write(null, new SQLiteDatabase.Write() {
+					@Override
+					public int execute(Connection connection) throws SQLException {
+						return insertRow(connection, thread, row);
+					}
+				}, SQLiteDatabase.WRITE_TIMEOUT);
+			}
+		}, new Reader() {
+			@Override
+			public int count() throws Exception {
+				Connection connection = database.getReadConnection(null);
+				try {
+					return countRows(connection);
+				} finally {
+					database.closeReadConnection(connection);
+				}
+			}
+		});
+		System.out.println("WAL writer : " + wal);
+		check("no errors with the writer", wal.errors.get() == 0);
+		check("no rows lost with the writer", wal.rows == threads * writes);
+		check("readers never went backwards", wal.backwards.get() == 0);
+
+		// a write that fails in a group only undoes itself
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		Thread holder = new Thread() {
+			@Override
+			public void run() {
+				try {
+					// hold the writer so the next writes are grouped
+					database.write(null, new SQLiteDatabase.Write() {
+						@Override
+						public int execute(Connection connection) throws SQLException {
+							started.countDown();
+							try {
+								release.await();
+							} catch (InterruptedException ex) {}
+							return insertRow(connection, -1, 0);
+						}
+					}, SQLiteDatabase.WRITE_TIMEOUT);
+				} catch (Exception ex) {
+					check("holding write committed", false);
+				}
+			}
+		};
+		holder.start();
+		started.await();
+		final List<Exception> exceptions = new ArrayList<>();
+		List<Thread> grouped = new ArrayList<>();
+		for (int i = 0; i < 3; i++) {
+			final int row = i;
+			Thread thread = new Thread() {
+				@Override
+				public void run() {
+					try {
+						// the middle one repeats a key that's already there
+						database.write(null, new SQLiteDatabase.Write() {
+							@Override
+							public int execute(Connection connection) throws SQLException {
+								return insertRow(connection, row == 1 ? 0 : -2, row == 1 ? 0 : row);
+							}
+						}, SQLiteDatabase.WRITE_TIMEOUT);
+					} catch (Exception ex) {
+						synchronized (exceptions) { exceptions.add(ex); }
+					}
+				}
+			};
+			thread.start();
+			grouped.add(thread);
+		}
+		// let them queue behind the holder
+		while (database.getWriteQueueSize() < 3) Thread.sleep(10);
+		release.countDown();
+		holder.join();
+		for (Thread thread : grouped) thread.join();
+		check("only the failing write failed", exceptions.size() == 1);
+		check("the rest of its group committed", count(database) == threads * writes + 3);
+
+		// a write that times out before the writer starts it is never done
+		final CountDownLatch slowStarted = new CountDownLatch(1);
+		Thread slow = new Thread() {
+			@Override
+			public void run() {
+				try {
+					database.write(null, new SQLiteDatabase.Write() {
+						@Override
+						public int execute(Connection connection) throws SQLException {
+							slowStarted.countDown();
+							try {
+								Thread.sleep(1000);
+							} catch (InterruptedException ex) {}
+							return 0;
+						}
+					}, SQLiteDatabase.WRITE_TIMEOUT);
+				} catch (Exception ex) {
+					check("slow write committed", false);
+				}
+			}
+		};
+		slow.start();
+		slowStarted.await();
+		final AtomicInteger abandonedRan = new AtomicInteger();
+		try {
+			database.write(null, new SQLiteDatabase.Write() {
+				@Override
+				public int execute(Connection connection) throws SQLException {
+					abandonedRan.incrementAndGet();
+					return insertRow(connection, -3, 0);
+				}
+			}, 200);
+			check("queued write timed out", false);
+		} catch (SQLException ex) {
+			System.out.println("Queued write : " + ex.getMessage());
+		}
+		slow.join();
+		// give the writer a turn in case it wrongly does it
+		database.write(null, new SQLiteDatabase.Write() {
+			@Override
+			public int execute(Connection connection) throws SQLException {
+				return 0;
+			}
+		}, SQLiteDatabase.WRITE_TIMEOUT);
+		check("timed out write never done", abandonedRan.get() == 0);
+
+		database.close();
+		file.delete();
+		new File(file.getPath() + "-wal").delete();
+		new File(file.getPath() + "-shm").delete();
+
+		System.out.println(_failures == 0 ? "Passed" : _failures + " failed");
+		System.exit(_failures == 0 ? 0 : 1);
+
+	}
+
+	// inserts a row on whichever thread or connection it's given
+	private interface Writer {
+		public void insert(int thread, int row) throws Exception;
+	}
+
+	// counts the rows on whichever connection it's given
+	private interface Reader {
+		public int count() throws Exception;
+	}
+
+	// what happened in a run
+	private static class Result {
+
+		private AtomicInteger errors = new AtomicInteger(), busy = new AtomicInteger(), reads = new AtomicInteger(), backwards = new AtomicInteger();
+		private int rows;
+		private long millis;
+
+		@Override
+		public String toString() {
+			return rows + " rows in " + millis + " ms, " + reads.get() + " reads, " + errors.get() + " errors of which " + busy.get() + " busy";
+		}
+
+	}
+
+	// starts the writing and reading threads together, waits for the writers, then stops the readers
+	private static Result run(int threads, final int writes, final Writer writer, final Reader reader) throws Exception {
+
+		final Result result = new Result();
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch written = new CountDownLatch(threads);
+
+		List<Thread> all = new ArrayList<>();
+
+		for (int i = 0; i < threads; i++) {
+
+			final int thread = i;
+
+			all.add(new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						for (int row = 0; row < writes; row++) {
+							try {
+								writer.insert(thread, row);
+							} catch (Exception ex) {
+								error(result, ex);
+							}
+						}
+					} catch (InterruptedException ex) {
+					} finally {
+						written.countDown();
+					}
+				}
+			});
+
+			all.add(new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						int last = 0;
+						while (written.getCount() > 0) {
+							try {
+								int count = reader.count();
+								// a reader must always see at least what it saw last time
+								if (count < last) result.backwards.incrementAndGet();
+								last = count;
+								result.reads.incrementAndGet();
+							} catch (Exception ex) {
+								error(result, ex);
+							}
+						}
+					} catch (InterruptedException ex) {}
+				}
+			});
+
+		}
+
+		for (Thread thread : all) thread.start();
+		long started = System.currentTimeMillis();
+		start.countDown();
+		for (Thread thread : all) thread.join();
+		result.millis = System.currentTimeMillis() - started;
+
+		result.rows = reader.count();
+
+		return result;
+
+	}
+
+	private static void error(Result result, Exception ex) {
+		result.errors.incrementAndGet();
+		if (ex.getMessage() != null && ex.getMessage().contains("SQLITE_BUSY")) result.busy.incrementAndGet();
+	}
+
+	private static int count(final SQLiteDatabase database) throws Exception {
+		Connection connection = database.getReadConnection(null);
+		try {
+			return countRows(connection);
+		} finally {
+			database.closeReadConnection(connection);
+		}
+	}
+
+	// a new database file with the table, in WAL mode
+	private static File newDatabase() throws SQLException, java.io.IOException {
+		File file = File.createTempFile("rapid-sqlite-test", ".db");
+		Connection connection = DriverManager.getConnection("jdbc:sqlite:" + file.getPath());
+		try {
+			Statement statement = connection.createStatement();
+			statement.execute("PRAGMA journal_mode=WAL");
+			statement.execute("CREATE TABLE test (thread INTEGER, row INTEGER, PRIMARY KEY (thread, row))");
+			statement.close();
+		} finally {
+			connection.close();
+		}
+		return file;
+	}
+
+	private static int insertRow(Connection connection, int thread, int row) throws SQLException {
+		PreparedStatement statement = connection.prepareStatement("INSERT INTO test (thread, row) VALUES (?, ?)");
+		try {
+			statement.setInt(1, thread);
+			statement.setInt(2, row);
+			return statement.executeUpdate();
+		} finally {
+			statement.close();
+		}
+	}
+
+	private static int countRows(Connection connection) throws SQLException {
+		Statement statement = connection.createStatement();
+		try {
+			ResultSet resultSet = statement.executeQuery("SELECT COUNT(*) FROM test");
+			resultSet.next();
+			return resultSet.getInt(1);
+		} finally {
+			statement.close();
+		}
+	}
+
+	private static synchronized void check(String name, boolean passed) {
+		if (!passed) _failures ++;
+		System.out.println((passed ? "ok   " : "FAIL ") + name);
+	}
+
+}